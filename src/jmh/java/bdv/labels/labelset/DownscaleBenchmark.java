@@ -0,0 +1,117 @@
+package bdv.labels.labelset;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import net.imglib2.Cursor;
+import net.imglib2.img.array.ArrayImg;
+
+/**
+ * Benchmarks for {@link Downscale} and for reading
+ * {@link VolatileLabelMultisetArray}s at fine and coarse levels.
+ *
+ * Fixtures are either random ids ({@code random-<labels>-<grain>}) or a crop
+ * of the sample data ({@code sample}, see
+ * {@link LabelMultisetFixtures#SAMPLE_PATH}).
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class DownscaleBenchmark
+{
+	@Param( { "random-64-4", "random-4096-1", "sample" } )
+	public String fixture;
+
+	@Param( { "128" } )
+	public int size;
+
+	/**
+	 * Level 0 of the fixture.
+	 */
+	protected ArrayImg< LabelMultisetType, VolatileLabelMultisetArray > level0;
+
+	/**
+	 * Level 0 downscaled by 4x4x4, lists with many entries.
+	 */
+	protected ArrayImg< LabelMultisetType, VolatileLabelMultisetArray > level2;
+
+	final protected long[] factors = new long[]{ 2, 2, 2 };
+
+	protected long[] dimensions;
+
+	@Setup( Level.Trial )
+	public void setup() throws IOException
+	{
+		if ( fixture.equals( "sample" ) )
+			level0 = LabelMultisetFixtures.sample( size, size, size );
+		else
+		{
+			final String[] parts = fixture.split( "-" );
+			level0 = LabelMultisetFixtures.random( Integer.parseInt( parts[ 1 ] ), Integer.parseInt( parts[ 2 ] ), size, size, size );
+		}
+		level2 = LabelMultisetFixtures.downscale( level0, 4, 4, 4 );
+
+		dimensions = new long[ 3 ];
+		for ( int d = 0; d < 3; ++d )
+			dimensions[ d ] = level0.dimension( d ) / factors[ d ];
+	}
+
+	@Benchmark
+	public VolatileLabelMultisetArray downscaleLevel0()
+	{
+		return Downscale.downscale( level0, factors, dimensions, new long[ 3 ] );
+	}
+
+	@Benchmark
+	public VolatileLabelMultisetArray downscaleLevel2()
+	{
+		final long[] dimensions2 = new long[ 3 ];
+		for ( int d = 0; d < 3; ++d )
+			dimensions2[ d ] = level2.dimension( d ) / factors[ d ];
+		return Downscale.downscale( level2, factors, dimensions2, new long[ 3 ] );
+	}
+
+	/**
+	 * Iterate all entries of all voxels of the 4x downscaled level.
+	 */
+	@Benchmark
+	public void readLevel2( final Blackhole blackhole )
+	{
+		final Cursor< LabelMultisetType > cursor = level2.cursor();
+		long sum = 0;
+		while ( cursor.hasNext() )
+			for ( final Multiset.Entry< Label > entry : cursor.next().entrySet() )
+				sum += entry.getElement().id() * entry.getCount();
+		blackhole.consume( sum );
+	}
+
+	/**
+	 * First entry of each voxel at level 0, as used by the converters.
+	 */
+	@Benchmark
+	public void readLevel0( final Blackhole blackhole )
+	{
+		final Cursor< LabelMultisetType > cursor = level0.cursor();
+		long sum = 0;
+		while ( cursor.hasNext() )
+			sum += cursor.next().entrySet().iterator().next().getElement().id();
+		blackhole.consume( sum );
+	}
+}
@@ -0,0 +1,124 @@
+package bdv.labels.labelset;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks for the list operations of {@link LabelMultisetEntryList} and
+ * {@link MappedObjectArrayList}.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class LabelMultisetEntryListBenchmark
+{
+	/**
+	 * Number of entries per list.
+	 */
+	@Param( { "1", "16", "256", "4096" } )
+	public int size;
+
+	/**
+	 * Ids are drawn from [0, size * sparsity).
+	 */
+	@Param( { "4" } )
+	public int sparsity;
+
+	protected LabelMultisetEntryList sorted1;
+
+	protected LabelMultisetEntryList sorted2;
+
+	protected LabelMultisetEntryList unsorted;
+
+	protected LabelMultisetEntryList target;
+
+	protected long[] queries;
+
+	final protected LabelMultisetEntry entry = new LabelMultisetEntry( 0, 1 );
+
+	protected static LabelMultisetEntryList randomList( final Random rnd, final int size, final int range, final boolean sort )
+	{
+		final LabelMultisetEntryList list = new LabelMultisetEntryList( size );
+		for ( int i = 0; i < size; ++i )
+			list.add( new LabelMultisetEntry( rnd.nextInt( range ), 1 + rnd.nextInt( 8 ) ) );
+		if ( sort )
+		{
+			list.sortById();
+			list.mergeConsecutiveEntries();
+		}
+		return list;
+	}
+
+	@Setup( Level.Trial )
+	public void setupTrial()
+	{
+		final Random rnd = new Random( 0 );
+		final int range = size * sparsity;
+		sorted1 = randomList( rnd, size, range, true );
+		sorted2 = randomList( rnd, size, range, true );
+		queries = new long[ 1024 ];
+		for ( int i = 0; i < queries.length; ++i )
+			queries[ i ] = rnd.nextInt( range );
+	}
+
+	@Setup( Level.Invocation )
+	public void setupInvocation()
+	{
+		final Random rnd = new Random( 1 );
+		unsorted = randomList( rnd, size, size * sparsity, false );
+		target = new LabelMultisetEntryList( 2 * size );
+		target.mergeWith( sorted1 );
+	}
+
+	@Benchmark
+	public LabelMultisetEntryList mergeWith()
+	{
+		target.mergeWith( sorted2 );
+		return target;
+	}
+
+	@Benchmark
+	public void binarySearch( final Blackhole blackhole )
+	{
+		for ( final long id : queries )
+			blackhole.consume( sorted1.binarySearch( id ) );
+	}
+
+	@Benchmark
+	public LabelMultisetEntryList sortById()
+	{
+		unsorted.sortById();
+		return unsorted;
+	}
+
+	/**
+	 * Insert at the front, the worst case for shifting.
+	 */
+	@Benchmark
+	public LabelMultisetEntryList addAtFront()
+	{
+		for ( int i = 0; i < 16; ++i )
+		{
+			entry.setId( i );
+			target.add( 0, entry );
+		}
+		return target;
+	}
+}
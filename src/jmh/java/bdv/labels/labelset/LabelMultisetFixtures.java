@@ -0,0 +1,170 @@
+package bdv.labels.labelset;
+
+import java.io.IOException;
+import java.util.Random;
+
+import bdv.img.cache.VolatileGlobalCellCache;
+import bdv.img.h5.H5LabelMultisetSetupImageLoader;
+import ch.systemsx.cisd.hdf5.HDF5Factory;
+import ch.systemsx.cisd.hdf5.IHDF5Reader;
+import gnu.trove.impl.Constants;
+import gnu.trove.map.hash.TLongIntHashMap;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.util.Fraction;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * Label multiset fixtures for the benchmarks.
+ */
+public class LabelMultisetFixtures
+{
+	/**
+	 * Default path of the sample data, can be overridden with the system
+	 * property {@code bigcat.benchmark.sample}.
+	 */
+	final static public String SAMPLE_PATH = System.getProperty( "bigcat.benchmark.sample", "data/sample_B_20160708_frags_46_50.hdf" );
+
+	final static public String SAMPLE_DATASET = "/volumes/labels/neuron_ids";
+
+	/**
+	 * Create a {@link LabelMultisetType} image with single element multisets
+	 * from a flat array of ids, the same way
+	 * {@link bdv.img.h5.H5LongLabelMultisetArrayLoader} creates level 0.
+	 *
+	 * @param ids
+	 * @param dimensions
+	 * @return
+	 */
+	public static ArrayImg< LabelMultisetType, VolatileLabelMultisetArray > fromLongs( final long[] ids, final long... dimensions )
+	{
+		final int[] offsets = new int[ ids.length ];
+		final LongMappedAccessData listData = LongMappedAccessData.factory.createStorage( 32 );
+		final LabelMultisetEntryList list = new LabelMultisetEntryList( listData, 0 );
+		final LabelMultisetEntry entry = new LabelMultisetEntry( 0, 1 );
+		final TLongIntHashMap idOffsetHash = new TLongIntHashMap( Constants.DEFAULT_CAPACITY, Constants.DEFAULT_LOAD_FACTOR, -1, -1 );
+		int nextListOffset = 0;
+		for ( int i = 0; i < ids.length; ++i )
+		{
+			final int offset = idOffsetHash.get( ids[ i ] );
+			if ( offset == -1 )
+			{
+				list.createListAt( listData, nextListOffset );
+				entry.setId( ids[ i ] );
+				list.add( entry );
+				offsets[ i ] = nextListOffset;
+				idOffsetHash.put( ids[ i ], nextListOffset );
+				nextListOffset += list.getSizeInBytes();
+			}
+			else
+				offsets[ i ] = offset;
+		}
+
+		return wrap( new VolatileLabelMultisetArray( offsets, listData, nextListOffset, true ), dimensions );
+	}
+
+	public static ArrayImg< LabelMultisetType, VolatileLabelMultisetArray > wrap( final VolatileLabelMultisetArray access, final long... dimensions )
+	{
+		final ArrayImg< LabelMultisetType, VolatileLabelMultisetArray > img = new ArrayImg<>( access, dimensions, new Fraction() );
+		img.setLinkedType( new LabelMultisetType( img ) );
+		return img;
+	}
+
+	/**
+	 * Random ids in [0, numLabels) that are constant within cubes of edge
+	 * length {@code grain}, so that {@code numLabels} and {@code grain}
+	 * control the entropy of downscaled lists.
+	 *
+	 * @param numLabels
+	 * @param grain
+	 * @param dimensions
+	 * @return
+	 */
+	public static ArrayImg< LabelMultisetType, VolatileLabelMultisetArray > random( final int numLabels, final int grain, final long... dimensions )
+	{
+		final Random rnd = new Random( 0 );
+		final long[] ids = new long[ ( int ) Intervals.numElements( dimensions ) ];
+		final long[] grains = new long[ dimensions.length ];
+		for ( int d = 0; d < dimensions.length; ++d )
+			grains[ d ] = ( dimensions[ d ] + grain - 1 ) / grain;
+		final long[] grainIds = new long[ ( int ) Intervals.numElements( grains ) ];
+		for ( int i = 0; i < grainIds.length; ++i )
+			grainIds[ i ] = rnd.nextInt( numLabels );
+
+		final long[] position = new long[ dimensions.length ];
+		for ( int i = 0; i < ids.length; ++i )
+		{
+			long g = 0;
+			for ( int d = dimensions.length - 1; d >= 0; --d )
+				g = g * grains[ d ] + position[ d ] / grain;
+			ids[ i ] = grainIds[ ( int ) g ];
+
+			for ( int d = 0; d < dimensions.length; ++d )
+			{
+				if ( ++position[ d ] < dimensions[ d ] )
+					break;
+				position[ d ] = 0;
+			}
+		}
+		return fromLongs( ids, dimensions );
+	}
+
+	/**
+	 * Copy a crop of the sample data into memory, so that benchmarks do not
+	 * measure HDF5 access.
+	 *
+	 * @param dimensions
+	 *            size of the crop, clipped to the sample
+	 * @return
+	 * @throws IOException
+	 */
+	public static ArrayImg< LabelMultisetType, VolatileLabelMultisetArray > sample( final long... dimensions ) throws IOException
+	{
+		final IHDF5Reader reader = HDF5Factory.openForReading( SAMPLE_PATH );
+		try
+		{
+			final H5LabelMultisetSetupImageLoader loader = new H5LabelMultisetSetupImageLoader(
+					reader,
+					null,
+					SAMPLE_DATASET,
+					0,
+					new int[]{ 64, 64, 8 },
+					new VolatileGlobalCellCache( 1, 1 ) );
+			final RandomAccessibleInterval< LabelMultisetType > source = loader.getImage( 0, 0 );
+
+			final long[] size = new long[ dimensions.length ];
+			for ( int d = 0; d < size.length; ++d )
+				size[ d ] = Math.min( dimensions[ d ], source.dimension( d ) );
+
+			final long[] ids = new long[ ( int ) Intervals.numElements( size ) ];
+			final Cursor< LabelMultisetType > cursor = Views.flatIterable( Views.offsetInterval( source, Intervals.minAsLongArray( source ), size ) ).cursor();
+			for ( int i = 0; i < ids.length; ++i )
+				ids[ i ] = cursor.next().entrySet().iterator().next().getElement().id();
+
+			return fromLongs( ids, size );
+		}
+		finally
+		{
+			reader.close();
+		}
+	}
+
+	/**
+	 * Downscale an entire image in one block.
+	 *
+	 * @param img
+	 * @param factors
+	 * @return
+	 */
+	public static ArrayImg< LabelMultisetType, VolatileLabelMultisetArray > downscale( final RandomAccessibleInterval< LabelMultisetType > img, final long... factors )
+	{
+		final long[] dimensions = new long[ factors.length ];
+		for ( int d = 0; d < factors.length; ++d )
+			dimensions[ d ] = img.dimension( d ) / factors[ d ];
+		return wrap(
+				Downscale.downscale( Views.zeroMin( img ), factors, dimensions, new long[ factors.length ] ),
+				dimensions );
+	}
+}
@@ -20,6 +20,7 @@ import bdv.bigcat.composite.ARGBCompositeAlphaYCbCr;
 import bdv.bigcat.composite.Composite;
 import bdv.bigcat.composite.CompositeCopy;
 import bdv.bigcat.control.AnnotationsController;
+import bdv.bigcat.control.CellCacheStatisticsController;
 import bdv.bigcat.control.ConfirmSegmentController;
 import bdv.bigcat.control.DrawProjectAndIntersectController;
 import bdv.bigcat.control.LabelBrushController;
@@ -32,10 +33,12 @@ import bdv.bigcat.control.TranslateZController;
 import bdv.bigcat.label.PairLabelMultiSetLongIdPicker;
 import bdv.bigcat.ui.ARGBConvertedLabelPairSource;
 import bdv.bigcat.ui.Util;
-import bdv.bigcat.util.DirtyInterval;
+import bdv.bigcat.util.DirtyBlocks;
 import bdv.img.SetCache;
+import bdv.img.WeightedGlobalCellCache;
 import bdv.img.h5.AbstractH5SetupImageLoader;
 import bdv.img.h5.H5LabelMultisetSetupImageLoader;
+import bdv.img.h5.H5ReaderPool;
 import bdv.img.h5.H5UnsignedByteSetupImageLoader;
 import bdv.img.h5.H5Utils;
 import bdv.labels.labelset.Label;
@@ -93,8 +96,11 @@ public class BigCat< P extends BigCat.Parameters > extends BigCatViewer< P >
 	 */
 	protected CellImg< LongType, ? > canvas = null;
 
-	/** interval in which pixels were modified */
-	final protected DirtyInterval dirtyLabelsInterval = new DirtyInterval();
+	/**
+	 * interval and canvas cells in which pixels were modified, the cell grid
+	 * is set when the canvas is loaded
+	 */
+	final protected DirtyBlocks dirtyLabelsInterval = new DirtyBlocks( cellDimensions );
 
 	/** controllers */
 	protected LabelPersistenceController persistenceController;
@@ -165,15 +171,14 @@ public class BigCat< P extends BigCat.Parameters > extends BigCatViewer< P >
 	protected void initRaw( final P params ) throws IOException
 	{
 		System.out.println( "Opening raw from " + params.inFile );
-		/* Open writable because HDF5 forces this file to be read only forEVER!!! otherwise */
-		final IHDF5Reader reader = HDF5Factory.open( params.inFile );
+		final H5ReaderPool readers = readerPool( params.inFile );
 
 		/* raw pixels */
 		Arrays.fill( maxRawDimensions, 0 );
 		for ( final String raw : params.raws )
-			if ( reader.exists( raw ) )
+			if ( readers.getReader().exists( raw ) )
 			{
-				final H5UnsignedByteSetupImageLoader rawLoader = new H5UnsignedByteSetupImageLoader( reader, raw, setupId++, cellDimensions, cache );
+				final H5UnsignedByteSetupImageLoader rawLoader = new H5UnsignedByteSetupImageLoader( readers, raw, setupId++, cellDimensions, cache );
 				raws.add( rawLoader );
 				max( maxRawDimensions, Intervals.dimensionsAsLongArray( rawLoader.getVolatileImage( 0, 0 ) ) );
 			}
@@ -182,6 +187,16 @@ public class BigCat< P extends BigCat.Parameters > extends BigCatViewer< P >
 	}
 
 
+	/**
+	 * Open writable because HDF5 forces the file to be read only forEVER!!!
+	 * otherwise.
+	 */
+	@Override
+	protected IHDF5Reader openReader( final String path )
+	{
+		return HDF5Factory.open( path );
+	}
+
 	/**
 	 * Load or initialize canvas
 	 *
@@ -209,6 +224,8 @@ public class BigCat< P extends BigCat.Parameters > extends BigCatViewer< P >
 				t.set( Label.TRANSPARENT );
 		}
 
+		dirtyLabelsInterval.setGrid( canvas.getCellGrid() );
+
 		reader.close();
 	}
 
@@ -222,13 +239,12 @@ public class BigCat< P extends BigCat.Parameters > extends BigCatViewer< P >
 	protected void initLabels( final P params ) throws IOException
 	{
 		System.out.println( "Opening labels from " + params.inFileLabels );
-		/* Open writable because HDF5 forces this file to be read only forEVER!!! otherwise */
-		final IHDF5Reader reader = HDF5Factory.open( params.inFileLabels );
+		final H5ReaderPool readers = readerPool( params.inFileLabels );
 
 		/* labels */
 		for ( final String label : params.labels )
-			if ( reader.exists( label ) )
-				readLabels( reader, label );
+			if ( readers.getReader().exists( label ) )
+				readLabels( readers, label );
 		else
 				System.out.println( "no label dataset '" + label + "' found" );
 	}
@@ -307,6 +323,11 @@ public class BigCat< P extends BigCat.Parameters > extends BigCatViewer< P >
 			cacheLoaders.add( loader );
 		}
 
+		/* label cells are kept within a budget of bytes */
+		final WeightedGlobalCellCache cellCache = WeightedGlobalCellCache.fromSystemProperties(
+				CombinedImgLoader.maxNumLevels( raws, labels ),
+				10 );
+
 		final String windowTitle = "BigCAT";
 
 		bdv = Util.createViewer(
@@ -315,7 +336,8 @@ public class BigCat< P extends BigCat.Parameters > extends BigCatViewer< P >
 				convertedLabels,
 				cacheLoaders,
 				composites,
-				config );
+				config,
+				cellCache );
 
 		bdv.getViewerFrame().setVisible( true );
 		bdv.getViewerFrame().setSize( 1248, 656 );
@@ -476,6 +498,7 @@ public class BigCat< P extends BigCat.Parameters > extends BigCatViewer< P >
 					{
 						bdv.getViewerFrame().getViewerPanel().stop();
 						bdv.getViewerFrame().setVisible( false );
+						closeReaderPools();
 						// TODO really shouldn't kill the whole jvm in case some
 						// other process (e.g. fiji eventually) calls bigcat
 						System.exit( 0 );
@@ -497,6 +520,11 @@ public class BigCat< P extends BigCat.Parameters > extends BigCatViewer< P >
 				config );
 		bindings.addBehaviourMap( "translate_z", translateZController.getBehaviourMap() );
 
+		/* print cell cache statistics */
+		final CellCacheStatisticsController cellCacheStatisticsController = new CellCacheStatisticsController( cellCache, config );
+		bindings.addBehaviourMap( "cell_cache", cellCacheStatisticsController.getBehaviourMap() );
+		bindings.addInputTriggerMap( "cell_cache", cellCacheStatisticsController.getInputTriggerMap() );
+
 		final AnnotationsHdf5Store annotationsStore = new AnnotationsHdf5Store( params.inFile, idService );
 		annotationsController = new AnnotationsController(
 				annotationsStore,
@@ -528,19 +556,19 @@ public class BigCat< P extends BigCat.Parameters > extends BigCatViewer< P >
 	 * Modifies {@link #labels}, {@link #setupId},
 	 * {@link #convertedLabelCanvasPairs}.
 	 *
-	 * @param reader
+	 * @param readers
 	 * @param labelDataset
 	 * @throws IOException
 	 */
 	@Override
 	protected void readLabels(
-			final IHDF5Reader reader,
+			final H5ReaderPool readers,
 			final String labelDataset ) throws IOException
 	{
 		/* labels */
 		final H5LabelMultisetSetupImageLoader labelLoader =
 				new H5LabelMultisetSetupImageLoader(
-						reader,
+						readers,
 						null,
 						labelDataset,
 						setupId++,
@@ -568,6 +596,7 @@ public class BigCat< P extends BigCat.Parameters > extends BigCatViewer< P >
 
 	/**
 	 * Create dialog for before shutdown saving, and save if confirmed.
+	 * Compacts the assignment journal when closing.
 	 *
 	 * @param params
 	 * @return
@@ -585,15 +614,20 @@ public class BigCat< P extends BigCat.Parameters > extends BigCatViewer< P >
 		final boolean save = option == JOptionPane.YES_OPTION;
 		final boolean reallyClose = save || option == JOptionPane.NO_OPTION;
 
+		if ( reallyClose )
+			persistenceController.waitForBackgroundSaves();
+
 		if ( save )
 		{
 			bdv.getViewerFrame().setCursor( Cursor.getPredefinedCursor( Cursor.WAIT_CURSOR ) );
 			annotationsController.saveAnnotations();
-			persistenceController.saveNextId();
-			persistenceController.saveFragmentSegmentAssignment();
-			persistenceController.saveCompleteSegmentsAssignment();
-			persistenceController.savePaintedLabels();
+			persistenceController.saveInForeground();
 		}
+
+		/* leave an up to date lookup table for readers that ignore the journal */
+		if ( reallyClose )
+			persistenceController.compactAssignmentJournal();
+
 		return reallyClose;
 	}
 }
@@ -13,6 +13,7 @@ import org.scijava.ui.behaviour.util.TriggerBehaviourBindings;
 import bdv.bigcat.composite.ARGBCompositeAlphaYCbCr;
 import bdv.bigcat.composite.Composite;
 import bdv.bigcat.composite.CompositeCopy;
+import bdv.bigcat.control.CellCacheStatisticsController;
 import bdv.bigcat.control.ConfirmSegmentController;
 import bdv.bigcat.control.MergeController;
 import bdv.bigcat.control.SelectionController;
@@ -20,10 +21,12 @@ import bdv.bigcat.control.TranslateZController;
 import bdv.bigcat.label.FragmentSegmentAssignment;
 import bdv.bigcat.label.LabelMultiSetIdPicker;
 import bdv.bigcat.label.SegmentAssignment;
+import bdv.bigcat.label.SnapshotFragmentSegmentAssignment;
 import bdv.bigcat.ui.ARGBConvertedLabelsSource;
 import bdv.bigcat.ui.ModalGoldenAngleSaturatedARGBStream;
 import bdv.bigcat.ui.Util;
 import bdv.img.SetCache;
+import bdv.img.WeightedGlobalCellCache;
 import bdv.img.dvid.LabelblkMultisetSetupImageLoader;
 import bdv.img.dvid.Uint8blkImageLoader;
 import bdv.labels.labelset.LabelMultisetType;
@@ -122,7 +125,7 @@ public class BigCatDvidViewer extends BigCatViewer< BigCatDvidViewer.Parameters
 	protected void initAssignments( final Parameters params )
 	{
 		/* fragment segment assignment */
-		assignment = new FragmentSegmentAssignment( idService );
+		assignment = new SnapshotFragmentSegmentAssignment( idService );
 
 		/* complete segments */
 		completeSegments = new SegmentAssignment();
@@ -209,6 +212,11 @@ public class BigCatDvidViewer extends BigCatViewer< BigCatDvidViewer.Parameters
 			cacheLoaders.add( loader );
 		}
 
+		/* label cells are kept within a budget of bytes */
+		final WeightedGlobalCellCache cellCache = WeightedGlobalCellCache.fromSystemProperties(
+				CombinedImgLoader.maxNumLevels( raws, labels ),
+				10 );
+
 		final String windowTitle = "BigCAT";
 
 		bdv = Util.createViewer(
@@ -217,7 +225,8 @@ public class BigCatDvidViewer extends BigCatViewer< BigCatDvidViewer.Parameters
 				convertedLabels,
 				cacheLoaders,
 				composites,
-				config );
+				config,
+				cellCache );
 
 		bdv.getViewerFrame().setVisible( true );
 
@@ -289,6 +298,11 @@ public class BigCatDvidViewer extends BigCatViewer< BigCatDvidViewer.Parameters
 				config );
 		bindings.addBehaviourMap( "translate_z", translateZController.getBehaviourMap() );
 
+		/* print cell cache statistics */
+		final CellCacheStatisticsController cellCacheStatisticsController = new CellCacheStatisticsController( cellCache, config );
+		bindings.addBehaviourMap( "cell_cache", cellCacheStatisticsController.getBehaviourMap() );
+		bindings.addInputTriggerMap( "cell_cache", cellCacheStatisticsController.getInputTriggerMap() );
+
 		if ( selectionController != null )
 			bdv.getViewer().getDisplay().addOverlayRenderer( selectionController.getSelectionOverlay() );
 	}
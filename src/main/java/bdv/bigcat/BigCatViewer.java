@@ -1,9 +1,12 @@
 package bdv.bigcat;
 
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.Callable;
@@ -17,6 +20,7 @@ import bdv.BigDataViewer;
 import bdv.bigcat.composite.ARGBCompositeAlphaYCbCr;
 import bdv.bigcat.composite.Composite;
 import bdv.bigcat.composite.CompositeCopy;
+import bdv.bigcat.control.CellCacheStatisticsController;
 import bdv.bigcat.control.ConfirmSegmentController;
 import bdv.bigcat.control.MergeController;
 import bdv.bigcat.control.SelectionController;
@@ -24,13 +28,17 @@ import bdv.bigcat.control.TranslateZController;
 import bdv.bigcat.label.FragmentSegmentAssignment;
 import bdv.bigcat.label.LabelMultiSetIdPicker;
 import bdv.bigcat.label.SegmentAssignment;
+import bdv.bigcat.label.SnapshotFragmentSegmentAssignment;
 import bdv.bigcat.ui.ARGBConvertedLabelsSource;
 import bdv.bigcat.ui.AbstractARGBConvertedLabelsSource;
 import bdv.bigcat.ui.ModalGoldenAngleSaturatedARGBStream;
 import bdv.bigcat.ui.Util;
 import bdv.img.SetCache;
+import bdv.img.WeightedGlobalCellCache;
 import bdv.img.cache.VolatileGlobalCellCache;
+import bdv.img.h5.H5AssignmentJournal;
 import bdv.img.h5.H5LabelMultisetSetupImageLoader;
+import bdv.img.h5.H5ReaderPool;
 import bdv.img.h5.H5UnsignedByteSetupImageLoader;
 import bdv.img.h5.H5Utils;
 import bdv.labels.labelset.Label;
@@ -111,6 +119,9 @@ public class BigCatViewer< P extends BigCatViewer.Parameters >
 
 	final protected VolatileGlobalCellCache cache;
 
+	/** reader pools of the opened HDF5 files by absolute path, closed with the viewer */
+	final protected HashMap< String, H5ReaderPool > readerPools = new HashMap<>();
+
 	/** main BDV instance */
 	protected BigDataViewer bdv;
 
@@ -168,14 +179,14 @@ public class BigCatViewer< P extends BigCatViewer.Parameters >
 	protected void initRaw( final P params ) throws IOException
 	{
 		System.out.println( "Opening raw from " + params.inFile );
-		final IHDF5Reader reader = HDF5Factory.openForReading( params.inFile );
+		final H5ReaderPool readers = readerPool( params.inFile );
 
 		/* raw pixels */
 		for ( final String raw : params.raws )
 		{
-			if ( reader.exists( raw ) )
+			if ( readers.getReader().exists( raw ) )
 			{
-				final H5UnsignedByteSetupImageLoader rawLoader = new H5UnsignedByteSetupImageLoader( reader, raw, setupId++, cellDimensions, cache );
+				final H5UnsignedByteSetupImageLoader rawLoader = new H5UnsignedByteSetupImageLoader( readers, raw, setupId++, cellDimensions, cache );
 				raws.add( rawLoader );
 			}
 			else
@@ -222,10 +233,14 @@ public class BigCatViewer< P extends BigCatViewer.Parameters >
 		final IHDF5Reader reader = HDF5Factory.openForReading( params.inFile );
 
 		/* fragment segment assignment */
-		assignment = new FragmentSegmentAssignment( idService );
-		final TLongLongHashMap lut = H5Utils.loadLongLongLut( reader, params.assignment, 1024 );
+		assignment = new SnapshotFragmentSegmentAssignment( idService );
+		final TLongLongHashMap lut = H5AssignmentJournal.load( reader, params.assignment, 1024 );
 		if ( lut != null )
+		{
 			assignment.initLut( lut );
+			/* already saved, the first save only appends what changes */
+			assignment.markPersisted();
+		}
 
 		/* complete fragments */
 		completeSegments = new SegmentAssignment();
@@ -248,12 +263,12 @@ public class BigCatViewer< P extends BigCatViewer.Parameters >
 	protected void initLabels( final P params ) throws IOException
 	{
 		System.out.println( "Opening labels from " + params.inFileLabels );
-		final IHDF5Reader reader = HDF5Factory.openForReading( params.inFileLabels );
+		final H5ReaderPool readers = readerPool( params.inFileLabels );
 
 		/* labels */
 		for ( final String label : params.labels )
-			if ( reader.exists( label ) )
-				readLabels( reader, label );
+			if ( readers.getReader().exists( label ) )
+				readLabels( readers, label );
 		else
 				System.out.println( "no label dataset '" + label + "' found" );
 	}
@@ -289,6 +304,11 @@ public class BigCatViewer< P extends BigCatViewer.Parameters >
 			cacheLoaders.add( loader );
 		}
 
+		/* label cells are kept within a budget of bytes */
+		final WeightedGlobalCellCache cellCache = WeightedGlobalCellCache.fromSystemProperties(
+				CombinedImgLoader.maxNumLevels( raws, labels ),
+				10 );
+
 		final String windowTitle = "BigCAT";
 
 		bdv = Util.createViewer(
@@ -297,9 +317,18 @@ public class BigCatViewer< P extends BigCatViewer.Parameters >
 				convertedLabels,
 				cacheLoaders,
 				composites,
-				config );
+				config,
+				cellCache );
 
 		bdv.getViewerFrame().setVisible( true );
+		bdv.getViewerFrame().addWindowListener( new WindowAdapter()
+		{
+			@Override
+			public void windowClosed( final WindowEvent we )
+			{
+				closeReaderPools();
+			}
+		} );
 
 		final TriggerBehaviourBindings bindings = bdv.getViewerFrame().getTriggerbindings();
 
@@ -369,6 +398,11 @@ public class BigCatViewer< P extends BigCatViewer.Parameters >
 				config );
 		bindings.addBehaviourMap( "translate_z", translateZController.getBehaviourMap() );
 
+		/* print cell cache statistics */
+		final CellCacheStatisticsController cellCacheStatisticsController = new CellCacheStatisticsController( cellCache, config );
+		bindings.addBehaviourMap( "cell_cache", cellCacheStatisticsController.getBehaviourMap() );
+		bindings.addInputTriggerMap( "cell_cache", cellCacheStatisticsController.getInputTriggerMap() );
+
 		if ( selectionController != null )
 			bdv.getViewer().getDisplay().addOverlayRenderer( selectionController.getSelectionOverlay() );
 	}
@@ -381,18 +415,18 @@ public class BigCatViewer< P extends BigCatViewer.Parameters >
 	 *
 	 * Modifies {@link #labels}, {@link #setupId}, {@link #convertedLabels}.
 	 *
-	 * @param reader
+	 * @param readers
 	 * @param labelDataset
 	 * @throws IOException
 	 */
 	protected void readLabels(
-			final IHDF5Reader reader,
+			final H5ReaderPool readers,
 			final String labelDataset ) throws IOException
 	{
 		/* labels */
 		final H5LabelMultisetSetupImageLoader labelLoader =
 				new H5LabelMultisetSetupImageLoader(
-						reader,
+						readers,
 						null,
 						labelDataset,
 						setupId++,
@@ -410,6 +444,40 @@ public class BigCatViewer< P extends BigCatViewer.Parameters >
 		convertedLabels.add( convertedLabelsSource );
 	}
 
+	/**
+	 * Open the HDF5 file at {@code path} for the loaders.
+	 *
+	 * @param path
+	 */
+	protected IHDF5Reader openReader( final String path )
+	{
+		return HDF5Factory.openForReading( path );
+	}
+
+	/**
+	 * Get the reader pool of the HDF5 file at {@code path} that is shared by
+	 * all loaders of the file, opening the file if it is not open yet.
+	 *
+	 * @param path
+	 */
+	protected H5ReaderPool readerPool( final String path )
+	{
+		return readerPools.computeIfAbsent( new File( path ).getAbsolutePath(), p -> new H5ReaderPool( openReader( p ) ) );
+	}
+
+	/**
+	 * Close the reader pools and the HDF5 files opened for the loaders.
+	 */
+	protected void closeReaderPools()
+	{
+		for ( final H5ReaderPool readers : readerPools.values() )
+		{
+			readers.close();
+			readers.getReader().close();
+		}
+		readerPools.clear();
+	}
+
 	static protected InputTriggerConfig getInputTriggerConfig() throws IllegalArgumentException
 	{
 		final String[] filenames = { "bigcatkeyconfig.yaml", System.getProperty( "user.home" ) + "/.bdv/bigcatkeyconfig.yaml" };
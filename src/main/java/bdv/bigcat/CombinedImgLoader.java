@@ -37,17 +37,40 @@ public class CombinedImgLoader implements ViewerImgLoader
 
 	final VolatileGlobalCellCache cache;
 
-	public CombinedImgLoader( final CombinedImgLoader.SetupIdAndLoader... loaders )
+	public CombinedImgLoader( final VolatileGlobalCellCache cache, final CombinedImgLoader.SetupIdAndLoader... loaders )
 	{
 		setupImgLoaders = new HashMap< Integer, ViewerSetupImgLoader< ?, ? > >();
+		for ( final CombinedImgLoader.SetupIdAndLoader il : loaders )
+			setupImgLoaders.put( il.setupId, il.loader );
+
+		this.cache = cache;
+	}
+
+	public CombinedImgLoader( final CombinedImgLoader.SetupIdAndLoader... loaders )
+	{
+		this( new VolatileGlobalCellCache( maxNumLevels( loaders ), 10 ), loaders );
+	}
+
+	static private int maxNumLevels( final CombinedImgLoader.SetupIdAndLoader... loaders )
+	{
 		int maxNumLevels = 1;
 		for ( final CombinedImgLoader.SetupIdAndLoader il : loaders )
-		{
 			maxNumLevels = Math.max( maxNumLevels, il.loader.numMipmapLevels() );
-			setupImgLoaders.put( il.setupId, il.loader );
-		}
+		return maxNumLevels;
+	}
 
-		cache = new VolatileGlobalCellCache( maxNumLevels, 10 );
+	/**
+	 * @return the maximum number of mipmap levels of {@code loaders}, the
+	 *         number of priorities of the fetch queue of a cache they share
+	 */
+	@SafeVarargs
+	static public int maxNumLevels( final Iterable< ? extends ViewerSetupImgLoader< ?, ? > >... loaders )
+	{
+		int maxNumLevels = 1;
+		for ( final Iterable< ? extends ViewerSetupImgLoader< ?, ? > > list : loaders )
+			for ( final ViewerSetupImgLoader< ?, ? > loader : list )
+				maxNumLevels = Math.max( maxNumLevels, loader.numMipmapLevels() );
+		return maxNumLevels;
 	}
 
 	@Override
@@ -17,7 +17,6 @@
 package bdv.bigcat.control;
 
 import java.lang.reflect.Type;
-import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -379,15 +378,15 @@ public class AgglomerationClientController
 			if ( Label.regular( id ) )
 			{
 				final TLongSet visibleIds = idPicker.getVisibleIds();
-				final long[] inActiveSegmentIds = assignment.getFragments( assignment.getSegment( id ) );
 
-				/* helps for intersection and difference as follows */
-				Arrays.sort( inActiveSegmentIds );
-
-				final TLongSet visibleInActiveSegmentIds = new TLongHashSet( visibleIds );
-				visibleInActiveSegmentIds.retainAll( inActiveSegmentIds );
+				final TLongSet visibleInActiveSegmentIds = new TLongHashSet();
+				assignment.forEachFragment( assignment.getSegment( id ), fragmentId -> {
+					if ( visibleIds.contains( fragmentId ) )
+						visibleInActiveSegmentIds.add( fragmentId );
+					return true;
+				} );
 				final TLongSet visibleNotInActiveSegmentIds = new TLongHashSet( visibleIds );
-				visibleNotInActiveSegmentIds.removeAll( inActiveSegmentIds );
+				visibleNotInActiveSegmentIds.removeAll( visibleInActiveSegmentIds );
 
 				/* solver */
 				final MergeAndSeparate action =
@@ -0,0 +1,80 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package bdv.bigcat.control;
+
+import java.io.PrintStream;
+
+import org.scijava.ui.behaviour.BehaviourMap;
+import org.scijava.ui.behaviour.ClickBehaviour;
+import org.scijava.ui.behaviour.InputTriggerAdder;
+import org.scijava.ui.behaviour.InputTriggerMap;
+import org.scijava.ui.behaviour.io.InputTriggerConfig;
+
+import bdv.img.WeightedGlobalCellCache;
+
+/**
+ * Prints the per level statistics of a {@link WeightedGlobalCellCache}.
+ */
+public class CellCacheStatisticsController
+{
+	final protected WeightedGlobalCellCache cache;
+
+	final protected PrintStream out;
+
+	// for behavioUrs
+	private final BehaviourMap behaviourMap = new BehaviourMap();
+	private final InputTriggerMap inputTriggerMap = new InputTriggerMap();
+	private final InputTriggerAdder inputAdder;
+
+	public CellCacheStatisticsController(
+			final WeightedGlobalCellCache cache,
+			final PrintStream out,
+			final InputTriggerConfig config )
+	{
+		this.cache = cache;
+		this.out = out;
+		inputAdder = config.inputTriggerAdder( inputTriggerMap, "cell_cache" );
+
+		final String name = "print cell cache statistics";
+		behaviourMap.put( name, new PrintStatistics() );
+		inputAdder.put( name, "ctrl shift I" );
+	}
+
+	public CellCacheStatisticsController( final WeightedGlobalCellCache cache, final InputTriggerConfig config )
+	{
+		this( cache, System.out, config );
+	}
+
+	public BehaviourMap getBehaviourMap()
+	{
+		return behaviourMap;
+	}
+
+	public InputTriggerMap getInputTriggerMap()
+	{
+		return inputTriggerMap;
+	}
+
+	private class PrintStatistics implements ClickBehaviour
+	{
+		@Override
+		public void click( final int x, final int y )
+		{
+			cache.printStatistics( out );
+		}
+	}
+}
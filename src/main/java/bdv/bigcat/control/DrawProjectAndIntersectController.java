@@ -35,6 +35,7 @@ import org.scijava.ui.behaviour.util.TriggerBehaviourBindings;
 
 import bdv.BigDataViewer;
 import bdv.bigcat.label.FragmentSegmentAssignment;
+import bdv.bigcat.label.SegmentMembership;
 import bdv.bigcat.ui.AbstractSaturatedARGBStream;
 import bdv.bigcat.util.DirtyInterval;
 import bdv.img.AccessBoxRandomAccessible;
@@ -733,7 +734,7 @@ public class DrawProjectAndIntersectController implements TransformListener< Aff
 				final long paintedLabel = paintedLabelAccess.get().get();
 				final long segmentLabel = assignment.getSegment( seedFragmentLabel );
 				final long comparison = paintedLabel == TRANSPARENT ? segmentLabel : paintedLabel;
-				final long[] fragmentsContainedInSegment = assignment.getFragments( segmentLabel );
+				final SegmentMembership segment = SegmentMembership.ofSegment( segmentLabel, assignment );
 
 				final Filter< Pair< Pair< LabelMultisetType, ByteType >, LongType >, Pair< Pair< LabelMultisetType, ByteType >, LongType > > filter = ( p1, p2 ) -> {
 
@@ -745,13 +746,7 @@ public class DrawProjectAndIntersectController implements TransformListener< Aff
 						if ( currentPaint != TRANSPARENT )
 							return currentPaint == comparison;
 						else
-						{
-							final LabelMultisetType currentMultiSet = multiSetOverlayPairComp.getA();
-							for ( final long fragment : fragmentsContainedInSegment )
-								if ( currentMultiSet.contains( fragment ) )
-									return true;
-							return false;
-						}
+							return segment.containsAny( multiSetOverlayPairComp.getA() );
 					}
 
 					return false;
@@ -1,6 +1,10 @@
 package bdv.bigcat.control;
 
 import java.awt.Cursor;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.lang3.math.NumberUtils;
 import org.scijava.ui.behaviour.Behaviour;
@@ -12,7 +16,10 @@ import org.scijava.ui.behaviour.io.InputTriggerConfig;
 
 import bdv.bigcat.label.FragmentSegmentAssignment;
 import bdv.bigcat.label.IdPicker;
+import bdv.bigcat.label.SegmentMembership;
+import bdv.bigcat.util.DirtyBlocks;
 import bdv.bigcat.util.DirtyInterval;
+import bdv.bigcat.util.ParallelFloodFill;
 import bdv.img.AccessBoxRandomAccessible;
 import bdv.img.GrowingStoreRandomAccessibleSingletonAccess;
 import bdv.labels.labelset.Label;
@@ -42,6 +49,7 @@ import net.imglib2.type.BooleanType;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.logic.BitType;
 import net.imglib2.type.numeric.integer.LongType;
+import net.imglib2.util.Intervals;
 import net.imglib2.util.Pair;
 import net.imglib2.util.Util;
 import net.imglib2.util.ValuePair;
@@ -96,6 +104,40 @@ public class LabelFillController
 
 	private final double minLabelScale;
 
+	/**
+	 * Size of the blocks filled in parallel by {@link Fill} if the canvas
+	 * cells are not known from the {@link DirtyBlocks}.
+	 */
+	final static private int[] DEFAULT_FILL_BLOCK_SIZE = new int[] { 64, 64, 8 };
+
+	final protected int[] fillBlockSize;
+
+	/**
+	 * Fills blocks of {@link Fill}.
+	 */
+	final protected ExecutorService fillExecutor = Executors.newFixedThreadPool(
+			Runtime.getRuntime().availableProcessors(),
+			r -> {
+				final Thread thread = new Thread( r, "label-fill" );
+				thread.setDaemon( true );
+				return thread;
+			} );
+
+	/**
+	 * Reports the progress of {@link Fill} and finishes it.
+	 */
+	final protected ExecutorService fillMonitor = Executors.newSingleThreadExecutor(
+			r -> {
+				final Thread thread = new Thread( r, "label-fill-monitor" );
+				thread.setDaemon( true );
+				return thread;
+			} );
+
+	/**
+	 * The running or last 3D fill, guarded by {@link #viewer}.
+	 */
+	protected ParallelFloodFill< LabelMultisetType, LongType > activeFill = null;
+
 	public LabelFillController(
 			final ViewerPanel viewer,
 			final RandomAccessibleInterval< LabelMultisetType > labels,
@@ -121,10 +163,16 @@ public class LabelFillController
 
 		labelLocation = new RealPoint( 3 );
 
+		if ( dirtyLabelsInterval instanceof DirtyBlocks )
+			fillBlockSize = ( ( DirtyBlocks ) dirtyLabelsInterval ).getCellDimensions();
+		else
+			fillBlockSize = DEFAULT_FILL_BLOCK_SIZE;
+
 		minLabelScale = NumberUtils.min( new double[] { Affine3DHelpers.extractScale( labelTransform, 0 ), Affine3DHelpers.extractScale( labelTransform, 1 ), Affine3DHelpers.extractScale( labelTransform, 2 ) } );
 
 		new Fill( "fill", "M button1" ).register();
 		new Fill2D( "fill 2D", "shift M button1" ).register();
+		new CancelFill( "cancel fill", "ESCAPE" ).register();
 	}
 
 	private void setCoordinates( final int x, final int y )
@@ -161,6 +209,11 @@ public class LabelFillController
 		}
 	}
 
+	/**
+	 * Fills the segment under the mouse in 3D.  The fill runs in the
+	 * background on {@link #fillExecutor}, clicking again or
+	 * {@link CancelFill} while it runs cancels it.
+	 */
 	private class Fill extends SelfRegisteringBehaviour implements ClickBehaviour
 	{
 		public Fill( final String name, final String... defaultTriggers )
@@ -173,43 +226,123 @@ public class LabelFillController
 		{
 			synchronized ( viewer )
 			{
+				if ( cancelActiveFill() )
+					return;
 				if ( idPicker.getIdAtDisplayCoordinate( x, y ) == Label.OUTSIDE )
 					return;
-				viewer.setCursor( Cursor.getPredefinedCursor( Cursor.WAIT_CURSOR ) );
 				setCoordinates( x, y );
-				System.out.println( "Filling " + labelLocation + " with " + selectionController.getActiveFragmentId() );
 
 				final Point p = new Point( Math.round( labelLocation.getDoublePosition( 0 ) ), Math.round( labelLocation.getDoublePosition( 1 ) ), Math.round( labelLocation.getDoublePosition( 2 ) ) );
+				if ( !Intervals.contains( paintedLabels, p ) )
+					return;
 
-				final AccessBoxRandomAccessible< LongType > accessTrackingExtendedPaintedLabels =
-						new AccessBoxRandomAccessible<>(
-							Views.extendValue(
-									paintedLabels,
-									new LongType( Label.TRANSPARENT ) ) );
+				System.out.println( "Filling " + labelLocation + " with " + selectionController.getActiveFragmentId() );
+				viewer.setCursor( Cursor.getPredefinedCursor( Cursor.WAIT_CURSOR ) );
 
-				final RandomAccess< LongType > paintAccess = accessTrackingExtendedPaintedLabels.randomAccess();
+				final RandomAccess< LongType > paintAccess = paintedLabels.randomAccess();
 				paintAccess.setPosition( p );
 				final long seedPaint = paintAccess.get().getIntegerLong();
 				final long seedFragmentLabel = getBiggestLabel( labels, p );
 
-				final long t0 = System.currentTimeMillis();
-				FloodFill.fill(
+				final ParallelFloodFill< LabelMultisetType, LongType > fill = new ParallelFloodFill<>(
 						Views.extendValue( labels, new LabelMultisetType() ),
-						accessTrackingExtendedPaintedLabels,
-						p,
+						paintedLabels,
+						fillBlockSize,
 						new LabelMultisetType(),
 						new LongType( selectionController.getActiveFragmentId() ),
-						new DiamondShape( 1 ),
-						new SegmentAndPaintFilter1( seedPaint, seedFragmentLabel, assignment ) );
+						new SegmentAndPaintFilter1( seedPaint, seedFragmentLabel, assignment ),
+						fillExecutor,
+						viewer,
+						dirtyLabelsInterval );
+				activeFill = fill;
+				final long t0 = System.currentTimeMillis();
+				fill.start( p );
+				fillMonitor.execute( () -> monitor( fill, t0 ) );
+			}
+		}
 
-				dirtyLabelsInterval.touch( accessTrackingExtendedPaintedLabels.createAccessInterval() );
+		/**
+		 * Show the progress of {@code fill} until it is done.  The fill reads
+		 * the labels and the canvas without locking, but writes the canvas and
+		 * marks the modified blocks dirty while holding the lock on
+		 * {@link #viewer}, like painting, so the viewer must not be locked
+		 * while waiting for it.
+		 */
+		private void monitor( final ParallelFloodFill< LabelMultisetType, LongType > fill, final long t0 )
+		{
+			/* wait for the workers even if interrupted, they still write */
+			boolean interrupted = false;
+			while ( !fill.isDone() )
+			{
+				try
+				{
+					if ( !fill.await( 500, TimeUnit.MILLISECONDS ) )
+					{
+						viewer.showMessage( String.format( "Filling... %d voxels in %d blocks (ESC to cancel)", fill.getNumFilled(), fill.getNumBlocks() ) );
+						viewer.requestRepaint();
+					}
+				}
+				catch ( final InterruptedException e )
+				{
+					fill.cancel();
+					interrupted = true;
+				}
+				catch ( final ExecutionException e )
+				{
+					e.printStackTrace();
+					viewer.showMessage( "Filling failed: " + e.getCause() );
+				}
+			}
 
+			synchronized ( viewer )
+			{
 				final long t1 = System.currentTimeMillis();
-				System.out.println( "Filling took " + ( t1 - t0 ) + " ms" );
+				System.out.println( ( fill.isCancelled() ? "Cancelled filling after " : "Filling took " ) + ( t1 - t0 ) + " ms" );
+				System.out.println( "  filled " + fill.getNumFilled() + " voxels in " + fill.getNumBlocks() + " blocks" );
 				System.out.println( "  modified box: " + Util.printInterval( dirtyLabelsInterval.getDirtyInterval() ) );
-				viewer.setCursor( Cursor.getPredefinedCursor( Cursor.DEFAULT_CURSOR ) );
+				viewer.showMessage( ( fill.isCancelled() ? "Cancelled fill after " : "Filled " ) + fill.getNumFilled() + " voxels." );
+				if ( activeFill == fill )
+				{
+					activeFill = null;
+					viewer.setCursor( Cursor.getPredefinedCursor( Cursor.DEFAULT_CURSOR ) );
+				}
 				viewer.requestRepaint();
 			}
+
+			if ( interrupted )
+				Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Cancel the running 3D fill, if any.  Must be called while holding the
+	 * lock on {@link #viewer}.
+	 *
+	 * @return whether a fill was running
+	 */
+	private boolean cancelActiveFill()
+	{
+		if ( activeFill == null || activeFill.isDone() )
+			return false;
+		activeFill.cancel();
+		viewer.showMessage( "Cancelling fill..." );
+		return true;
+	}
+
+	private class CancelFill extends SelfRegisteringBehaviour implements ClickBehaviour
+	{
+		public CancelFill( final String name, final String... defaultTriggers )
+		{
+			super( name, defaultTriggers );
+		}
+
+		@Override
+		public void click( final int x, final int y )
+		{
+			synchronized ( viewer )
+			{
+				cancelActiveFill();
+			}
 		}
 	}
 
@@ -348,12 +481,17 @@ public class LabelFillController
 	{
 		private final long comparison;
 
-		private final long[] fragmentsContainedInSeedSegment;
+		private final SegmentMembership seedSegment;
 
 		public SegmentAndPaintFilter1( final long seedPaint, final long seedFragmentLabel, final FragmentSegmentAssignment assignment )
 		{
-			this.comparison = seedPaint == Label.TRANSPARENT ? seedFragmentLabel : seedPaint;
-			this.fragmentsContainedInSeedSegment = assignment.getFragments( assignment.getSegment( comparison ) );
+			this( seedPaint, seedFragmentLabel, SegmentMembership.ofSegmentOf( comparison( seedPaint, seedFragmentLabel ), assignment ) );
+		}
+
+		public SegmentAndPaintFilter1( final long seedPaint, final long seedFragmentLabel, final SegmentMembership seedSegment )
+		{
+			this.comparison = comparison( seedPaint, seedFragmentLabel );
+			this.seedSegment = seedSegment;
 		}
 
 		@Override
@@ -367,15 +505,7 @@ public class LabelFillController
 				return currentPaint == comparison && currentPaint != reference.getB().getIntegerLong();
 
 			else
-			{
-				for ( final long fragment : this.fragmentsContainedInSeedSegment )
-				{
-					if ( currentLabelSet.contains( fragment ) )
-						return true;
-				}
-			}
-
-			return false;
+				return seedSegment.containsAny( currentLabelSet );
 		}
 	}
 
@@ -383,12 +513,17 @@ public class LabelFillController
 	{
 		private final long comparison;
 
-		private final long[] fragmentsContainedInSeedSegment;
+		private final SegmentMembership seedSegment;
 
 		public SegmentAndPaintFilter2D( final long seedPaint, final long seedFragmentLabel, final FragmentSegmentAssignment assignment )
 		{
-			this.comparison = seedPaint == Label.TRANSPARENT ? seedFragmentLabel : seedPaint;
-			this.fragmentsContainedInSeedSegment = assignment.getFragments( assignment.getSegment( comparison ) );
+			this( seedPaint, seedFragmentLabel, SegmentMembership.ofSegmentOf( comparison( seedPaint, seedFragmentLabel ), assignment ) );
+		}
+
+		public SegmentAndPaintFilter2D( final long seedPaint, final long seedFragmentLabel, final SegmentMembership seedSegment )
+		{
+			this.comparison = comparison( seedPaint, seedFragmentLabel );
+			this.seedSegment = seedSegment;
 			System.out.println( "Comparison=" + this.comparison );
 		}
 
@@ -414,13 +549,7 @@ public class LabelFillController
 					return currentPaint == comparison;
 
 				else if ( currentPaint != Label.OUTSIDE )
-				{
-					for ( final long fragment : this.fragmentsContainedInSeedSegment )
-					{
-						if ( currentLabelSet.contains( fragment ) )
-							return true;
-					}
-				}
+					return seedSegment.containsAny( currentLabelSet );
 			}
 
 			return false;
@@ -446,6 +575,16 @@ public class LabelFillController
 
 	}
 
+	/**
+	 * The label that a fill seeded at a voxel with {@code seedPaint} and
+	 * {@code seedFragmentLabel} compares against: the paint if the voxel is
+	 * painted, the fragment otherwise.
+	 */
+	public static long comparison( final long seedPaint, final long seedFragmentLabel )
+	{
+		return seedPaint == Label.TRANSPARENT ? seedFragmentLabel : seedPaint;
+	}
+
 	public static long getBiggestLabel( final RandomAccessible< LabelMultisetType > accessible, final Localizable position )
 	{
 		final RandomAccess< LabelMultisetType > access = accessible.randomAccess();
@@ -3,9 +3,15 @@ package bdv.bigcat.control;
 import java.awt.Cursor;
 import java.awt.event.ActionEvent;
 import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.swing.ActionMap;
 import javax.swing.InputMap;
+import javax.swing.SwingUtilities;
 
 import org.scijava.ui.behaviour.KeyStrokeAdder;
 import org.scijava.ui.behaviour.io.InputTriggerConfig;
@@ -14,13 +20,25 @@ import org.scijava.ui.behaviour.util.InputActionBindings;
 
 import bdv.bigcat.label.FragmentSegmentAssignment;
 import bdv.bigcat.label.SegmentAssignment;
+import bdv.bigcat.util.DirtyBlocks;
 import bdv.bigcat.util.DirtyInterval;
+import bdv.img.h5.H5AssignmentJournal;
+import bdv.img.h5.H5ParallelLabelExport;
 import bdv.img.h5.H5Utils;
 import bdv.labels.labelset.LabelMultisetType;
 import bdv.util.IdService;
 import bdv.viewer.ViewerPanel;
+import ch.systemsx.cisd.hdf5.HDF5Factory;
+import ch.systemsx.cisd.hdf5.IHDF5Writer;
+import gnu.trove.map.hash.TLongLongHashMap;
+import gnu.trove.set.hash.TLongHashSet;
 import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.converter.Converters;
+import net.imglib2.img.cell.CellGrid;
 import net.imglib2.type.numeric.integer.LongType;
+import net.imglib2.type.numeric.integer.UnsignedLongType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
 
 /**
  * Persist fragment segment assignments, painted labels, viewer state, and
@@ -47,6 +65,31 @@ public class LabelPersistenceController
 	final protected String assignmentDataset;
 	final protected String completeSegmentsDataset;
 
+	/**
+	 * Write the complete assignment on the next save instead of appending
+	 * the modifications to the journal, e.g. after a failed save.
+	 */
+	protected volatile boolean compactAssignment = false;
+
+	/**
+	 * The thread of {@link #saveExecutor}.
+	 */
+	protected volatile Thread saveThread = null;
+
+	/**
+	 * Writes {@link Snapshot}s in the order in which they were taken.  All
+	 * other saves into {@link #h5Path} run here as well, see
+	 * {@link #runOnSaveThread(Runnable)}, so they never race with a
+	 * background save.
+	 */
+	final protected ExecutorService saveExecutor = Executors.newSingleThreadExecutor(
+			r -> {
+				final Thread thread = new Thread( r, "label-persistence" );
+				thread.setDaemon( true );
+				saveThread = thread;
+				return thread;
+			} );
+
 	// for keystroke actions
 	private final ActionMap ksActionMap = new ActionMap();
 	private final InputMap ksInputMap = new InputMap();
@@ -113,6 +156,37 @@ public class LabelPersistenceController
 		}
 	}
 
+	/**
+	 * Run {@code save} on the save thread after all pending background
+	 * saves, and wait for it.  Runs {@code save} directly if called on the
+	 * save thread.  Must not be called while the viewer is locked, because
+	 * background saves may lock it, {@code save} has to lock it itself.
+	 *
+	 * @param save
+	 */
+	protected void runOnSaveThread( final Runnable save )
+	{
+		if ( Thread.currentThread() == saveThread )
+		{
+			save.run();
+			return;
+		}
+		try
+		{
+			saveExecutor.submit( save ).get();
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+		}
+		catch ( final ExecutionException e )
+		{
+			if ( e.getCause() instanceof RuntimeException )
+				throw ( RuntimeException )e.getCause();
+			throw new RuntimeException( e.getCause() );
+		}
+	}
+
 	public void saveNextId()
 	{
 		System.out.println( "Saving next id " + h5Path + ":/next_id" );
@@ -123,14 +197,84 @@ public class LabelPersistenceController
 				"next_id" );
 	}
 
+	/**
+	 * Append the assignments that changed since the last save to the
+	 * journal of {@link #assignmentDataset}, see {@link H5AssignmentJournal},
+	 * and compact the journal if necessary.  Runs on the save thread, after
+	 * pending background saves, see {@link #runOnSaveThread(Runnable)}.
+	 */
 	public void saveFragmentSegmentAssignment()
+	{
+		runOnSaveThread( this::writeFragmentSegmentAssignment );
+	}
+
+	protected void writeFragmentSegmentAssignment()
 	{
 		System.out.println( "Saving fragment-segment assignments " + h5Path + ":" + assignmentDataset );
-		H5Utils.saveLongLongLut(
-				assignment.getLut(),
-				h5Path,
-				assignmentDataset,
-				1024 );
+		final IHDF5Writer writer = HDF5Factory.open( h5Path );
+		try
+		{
+			TLongLongHashMap modifications;
+			TLongLongHashMap lut = null;
+			synchronized ( assignment )
+			{
+				modifications = assignment.pollModifications();
+				if ( modifications == null || compactAssignment )
+				{
+					compactAssignment = false;
+					modifications = null;
+					lut = new TLongLongHashMap( assignment.getLut() );
+				}
+			}
+			if ( modifications == null )
+				H5AssignmentJournal.compact( lut, writer, assignmentDataset, 1024 );
+			else
+			{
+				H5AssignmentJournal.append( modifications, writer, assignmentDataset, 1024 );
+				H5AssignmentJournal.compactIfNecessary( writer, assignmentDataset, 1024 );
+			}
+		}
+		catch ( final RuntimeException e )
+		{
+			compactAssignment = true;
+			throw e;
+		}
+		finally
+		{
+			writer.close();
+		}
+	}
+
+	/**
+	 * Replay the journal of {@link #assignmentDataset} into the lookup table
+	 * dataset, such that tools reading the lookup table directly see the
+	 * saved assignment.  Runs on the save thread after pending background
+	 * saves, call it when closing the viewer.  If it fails, the journal is
+	 * left in place and still loaded by the viewer.
+	 */
+	public void compactAssignmentJournal()
+	{
+		try
+		{
+			runOnSaveThread(
+					() -> {
+						if ( !new File( h5Path ).exists() )
+							return;
+						final IHDF5Writer writer = HDF5Factory.open( h5Path );
+						try
+						{
+							H5AssignmentJournal.compactJournal( writer, assignmentDataset, 1024 );
+						}
+						finally
+						{
+							writer.close();
+						}
+					} );
+		}
+		catch ( final RuntimeException e )
+		{
+			e.printStackTrace( System.err );
+		}
 	}
 
 	public void saveCompleteSegmentsAssignment()
@@ -143,16 +287,42 @@ public class LabelPersistenceController
 				1024 );
 	}
 
+	/**
+	 * The modified cells of the painted labels, {@code null} if they are not
+	 * tracked or their grid is not known yet.
+	 */
+	protected DirtyBlocks dirtyBlocks()
+	{
+		if ( dirtyLabelSourceInterval instanceof DirtyBlocks && ( ( DirtyBlocks )dirtyLabelSourceInterval ).getGrid() != null )
+			return ( DirtyBlocks )dirtyLabelSourceInterval;
+		return null;
+	}
+
 	public void savePaintedLabels()
 	{
 		System.out.println( "Saving painted labels into " + h5Path + ":" + paintedLabelsDataset );
 
 		final File file = new File( h5Path );
-		H5Utils.saveUnsignedLong(
-				labelSource,
-				file,
-				paintedLabelsDataset,
-				labelsCellDimensions );
+		final DirtyBlocks dirtyBlocks = dirtyBlocks();
+		if ( dirtyBlocks != null )
+		{
+			/* only cells that were modified since the last save */
+			final long[] blocks = dirtyBlocks.getDirtyBlocks();
+			System.out.println( "  " + blocks.length + " modified blocks" );
+			H5Utils.saveUnsignedLongBlocks(
+					labelSource,
+					file,
+					paintedLabelsDataset,
+					dirtyBlocks.getGrid(),
+					blocks );
+			dirtyBlocks.clean( blocks );
+		}
+		else
+			H5Utils.saveUnsignedLong(
+					labelSource,
+					file,
+					paintedLabelsDataset,
+					labelsCellDimensions );
 		H5Utils.saveDoubleArrayAttribute(
 				new double[]{labelResolution[2], labelResolution[1], labelResolution[0]},
 				file,
@@ -194,14 +364,22 @@ public class LabelPersistenceController
 		System.out.println( "Saving assigned merged labels into " + h5Path + ":" + mergedLabelsDataset  );
 
 		final File file = new File( h5Path );
-		H5Utils.saveAssignedSingleElementLabelMultisetLongPair(
-				labelMultisetSource,
-				labelSource,
-				labelSource,
-				assignment,
-				file,
-				mergedLabelsDataset,
-				labelsCellDimensions );
+		try
+		{
+			new H5ParallelLabelExport( Runtime.getRuntime().availableProcessors() ).saveAssignedSingleElementLabelMultisetLongPair(
+					labelMultisetSource,
+					labelSource,
+					labelSource,
+					assignment,
+					file,
+					mergedLabelsDataset,
+					labelsCellDimensions );
+		}
+		catch ( final InterruptedException | ExecutionException e )
+		{
+			e.printStackTrace( System.err );
+			return;
+		}
 		H5Utils.saveDoubleArrayAttribute(
 				new double[]{labelResolution[2], labelResolution[1], labelResolution[0]},
 				file,
@@ -214,6 +392,444 @@ public class LabelPersistenceController
 				"offset");
 	}
 
+	/**
+	 * Copy of the next id, the complete segments, and the modified cells of
+	 * the painted labels, taken while the viewer is locked.  The assignments
+	 * are polled on the save thread, so neither the viewer lock nor the
+	 * event dispatch thread is held while the lookup table is copied.
+	 * Writing the copy does not block painting, merging or rendering.
+	 */
+	protected class Snapshot
+	{
+		final protected long nextId;
+		/**
+		 * Assignments modified since the last snapshot, {@code null} if the
+		 * complete {@link #lut} is saved.  Set by {@link #pollAssignment()}.
+		 */
+		protected TLongLongHashMap modifications;
+		protected TLongLongHashMap lut;
+		final protected TLongHashSet completeSegments;
+		final protected DirtyBlocks dirtyBlocks;
+		final protected long[] blocks;
+		final protected long[][] blockOffsets;
+		final protected long[][] blockDimensions;
+		final protected long[][] blockData;
+
+		/**
+		 * Take the snapshot.  Must be called while the viewer is locked.
+		 *
+		 * @param dirtyBlocks
+		 */
+		public Snapshot( final DirtyBlocks dirtyBlocks )
+		{
+			this.dirtyBlocks = dirtyBlocks;
+			nextId = idService.next();
+			completeSegments = new TLongHashSet( LabelPersistenceController.this.completeSegments.getAssignedSegments() );
+
+			blocks = dirtyBlocks.getDirtyBlocks();
+			dirtyBlocks.clean( blocks );
+			blockOffsets = new long[ blocks.length ][];
+			blockDimensions = new long[ blocks.length ][];
+			blockData = new long[ blocks.length ][];
+
+			final CellGrid grid = dirtyBlocks.getGrid();
+			for ( int b = 0; b < blocks.length; ++b )
+			{
+				blockOffsets[ b ] = new long[ grid.numDimensions() ];
+				blockDimensions[ b ] = new long[ grid.numDimensions() ];
+				blockData[ b ] = copyBlock( grid, blocks[ b ], blockOffsets[ b ], blockDimensions[ b ] );
+			}
+		}
+
+		/**
+		 * Copy a cell of the painted labels in flat iteration order.  Must
+		 * be called while the viewer is locked.
+		 *
+		 * @param grid
+		 * @param block
+		 *            flat index of the cell
+		 * @param offset
+		 *            set to the offset of the cell
+		 * @param dimensions
+		 *            set to the dimensions of the cell
+		 */
+		protected long[] copyBlock( final CellGrid grid, final long block, final long[] offset, final long[] dimensions )
+		{
+			final int n = grid.numDimensions();
+			final int[] cellDimensions = new int[ n ];
+			grid.getCellDimensions( block, offset, cellDimensions );
+			for ( int d = 0; d < n; ++d )
+				dimensions[ d ] = cellDimensions[ d ];
+
+			final long[] data = new long[ ( int )Intervals.numElements( dimensions ) ];
+			int i = 0;
+			for ( final LongType t : Views.flatIterable( Views.offsetInterval( labelSource, offset, dimensions ) ) )
+				data[ i++ ] = t.get();
+			return data;
+		}
+
+		/**
+		 * Take the assignments modified since the last snapshot, or a copy
+		 * of the complete lookup table if it was replaced or the last save
+		 * failed.  Called on the save thread, only the assignment is locked.
+		 */
+		protected void pollAssignment()
+		{
+			synchronized ( assignment )
+			{
+				modifications = assignment.pollModifications();
+				if ( modifications == null || compactAssignment )
+				{
+					compactAssignment = false;
+					modifications = null;
+					lut = new TLongLongHashMap( assignment.getLut() );
+				}
+			}
+		}
+
+		/**
+		 * Write the snapshot, reporting progress through the viewer.  If the
+		 * painted labels have never been saved, the complete canvas is
+		 * written instead of the modified cells, see
+		 * {@link #saveAllPaintedLabels(IHDF5Writer)}.
+		 */
+		public void save()
+		{
+			System.out.println( "Saving snapshot into " + h5Path );
+
+			pollAssignment();
+			final IHDF5Writer writer = HDF5Factory.open( h5Path );
+			try
+			{
+				H5Utils.saveUint64Attribute( nextId, writer, "/", "next_id" );
+				if ( modifications == null )
+					H5AssignmentJournal.compact( lut, writer, assignmentDataset, 1024 );
+				else
+					H5AssignmentJournal.append( modifications, writer, assignmentDataset, 1024 );
+				H5Utils.saveLongCollection( completeSegments, writer, completeSegmentsDataset, 1024 );
+
+				if ( !writer.exists( paintedLabelsDataset ) )
+				{
+					saveAllPaintedLabels( writer );
+					return;
+				}
+
+				long t = System.currentTimeMillis();
+				for ( int b = 0; b < blocks.length; ++b )
+				{
+					H5Utils.saveUnsignedLongBlock(
+							blockData[ b ],
+							writer,
+							paintedLabelsDataset,
+							blockOffsets[ b ],
+							blockDimensions[ b ] );
+
+					if ( System.currentTimeMillis() - t > 1000 )
+					{
+						showMessage( "Saving painted labels " + ( b + 1 ) + "/" + blocks.length + " blocks..." );
+						t = System.currentTimeMillis();
+					}
+				}
+			}
+			finally
+			{
+				writer.close();
+			}
+		}
+
+		/**
+		 * Create the painted labels dataset and write all cells of the
+		 * canvas.  This happens only once per file, the cells of this
+		 * snapshot are included.  Each cell is copied and marked clean while
+		 * the viewer is locked and written after releasing the lock, cells
+		 * painted afterwards are saved next time.  A partially written
+		 * dataset is removed so that the next save starts over.
+		 *
+		 * @param writer
+		 */
+		protected void saveAllPaintedLabels( final IHDF5Writer writer )
+		{
+			showMessage( "Saving all painted labels..." );
+			try
+			{
+				H5Utils.createUnsignedLong( writer, paintedLabelsDataset, labelSource, labelsCellDimensions );
+				final CellGrid grid = dirtyBlocks.getGrid();
+				final long numBlocks = Intervals.numElements( grid.getGridDimensions() );
+				final long[] offset = new long[ grid.numDimensions() ];
+				final long[] dimensions = new long[ grid.numDimensions() ];
+				long t = System.currentTimeMillis();
+				for ( long b = 0; b < numBlocks; ++b )
+				{
+					final long[] data;
+					synchronized ( viewer )
+					{
+						dirtyBlocks.clean( new long[] { b } );
+						data = copyBlock( grid, b, offset, dimensions );
+					}
+					H5Utils.saveUnsignedLongBlock( data, writer, paintedLabelsDataset, offset, dimensions );
+
+					if ( System.currentTimeMillis() - t > 1000 )
+					{
+						showMessage( "Saving all painted labels " + ( b + 1 ) + "/" + numBlocks + " blocks..." );
+						t = System.currentTimeMillis();
+					}
+				}
+				writer.float64().setArrayAttr(
+						paintedLabelsDataset,
+						"resolution",
+						new double[]{ labelResolution[ 2 ], labelResolution[ 1 ], labelResolution[ 0 ] } );
+				writer.float64().setArrayAttr(
+						paintedLabelsDataset,
+						"offset",
+						new double[]{ labelOffset[ 2 ], labelOffset[ 1 ], labelOffset[ 0 ] } );
+			}
+			catch ( final RuntimeException e )
+			{
+				if ( writer.exists( paintedLabelsDataset ) )
+					writer.delete( paintedLabelsDataset );
+				throw e;
+			}
+		}
+
+		/**
+		 * Compact the assignment journal if it grew too long.  Replays the
+		 * journal from the file, so the assignment need not be copied.
+		 */
+		public void compact()
+		{
+			final IHDF5Writer writer = HDF5Factory.open( h5Path );
+			try
+			{
+				if ( H5AssignmentJournal.compactIfNecessary( writer, assignmentDataset, 1024 ) )
+					showMessage( "Compacted fragment-segment assignments." );
+			}
+			finally
+			{
+				writer.close();
+			}
+		}
+
+		/**
+		 * Mark the blocks of this snapshot dirty again and save the complete
+		 * assignment next time, e.g. if saving failed.
+		 */
+		public void restore()
+		{
+			dirtyBlocks.markDirty( blocks );
+			compactAssignment = true;
+		}
+	}
+
+	/**
+	 * Save next id, assignments, and painted labels on the background save
+	 * thread.  The modified cells are copied while the viewer is locked,
+	 * everything else, including opening the file, happens in the
+	 * background.  Falls back to {@link #saveInForeground()} if the painted
+	 * labels are not tracked by {@link DirtyBlocks}.
+	 *
+	 * @return
+	 */
+	public Future< ? > saveInBackground()
+	{
+		if ( dirtyBlocks() == null )
+		{
+			saveInForeground();
+			return null;
+		}
+
+		final Snapshot snapshot;
+		synchronized ( viewer )
+		{
+			snapshot = new Snapshot( dirtyBlocks() );
+		}
+		viewer.showMessage( "Saving " + snapshot.blocks.length + " modified blocks in the background..." );
+
+		return saveExecutor.submit(
+				() -> {
+					try
+					{
+						snapshot.save();
+						showMessage( "Saved assignments and painted labels." );
+						snapshot.compact();
+					}
+					catch ( final Exception e )
+					{
+						snapshot.restore();
+						showMessage( "Saving failed: " + e.getMessage() );
+						e.printStackTrace( System.err );
+					}
+				} );
+	}
+
+	/**
+	 * Save the painted labels like {@link #saveInBackground()}, then export
+	 * the assigned merged labels on the background save thread.  The
+	 * modified cells and the assignment are copied while the viewer is
+	 * locked, the export reads the painted labels back from the file, so
+	 * painting and rendering continue meanwhile.  Completion or failure is
+	 * reported through the viewer.  Falls back to locking the viewer for
+	 * the whole export if the painted labels are not tracked by
+	 * {@link DirtyBlocks}.
+	 *
+	 * @return
+	 */
+	public Future< ? > exportAssignedMergedLabelsInBackground()
+	{
+		if ( dirtyBlocks() == null )
+			return saveExecutor.submit(
+					() -> {
+						try
+						{
+							synchronized ( viewer )
+							{
+								saveAssignedMergedLabels();
+							}
+							showMessage( "Saved flattened label export." );
+						}
+						catch ( final Exception e )
+						{
+							showMessage( "Export failed: " + e.getMessage() );
+							e.printStackTrace( System.err );
+						}
+					} );
+
+		final Snapshot snapshot;
+		final TLongLongHashMap lut;
+		synchronized ( viewer )
+		{
+			snapshot = new Snapshot( dirtyBlocks() );
+			synchronized ( assignment )
+			{
+				lut = new TLongLongHashMap( assignment.getLut() );
+			}
+		}
+		viewer.showMessage( "Exporting assigned merged labels in the background..." );
+
+		return saveExecutor.submit(
+				() -> {
+					try
+					{
+						snapshot.save();
+					}
+					catch ( final Exception e )
+					{
+						snapshot.restore();
+						showMessage( "Saving failed: " + e.getMessage() );
+						e.printStackTrace( System.err );
+						return;
+					}
+					try
+					{
+						writeAssignedMergedLabels( lut );
+						showMessage( "Saved flattened label export." );
+					}
+					catch ( final Exception e )
+					{
+						showMessage( "Export failed: " + e.getMessage() );
+						e.printStackTrace( System.err );
+					}
+				} );
+	}
+
+	/**
+	 * Export the merged labels with the segments of {@code lut}, reading
+	 * the painted labels from the file.  Runs on the save thread after the
+	 * painted labels were saved.
+	 *
+	 * @param lut
+	 */
+	protected void writeAssignedMergedLabels( final TLongLongHashMap lut ) throws IOException, InterruptedException, ExecutionException
+	{
+		System.out.println( "Saving assigned merged labels into " + h5Path + ":" + mergedLabelsDataset  );
+
+		final FragmentSegmentAssignment assignmentCopy = new FragmentSegmentAssignment( idService );
+		assignmentCopy.initLut( lut );
+
+		final IHDF5Writer writer = HDF5Factory.open( h5Path );
+		try
+		{
+			final RandomAccessibleInterval< UnsignedLongType > savedLabels = H5Utils.open( writer, paintedLabelsDataset, labelsCellDimensions );
+			final RandomAccessibleInterval< LongType > savedLabelSource = Converters.convert(
+					savedLabels,
+					( a, b ) -> b.set( a.getLong() ),
+					new LongType() );
+			new H5ParallelLabelExport( Runtime.getRuntime().availableProcessors() ).saveAssignedSingleElementLabelMultisetLongPair(
+					labelMultisetSource,
+					savedLabelSource,
+					labelSource,
+					assignmentCopy,
+					writer,
+					mergedLabelsDataset,
+					labelsCellDimensions );
+			writer.float64().setArrayAttr(
+					mergedLabelsDataset,
+					"resolution",
+					new double[]{ labelResolution[ 2 ], labelResolution[ 1 ], labelResolution[ 0 ] } );
+			writer.float64().setArrayAttr(
+					mergedLabelsDataset,
+					"offset",
+					new double[]{ labelOffset[ 2 ], labelOffset[ 1 ], labelOffset[ 0 ] } );
+		}
+		finally
+		{
+			writer.close();
+		}
+	}
+
+	/**
+	 * Show {@code message} in the viewer on the event dispatch thread.
+	 *
+	 * @param message
+	 */
+	protected void showMessage( final String message )
+	{
+		SwingUtilities.invokeLater( () -> viewer.showMessage( message ) );
+	}
+
+	/**
+	 * Save next id, assignments, and painted labels while the viewer is
+	 * locked, and wait for it.  The save runs on the save thread after
+	 * pending background saves.  Must not be called while the viewer is
+	 * locked.
+	 */
+	public void saveInForeground()
+	{
+		viewer.setCursor( Cursor.getPredefinedCursor( Cursor.WAIT_CURSOR ) );
+		try
+		{
+			runOnSaveThread(
+					() -> {
+						synchronized ( viewer )
+						{
+							saveNextId();
+							writeFragmentSegmentAssignment();
+							saveCompleteSegmentsAssignment();
+							savePaintedLabels();
+						}
+					} );
+		}
+		finally
+		{
+			viewer.setCursor( Cursor.getPredefinedCursor( Cursor.DEFAULT_CURSOR ) );
+		}
+		viewer.showMessage( "Saved assignments and painted labels." );
+	}
+
+	/**
+	 * Wait until all background saves have been written.
+	 */
+	public void waitForBackgroundSaves()
+	{
+		try
+		{
+			saveExecutor.submit( () -> {} ).get();
+		}
+		catch ( final InterruptedException | ExecutionException e )
+		{
+			e.printStackTrace( System.err );
+		}
+	}
+
 	private class SaveFragmentSegmentAssignment extends SelfRegisteringAction
 	{
 		public SaveFragmentSegmentAssignment( final String name, final String ... defaultTriggers )
@@ -224,12 +840,9 @@ public class LabelPersistenceController
 		@Override
 		public void actionPerformed( final ActionEvent e )
 		{
-			synchronized ( viewer )
-			{
-				viewer.setCursor( Cursor.getPredefinedCursor( Cursor.WAIT_CURSOR ) );
-				saveFragmentSegmentAssignment();
-				viewer.setCursor( Cursor.getPredefinedCursor( Cursor.DEFAULT_CURSOR ) );
-			}
+			viewer.setCursor( Cursor.getPredefinedCursor( Cursor.WAIT_CURSOR ) );
+			saveFragmentSegmentAssignment();
+			viewer.setCursor( Cursor.getPredefinedCursor( Cursor.DEFAULT_CURSOR ) );
 		}
 	}
 
@@ -243,14 +856,17 @@ public class LabelPersistenceController
 		@Override
 		public void actionPerformed( final ActionEvent e )
 		{
-			synchronized ( viewer )
-			{
-				viewer.setCursor( Cursor.getPredefinedCursor( Cursor.WAIT_CURSOR ) );
-				saveNextId();
-				saveFragmentSegmentAssignment();
-				savePaintedLabels();
-				viewer.setCursor( Cursor.getPredefinedCursor( Cursor.DEFAULT_CURSOR ) );
-			}
+			viewer.setCursor( Cursor.getPredefinedCursor( Cursor.WAIT_CURSOR ) );
+			runOnSaveThread(
+					() -> {
+						synchronized ( viewer )
+						{
+							saveNextId();
+							writeFragmentSegmentAssignment();
+							savePaintedLabels();
+						}
+					} );
+			viewer.setCursor( Cursor.getPredefinedCursor( Cursor.DEFAULT_CURSOR ) );
 			viewer.showMessage( "Saved fragment-segment assignments and painted labels." );
 		}
 	}
@@ -265,16 +881,7 @@ public class LabelPersistenceController
 		@Override
 		public void actionPerformed( final ActionEvent e )
 		{
-			synchronized ( viewer )
-			{
-				viewer.setCursor( Cursor.getPredefinedCursor( Cursor.WAIT_CURSOR ) );
-				saveNextId();
-				saveFragmentSegmentAssignment();
-				saveCompleteSegmentsAssignment();
-				savePaintedLabels();
-				viewer.setCursor( Cursor.getPredefinedCursor( Cursor.DEFAULT_CURSOR ) );
-			}
-			viewer.showMessage( "Saved assignments and painted labels." );
+			saveInBackground();
 		}
 	}
 
@@ -288,12 +895,15 @@ public class LabelPersistenceController
 		@Override
 		public void actionPerformed( final ActionEvent e )
 		{
-			synchronized ( viewer )
-			{
-				viewer.setCursor( Cursor.getPredefinedCursor( Cursor.WAIT_CURSOR ) );
-				savePaintedLabels();
-				viewer.setCursor( Cursor.getPredefinedCursor( Cursor.DEFAULT_CURSOR ) );
-			}
+			viewer.setCursor( Cursor.getPredefinedCursor( Cursor.WAIT_CURSOR ) );
+			runOnSaveThread(
+					() -> {
+						synchronized ( viewer )
+						{
+							savePaintedLabels();
+						}
+					} );
+			viewer.setCursor( Cursor.getPredefinedCursor( Cursor.DEFAULT_CURSOR ) );
 		}
 	}
 
@@ -307,12 +917,15 @@ public class LabelPersistenceController
 		@Override
 		public void actionPerformed( final ActionEvent e )
 		{
-			synchronized ( viewer )
-			{
-				viewer.setCursor( Cursor.getPredefinedCursor( Cursor.WAIT_CURSOR ) );
-				saveMergedLabels();
-				viewer.setCursor( Cursor.getPredefinedCursor( Cursor.DEFAULT_CURSOR ) );
-			}
+			viewer.setCursor( Cursor.getPredefinedCursor( Cursor.WAIT_CURSOR ) );
+			runOnSaveThread(
+					() -> {
+						synchronized ( viewer )
+						{
+							saveMergedLabels();
+						}
+					} );
+			viewer.setCursor( Cursor.getPredefinedCursor( Cursor.DEFAULT_CURSOR ) );
 		}
 	}
 
@@ -326,13 +939,7 @@ public class LabelPersistenceController
 		@Override
 		public void actionPerformed( final ActionEvent e )
 		{
-			synchronized ( viewer )
-			{
-				viewer.setCursor( Cursor.getPredefinedCursor( Cursor.WAIT_CURSOR ) );
-				saveAssignedMergedLabels();
-				viewer.setCursor( Cursor.getPredefinedCursor( Cursor.DEFAULT_CURSOR ) );
-			}
-			viewer.showMessage( "Saved flattened label export." );
+			exportAssignedMergedLabelsInBackground();
 		}
 	}
 }
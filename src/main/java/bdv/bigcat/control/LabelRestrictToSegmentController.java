@@ -10,6 +10,7 @@ import org.scijava.ui.behaviour.InputTriggerMap;
 import org.scijava.ui.behaviour.io.InputTriggerConfig;
 
 import bdv.bigcat.label.FragmentSegmentAssignment;
+import bdv.bigcat.label.SegmentMembership;
 import bdv.labels.labelset.Label;
 import bdv.labels.labelset.LabelMultisetType;
 import bdv.viewer.ViewerPanel;
@@ -79,19 +80,24 @@ public class LabelRestrictToSegmentController
 
 		private final long TRANSPARENT = Label.TRANSPARENT;
 
-		private final long[] fragmentsInSegment;
+		private final SegmentMembership segment;
 
 		private final long oldPaint;
 
 		private final long newPaint;
 
-		public WriteTransparentIfDifferentSegment( final long[] fragmentsInSegment, final long oldPaint, final long newPaint )
+		public WriteTransparentIfDifferentSegment( final SegmentMembership segment, final long oldPaint, final long newPaint )
 		{
-			this.fragmentsInSegment = fragmentsInSegment;
+			this.segment = segment;
 			this.oldPaint = oldPaint;
 			this.newPaint = newPaint;
 		}
 
+		public WriteTransparentIfDifferentSegment( final long[] fragmentsInSegment, final long oldPaint, final long newPaint )
+		{
+			this( new SegmentMembership( Label.INVALID, fragmentsInSegment ), oldPaint, newPaint );
+		}
+
 		@Override
 		public void convert( final Pair< LabelMultisetType, T > source, final T target )
 		{
@@ -99,16 +105,7 @@ public class LabelRestrictToSegmentController
 			// comparison to oldPaint obsolete if guaranteed to be inside
 			// non-transparent?
 			if ( source.getB().getIntegerLong() == oldPaint )
-			{
-				boolean isInSameSegment = false;
-				for ( final long fragment : fragmentsInSegment )
-				{
-					isInSameSegment = labelMultiset.contains( fragment );
-					if ( isInSameSegment )
-						break;
-				}
-				target.setInteger( isInSameSegment ? newPaint : TRANSPARENT );
-			}
+				target.setInteger( segment.containsAny( labelMultiset ) ? newPaint : TRANSPARENT );
 		}
 
 	}
@@ -232,8 +229,10 @@ public class LabelRestrictToSegmentController
 
                 if ( seedPaint != Label.TRANSPARENT ) {
                     final long seedFragmentLabel = getBiggestLabel(labels, p);
-                    final long seedSegmentLabel = assignment.getSegment(seedFragmentLabel);
-                    final long[] fragmentsInSeedSegment = assignment.getFragments(seedSegmentLabel);
+                    final SegmentMembership seedSegment = SegmentMembership.ofSegmentOf( seedFragmentLabel, assignment );
+                    final SegmentMembership seedPaintSegment = LabelFillController.comparison( seedPaint, seedFragmentLabel ) == seedFragmentLabel
+                            ? seedSegment
+                            : SegmentMembership.ofSegmentOf( seedPaint, assignment );
 
                     final long t0 = System.currentTimeMillis();
                     // current work around: fill intersect with dummy color, then
@@ -248,7 +247,7 @@ public class LabelRestrictToSegmentController
                             new LabelFillController.SegmentAndPaintFilter1(
                                     seedPaint,
                                     seedFragmentLabel,
-                                    assignment));
+                                    seedPaintSegment));
                     final long t1 = System.currentTimeMillis();
                     // current work around: fill intersect with dummy color, then
                     // fill dummy color with initial color
@@ -260,7 +259,7 @@ public class LabelRestrictToSegmentController
                             p,
                             new ValuePair<>(new ValuePair<>(new LabelMultisetType(), new LongType(DUMMY_PAINT)), new LongType(DUMMY_PAINT)),
                             LABEL_FILTER,
-                            new WriteTransparentIfDifferentSegment<>(fragmentsInSeedSegment, DUMMY_PAINT, seedPaint) // to
+                            new WriteTransparentIfDifferentSegment<>(seedSegment, DUMMY_PAINT, seedPaint) // to
                             // proper
                             // newPaint
                     );
@@ -20,8 +20,6 @@ import java.lang.reflect.Type;
 import java.util.Map.Entry;
 import java.util.Set;
 
-import org.apache.commons.lang3.ArrayUtils;
-
 import com.google.gson.Gson;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonDeserializationContext;
@@ -37,11 +35,12 @@ import bdv.labels.labelset.Label;
 import bdv.util.IdService;
 import bdv.util.LocalIdService;
 import gnu.trove.impl.Constants;
+import gnu.trove.iterator.TLongIterator;
 import gnu.trove.iterator.TLongLongIterator;
-import gnu.trove.iterator.TLongObjectIterator;
 import gnu.trove.list.array.TLongArrayList;
 import gnu.trove.map.hash.TLongLongHashMap;
-import gnu.trove.map.hash.TLongObjectHashMap;
+import gnu.trove.procedure.TLongProcedure;
+import gnu.trove.set.hash.TLongHashSet;
 
 /**
  *
@@ -68,7 +67,7 @@ public class FragmentSegmentAssignment
 		public JsonElement serialize( final FragmentSegmentAssignment src, final Type typeOfSrc, final JsonSerializationContext context )
 		{
 			final JsonObject jsonLut = new JsonObject();
-			final TLongLongIterator lutIterator = src.lut.iterator();
+			final TLongLongIterator lutIterator = src.getLut().iterator();
 			while ( lutIterator.hasNext() )
 			{
 				lutIterator.advance();
@@ -103,7 +102,7 @@ public class FragmentSegmentAssignment
 		{
 			final JsonArray fragments = new JsonArray();
 			final JsonArray segments = new JsonArray();
-			final TLongLongIterator lutIterator = src.lut.iterator();
+			final TLongLongIterator lutIterator = src.getLut().iterator();
 			while ( lutIterator.hasNext() )
 			{
 				lutIterator.advance();
@@ -136,17 +135,17 @@ public class FragmentSegmentAssignment
 		@Override
 		public JsonElement serialize( final FragmentSegmentAssignment src, final Type typeOfSrc, final JsonSerializationContext context )
 		{
-			final Gson gson = new Gson();
-
 			final JsonObject jsonILut = new JsonObject();
-			final TLongObjectIterator< long[] > ilutIterator = src.ilut.iterator();
-			while ( ilutIterator.hasNext() )
-			{
-				ilutIterator.advance();
-				jsonILut.add(
-						Long.toString( ilutIterator.key() ),
-						gson.toJsonTree( ilutIterator.value() ) );
-			}
+			final TLongHashSet segmentIds = new TLongHashSet( src.getLut().values() );
+			segmentIds.forEach( segmentId -> {
+				final JsonArray jsonFragments = new JsonArray();
+				src.forEachFragment( segmentId, fragmentId -> {
+					jsonFragments.add( new JsonPrimitive( fragmentId ) );
+					return true;
+				} );
+				jsonILut.add( Long.toString( segmentId ), jsonFragments );
+				return true;
+			} );
 
 			final JsonObject jsonObject = new JsonObject();
 			jsonObject.add( "ilut", jsonILut );
@@ -288,11 +287,35 @@ A:					for ( final Entry< String, JsonElement > entry : ilutJsonEntrySet )
 		}
 	}
 
+	/**
+	 * Minimum size of the forward lookup for which {@link #syncILut()} runs
+	 * in parallel.
+	 */
+	final static public int PARALLEL_SYNC_SIZE = 1 << 18;
+
 	final protected TLongLongHashMap lut = new TLongLongHashMap(Constants.DEFAULT_CAPACITY, Constants.DEFAULT_LOAD_FACTOR, Label.TRANSPARENT, Label.TRANSPARENT);
-	final protected TLongObjectHashMap< long[] > ilut = new TLongObjectHashMap< long[] >(Constants.DEFAULT_CAPACITY, Constants.DEFAULT_LOAD_FACTOR, Label.TRANSPARENT);
+	final protected SegmentFragmentIndex ilut = new SegmentFragmentIndex();
 
 	protected IdService idService;
 
+	/**
+	 * Incremented with every modification, written while holding the lock on
+	 * this.
+	 */
+	protected volatile long version = 0;
+
+	/**
+	 * Fragments whose segment was modified since the last
+	 * {@link #pollModifications()}.  Guarded by this.
+	 */
+	final protected TLongHashSet modified = new TLongHashSet( Constants.DEFAULT_CAPACITY, Constants.DEFAULT_LOAD_FACTOR, Label.TRANSPARENT );
+
+	/**
+	 * Whether the whole lookup was replaced since the last
+	 * {@link #pollModifications()}.  Guarded by this.
+	 */
+	protected boolean replaced = false;
+
 	public FragmentSegmentAssignment( final IdService idService )
 	{
 		this.idService = idService;
@@ -324,12 +347,96 @@ A:					for ( final Entry< String, JsonElement > entry : ilutJsonEntrySet )
 	{
 		this.lut.clear();
 		this.ilut.clear();
+		this.lut.ensureCapacity( lut.size() );
 		this.lut.putAll( lut );
 		syncILut();
+		replaced();
+		++version;
 
 		System.out.println( "Done" );
 	}
 
+	/**
+	 * Forget all modifications so far, e.g. after the lookup was initialized
+	 * from the file that it is saved to, such that the next
+	 * {@link #pollModifications()} does not rewrite it.
+	 */
+	public void markPersisted()
+	{
+		synchronized ( this )
+		{
+			modified.clear();
+			replaced = false;
+		}
+	}
+
+	/**
+	 * Version of the assignment, incremented with every modification through
+	 * this class.  Modifications of the map returned by {@link #getLut()} are
+	 * not tracked.
+	 */
+	public long getVersion()
+	{
+		return version;
+	}
+
+	/**
+	 * Record that the segment of a fragment was modified.  Must be called
+	 * while holding the lock on this.
+	 *
+	 * @param fragmentId
+	 */
+	protected void modified( final long fragmentId )
+	{
+		modified.add( fragmentId );
+	}
+
+	/**
+	 * Record that the whole lookup was replaced.  Must be called while
+	 * holding the lock on this.
+	 */
+	protected void replaced()
+	{
+		modified.clear();
+		replaced = true;
+	}
+
+	/**
+	 * Get the forward lookup of all fragments whose segment was modified
+	 * since the last call, e.g. to persist only the changes.  Fragments
+	 * that kept their segment are not included, e.g. those of the target
+	 * segment of {@link #assignFragments(long, long)}.
+	 *
+	 * @return the modified entries of the forward lookup or {@code null} if
+	 *         the whole lookup was replaced by {@link #initLut(TLongLongHashMap)}
+	 */
+	public TLongLongHashMap pollModifications()
+	{
+		synchronized ( this )
+		{
+			if ( replaced )
+			{
+				replaced = false;
+				modified.clear();
+				return null;
+			}
+
+			final TLongLongHashMap modifications = new TLongLongHashMap(
+					Constants.DEFAULT_CAPACITY,
+					Constants.DEFAULT_LOAD_FACTOR,
+					Label.TRANSPARENT,
+					Label.TRANSPARENT );
+			final TLongIterator iterator = modified.iterator();
+			while ( iterator.hasNext() )
+			{
+				final long fragmentId = iterator.next();
+				modifications.put( fragmentId, getSegment( fragmentId ) );
+			}
+			modified.clear();
+			return modifications;
+		}
+	}
+
 	/**
 	 * Synchronize the inverse Lookup (segment > [fragments]) with the current
 	 * forward lookup (fragment > segment)).  The current state of the inverse
@@ -337,20 +444,29 @@ A:					for ( final Entry< String, JsonElement > entry : ilutJsonEntrySet )
 	 */
 	protected void syncILut()
 	{
-		ilut.clear();
-		final TLongLongIterator lutIterator =  lut.iterator();
-		while ( lutIterator.hasNext() )
-		{
-			lutIterator.advance();
-			final long fragmentId = lutIterator.key();
-			final long segmentId = lutIterator.value();
-			long[] fragments = ilut.get( segmentId );
-			if ( fragments == null )
-				fragments = new long[]{ fragmentId };
-			else
-				fragments = ArrayUtils.add( fragments, fragmentId );
-			ilut.put( segmentId, fragments);
-		}
+		syncILut( lut.size() >= PARALLEL_SYNC_SIZE );
+	}
+
+	/**
+	 * Synchronize the inverse lookup with the current forward lookup,
+	 * optionally in parallel, see
+	 * {@link SegmentFragmentIndex#build(TLongLongHashMap, boolean)}.
+	 *
+	 * @param parallel
+	 */
+	protected void syncILut( final boolean parallel )
+	{
+		ilut.build( lut, parallel );
+	}
+
+	/**
+	 * Fold the modifications of the inverse lookup into a new base if
+	 * necessary.  Must be called while holding the lock on this.
+	 */
+	protected void compactILut()
+	{
+		if ( ilut.needsCompaction() )
+			syncILut();
 	}
 
 	/**
@@ -367,7 +483,7 @@ A:					for ( final Entry< String, JsonElement > entry : ilutJsonEntrySet )
 			if ( segmentId == lut.getNoEntryValue() ) {
 				id = fragmentId;
 				lut.put( fragmentId, id );
-				ilut.put( id, new long[]{ fragmentId } );
+				ilut.put( id, fragmentId );
 			}
 			else
 				id = segmentId;
@@ -376,7 +492,9 @@ A:					for ( final Entry< String, JsonElement > entry : ilutJsonEntrySet )
 	}
 
 	/**
-	 * Get the segments assigned to a body.
+	 * Get the segments assigned to a body.  Copies the fragments into a new
+	 * array, use {@link #forEachFragment(long, TLongProcedure)} to visit
+	 * them without allocating.
 	 *
 	 * @param id
 	 */
@@ -390,6 +508,22 @@ A:					for ( final Entry< String, JsonElement > entry : ilutJsonEntrySet )
 		return fragments;
 	}
 
+	/**
+	 * Execute {@code procedure} for each fragment of a segment until it
+	 * returns false, while holding the lock on this.
+	 *
+	 * @param segmentId
+	 * @param procedure
+	 * @return false if {@code procedure} returned false
+	 */
+	public boolean forEachFragment( final long segmentId, final TLongProcedure procedure )
+	{
+		synchronized ( this )
+		{
+			return ilut.forEach( segmentId, procedure );
+		}
+	}
+
 	/**
 	 * Assign all fragments of segmentId1 to segmentId2.
 	 *
@@ -403,12 +537,14 @@ A:					for ( final Entry< String, JsonElement > entry : ilutJsonEntrySet )
 
 		synchronized ( this )
 		{
-			final long[] fragments1 = ilut.get( segmentId1 );
-			final long[] fragments2 = ilut.get( segmentId2 );
-			for ( final long fragmentId : fragments1 )
+			ilut.forEach( segmentId1, fragmentId -> {
 				lut.put( fragmentId, segmentId2 );
-			ilut.put( segmentId2, ArrayUtils.addAll( fragments1, fragments2 ) );
-			ilut.remove( segmentId1 );
+				modified( fragmentId );
+				return true;
+			} );
+			ilut.merge( segmentId1, segmentId2, segmentId2 );
+			compactILut();
+			++version;
 		}
 	}
 
@@ -426,14 +562,16 @@ A:					for ( final Entry< String, JsonElement > entry : ilutJsonEntrySet )
 		final long mergedSegmentId = idService.next();
 		synchronized ( this )
 		{
-			final long[] fragments1 = ilut.get( segmentId1 );
-			final long[] fragments2 = ilut.get( segmentId2 );
-			final long[] fragments = ArrayUtils.addAll( fragments1, fragments2 );
-			for ( final long fragmentId : fragments )
+			final TLongProcedure assign = fragmentId -> {
 				lut.put( fragmentId, mergedSegmentId );
-			ilut.put( mergedSegmentId, fragments );
-			ilut.remove( segmentId1 );
-			ilut.remove( segmentId2 );
+				modified( fragmentId );
+				return true;
+			};
+			ilut.forEach( segmentId1, assign );
+			ilut.forEach( segmentId2, assign );
+			ilut.merge( segmentId1, segmentId2, mergedSegmentId );
+			compactILut();
+			++version;
 		}
 	}
 
@@ -461,15 +599,16 @@ A:					for ( final Entry< String, JsonElement > entry : ilutJsonEntrySet )
 		synchronized ( this )
 		{
 			final long segmentId = lut.get( fragmentId );
-			final long[] fragments = ilut.get( segmentId );
-			if ( fragments != null && fragments.length > 1 )
+			if ( ilut.size( segmentId ) > 1 )
 			{
-				final long[] newFragments = ArrayUtils.removeElement( fragments, fragmentId );
-				ilut.put( segmentId, newFragments );
+				ilut.detach( segmentId, fragmentId );
 
 				final long newSegmentId = fragmentId;
 				lut.put( fragmentId, newSegmentId );
-				ilut.put( newSegmentId, new long[]{ fragmentId } );
+				ilut.put( newSegmentId, fragmentId );
+				modified( fragmentId );
+				compactILut();
+				++version;
 			}
 		}
 	}
@@ -0,0 +1,395 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package bdv.bigcat.label;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+import bdv.labels.labelset.Label;
+import gnu.trove.impl.Constants;
+import gnu.trove.iterator.TLongObjectIterator;
+import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.map.hash.TLongLongHashMap;
+import gnu.trove.map.hash.TLongObjectHashMap;
+import gnu.trove.procedure.TLongProcedure;
+import gnu.trove.set.hash.TLongHashSet;
+
+/**
+ * Inverse lookup from segments to their fragments.
+ *
+ * The bulk of the index is an immutable base in compressed sparse row
+ * layout: the sorted segment ids, and the fragments of all segments in one
+ * array, grouped by segment, with the range of each segment given by an
+ * offset array.  Segments that were modified since the base was built are
+ * kept in a small mutable overlay.  An overlay entry refers to the base
+ * segments that were merged into it by id instead of copying their
+ * fragments, and keeps only fragments that joined otherwise and fragments
+ * that were detached from its base segments, so merging and detaching do
+ * not copy fragment arrays.  {@link #build(TLongLongHashMap, boolean)}
+ * folds the overlay into a new base when it
+ * {@link #needsCompaction() grew too large}.
+ *
+ * {@link #forEach(long, TLongProcedure)} visits the fragments of a segment
+ * without allocating, {@link #get(long)} copies them into an array.
+ *
+ * Not thread safe.
+ */
+public class SegmentFragmentIndex
+{
+	final static private long[] EMPTY = new long[ 0 ];
+
+	/**
+	 * Minimum number of modifications before {@link #needsCompaction()}.
+	 */
+	final static public int MIN_COMPACTION_SIZE = 1024;
+
+	/**
+	 * A segment that differs from the base.
+	 */
+	final static protected class Entry
+	{
+		/**
+		 * Base segments whose fragments belong to this segment, {@code null}
+		 * if none.
+		 */
+		protected TLongArrayList baseSegments = null;
+
+		/**
+		 * Fragments that are not in {@link #baseSegments}.
+		 */
+		final protected TLongArrayList fragments = new TLongArrayList( 1 );
+
+		/**
+		 * Fragments of {@link #baseSegments} that are not in this segment,
+		 * {@code null} if none.
+		 */
+		protected TLongHashSet detached = null;
+
+		protected int size = 0;
+
+		protected void addAll( final Entry other )
+		{
+			if ( other.baseSegments != null )
+			{
+				if ( baseSegments == null )
+					baseSegments = other.baseSegments;
+				else
+					baseSegments.addAll( other.baseSegments );
+			}
+			fragments.addAll( other.fragments );
+			if ( other.detached != null )
+			{
+				if ( detached == null )
+					detached = other.detached;
+				else
+					detached.addAll( other.detached );
+			}
+			size += other.size;
+		}
+	}
+
+	/**
+	 * Overlay entry of base segments that do not exist anymore.
+	 */
+	final static private Entry REMOVED = new Entry();
+
+	/**
+	 * Sorted segment ids of the base.
+	 */
+	protected long[] segments = EMPTY;
+
+	/**
+	 * Fragments of base segment k are
+	 * {@code fragments[offsets[k]]..fragments[offsets[k + 1] - 1]}.
+	 */
+	protected int[] offsets = new int[] { 0 };
+
+	protected long[] fragments = EMPTY;
+
+	final protected TLongObjectHashMap< Entry > overlay = new TLongObjectHashMap< Entry >( Constants.DEFAULT_CAPACITY, Constants.DEFAULT_LOAD_FACTOR, Label.TRANSPARENT );
+
+	/**
+	 * Merges and detaches since the base was built.
+	 */
+	protected int numModifications = 0;
+
+	/**
+	 * Replace the index by the inverse of a fragment to segment lookup.
+	 * Segments are sorted and grouped, the fragments of each segment are
+	 * collected in a single pass over the lookup.
+	 *
+	 * @param lut
+	 * @param parallel
+	 *            sort and search in parallel
+	 */
+	public void build( final TLongLongHashMap lut, final boolean parallel )
+	{
+		/* keys and values are in the same order */
+		final long[] fragmentIds = lut.keys();
+		final long[] segmentIds = lut.values();
+
+		/* unique segments and their sizes */
+		final long[] sorted = segmentIds.clone();
+		if ( parallel )
+			Arrays.parallelSort( sorted );
+		else
+			Arrays.sort( sorted );
+
+		int numSegments = 0;
+		final int[] offsets = new int[ sorted.length + 1 ];
+		for ( int i = 0; i < sorted.length; ++i )
+		{
+			if ( i == 0 || sorted[ i ] != sorted[ i - 1 ] )
+				sorted[ numSegments++ ] = sorted[ i ];
+			++offsets[ numSegments ];
+		}
+		for ( int k = 0; k < numSegments; ++k )
+			offsets[ k + 1 ] += offsets[ k ];
+
+		/* index of the segment of each fragment */
+		final IntStream indices = IntStream.range( 0, segmentIds.length );
+		final int numUniqueSegments = numSegments;
+		final int[] segmentIndices = ( parallel ? indices.parallel() : indices )
+				.map( i -> Arrays.binarySearch( sorted, 0, numUniqueSegments, segmentIds[ i ] ) )
+				.toArray();
+
+		final long[] grouped = new long[ fragmentIds.length ];
+		final int[] counts = new int[ numSegments ];
+		for ( int i = 0; i < fragmentIds.length; ++i )
+		{
+			final int k = segmentIndices[ i ];
+			grouped[ offsets[ k ] + counts[ k ]++ ] = fragmentIds[ i ];
+		}
+
+		this.segments = Arrays.copyOf( sorted, numSegments );
+		this.offsets = Arrays.copyOf( offsets, numSegments + 1 );
+		this.fragments = grouped;
+		overlay.clear();
+		numModifications = 0;
+	}
+
+	/**
+	 * Whether the overlay grew large enough to be folded into a new base by
+	 * {@link #build(TLongLongHashMap, boolean)}.
+	 */
+	public boolean needsCompaction()
+	{
+		return numModifications > Math.max( MIN_COMPACTION_SIZE, segments.length >> 3 );
+	}
+
+	public void clear()
+	{
+		segments = EMPTY;
+		offsets = new int[] { 0 };
+		fragments = EMPTY;
+		overlay.clear();
+		numModifications = 0;
+	}
+
+	protected int baseIndex( final long segmentId )
+	{
+		return Arrays.binarySearch( segments, segmentId );
+	}
+
+	public boolean contains( final long segmentId )
+	{
+		final Entry entry = overlay.get( segmentId );
+		if ( entry != null )
+			return entry != REMOVED;
+		return baseIndex( segmentId ) >= 0;
+	}
+
+	/**
+	 * Number of fragments of a segment, 0 if it does not exist.
+	 */
+	public int size( final long segmentId )
+	{
+		final Entry entry = overlay.get( segmentId );
+		if ( entry != null )
+			return entry.size;
+		final int k = baseIndex( segmentId );
+		return k < 0 ? 0 : offsets[ k + 1 ] - offsets[ k ];
+	}
+
+	protected boolean forEachBase( final long segmentId, final TLongHashSet detached, final TLongProcedure procedure )
+	{
+		final int k = baseIndex( segmentId );
+		for ( int i = offsets[ k ]; i < offsets[ k + 1 ]; ++i )
+		{
+			final long fragmentId = fragments[ i ];
+			if ( ( detached == null || !detached.contains( fragmentId ) ) && !procedure.execute( fragmentId ) )
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Execute {@code procedure} for each fragment of a segment until it
+	 * returns false.
+	 *
+	 * @return false if {@code procedure} returned false
+	 */
+	public boolean forEach( final long segmentId, final TLongProcedure procedure )
+	{
+		final Entry entry = overlay.get( segmentId );
+		if ( entry == null )
+			return baseIndex( segmentId ) < 0 || forEachBase( segmentId, null, procedure );
+
+		if ( entry.baseSegments != null )
+			for ( int j = 0; j < entry.baseSegments.size(); ++j )
+				if ( !forEachBase( entry.baseSegments.getQuick( j ), entry.detached, procedure ) )
+					return false;
+		return entry.fragments.forEach( procedure );
+	}
+
+	/**
+	 * Execute {@code procedure} for each segment until it returns false.
+	 *
+	 * @return false if {@code procedure} returned false
+	 */
+	public boolean forEachSegment( final TLongProcedure procedure )
+	{
+		for ( final long segmentId : segments )
+			if ( !overlay.containsKey( segmentId ) && !procedure.execute( segmentId ) )
+				return false;
+
+		final TLongObjectIterator< Entry > iterator = overlay.iterator();
+		while ( iterator.hasNext() )
+		{
+			iterator.advance();
+			if ( iterator.value() != REMOVED && !procedure.execute( iterator.key() ) )
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Copy the fragments of a segment into a new array.
+	 *
+	 * @return the fragments or {@code null} if the segment does not exist
+	 */
+	public long[] get( final long segmentId )
+	{
+		if ( !contains( segmentId ) )
+			return null;
+
+		final long[] segmentFragments = new long[ size( segmentId ) ];
+		final int[] i = new int[ 1 ];
+		forEach( segmentId, fragmentId -> {
+			segmentFragments[ i[ 0 ]++ ] = fragmentId;
+			return true;
+		} );
+		return segmentFragments;
+	}
+
+	/**
+	 * Replace the fragments of a segment.
+	 */
+	public void put( final long segmentId, final long... segmentFragments )
+	{
+		final Entry entry = new Entry();
+		entry.fragments.add( segmentFragments );
+		entry.size = segmentFragments.length;
+		overlay.put( segmentId, entry );
+	}
+
+	public void remove( final long segmentId )
+	{
+		if ( baseIndex( segmentId ) >= 0 )
+			overlay.put( segmentId, REMOVED );
+		else
+			overlay.remove( segmentId );
+	}
+
+	/**
+	 * Get the modifiable entry of a segment, creating it from the base if
+	 * necessary.
+	 *
+	 * @return the entry or {@code null} if the segment does not exist
+	 */
+	protected Entry modifiableEntry( final long segmentId )
+	{
+		final Entry entry = overlay.get( segmentId );
+		if ( entry == REMOVED )
+			return null;
+		if ( entry != null )
+			return entry;
+
+		final int k = baseIndex( segmentId );
+		if ( k < 0 )
+			return null;
+
+		final Entry baseEntry = new Entry();
+		baseEntry.baseSegments = new TLongArrayList( 1 );
+		baseEntry.baseSegments.add( segmentId );
+		baseEntry.size = offsets[ k + 1 ] - offsets[ k ];
+		return baseEntry;
+	}
+
+	/**
+	 * Move the fragments of two segments into a target segment, which may
+	 * be one of them.  Fragments of the smaller segment are appended to the
+	 * larger.
+	 */
+	public void merge( final long segmentId1, final long segmentId2, final long targetSegmentId )
+	{
+		final Entry entry1 = modifiableEntry( segmentId1 );
+		final Entry entry2 = modifiableEntry( segmentId2 );
+		remove( segmentId1 );
+		remove( segmentId2 );
+
+		final Entry merged;
+		if ( entry1 == null )
+			merged = entry2;
+		else if ( entry2 == null )
+			merged = entry1;
+		else if ( entry1.size >= entry2.size )
+		{
+			entry1.addAll( entry2 );
+			merged = entry1;
+		}
+		else
+		{
+			entry2.addAll( entry1 );
+			merged = entry2;
+		}
+
+		if ( merged != null )
+			overlay.put( targetSegmentId, merged );
+		++numModifications;
+	}
+
+	/**
+	 * Remove a fragment from a segment.
+	 */
+	public void detach( final long segmentId, final long fragmentId )
+	{
+		final Entry entry = modifiableEntry( segmentId );
+		if ( entry == null )
+			return;
+
+		if ( !entry.fragments.remove( fragmentId ) )
+		{
+			if ( entry.detached == null )
+				entry.detached = new TLongHashSet( Constants.DEFAULT_CAPACITY, Constants.DEFAULT_LOAD_FACTOR, Label.TRANSPARENT );
+			entry.detached.add( fragmentId );
+		}
+		--entry.size;
+		overlay.put( segmentId, entry );
+		++numModifications;
+	}
+}
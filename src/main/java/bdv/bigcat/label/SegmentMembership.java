@@ -0,0 +1,105 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package bdv.bigcat.label;
+
+import bdv.labels.labelset.LabelMultisetType;
+import gnu.trove.set.hash.TLongHashSet;
+
+/**
+ * The fragments of one segment as a hash set, to test whether a voxel of a
+ * {@link LabelMultisetType} belongs to the segment in one pass over its
+ * entries.
+ *
+ * Create once per fill (the fragments of a segment change with the
+ * assignment) and share between the filters and converters of that fill.
+ */
+public class SegmentMembership
+{
+	final protected long segment;
+
+	final protected TLongHashSet fragments;
+
+	/**
+	 * @param segment
+	 * @param fragments
+	 *            fragments of {@code segment}, may be {@code null} for none
+	 */
+	public SegmentMembership( final long segment, final long[] fragments )
+	{
+		this.segment = segment;
+		if ( fragments == null )
+			this.fragments = new TLongHashSet();
+		else
+		{
+			this.fragments = new TLongHashSet( Math.max( 16, 2 * fragments.length ) );
+			this.fragments.addAll( fragments );
+		}
+	}
+
+	protected SegmentMembership( final long segment, final TLongHashSet fragments )
+	{
+		this.segment = segment;
+		this.fragments = fragments;
+	}
+
+	/**
+	 * Membership of {@code segment}.  The fragments are visited with
+	 * {@link FragmentSegmentAssignment#forEachFragment(long, gnu.trove.procedure.TLongProcedure)}
+	 * instead of being copied into an array first.
+	 */
+	public static SegmentMembership ofSegment( final long segment, final FragmentSegmentAssignment assignment )
+	{
+		final TLongHashSet fragments = new TLongHashSet();
+		assignment.forEachFragment( segment, fragmentId -> {
+			fragments.add( fragmentId );
+			return true;
+		} );
+		return new SegmentMembership( segment, fragments );
+	}
+
+	/**
+	 * Membership of the segment that {@code fragment} is assigned to.
+	 */
+	public static SegmentMembership ofSegmentOf( final long fragment, final FragmentSegmentAssignment assignment )
+	{
+		return ofSegment( assignment.getSegment( fragment ), assignment );
+	}
+
+	public long getSegment()
+	{
+		return segment;
+	}
+
+	public int size()
+	{
+		return fragments.size();
+	}
+
+	public boolean contains( final long fragment )
+	{
+		return fragments.contains( fragment );
+	}
+
+	/**
+	 * @return whether any fragment at the current position of
+	 *         {@code labels} belongs to the segment
+	 */
+	public boolean containsAny( final LabelMultisetType labels )
+	{
+		return labels.containsAny( fragments );
+	}
+}
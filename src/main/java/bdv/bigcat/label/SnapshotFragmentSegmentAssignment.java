@@ -0,0 +1,484 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package bdv.bigcat.label;
+
+import java.util.Arrays;
+
+import bdv.labels.labelset.Label;
+import bdv.util.IdService;
+import gnu.trove.iterator.TLongLongIterator;
+import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.map.hash.TLongLongHashMap;
+import gnu.trove.procedure.TLongProcedure;
+
+/**
+ * A {@link FragmentSegmentAssignment} whose {@link #getSegment(long)} is
+ * lock-free and allocation-free.
+ *
+ * Readers look up segments in an immutable {@link Snapshot} that consists of
+ * a large base lookup table and an {@link Overlay} with the entries that
+ * changed since the base was built.  Writers modify the forward and inverse
+ * lookups of {@link FragmentSegmentAssignment} under the monitor of this
+ * assignment and publish a new {@link Snapshot} with an incremented
+ * {@link #getVersion() version}.  The overlay is persistent, so publishing
+ * costs O(log n) per changed fragment, and it is folded into a new base when
+ * it grows beyond a fraction of the base, which amortizes to a constant per
+ * changed fragment.
+ *
+ * Fragments without an entry are their own segment.  Unlike
+ * {@link FragmentSegmentAssignment}, looking them up does not insert them
+ * into the lookup tables.
+ */
+public class SnapshotFragmentSegmentAssignment extends FragmentSegmentAssignment
+{
+	/**
+	 * Immutable open addressing long to long lookup table.  Empty slots have
+	 * key {@link Label#TRANSPARENT}, missing keys map to
+	 * {@link Label#TRANSPARENT}.
+	 */
+	final static public class Lut
+	{
+		final private long[] keys;
+
+		final private long[] values;
+
+		final private int mask;
+
+		final private int size;
+
+		public Lut( final TLongLongHashMap map )
+		{
+			size = map.size();
+			int capacity = 2;
+			while ( capacity < 2 * size )
+				capacity <<= 1;
+			mask = capacity - 1;
+			keys = new long[ capacity ];
+			values = new long[ capacity ];
+			Arrays.fill( keys, Label.TRANSPARENT );
+			Arrays.fill( values, Label.TRANSPARENT );
+
+			final TLongLongIterator iterator = map.iterator();
+			while ( iterator.hasNext() )
+			{
+				iterator.advance();
+				final long key = iterator.key();
+				int i = hash( key ) & mask;
+				while ( keys[ i ] != Label.TRANSPARENT )
+					i = ( i + 1 ) & mask;
+				keys[ i ] = key;
+				values[ i ] = iterator.value();
+			}
+		}
+
+		final static private int hash( final long key )
+		{
+			final long h = key * 0x9e3779b97f4a7c15L;
+			return ( int )( h ^ ( h >>> 32 ) );
+		}
+
+		public long get( final long key )
+		{
+			int i = hash( key ) & mask;
+			while ( true )
+			{
+				final long k = keys[ i ];
+				if ( k == key || k == Label.TRANSPARENT )
+					return values[ i ];
+				i = ( i + 1 ) & mask;
+			}
+		}
+
+		public int size()
+		{
+			return size;
+		}
+	}
+
+	/**
+	 * Immutable long to long hash trie.  {@link #put(long, long)} copies
+	 * only the path to the modified entry and returns a new trie, such that
+	 * recording a change costs O(log n) and previous versions remain valid
+	 * for readers.  Missing keys map to {@link Label#TRANSPARENT}.
+	 */
+	final static public class Overlay
+	{
+		final static private int BITS = 5;
+
+		final static private int MASK = ( 1 << BITS ) - 1;
+
+		final static private class Entry
+		{
+			final private long key;
+
+			final private long value;
+
+			private Entry( final long key, final long value )
+			{
+				this.key = key;
+				this.value = value;
+			}
+		}
+
+		/**
+		 * Children are {@link Entry Entries} or {@link Node Nodes}, one for
+		 * each bit set in the bitmap.
+		 */
+		final static private class Node
+		{
+			final private int bitmap;
+
+			final private Object[] children;
+
+			private Node( final int bitmap, final Object[] children )
+			{
+				this.bitmap = bitmap;
+				this.children = children;
+			}
+		}
+
+		final static public Overlay EMPTY = new Overlay( new Node( 0, new Object[ 0 ] ), 0 );
+
+		final private Node root;
+
+		final private int size;
+
+		private Overlay( final Node root, final int size )
+		{
+			this.root = root;
+			this.size = size;
+		}
+
+		/**
+		 * Bijective, so distinct keys never share a hash.
+		 */
+		final static private long hash( final long key )
+		{
+			final long h = key * 0x9e3779b97f4a7c15L;
+			return h ^ ( h >>> 32 );
+		}
+
+		public long get( final long key )
+		{
+			final long h = hash( key );
+			Node node = root;
+			for ( int shift = 0;; shift += BITS )
+			{
+				final int bit = 1 << ( ( int )( h >>> shift ) & MASK );
+				if ( ( node.bitmap & bit ) == 0 )
+					return Label.TRANSPARENT;
+				final Object child = node.children[ Integer.bitCount( node.bitmap & ( bit - 1 ) ) ];
+				if ( child instanceof Node )
+					node = ( Node )child;
+				else
+				{
+					final Entry entry = ( Entry )child;
+					return entry.key == key ? entry.value : Label.TRANSPARENT;
+				}
+			}
+		}
+
+		/**
+		 * @return a trie that maps {@code key} to {@code value} and all other
+		 *         keys like this
+		 */
+		public Overlay put( final long key, final long value )
+		{
+			final boolean added = get( key ) == Label.TRANSPARENT;
+			return new Overlay( put( root, key, hash( key ), value, 0 ), added ? size + 1 : size );
+		}
+
+		static private Node put( final Node node, final long key, final long h, final long value, final int shift )
+		{
+			final int bit = 1 << ( ( int )( h >>> shift ) & MASK );
+			final int i = Integer.bitCount( node.bitmap & ( bit - 1 ) );
+			if ( ( node.bitmap & bit ) == 0 )
+			{
+				final Object[] children = new Object[ node.children.length + 1 ];
+				System.arraycopy( node.children, 0, children, 0, i );
+				children[ i ] = new Entry( key, value );
+				System.arraycopy( node.children, i, children, i + 1, node.children.length - i );
+				return new Node( node.bitmap | bit, children );
+			}
+
+			final Object child = node.children[ i ];
+			final Object newChild;
+			if ( child instanceof Node )
+				newChild = put( ( Node )child, key, h, value, shift + BITS );
+			else
+			{
+				final Entry entry = ( Entry )child;
+				if ( entry.key == key )
+					newChild = new Entry( key, value );
+				else
+					newChild = put(
+							put( EMPTY.root, entry.key, hash( entry.key ), entry.value, shift + BITS ),
+							key,
+							h,
+							value,
+							shift + BITS );
+			}
+			final Object[] children = node.children.clone();
+			children[ i ] = newChild;
+			return new Node( node.bitmap, children );
+		}
+
+		public int size()
+		{
+			return size;
+		}
+	}
+
+	/**
+	 * Immutable state of the fragment to segment lookup as seen by readers.
+	 */
+	final static public class Snapshot
+	{
+		final private long version;
+
+		final private Lut base;
+
+		final private Overlay overlay;
+
+		public Snapshot( final long version, final Lut base, final Overlay overlay )
+		{
+			this.version = version;
+			this.base = base;
+			this.overlay = overlay;
+		}
+
+		public long getSegment( final long fragmentId )
+		{
+			long segmentId = overlay.get( fragmentId );
+			if ( segmentId == Label.TRANSPARENT )
+			{
+				segmentId = base.get( fragmentId );
+				if ( segmentId == Label.TRANSPARENT )
+					return fragmentId;
+			}
+			return segmentId;
+		}
+
+		public long getVersion()
+		{
+			return version;
+		}
+
+		/**
+		 * Number of fragments modified since the last compaction.
+		 */
+		public int getOverlaySize()
+		{
+			return overlay.size();
+		}
+	}
+
+	/**
+	 * Minimum number of overlay entries before the overlay is folded into the
+	 * base.
+	 */
+	final static protected int MIN_COMPACTION_SIZE = 1024;
+
+	protected volatile Snapshot snapshot;
+
+	/**
+	 * Fragments whose segment is being modified, reused to avoid garbage.
+	 * Guarded by this.
+	 */
+	final protected TLongArrayList modifiedFragments = new TLongArrayList();
+
+	public SnapshotFragmentSegmentAssignment( final IdService idService )
+	{
+		super( idService );
+		compact( 0 );
+	}
+
+	public SnapshotFragmentSegmentAssignment( final long[] fragments, final long[] segments, final IdService idService )
+	{
+		super( fragments, segments, idService );
+		compact( 0 );
+	}
+
+	/**
+	 * Build a new base from the current forward lookup and publish it with an
+	 * empty overlay.
+	 */
+	synchronized protected void compact( final long version )
+	{
+		snapshot = new Snapshot( version, new Lut( lut ), Overlay.EMPTY );
+	}
+
+	/**
+	 * Record the current forward lookup of the passed fragments and publish
+	 * a new snapshot.
+	 */
+	synchronized protected void publish( final long... fragmentIds )
+	{
+		Overlay overlay = snapshot.overlay;
+		for ( final long fragmentId : fragmentIds )
+			overlay = record( overlay, fragmentId );
+
+		publishOverlay( overlay );
+	}
+
+	/**
+	 * Record the current forward lookup of {@link #modifiedFragments} and
+	 * publish a new snapshot.
+	 */
+	synchronized protected void publishModifiedFragments()
+	{
+		Overlay overlay = snapshot.overlay;
+		for ( int i = 0; i < modifiedFragments.size(); ++i )
+			overlay = record( overlay, modifiedFragments.getQuick( i ) );
+		modifiedFragments.resetQuick();
+
+		publishOverlay( overlay );
+	}
+
+	/**
+	 * Add the current forward lookup of a fragment to {@code overlay}.
+	 * Fragments without an entry are recorded as their own segment, so that
+	 * a stale entry of the base is not visible.
+	 */
+	private Overlay record( final Overlay overlay, final long fragmentId )
+	{
+		final long segmentId = lut.get( fragmentId );
+		return overlay.put( fragmentId, segmentId == lut.getNoEntryValue() ? fragmentId : segmentId );
+	}
+
+	synchronized private void publishOverlay( final Overlay overlay )
+	{
+		final Snapshot current = snapshot;
+		if ( overlay.size() > Math.max( MIN_COMPACTION_SIZE, current.base.size() >> 3 ) )
+			compact( current.version + 1 );
+		else
+			snapshot = new Snapshot( current.version + 1, current.base, overlay );
+	}
+
+	/**
+	 * Make sure that a segment that has not been looked up by writers yet
+	 * has forward and inverse lookup entries.
+	 */
+	synchronized protected void register( final long segmentId )
+	{
+		if ( !ilut.contains( segmentId ) && lut.get( segmentId ) == lut.getNoEntryValue() )
+		{
+			lut.put( segmentId, segmentId );
+			ilut.put( segmentId, segmentId );
+		}
+	}
+
+	/**
+	 * The current snapshot.  Readers that look up many fragments should hold
+	 * on to it to get a consistent view.
+	 */
+	public Snapshot getSnapshot()
+	{
+		return snapshot;
+	}
+
+	/**
+	 * Version of the current snapshot, incremented with every modification.
+	 */
+	@Override
+	public long getVersion()
+	{
+		return snapshot.getVersion();
+	}
+
+	@Override
+	public void initLut( final TLongLongHashMap lut )
+	{
+		synchronized ( this )
+		{
+			super.initLut( lut );
+			compact( snapshot.version + 1 );
+		}
+	}
+
+	@Override
+	public long getSegment( final long fragmentId )
+	{
+		return snapshot.getSegment( fragmentId );
+	}
+
+	@Override
+	public long[] getFragments( final long segmentId )
+	{
+		synchronized ( this )
+		{
+			final long[] fragments = ilut.get( segmentId );
+			if ( fragments == null && lut.get( segmentId ) == lut.getNoEntryValue() )
+				return new long[]{ segmentId };
+			return fragments;
+		}
+	}
+
+	@Override
+	public boolean forEachFragment( final long segmentId, final TLongProcedure procedure )
+	{
+		synchronized ( this )
+		{
+			if ( !ilut.contains( segmentId ) && lut.get( segmentId ) == lut.getNoEntryValue() )
+				return procedure.execute( segmentId );
+			return ilut.forEach( segmentId, procedure );
+		}
+	}
+
+	@Override
+	public void assignFragments( final long segmentId1, final long segmentId2 )
+	{
+		if ( segmentId1 == segmentId2 )
+			return;
+
+		synchronized ( this )
+		{
+			register( segmentId1 );
+			register( segmentId2 );
+			ilut.forEach( segmentId1, modifiedFragments::add );
+			super.assignFragments( segmentId1, segmentId2 );
+			publishModifiedFragments();
+		}
+	}
+
+	@Override
+	public void mergeSegments( final long segmentId1, final long segmentId2 )
+	{
+		if ( segmentId1 == segmentId2 )
+			return;
+
+		synchronized ( this )
+		{
+			register( segmentId1 );
+			register( segmentId2 );
+			ilut.forEach( segmentId1, modifiedFragments::add );
+			ilut.forEach( segmentId2, modifiedFragments::add );
+			super.mergeSegments( segmentId1, segmentId2 );
+			publishModifiedFragments();
+		}
+	}
+
+	@Override
+	public void detachFragment( final long fragmentId )
+	{
+		synchronized ( this )
+		{
+			super.detachFragment( fragmentId );
+			publish( fragmentId );
+		}
+	}
+}
@@ -0,0 +1,475 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package bdv.bigcat.label;
+
+import bdv.labels.labelset.Label;
+import bdv.util.IdService;
+import gnu.trove.impl.Constants;
+import gnu.trove.iterator.TLongLongIterator;
+import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.map.hash.TLongByteHashMap;
+import gnu.trove.map.hash.TLongLongHashMap;
+import gnu.trove.map.hash.TLongObjectHashMap;
+import gnu.trove.procedure.TLongProcedure;
+
+/**
+ * A {@link FragmentSegmentAssignment} backed by a disjoint-set forest over
+ * fragment ids with union by rank and path compression.
+ *
+ * Merging two segments links their roots and relabels the resulting root,
+ * independent of the number of fragments.  The fragments of each set are
+ * additionally chained in a circular list that is spliced on merge, so the
+ * inverse lookup of a segment is materialized only when
+ * {@link #getFragments(long)} is called and cached until the segment changes.
+ *
+ * Fragments that were never assigned are their own segment.  The forward
+ * lookup returned by {@link #getLut()} is materialized on request and
+ * reused until the next modification.
+ *
+ * Every lookup takes the lock on this, so the viewers, whose renderers look
+ * up segments concurrently with edits, use
+ * {@link SnapshotFragmentSegmentAssignment} instead.  This class is meant
+ * for tools that apply many merges to large assignments.
+ */
+public class UnionFindFragmentSegmentAssignment extends FragmentSegmentAssignment
+{
+	/**
+	 * Parent of each non-root fragment.
+	 */
+	final protected TLongLongHashMap parent = createMap();
+
+	/**
+	 * Rank of each root, 0 if not present.
+	 */
+	final protected TLongByteHashMap rank = new TLongByteHashMap( Constants.DEFAULT_CAPACITY, Constants.DEFAULT_LOAD_FACTOR, Label.TRANSPARENT, ( byte ) 0 );
+
+	/**
+	 * Circular list of the fragments of each set, absent for singletons.
+	 */
+	final protected TLongLongHashMap next = createMap();
+
+	/**
+	 * Segment id of each root of a set that has been assigned, roots without
+	 * entry are singletons and their own segment.
+	 */
+	final protected TLongLongHashMap rootSegment = createMap();
+
+	/**
+	 * Root of each segment in {@link #rootSegment}.
+	 */
+	final protected TLongLongHashMap segmentRoot = createMap();
+
+	/**
+	 * Fragments of segments returned by {@link #getFragments(long)}, until
+	 * the segment changes.
+	 */
+	final protected TLongObjectHashMap< long[] > fragmentsCache = new TLongObjectHashMap< long[] >( Constants.DEFAULT_CAPACITY, Constants.DEFAULT_LOAD_FACTOR, Label.TRANSPARENT );
+
+	/**
+	 * Whether {@link #lut} was materialized after the last modification.
+	 * Guarded by this.
+	 */
+	protected boolean lutIsCurrent = false;
+
+	public UnionFindFragmentSegmentAssignment( final IdService idService )
+	{
+		super( idService );
+	}
+
+	/**
+	 * Create an assignment from a fragment to segment lookup as produced by
+	 * {@link bdv.img.h5.H5AssignmentJournal#load(ch.systemsx.cisd.hdf5.IHDF5Reader, String, int)}
+	 * or {@link bdv.img.h5.H5Utils#loadLongLongLut(String, String, int)}.
+	 *
+	 * @param lut
+	 * @param idService
+	 */
+	public UnionFindFragmentSegmentAssignment( final TLongLongHashMap lut, final IdService idService )
+	{
+		super( idService );
+		initLut( lut );
+	}
+
+	public UnionFindFragmentSegmentAssignment( final long[] fragments, final long[] segments, final IdService idService )
+	{
+		super( idService );
+
+		assert fragments.length == segments.length : "segments and bodies must be of same length";
+
+		for ( int i = 0; i < fragments.length; ++i )
+			add( fragments[ i ], segments[ i ] );
+	}
+
+	final static private TLongLongHashMap createMap()
+	{
+		return new TLongLongHashMap( Constants.DEFAULT_CAPACITY, Constants.DEFAULT_LOAD_FACTOR, Label.TRANSPARENT, Label.TRANSPARENT );
+	}
+
+	/**
+	 * Find the root of a fragment and compress the path to it.
+	 *
+	 * @param fragmentId
+	 * @return
+	 */
+	protected long find( final long fragmentId )
+	{
+		long root = fragmentId;
+		for ( long p = parent.get( root ); p != Label.TRANSPARENT; p = parent.get( root ) )
+			root = p;
+
+		long node = fragmentId;
+		while ( node != root )
+		{
+			final long p = parent.get( node );
+			parent.put( node, root );
+			node = p;
+		}
+		return root;
+	}
+
+	protected long nextFragment( final long fragmentId )
+	{
+		final long n = next.get( fragmentId );
+		return n == Label.TRANSPARENT ? fragmentId : n;
+	}
+
+	protected long segmentOfRoot( final long root )
+	{
+		final long segmentId = rootSegment.get( root );
+		return segmentId == Label.TRANSPARENT ? root : segmentId;
+	}
+
+	/**
+	 * Find the root of a segment.
+	 *
+	 * @param segmentId
+	 * @return the root or {@link Label#TRANSPARENT} if the segment does not
+	 *         exist
+	 */
+	protected long rootOfSegment( final long segmentId )
+	{
+		final long root = segmentRoot.get( segmentId );
+		if ( root != Label.TRANSPARENT )
+			return root;
+		if ( rootSegment.get( segmentId ) == Label.TRANSPARENT && find( segmentId ) == segmentId )
+			return segmentId;
+		return Label.TRANSPARENT;
+	}
+
+	protected void label( final long root, final long segmentId )
+	{
+		lutIsCurrent = false;
+		rootSegment.put( root, segmentId );
+		segmentRoot.put( segmentId, root );
+	}
+
+	protected void unlabel( final long root )
+	{
+		final long segmentId = rootSegment.remove( root );
+		if ( segmentId != Label.TRANSPARENT )
+			segmentRoot.remove( segmentId );
+	}
+
+	/**
+	 * Link two roots by rank and splice their fragment lists.
+	 *
+	 * @param root1
+	 * @param root2
+	 * @return the new root
+	 */
+	protected long link( final long root1, final long root2 )
+	{
+		final long next1 = nextFragment( root1 );
+		final long next2 = nextFragment( root2 );
+		next.put( root1, next2 );
+		next.put( root2, next1 );
+
+		final byte rank1 = rank.get( root1 );
+		final byte rank2 = rank.get( root2 );
+		if ( rank1 < rank2 )
+		{
+			parent.put( root1, root2 );
+			rank.remove( root1 );
+			return root2;
+		}
+		parent.put( root2, root1 );
+		rank.remove( root2 );
+		if ( rank1 == rank2 )
+			rank.put( root1, ( byte ) ( rank1 + 1 ) );
+		return root1;
+	}
+
+	/**
+	 * Unite the sets of two roots and label the result with segmentId.
+	 *
+	 * @param root1
+	 * @param root2
+	 * @param segmentId
+	 */
+	protected void union( final long root1, final long root2, final long segmentId )
+	{
+		unlabel( root1 );
+		unlabel( root2 );
+		label( link( root1, root2 ), segmentId );
+	}
+
+	/**
+	 * Add a yet unassigned fragment to a segment.
+	 *
+	 * @param fragmentId
+	 * @param segmentId
+	 */
+	protected void add( final long fragmentId, final long segmentId )
+	{
+		final long root = segmentRoot.get( segmentId );
+		if ( root == Label.TRANSPARENT )
+			label( fragmentId, segmentId );
+		else
+			union( root, fragmentId, segmentId );
+	}
+
+	/**
+	 * Record that the segment of all fragments of the set of a root was
+	 * modified.
+	 *
+	 * @param root
+	 */
+	protected void modifiedSet( final long root )
+	{
+		long fragmentId = root;
+		do
+		{
+			modified( fragmentId );
+			fragmentId = nextFragment( fragmentId );
+		}
+		while ( fragmentId != root );
+	}
+
+	/**
+	 * Collect the fragments of the set of a root.
+	 *
+	 * @param root
+	 * @return
+	 */
+	protected long[] fragmentsOfRoot( final long root )
+	{
+		final TLongArrayList fragments = new TLongArrayList();
+		long fragmentId = root;
+		do
+		{
+			fragments.add( fragmentId );
+			fragmentId = nextFragment( fragmentId );
+		}
+		while ( fragmentId != root );
+		return fragments.toArray();
+	}
+
+	/**
+	 * Materialize and return the forward lookup of all fragments that have
+	 * been assigned to a segment.  The lookup is materialized again only
+	 * after the assignment was modified.
+	 */
+	@Override
+	public TLongLongHashMap getLut()
+	{
+		synchronized ( this )
+		{
+			if ( lutIsCurrent )
+				return lut;
+
+			lut.clear();
+			final TLongLongIterator iterator = rootSegment.iterator();
+			while ( iterator.hasNext() )
+			{
+				iterator.advance();
+				final long segmentId = iterator.value();
+				for ( final long fragmentId : fragmentsOfRoot( iterator.key() ) )
+					lut.put( fragmentId, segmentId );
+			}
+			lutIsCurrent = true;
+			return lut;
+		}
+	}
+
+	/**
+	 * Replace the current assignment with a fragment to segment lookup.
+	 */
+	@Override
+	public void initLut( final TLongLongHashMap lut )
+	{
+		synchronized ( this )
+		{
+			this.lut.clear();
+			lutIsCurrent = false;
+			fragmentsCache.clear();
+			parent.clear();
+			rank.clear();
+			next.clear();
+			rootSegment.clear();
+			segmentRoot.clear();
+
+			final TLongLongIterator iterator = lut.iterator();
+			while ( iterator.hasNext() )
+			{
+				iterator.advance();
+				add( iterator.key(), iterator.value() );
+			}
+			replaced();
+			++version;
+		}
+	}
+
+	@Override
+	public long getSegment( final long fragmentId )
+	{
+		synchronized ( this )
+		{
+			return segmentOfRoot( find( fragmentId ) );
+		}
+	}
+
+	/**
+	 * Get a copy of the fragments of a segment.
+	 */
+	@Override
+	public long[] getFragments( final long segmentId )
+	{
+		synchronized ( this )
+		{
+			long[] fragments = fragmentsCache.get( segmentId );
+			if ( fragments == null )
+			{
+				final long root = rootOfSegment( segmentId );
+				if ( root == Label.TRANSPARENT )
+					return null;
+				fragments = fragmentsOfRoot( root );
+				fragmentsCache.put( segmentId, fragments );
+			}
+			return fragments.clone();
+		}
+	}
+
+	/**
+	 * Visits the fragment list of the set of the segment without
+	 * allocating.
+	 */
+	@Override
+	public boolean forEachFragment( final long segmentId, final TLongProcedure procedure )
+	{
+		synchronized ( this )
+		{
+			final long root = rootOfSegment( segmentId );
+			if ( root == Label.TRANSPARENT )
+				return true;
+
+			long fragmentId = root;
+			do
+			{
+				if ( !procedure.execute( fragmentId ) )
+					return false;
+				fragmentId = nextFragment( fragmentId );
+			}
+			while ( fragmentId != root );
+			return true;
+		}
+	}
+
+	@Override
+	public void assignFragments( final long segmentId1, final long segmentId2 )
+	{
+		if ( segmentId1 == segmentId2 )
+			return;
+
+		synchronized ( this )
+		{
+			final long root1 = rootOfSegment( segmentId1 );
+			final long root2 = rootOfSegment( segmentId2 );
+			if ( root1 == Label.TRANSPARENT || root2 == Label.TRANSPARENT )
+				return;
+
+			fragmentsCache.remove( segmentId1 );
+			fragmentsCache.remove( segmentId2 );
+			modifiedSet( root1 );
+			union( root1, root2, segmentId2 );
+			++version;
+		}
+	}
+
+	@Override
+	public void mergeSegments( final long segmentId1, final long segmentId2 )
+	{
+		if ( segmentId1 == segmentId2 )
+			return;
+
+		final long mergedSegmentId = idService.next();
+		synchronized ( this )
+		{
+			final long root1 = rootOfSegment( segmentId1 );
+			final long root2 = rootOfSegment( segmentId2 );
+			if ( root1 == Label.TRANSPARENT || root2 == Label.TRANSPARENT )
+				return;
+
+			fragmentsCache.remove( segmentId1 );
+			fragmentsCache.remove( segmentId2 );
+			fragmentsCache.remove( mergedSegmentId );
+			union( root1, root2, mergedSegmentId );
+			modifiedSet( root1 );
+			++version;
+		}
+	}
+
+	/**
+	 * Detach a fragment from its segment.  Disjoint-set forests do not
+	 * support removal, so the remaining fragments of the segment are
+	 * re-united, which is linear in the size of the segment.
+	 */
+	@Override
+	public void detachFragment( final long fragmentId )
+	{
+		synchronized ( this )
+		{
+			if ( nextFragment( fragmentId ) == fragmentId )
+				return;
+
+			final long root = find( fragmentId );
+			final long segmentId = segmentOfRoot( root );
+			final long[] fragments = fragmentsOfRoot( root );
+
+			unlabel( root );
+			for ( final long f : fragments )
+			{
+				parent.remove( f );
+				rank.remove( f );
+				next.remove( f );
+			}
+
+			long newRoot = Label.TRANSPARENT;
+			for ( final long f : fragments )
+			{
+				if ( f == fragmentId )
+					continue;
+				newRoot = newRoot == Label.TRANSPARENT ? f : link( newRoot, f );
+			}
+			label( newRoot, segmentId );
+
+			fragmentsCache.remove( segmentId );
+			fragmentsCache.remove( fragmentId );
+			modified( fragmentId );
+			++version;
+		}
+	}
+}
@@ -30,4 +30,17 @@ public interface ARGBStream
 	 * @return
 	 */
 	public int argb( long id );
+
+	/**
+	 * Version of the colors, changes whenever {@link #argb(long)} may return
+	 * a different color for an id than before.  Colors may be memoized as
+	 * long as the version does not change.
+	 *
+	 * @return the version or a negative number if colors must not be
+	 *         memoized
+	 */
+	default public long getVersion()
+	{
+		return -1;
+	}
 }
@@ -17,9 +17,7 @@
 package bdv.bigcat.ui;
 
 import bdv.bigcat.label.FragmentSegmentAssignment;
-import bdv.labels.labelset.Label;
-import gnu.trove.impl.Constants;
-import gnu.trove.map.hash.TLongIntHashMap;
+import bdv.bigcat.util.ConcurrentLongIntCache;
 
 
 /**
@@ -42,21 +40,21 @@ abstract public class AbstractARGBStream implements ARGBStream
 
 	final protected FragmentSegmentAssignment assignment;
 
+	/**
+	 * Incremented whenever the cache is cleared.
+	 */
+	protected volatile long cacheVersion = 0;
+
 	public AbstractARGBStream( final FragmentSegmentAssignment assignment )
 	{
 		this.assignment = assignment;
 	}
 
-	protected TLongIntHashMap fragmentARGBCache = new TLongIntHashMap(
-			Constants.DEFAULT_CAPACITY ,
-			Constants.DEFAULT_LOAD_FACTOR,
-			Label.TRANSPARENT,
-			0 );
-	protected TLongIntHashMap segmentARGBCache = new TLongIntHashMap(
-			Constants.DEFAULT_CAPACITY ,
-			Constants.DEFAULT_LOAD_FACTOR,
-			Label.TRANSPARENT,
-			0 );
+	/**
+	 * Read by concurrent render threads, 0 for ids that are not cached.
+	 */
+	final protected ConcurrentLongIntCache fragmentARGBCache = new ConcurrentLongIntCache( 0 );
+	final protected ConcurrentLongIntCache segmentARGBCache = new ConcurrentLongIntCache( 0 );
 
 	final static protected int argb( final int r, final int g, final int b, final int alpha )
 	{
@@ -138,9 +136,30 @@ abstract public class AbstractARGBStream implements ARGBStream
 		clearCache();
 	}
 
+	public ConcurrentLongIntCache getFragmentARGBCache()
+	{
+		return fragmentARGBCache;
+	}
+
+	public ConcurrentLongIntCache getSegmentARGBCache()
+	{
+		return segmentARGBCache;
+	}
+
 	public void clearCache()
 	{
 		fragmentARGBCache.clear();
 		segmentARGBCache.clear();
+		++cacheVersion;
+	}
+
+	/**
+	 * Changes when the cache is cleared or the assignment is modified.
+	 */
+	@Override
+	public long getVersion()
+	{
+		/* both increase monotonically, so their sum never repeats */
+		return cacheVersion + assignment.getVersion();
 	}
 }
\ No newline at end of file
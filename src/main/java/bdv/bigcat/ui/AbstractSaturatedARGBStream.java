@@ -59,10 +59,7 @@ abstract public class AbstractSaturatedARGBStream extends AbstractARGBStream
 
 			argb = argb( r, g, b, alpha );
 
-			synchronized ( fragmentARGBCache )
-			{
-				fragmentARGBCache.put( segmentId, argb );
-			}
+			fragmentARGBCache.put( segmentId, argb );
 		}
 		if ( Label.INVALID == segmentId )
 			argb = argb & 0x00ffffff;
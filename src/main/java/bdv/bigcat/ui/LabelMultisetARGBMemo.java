@@ -0,0 +1,161 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package bdv.bigcat.ui;
+
+import bdv.labels.labelset.Label;
+import bdv.labels.labelset.LabelMultisetAccumulator;
+import bdv.labels.labelset.LabelMultisetType;
+import bdv.labels.labelset.Multiset.Entry;
+import net.imglib2.type.numeric.ARGBType;
+
+/**
+ * Blends the colors of the labels of a {@link LabelMultisetType} and
+ * memoizes the result per list.
+ *
+ * Voxels of a block with equal multisets share their list, and neighboring
+ * voxels mostly have equal multisets, so a block has few distinct lists.
+ * The blended color is memoized by (array id, list offset,
+ * {@link ARGBStream#getVersion() color version}) in a fixed size, direct
+ * mapped table, such that each distinct multiset is blended once as long
+ * as colors do not change, and converting a voxel with a memoized list
+ * neither iterates the list nor allocates.
+ *
+ * The table is shared by concurrent render threads without locking: its
+ * entries are immutable, so a thread sees either a complete entry or a
+ * stale one, which it recomputes.
+ *
+ * Blending sums the counts of labels with equal colors in a per thread
+ * {@link LabelMultisetAccumulator} first, so a multiset of many fragments
+ * of few segments, as at coarse scale levels, is blended once per color.
+ */
+public class LabelMultisetARGBMemo
+{
+	final static private double iFF = 1.0 / 255.0;
+
+	final static private int DEFAULT_LOG2_SIZE = 16;
+
+	final static private ThreadLocal< LabelMultisetAccumulator > accumulators = ThreadLocal.withInitial( LabelMultisetAccumulator::new );
+
+	static private final class MemoEntry
+	{
+		final long arrayId;
+
+		final int listOffset;
+
+		final long version;
+
+		final int argb;
+
+		MemoEntry( final long arrayId, final int listOffset, final long version, final int argb )
+		{
+			this.arrayId = arrayId;
+			this.listOffset = listOffset;
+			this.version = version;
+			this.argb = argb;
+		}
+	}
+
+	final protected ARGBStream argbStream;
+
+	private final MemoEntry[] entries;
+
+	private final int mask;
+
+	public LabelMultisetARGBMemo( final ARGBStream argbStream )
+	{
+		this( argbStream, DEFAULT_LOG2_SIZE );
+	}
+
+	/**
+	 * @param log2Size
+	 *            log<sub>2</sub> of the number of memoized lists
+	 */
+	public LabelMultisetARGBMemo( final ARGBStream argbStream, final int log2Size )
+	{
+		this.argbStream = argbStream;
+		entries = new MemoEntry[ 1 << log2Size ];
+		mask = entries.length - 1;
+	}
+
+	/**
+	 * Get the blended color of {@code input}, from the memo if possible.
+	 */
+	public int argb( final LabelMultisetType input )
+	{
+		final long version = argbStream.getVersion();
+		if ( version < 0 )
+			return blend( input, argbStream );
+
+		final long arrayId = input.getArrayId();
+		final int listOffset = input.getListOffset();
+		final int slot = slot( arrayId, listOffset );
+		final MemoEntry entry = entries[ slot ];
+		if ( entry != null && entry.arrayId == arrayId && entry.listOffset == listOffset && entry.version == version )
+			return entry.argb;
+
+		final int argb = blend( input, argbStream );
+		entries[ slot ] = new MemoEntry( arrayId, listOffset, version, argb );
+		return argb;
+	}
+
+	private int slot( final long arrayId, final int listOffset )
+	{
+		long h = arrayId * 0x9e3779b97f4a7c15L + listOffset;
+		h ^= h >>> 29;
+		h *= 0xbf58476d1ce4e5b9L;
+		h ^= h >>> 32;
+		return ( int ) h & mask;
+	}
+
+	/**
+	 * Blend the colors of the labels of {@code input}, weighted by their
+	 * count and alpha.  Counts of labels with equal colors are summed before
+	 * blending.
+	 */
+	public static int blend( final LabelMultisetType input, final ARGBStream argbStream )
+	{
+		final LabelMultisetAccumulator colorCounts = accumulators.get();
+		colorCounts.clear();
+		for ( final Entry< Label > entry : input.entrySet() )
+			colorCounts.add( argbStream.argb( entry.getElement().id() ) & 0xffffffffL, entry.getCount() );
+		final int numColors = colorCounts.merge();
+
+		double a = 0;
+		double r = 0;
+		double g = 0;
+		double b = 0;
+		double alphaCountSize = 0;
+
+		for ( int i = 0; i < numColors; ++i )
+		{
+			final int argb = ( int ) colorCounts.getId( i );
+			final double alpha = ARGBType.alpha( argb );
+			final double alphaCount = alpha * iFF * colorCounts.getCount( i );
+			a += alphaCount * alpha;
+			r += alphaCount * ARGBType.red( argb );
+			g += alphaCount * ARGBType.green( argb );
+			b += alphaCount * ARGBType.blue( argb );
+			alphaCountSize += alphaCount;
+		}
+		final double iAlphaCountSize = 1.0 / alphaCountSize;
+		final int aInt = Math.min( 255, ( int ) ( a * iAlphaCountSize ) );
+		final int rInt = Math.min( 255, ( int ) ( r * iAlphaCountSize ) );
+		final int gInt = Math.min( 255, ( int ) ( g * iAlphaCountSize ) );
+		final int bInt = Math.min( 255, ( int ) ( b * iAlphaCountSize ) );
+		return ( ( ( ( ( aInt << 8 ) | rInt ) << 8 ) | gInt ) << 8 ) | bInt;
+	}
+}
@@ -111,18 +111,12 @@ public class ModalGoldenAngleSaturatedARGBStream extends GoldenAngleSaturatedARG
 				else if ( activeSegment == segmentId )
 					argb = argb & 0x00ffffff | activeSegmentAlpha;
 
-				synchronized ( segmentARGBCache )
-				{
-					segmentARGBCache.put( segmentId, argb );
-				}
+				segmentARGBCache.put( segmentId, argb );
 			}
 			if ( activeFragment == fragmentId && ( argb & 0xff000000 ) != 0 )
 				argb = argb & 0x00ffffff | activeFragmentAlpha;
 
-			synchronized ( fragmentARGBCache )
-			{
-				fragmentARGBCache.put( fragmentId, argb );
-			}
+			fragmentARGBCache.put( fragmentId, argb );
 		}
 
 		return argb;
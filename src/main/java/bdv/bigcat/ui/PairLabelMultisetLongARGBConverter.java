@@ -18,7 +18,6 @@ package bdv.bigcat.ui;
 
 import bdv.labels.labelset.Label;
 import bdv.labels.labelset.LabelMultisetType;
-import bdv.labels.labelset.Multiset.Entry;
 import net.imglib2.converter.Converter;
 import net.imglib2.type.numeric.ARGBType;
 import net.imglib2.type.numeric.integer.LongType;
@@ -30,40 +29,19 @@ import net.imglib2.util.Pair;
 public class PairLabelMultisetLongARGBConverter
 		implements Converter< Pair< LabelMultisetType, LongType >, ARGBType >
 {
-	final static private double iFF = 1.0 / 255.0;
-
 	final protected ARGBStream argbStream;
 
+	final protected LabelMultisetARGBMemo memo;
+
 	public PairLabelMultisetLongARGBConverter( final ARGBStream argbStream )
 	{
 		this.argbStream = argbStream;
+		memo = new LabelMultisetARGBMemo( argbStream );
 	}
 
 	protected void convert( final LabelMultisetType input, final ARGBType output )
 	{
-		double a = 0;
-		double r = 0;
-		double g = 0;
-		double b = 0;
-		double alphaCountSize = 0;
-
-		for ( final Entry< Label > entry : input.entrySet() )
-		{
-			final int argb = argbStream.argb( entry.getElement().id() );
-			final double alpha = ARGBType.alpha( argb );
-			final double alphaCount = alpha * iFF * entry.getCount();
-			a += alphaCount * alpha;
-			r += alphaCount * ARGBType.red( argb );
-			g += alphaCount * ARGBType.green( argb );
-			b += alphaCount * ARGBType.blue( argb );
-			alphaCountSize += alphaCount;
-		}
-		final double iAlphaCountSize = 1.0 / alphaCountSize;
-		final int aInt = Math.min( 255, ( int ) ( a * iAlphaCountSize ) );
-		final int rInt = Math.min( 255, ( int ) ( r * iAlphaCountSize ) );
-		final int gInt = Math.min( 255, ( int ) ( g * iAlphaCountSize ) );
-		final int bInt = Math.min( 255, ( int ) ( b * iAlphaCountSize ) );
-		output.set( ( ( ( ( ( aInt << 8 ) | rInt ) << 8 ) | gInt ) << 8 ) | bInt );
+		output.set( memo.argb( input ) );
 	}
 
 	@Override
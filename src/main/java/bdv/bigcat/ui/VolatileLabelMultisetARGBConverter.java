@@ -16,11 +16,8 @@
  */
 package bdv.bigcat.ui;
 
-import bdv.labels.labelset.Label;
-import bdv.labels.labelset.Multiset.Entry;
 import bdv.labels.labelset.VolatileLabelMultisetType;
 import net.imglib2.converter.Converter;
-import net.imglib2.type.numeric.ARGBType;
 import net.imglib2.type.volatiles.VolatileARGBType;
 
 /**
@@ -33,41 +30,18 @@ public class VolatileLabelMultisetARGBConverter implements Converter< VolatileLa
 {
 	final protected ARGBStream argbSource;
 
-	final static private double iFF = 1.0 / 255.0;
+	final protected LabelMultisetARGBMemo memo;
 
 	public VolatileLabelMultisetARGBConverter( final ARGBStream argbSource )
 	{
 		this.argbSource = argbSource;
+		memo = new LabelMultisetARGBMemo( argbSource );
 	}
 
 	protected void convertValid( final VolatileLabelMultisetType input, final VolatileARGBType output )
 	{
-		double a = 0;
-		double r = 0;
-		double g = 0;
-		double b = 0;
-		double alphaCountSize = 0;
-
-		for ( final Entry< Label > entry : input.get().entrySet() )
-		{
-			final int argb = argbSource.argb( entry.getElement().id() );
-			final double alpha = ARGBType.alpha( argb );
-			final double alphaCount = alpha * iFF * entry.getCount();
-			a += alphaCount * alpha;
-			r += alphaCount * ARGBType.red( argb );
-			g += alphaCount * ARGBType.green( argb );
-			b += alphaCount * ARGBType.blue( argb );
-			alphaCountSize += alphaCount;
-		}
-		final double iAlphaCountSize = 1.0 / alphaCountSize;
-		final int aInt = Math.min( 255, ( int )( a * iAlphaCountSize ) );
-		final int rInt = Math.min( 255, ( int )( r * iAlphaCountSize ) );
-		final int gInt = Math.min( 255, ( int )( g * iAlphaCountSize ) );
-		final int bInt = Math.min( 255, ( int )( b * iAlphaCountSize ) );
 		output.setValid( true );
-		output.set( ( ( ( ( ( aInt << 8 ) | rInt ) << 8 ) | gInt ) << 8 ) | bInt );
-//		output.set( ARGBType.rgba( rInt, gInt, bInt, aInt ) );
-
+		output.set( memo.argb( input.get() ) );
 	}
 
 	@Override
@@ -0,0 +1,270 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package bdv.bigcat.util;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * A bounded, thread-safe cache of long keys to int values.
+ *
+ * Entries are stored in open addressing tables split into independently
+ * locked stripes.  Each key can be stored in one of {@link #WAYS} slots of a
+ * set, and when all of them are taken, one of them is evicted round-robin.
+ * Reads are optimistic and do not lock unless they overlap with a write to
+ * the same stripe, so concurrent readers do not contend.
+ *
+ * Hits, misses, and evictions are counted.
+ */
+public class ConcurrentLongIntCache
+{
+	/**
+	 * Number of slots per set.
+	 */
+	final static public int WAYS = 4;
+
+	final static public int DEFAULT_CAPACITY = 1 << 16;
+
+	final static private int NUM_STRIPES = 16;
+
+	final static private class Stripe
+	{
+		final StampedLock lock = new StampedLock();
+
+		final long[] keys;
+
+		final int[] values;
+
+		final boolean[] used;
+
+		/**
+		 * Next slot to evict per set.
+		 */
+		final byte[] victims;
+
+		Stripe( final int numSets )
+		{
+			keys = new long[ numSets * WAYS ];
+			values = new int[ numSets * WAYS ];
+			used = new boolean[ numSets * WAYS ];
+			victims = new byte[ numSets ];
+		}
+	}
+
+	private final int noEntryValue;
+
+	private final Stripe[] stripes;
+
+	private final int setMask;
+
+	private final LongAdder hits = new LongAdder();
+
+	private final LongAdder misses = new LongAdder();
+
+	private final LongAdder evictions = new LongAdder();
+
+	/**
+	 * @param capacity
+	 *            maximum number of entries, rounded up to a power of two
+	 * @param noEntryValue
+	 *            returned by {@link #get(long)} for keys that are not cached
+	 */
+	public ConcurrentLongIntCache( final int capacity, final int noEntryValue )
+	{
+		this.noEntryValue = noEntryValue;
+		final int minSetsPerStripe = Math.max( 1, ( capacity + NUM_STRIPES * WAYS - 1 ) / ( NUM_STRIPES * WAYS ) );
+		final int setsPerStripe = minSetsPerStripe == 1 ? 1 : Integer.highestOneBit( minSetsPerStripe - 1 ) << 1;
+		setMask = setsPerStripe - 1;
+		stripes = new Stripe[ NUM_STRIPES ];
+		for ( int i = 0; i < NUM_STRIPES; ++i )
+			stripes[ i ] = new Stripe( setsPerStripe );
+	}
+
+	public ConcurrentLongIntCache( final int noEntryValue )
+	{
+		this( DEFAULT_CAPACITY, noEntryValue );
+	}
+
+	public int getNoEntryValue()
+	{
+		return noEntryValue;
+	}
+
+	/**
+	 * @return maximum number of entries
+	 */
+	public int getCapacity()
+	{
+		return NUM_STRIPES * ( setMask + 1 ) * WAYS;
+	}
+
+	private static long hash( final long key )
+	{
+		long h = key * 0x9e3779b97f4a7c15L;
+		h ^= h >>> 32;
+		h *= 0xbf58476d1ce4e5b9L;
+		return h ^ ( h >>> 29 );
+	}
+
+	private Stripe stripe( final long hash )
+	{
+		return stripes[ ( int ) ( hash >>> 60 ) & ( NUM_STRIPES - 1 ) ];
+	}
+
+	private int firstSlot( final long hash )
+	{
+		return ( ( int ) hash & setMask ) * WAYS;
+	}
+
+	/**
+	 * @return index of the slot of {@code key} or -1
+	 */
+	private static int find( final Stripe stripe, final int first, final long key )
+	{
+		for ( int i = first; i < first + WAYS; ++i )
+			if ( stripe.used[ i ] && stripe.keys[ i ] == key )
+				return i;
+		return -1;
+	}
+
+	/**
+	 * Get the value cached for {@code key}.
+	 *
+	 * @return the value or {@link #getNoEntryValue()} if {@code key} is not
+	 *         cached
+	 */
+	public int get( final long key )
+	{
+		final long hash = hash( key );
+		final Stripe stripe = stripe( hash );
+		final int first = firstSlot( hash );
+
+		int value = noEntryValue;
+		long stamp = stripe.lock.tryOptimisticRead();
+		if ( stamp != 0 )
+		{
+			final int i = find( stripe, first, key );
+			if ( i >= 0 )
+				value = stripe.values[ i ];
+		}
+		if ( stamp == 0 || !stripe.lock.validate( stamp ) )
+		{
+			stamp = stripe.lock.readLock();
+			try
+			{
+				final int i = find( stripe, first, key );
+				value = i >= 0 ? stripe.values[ i ] : noEntryValue;
+			}
+			finally
+			{
+				stripe.lock.unlockRead( stamp );
+			}
+		}
+
+		if ( value == noEntryValue )
+			misses.increment();
+		else
+			hits.increment();
+		return value;
+	}
+
+	/**
+	 * Cache {@code value} for {@code key}, evicting another entry of the
+	 * same set if it is full.
+	 */
+	public void put( final long key, final int value )
+	{
+		final long hash = hash( key );
+		final Stripe stripe = stripe( hash );
+		final int first = firstSlot( hash );
+
+		final long stamp = stripe.lock.writeLock();
+		try
+		{
+			int slot = find( stripe, first, key );
+			if ( slot < 0 )
+			{
+				for ( int i = first; i < first + WAYS && slot < 0; ++i )
+					if ( !stripe.used[ i ] )
+						slot = i;
+				if ( slot < 0 )
+				{
+					final int set = first / WAYS;
+					slot = first + stripe.victims[ set ];
+					stripe.victims[ set ] = ( byte ) ( ( stripe.victims[ set ] + 1 ) % WAYS );
+					evictions.increment();
+				}
+				stripe.keys[ slot ] = key;
+				stripe.used[ slot ] = true;
+			}
+			stripe.values[ slot ] = value;
+		}
+		finally
+		{
+			stripe.lock.unlockWrite( stamp );
+		}
+	}
+
+	/**
+	 * Remove all entries.  Statistics are kept.
+	 */
+	public void clear()
+	{
+		for ( final Stripe stripe : stripes )
+		{
+			final long stamp = stripe.lock.writeLock();
+			try
+			{
+				Arrays.fill( stripe.used, false );
+			}
+			finally
+			{
+				stripe.lock.unlockWrite( stamp );
+			}
+		}
+	}
+
+	public long getHits()
+	{
+		return hits.sum();
+	}
+
+	public long getMisses()
+	{
+		return misses.sum();
+	}
+
+	public long getEvictions()
+	{
+		return evictions.sum();
+	}
+
+	public double getHitRate()
+	{
+		final long h = hits.sum();
+		final long requests = h + misses.sum();
+		return requests == 0 ? 0 : ( double ) h / requests;
+	}
+
+	public void resetStatistics()
+	{
+		hits.reset();
+		misses.reset();
+		evictions.reset();
+	}
+}
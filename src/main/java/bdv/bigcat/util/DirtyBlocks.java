@@ -0,0 +1,157 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package bdv.bigcat.util;
+
+import java.util.Arrays;
+
+import gnu.trove.set.hash.TLongHashSet;
+import net.imglib2.Interval;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.iterator.LocalizingIntervalIterator;
+import net.imglib2.util.IntervalIndexer;
+
+/**
+ * Tracks the interval and the cells of a {@link CellGrid} that were
+ * modified, so that only modified cells need to be saved.  Cells are
+ * identified by their flat index in the grid.
+ *
+ * The grid can be set after construction, e.g. when the canvas it belongs to
+ * is created later.  Until then, only the interval is tracked, and the cells
+ * covering it are marked when the grid is set.
+ */
+public class DirtyBlocks extends DirtyInterval
+{
+	final protected int[] cellDimensions;
+
+	protected CellGrid grid = null;
+
+	protected long[] gridDimensions = null;
+
+	final protected TLongHashSet dirtyBlocks = new TLongHashSet();
+
+	public DirtyBlocks( final int[] cellDimensions )
+	{
+		this.cellDimensions = cellDimensions.clone();
+	}
+
+	public DirtyBlocks( final CellGrid grid )
+	{
+		cellDimensions = new int[ grid.numDimensions() ];
+		grid.cellDimensions( cellDimensions );
+		setGrid( grid );
+	}
+
+	/**
+	 * Set the grid and mark the cells covering the interval that was
+	 * touched so far.
+	 */
+	synchronized public void setGrid( final CellGrid grid )
+	{
+		final int[] gridCellDimensions = new int[ grid.numDimensions() ];
+		grid.cellDimensions( gridCellDimensions );
+		if ( !Arrays.equals( cellDimensions, gridCellDimensions ) )
+			throw new IllegalArgumentException( "Cell dimensions " + Arrays.toString( gridCellDimensions ) + " differ from " + Arrays.toString( cellDimensions ) + "." );
+
+		this.grid = grid;
+		gridDimensions = new long[ grid.numDimensions() ];
+		grid.gridDimensions( gridDimensions );
+		dirtyBlocks.clear();
+		if ( dirtyInterval != null )
+			touchBlocks( dirtyInterval );
+	}
+
+	/**
+	 * @return the grid or {@code null} if it was not set yet
+	 */
+	synchronized public CellGrid getGrid()
+	{
+		return grid;
+	}
+
+	public int[] getCellDimensions()
+	{
+		return cellDimensions.clone();
+	}
+
+	@Override
+	synchronized public void touch( final Interval interval )
+	{
+		super.touch( interval );
+		if ( grid != null )
+			touchBlocks( interval );
+	}
+
+	protected void touchBlocks( final Interval interval )
+	{
+		final int n = gridDimensions.length;
+		final long[] min = new long[ n ];
+		final long[] max = new long[ n ];
+		for ( int d = 0; d < n; ++d )
+		{
+			min[ d ] = Math.max( 0, interval.min( d ) ) / cellDimensions[ d ];
+			max[ d ] = Math.min( gridDimensions[ d ] - 1, interval.max( d ) / cellDimensions[ d ] );
+			if ( interval.max( d ) < 0 || min[ d ] > max[ d ] )
+				return;
+		}
+
+		final LocalizingIntervalIterator i = new LocalizingIntervalIterator( min, max );
+		final long[] gridPosition = new long[ n ];
+		while ( i.hasNext() )
+		{
+			i.fwd();
+			i.localize( gridPosition );
+			dirtyBlocks.add( IntervalIndexer.positionToIndex( gridPosition, gridDimensions ) );
+		}
+	}
+
+	@Override
+	synchronized public void clear()
+	{
+		super.clear();
+		dirtyBlocks.clear();
+	}
+
+	/**
+	 * @return flat grid indices of all modified cells
+	 */
+	synchronized public long[] getDirtyBlocks()
+	{
+		return dirtyBlocks.toArray();
+	}
+
+	/**
+	 * Mark cells as clean, e.g. after they have been saved.
+	 *
+	 * @param blocks
+	 *            flat grid indices
+	 */
+	synchronized public void clean( final long[] blocks )
+	{
+		dirtyBlocks.removeAll( blocks );
+	}
+
+	/**
+	 * Mark cells as dirty, e.g. after saving them failed.
+	 *
+	 * @param blocks
+	 *            flat grid indices
+	 */
+	synchronized public void markDirty( final long[] blocks )
+	{
+		dirtyBlocks.addAll( blocks );
+	}
+}
@@ -0,0 +1,656 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package bdv.bigcat.util;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.map.hash.TLongObjectHashMap;
+import gnu.trove.set.hash.TLongHashSet;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.Localizable;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.algorithm.fill.Filter;
+import net.imglib2.type.Type;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Pair;
+import net.imglib2.util.ValuePair;
+import net.imglib2.view.RandomAccessiblePair;
+
+/**
+ * Flood fill of a target interval, seeded at one position and propagated
+ * through the 6-neighborhood (like
+ * {@link net.imglib2.algorithm.fill.FloodFill} with a
+ * {@link net.imglib2.algorithm.neighborhood.DiamondShape} of radius 1).
+ *
+ * The target is partitioned into blocks that are filled by independent
+ * tasks on an {@link Executor}.  A task fills its block from a list of
+ * seeds and passes the positions at which the fill leaves the block on to
+ * the tasks of the neighboring blocks, so the fill spreads through the
+ * blocks like a wave.  At most one task works on a block at any time, so
+ * tasks do not need to lock each other out if blocks do not share storage
+ * (e.g. if they match the cells of a cell image).  If others write the
+ * target concurrently, a lock can be passed, and a {@link DirtyInterval}
+ * that is touched with the filled voxels before the lock is released.  The
+ * source and target are read and the filter is called without the lock, it
+ * is only held while a task writes the voxels it accepted, in batches of at
+ * most {@value #WRITE_BATCH_SIZE}.
+ *
+ * {@link #start(Localizable) Started} fills run in the background, report
+ * their progress through {@link #getNumFilled()}, and can be
+ * {@link #cancel() cancelled}, leaving the voxels filled so far.  The
+ * bounding boxes of the filled voxels per block are available through
+ * {@link #getFilledIntervals()} for tracking modified blocks.
+ *
+ * @param <T>
+ *            source type, read by the filter
+ * @param <U>
+ *            target type, read by the filter and filled with the fill
+ *            label
+ */
+public class ParallelFloodFill< T, U extends Type< U > >
+{
+	/**
+	 * Check for cancellation after this many positions.
+	 */
+	final static private int CANCEL_CHECK_INTERVAL = 4096;
+
+	/**
+	 * Maximum number of accepted voxels written at once.
+	 */
+	final static private int WRITE_BATCH_SIZE = 4096;
+
+	private class Block
+	{
+		final long[] fillMin;
+
+		final long[] fillMax;
+
+		/**
+		 * Seeds not yet processed, guarded by this block.
+		 */
+		TLongArrayList seeds = new TLongArrayList();
+
+		/**
+		 * Whether a task is queued or running for this block, guarded by
+		 * this block.
+		 */
+		boolean scheduled = false;
+
+		/**
+		 * Whether a voxel was filled, written only by the task of this
+		 * block.
+		 */
+		boolean filled = false;
+
+		Block()
+		{
+			fillMin = new long[ n ];
+			fillMax = new long[ n ];
+		}
+
+		void fill( final long[] position )
+		{
+			if ( filled )
+			{
+				for ( int d = 0; d < n; ++d )
+				{
+					fillMin[ d ] = Math.min( fillMin[ d ], position[ d ] );
+					fillMax[ d ] = Math.max( fillMax[ d ], position[ d ] );
+				}
+			}
+			else
+			{
+				System.arraycopy( position, 0, fillMin, 0, n );
+				System.arraycopy( position, 0, fillMax, 0, n );
+				filled = true;
+			}
+		}
+	}
+
+	private final RandomAccessiblePair< T, U > sourceTarget;
+
+	private final Pair< T, U > reference;
+
+	private final U fillLabel;
+
+	private final Filter< Pair< T, U >, Pair< T, U > > filter;
+
+	private final Executor executor;
+
+	/**
+	 * Held while a batch of accepted voxels is written, {@code null} for no
+	 * locking.
+	 */
+	private final Object lock;
+
+	/**
+	 * Touched with the voxels filled while {@link #lock} is held, may be
+	 * {@code null}.
+	 */
+	private final DirtyInterval dirtyInterval;
+
+	private final int n;
+
+	private final long[] min;
+
+	private final long[] max;
+
+	private final long[] dimensions;
+
+	private final int[] blockSize;
+
+	private final long[] gridDimensions;
+
+	private final ConcurrentHashMap< Long, Block > blocks = new ConcurrentHashMap<>();
+
+	/**
+	 * Number of queued or running block tasks, plus one while seeding.
+	 */
+	private final AtomicInteger pending = new AtomicInteger();
+
+	private final AtomicLong numFilled = new AtomicLong();
+
+	private final AtomicReference< Throwable > failure = new AtomicReference<>();
+
+	private final CountDownLatch done = new CountDownLatch( 1 );
+
+	private volatile boolean cancelled = false;
+
+	private boolean started = false;
+
+	/**
+	 * @param source
+	 *            source, must be defined on {@code target}
+	 * @param target
+	 *            target to be filled, the fill does not leave its interval
+	 * @param blockSize
+	 *            size of the blocks that are filled in parallel, should
+	 *            match the cells of {@code target}
+	 * @param seedLabel
+	 *            source part of the reference passed to {@code filter}
+	 * @param fillLabel
+	 *            written into the target, target part of the reference
+	 *            passed to {@code filter}
+	 * @param filter
+	 *            accepts positions to be filled, is called concurrently and
+	 *            must reject positions that were already filled
+	 * @param executor
+	 *            runs the block tasks
+	 * @param lock
+	 *            held while writing the target, but not while reading it,
+	 *            {@code null} if nobody else writes it
+	 * @param dirtyInterval
+	 *            touched with the filled voxels before {@code lock} is
+	 *            released, may be {@code null}
+	 */
+	public ParallelFloodFill(
+			final RandomAccessible< T > source,
+			final RandomAccessibleInterval< U > target,
+			final int[] blockSize,
+			final T seedLabel,
+			final U fillLabel,
+			final Filter< Pair< T, U >, Pair< T, U > > filter,
+			final Executor executor,
+			final Object lock,
+			final DirtyInterval dirtyInterval )
+	{
+		this.sourceTarget = new RandomAccessiblePair<>( source, target );
+		this.reference = new ValuePair<>( seedLabel, fillLabel );
+		this.fillLabel = fillLabel;
+		this.filter = filter;
+		this.executor = executor;
+		this.lock = lock;
+		this.dirtyInterval = dirtyInterval;
+		this.blockSize = blockSize.clone();
+
+		n = target.numDimensions();
+		min = Intervals.minAsLongArray( target );
+		max = Intervals.maxAsLongArray( target );
+		dimensions = Intervals.dimensionsAsLongArray( target );
+		gridDimensions = new long[ n ];
+		for ( int d = 0; d < n; ++d )
+			gridDimensions[ d ] = ( dimensions[ d ] + blockSize[ d ] - 1 ) / blockSize[ d ];
+	}
+
+	/**
+	 * Fill without locking, for targets that nobody else writes.
+	 */
+	public ParallelFloodFill(
+			final RandomAccessible< T > source,
+			final RandomAccessibleInterval< U > target,
+			final int[] blockSize,
+			final T seedLabel,
+			final U fillLabel,
+			final Filter< Pair< T, U >, Pair< T, U > > filter,
+			final Executor executor )
+	{
+		this( source, target, blockSize, seedLabel, fillLabel, filter, executor, null, null );
+	}
+
+	/**
+	 * Fill the seed (unconditionally, like
+	 * {@link net.imglib2.algorithm.fill.FloodFill}) and start filling its
+	 * neighborhood in the background. Returns immediately.
+	 *
+	 * @param seed
+	 *            must be inside the target interval
+	 */
+	public synchronized void start( final Localizable seed )
+	{
+		if ( started )
+			throw new IllegalStateException( "fill was started before" );
+		started = true;
+
+		final long[] position = new long[ n ];
+		seed.localize( position );
+		for ( int d = 0; d < n; ++d )
+			if ( position[ d ] < min[ d ] || position[ d ] > max[ d ] )
+				throw new IllegalArgumentException( "seed " + seed + " is outside of the target" );
+
+		final RandomAccess< Pair< T, U > > access = sourceTarget.randomAccess();
+		access.setPosition( position );
+		final long blockIndex = blockIndex( position );
+		final Block seedBlock = block( blockIndex );
+		if ( lock == null )
+			fillSeed( access, seedBlock, position );
+		else
+			synchronized ( lock )
+			{
+				fillSeed( access, seedBlock, position );
+			}
+		numFilled.incrementAndGet();
+
+		pending.incrementAndGet();
+		try
+		{
+			final TLongArrayList local = new TLongArrayList();
+			final TLongObjectHashMap< TLongArrayList > outgoing = new TLongObjectHashMap<>();
+			addNeighbors( position, blockIndex, local, outgoing );
+			if ( !local.isEmpty() )
+				outgoing.put( blockIndex, local );
+			enqueue( outgoing );
+		}
+		finally
+		{
+			finishTask();
+		}
+	}
+
+	private void fillSeed( final RandomAccess< Pair< T, U > > access, final Block block, final long[] position )
+	{
+		access.get().getB().set( fillLabel );
+		block.fill( position );
+		touchDirty( block );
+	}
+
+	private void touchDirty( final Block block )
+	{
+		if ( dirtyInterval != null && block.filled )
+			dirtyInterval.touch( new FinalInterval( block.fillMin, block.fillMax ) );
+	}
+
+	/**
+	 * Stop filling. Voxels that were filled remain filled.
+	 */
+	public void cancel()
+	{
+		cancelled = true;
+	}
+
+	public boolean isCancelled()
+	{
+		return cancelled;
+	}
+
+	public boolean isDone()
+	{
+		return done.getCount() == 0;
+	}
+
+	/**
+	 * Wait until the fill is complete or cancelled.
+	 *
+	 * @throws ExecutionException
+	 *             if filling a block failed
+	 */
+	public void await() throws InterruptedException, ExecutionException
+	{
+		done.await();
+		rethrow();
+	}
+
+	/**
+	 * Wait until the fill is complete or cancelled, or the timeout elapsed.
+	 *
+	 * @return whether the fill is complete or cancelled
+	 * @throws ExecutionException
+	 *             if filling a block failed
+	 */
+	public boolean await( final long timeout, final TimeUnit unit ) throws InterruptedException, ExecutionException
+	{
+		final boolean isDone = done.await( timeout, unit );
+		if ( isDone )
+			rethrow();
+		return isDone;
+	}
+
+	/**
+	 * @return number of filled voxels so far
+	 */
+	public long getNumFilled()
+	{
+		return numFilled.get();
+	}
+
+	/**
+	 * @return number of blocks that the fill reached so far
+	 */
+	public int getNumBlocks()
+	{
+		return blocks.size();
+	}
+
+	/**
+	 * Get the bounding boxes of the filled voxels of all blocks. Must only
+	 * be called after the fill is {@link #isDone() done}.
+	 */
+	public ArrayList< Interval > getFilledIntervals()
+	{
+		if ( !isDone() )
+			throw new IllegalStateException( "fill is not done" );
+
+		final ArrayList< Interval > intervals = new ArrayList<>();
+		for ( final Block block : blocks.values() )
+			if ( block.filled )
+				intervals.add( new FinalInterval( block.fillMin, block.fillMax ) );
+		return intervals;
+	}
+
+	private void rethrow() throws ExecutionException
+	{
+		final Throwable t = failure.get();
+		if ( t != null )
+			throw new ExecutionException( t );
+	}
+
+	private long blockIndex( final long[] position )
+	{
+		long index = 0;
+		for ( int d = n - 1; d >= 0; --d )
+			index = index * gridDimensions[ d ] + ( position[ d ] - min[ d ] ) / blockSize[ d ];
+		return index;
+	}
+
+	private long positionIndex( final long[] position )
+	{
+		long index = 0;
+		for ( int d = n - 1; d >= 0; --d )
+			index = index * dimensions[ d ] + position[ d ] - min[ d ];
+		return index;
+	}
+
+	private void indexToPosition( long index, final long[] position )
+	{
+		for ( int d = 0; d < n; ++d )
+		{
+			final long i = index / dimensions[ d ];
+			position[ d ] = index - i * dimensions[ d ] + min[ d ];
+			index = i;
+		}
+	}
+
+	private Block block( final long blockIndex )
+	{
+		return blocks.computeIfAbsent( blockIndex, i -> new Block() );
+	}
+
+	/**
+	 * Add the neighbors of {@code position} that are inside the target to
+	 * {@code local} if they are in block {@code blockIndex}, and to the
+	 * seeds of their blocks in {@code outgoing} otherwise.
+	 */
+	private void addNeighbors(
+			final long[] position,
+			final long blockIndex,
+			final TLongArrayList local,
+			final TLongObjectHashMap< TLongArrayList > outgoing )
+	{
+		for ( int d = 0; d < n; ++d )
+		{
+			final long p = position[ d ];
+			for ( int step = -1; step <= 1; step += 2 )
+			{
+				final long q = p + step;
+				if ( q < min[ d ] || q > max[ d ] )
+					continue;
+				position[ d ] = q;
+				final long neighborBlockIndex = blockIndex( position );
+				if ( neighborBlockIndex == blockIndex )
+					local.add( positionIndex( position ) );
+				else
+				{
+					TLongArrayList seeds = outgoing.get( neighborBlockIndex );
+					if ( seeds == null )
+					{
+						seeds = new TLongArrayList();
+						outgoing.put( neighborBlockIndex, seeds );
+					}
+					seeds.add( positionIndex( position ) );
+				}
+			}
+			position[ d ] = p;
+		}
+	}
+
+	private void enqueue( final TLongObjectHashMap< TLongArrayList > outgoing )
+	{
+		outgoing.forEachEntry( ( blockIndex, seeds ) -> {
+			enqueue( blockIndex, seeds );
+			return true;
+		} );
+	}
+
+	private void enqueue( final long blockIndex, final TLongArrayList seeds )
+	{
+		if ( cancelled )
+			return;
+
+		final Block block = block( blockIndex );
+		final boolean submit;
+		synchronized ( block )
+		{
+			block.seeds.addAll( seeds );
+			submit = !block.scheduled;
+			block.scheduled = true;
+		}
+		if ( submit )
+		{
+			pending.incrementAndGet();
+			try
+			{
+				executor.execute( () -> run( blockIndex, block ) );
+			}
+			catch ( final RuntimeException e )
+			{
+				fail( e );
+				finishTask();
+			}
+		}
+	}
+
+	private void run( final long blockIndex, final Block block )
+	{
+		try
+		{
+			fill( blockIndex, block );
+		}
+		catch ( final Throwable t )
+		{
+			fail( t );
+		}
+		finally
+		{
+			finishTask();
+		}
+	}
+
+	private void fail( final Throwable t )
+	{
+		failure.compareAndSet( null, t );
+		cancelled = true;
+	}
+
+	private void finishTask()
+	{
+		if ( pending.decrementAndGet() == 0 )
+			done.countDown();
+	}
+
+	/**
+	 * Fill {@code block} from its seeds until it has no more seeds.
+	 */
+	private void fill( final long blockIndex, final Block block )
+	{
+		final RandomAccess< Pair< T, U > > access = sourceTarget.randomAccess();
+		final long[] position = new long[ n ];
+		final TLongObjectHashMap< TLongArrayList > outgoing = new TLongObjectHashMap<>();
+		final TLongArrayList accepted = new TLongArrayList();
+		final TLongHashSet unwritten = new TLongHashSet();
+		TLongArrayList stack = new TLongArrayList();
+
+		while ( true )
+		{
+			synchronized ( block )
+			{
+				if ( cancelled || block.seeds.isEmpty() )
+				{
+					block.seeds.clear();
+					block.scheduled = false;
+					return;
+				}
+				final TLongArrayList seeds = block.seeds;
+				block.seeds = stack;
+				stack = seeds;
+			}
+
+			fill( blockIndex, block, stack, access, position, outgoing, accepted, unwritten );
+			stack.resetQuick();
+
+			enqueue( outgoing );
+			outgoing.clear();
+		}
+	}
+
+	/**
+	 * Fill {@code block} from the seeds on {@code stack}, collecting seeds of
+	 * other blocks in {@code outgoing}.  Accepted voxels are collected in
+	 * {@code accepted} and written in batches, {@code unwritten} keeps them
+	 * from being accepted again before they are written.
+	 */
+	private void fill(
+			final long blockIndex,
+			final Block block,
+			final TLongArrayList stack,
+			final RandomAccess< Pair< T, U > > access,
+			final long[] position,
+			final TLongObjectHashMap< TLongArrayList > outgoing,
+			final TLongArrayList accepted,
+			final TLongHashSet unwritten )
+	{
+		int untilCancelCheck = CANCEL_CHECK_INTERVAL;
+		while ( !stack.isEmpty() )
+		{
+			if ( --untilCancelCheck == 0 )
+			{
+				if ( cancelled )
+					break;
+				untilCancelCheck = CANCEL_CHECK_INTERVAL;
+			}
+
+			final long index = stack.removeAt( stack.size() - 1 );
+			if ( unwritten.contains( index ) )
+				continue;
+			indexToPosition( index, position );
+			access.setPosition( position );
+			if ( !filter.accept( access.get(), reference ) )
+				continue;
+
+			accepted.add( index );
+			unwritten.add( index );
+			addNeighbors( position, blockIndex, stack, outgoing );
+
+			if ( accepted.size() >= WRITE_BATCH_SIZE )
+				write( block, accepted, unwritten, access, position );
+		}
+		write( block, accepted, unwritten, access, position );
+	}
+
+	/**
+	 * Write the {@code accepted} voxels of {@code block} and touch the
+	 * {@link #dirtyInterval} while holding the {@link #lock}, then clear
+	 * {@code accepted} and {@code unwritten}.
+	 */
+	private void write(
+			final Block block,
+			final TLongArrayList accepted,
+			final TLongHashSet unwritten,
+			final RandomAccess< Pair< T, U > > access,
+			final long[] position )
+	{
+		if ( accepted.isEmpty() )
+			return;
+
+		if ( lock == null )
+			writeAccepted( block, accepted, access, position );
+		else
+			synchronized ( lock )
+			{
+				writeAccepted( block, accepted, access, position );
+			}
+		numFilled.addAndGet( accepted.size() );
+		accepted.resetQuick();
+		unwritten.clear();
+	}
+
+	private void writeAccepted(
+			final Block block,
+			final TLongArrayList accepted,
+			final RandomAccess< Pair< T, U > > access,
+			final long[] position )
+	{
+		for ( int i = 0; i < accepted.size(); ++i )
+		{
+			indexToPosition( accepted.getQuick( i ), position );
+			access.setPosition( position );
+			access.get().getB().set( fillLabel );
+			block.fill( position );
+		}
+		touchDirty( block );
+	}
+}
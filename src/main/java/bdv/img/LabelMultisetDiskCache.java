@@ -0,0 +1,450 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package bdv.img;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+import bdv.img.cache.CacheArrayLoader;
+import bdv.img.cache.EmptyArrayCreator;
+import bdv.img.n5.N5LabelMultisets;
+import bdv.labels.labelset.VolatileLabelMultisetArray;
+import ch.systemsx.cisd.hdf5.HDF5DataSetInformation;
+import ch.systemsx.cisd.hdf5.IHDF5Reader;
+
+/**
+ * A persistent cache of converted level 0 {@link VolatileLabelMultisetArray}s.
+ *
+ * Loading a level 0 cell from a label dataset decompresses the block and
+ * converts every voxel into a label multiset, and is repeated whenever the
+ * cell was evicted from memory.  This cache stores converted cells in a
+ * directory, one file per cell in the compact format of
+ * {@link N5LabelMultisets#serialize(VolatileLabelMultisetArray)}.  A cached
+ * cell is read in one go and deserialized into heap arrays, which skips the
+ * decompression and the per voxel conversion, also in later sessions.
+ *
+ * Cells are keyed by a dataset key, level, and position.  Use
+ * {@link #key(IHDF5Reader, String)} to derive a dataset key from the
+ * identity of the dataset, independent of other datasets written into the
+ * same file.  Files are written to a temporary name and moved into place,
+ * so concurrent loaders and interrupted sessions never read partial cells.
+ *
+ * The size on disk is bounded: when the cached cells exceed the budget, the
+ * least recently used cells are deleted, across all dataset keys, until
+ * they fit into {@value #LOW_WATERMARK} of it.  {@link #clear()} removes
+ * all cells.
+ *
+ * The cache is disabled by default.  {@link #getDefault()} returns a cache
+ * in the directory given by {@link #DIRECTORY_PROPERTY} if set, with the
+ * budget given by {@link #MAX_BYTES_PROPERTY}.
+ */
+public class LabelMultisetDiskCache
+{
+	/**
+	 * System property with the directory of the default cache.
+	 */
+	public static final String DIRECTORY_PROPERTY = "bigcat.labelcache.dir";
+
+	/**
+	 * System property with the budget of the default cache in bytes, 4 GB by
+	 * default.
+	 */
+	public static final String MAX_BYTES_PROPERTY = "bigcat.labelcache.dir.bytes";
+
+	/**
+	 * Eviction removes cells until they fit into this fraction of the budget.
+	 */
+	public static final double LOW_WATERMARK = 0.9;
+
+	static private LabelMultisetDiskCache defaultCache = null;
+
+	static private boolean defaultCacheInitialized = false;
+
+	private final File directory;
+
+	private final int maxLevel;
+
+	private final long maxBytes;
+
+	/**
+	 * Size of the cached cells in bytes, {@code -1} until the directory was
+	 * scanned, guarded by this.
+	 */
+	private long bytes = -1;
+
+	private final LongAdder hits = new LongAdder();
+
+	private final LongAdder misses = new LongAdder();
+
+	private final LongAdder writes = new LongAdder();
+
+	private final LongAdder bytesWritten = new LongAdder();
+
+	private final LongAdder evictions = new LongAdder();
+
+	/**
+	 * @param directory
+	 *            directory of the cached cells, created if necessary
+	 * @param maxLevel
+	 *            the highest mipmap level that is cached, downscaled levels
+	 *            are usually stored converted already
+	 * @param maxBytes
+	 *            budget of the cached cells on disk
+	 */
+	public LabelMultisetDiskCache( final File directory, final int maxLevel, final long maxBytes )
+	{
+		this.directory = directory;
+		this.maxLevel = maxLevel;
+		this.maxBytes = maxBytes;
+	}
+
+	public LabelMultisetDiskCache( final File directory, final long maxBytes )
+	{
+		this( directory, 0, maxBytes );
+	}
+
+	public LabelMultisetDiskCache( final File directory )
+	{
+		this( directory, Long.MAX_VALUE );
+	}
+
+	/**
+	 * Get the cache in {@link #DIRECTORY_PROPERTY}, {@code null} if the
+	 * property is not set.
+	 */
+	public static synchronized LabelMultisetDiskCache getDefault()
+	{
+		if ( !defaultCacheInitialized )
+		{
+			final String dir = System.getProperty( DIRECTORY_PROPERTY );
+			if ( dir != null )
+				defaultCache = new LabelMultisetDiskCache( new File( dir ), Long.getLong( MAX_BYTES_PROPERTY, 4L << 30 ) );
+			defaultCacheInitialized = true;
+		}
+		return defaultCache;
+	}
+
+	/**
+	 * Create a dataset key from the name and path of the file of
+	 * {@code reader}, {@code dataset}, and the dimensions, chunk size, and
+	 * element type of the dataset.  Unlike the size or modification time of
+	 * the file, this does not change when other datasets are written into
+	 * the file, e.g. when painted labels are saved.  A dataset that is
+	 * rewritten in place with the same shape is not detected, {@link #clear()}
+	 * the cache in that case.
+	 */
+	public static String key( final IHDF5Reader reader, final String dataset )
+	{
+		final File file = reader.file().getFile();
+		final HDF5DataSetInformation info = reader.object().getDataSetInformation( dataset );
+		final String id = file.getName() + "-" +
+				Integer.toHexString( file.getAbsolutePath().hashCode() ) + "-" +
+				dataset + "-" +
+				Arrays.toString( info.getDimensions() ) + "-" +
+				Arrays.toString( info.tryGetChunkSizes() ) + "-" +
+				info.getTypeInformation().getDataClass() +
+				info.getTypeInformation().getElementSize();
+		return id.replaceAll( "[^A-Za-z0-9._-]", "_" );
+	}
+
+	public File getDirectory()
+	{
+		return directory;
+	}
+
+	protected Path path( final String key, final int level, final long[] min )
+	{
+		return directory.toPath().resolve( key ).resolve( String.format( "l%02d", level ) ).resolve( String.format( "%d_%d_%d", min[ 0 ], min[ 1 ], min[ 2 ] ) );
+	}
+
+	/**
+	 * Read a cached cell.
+	 *
+	 * @return the cell or {@code null} if it is not cached or cannot be read
+	 */
+	protected VolatileLabelMultisetArray read( final Path path )
+	{
+		if ( !Files.exists( path ) )
+			return null;
+		try
+		{
+			final VolatileLabelMultisetArray array = N5LabelMultisets.deserialize( Files.readAllBytes( path ) );
+			/* recently used for eviction */
+			Files.setLastModifiedTime( path, FileTime.fromMillis( System.currentTimeMillis() ) );
+			return array;
+		}
+		catch ( final IOException | RuntimeException e )
+		{
+			System.out.println( "failed reading cached cell " + path + ": " + e.getMessage() );
+			return null;
+		}
+	}
+
+	protected void write( final Path path, final VolatileLabelMultisetArray array )
+	{
+		try
+		{
+			Files.createDirectories( path.getParent() );
+			final Path tmp = Files.createTempFile( path.getParent(), path.getFileName().toString(), ".tmp" );
+			final byte[] bytes = N5LabelMultisets.serialize( array );
+			Files.write( tmp, bytes );
+			Files.move( tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+			writes.increment();
+			bytesWritten.add( bytes.length );
+			added( bytes.length );
+		}
+		catch ( final IOException e )
+		{
+			System.out.println( "failed caching cell " + path + ": " + e.getMessage() );
+		}
+	}
+
+	/**
+	 * Account for a written cell and evict if the budget is exceeded.
+	 */
+	protected synchronized void added( final long cellBytes ) throws IOException
+	{
+		if ( maxBytes == Long.MAX_VALUE )
+			return;
+		if ( bytes < 0 )
+			bytes = scan().stream().mapToLong( c -> c.bytes ).sum();
+		else
+			bytes += cellBytes;
+		if ( bytes > maxBytes )
+			evict( ( long )( LOW_WATERMARK * maxBytes ) );
+	}
+
+	static private class CachedCell
+	{
+		final Path path;
+
+		final long bytes;
+
+		final long lastUsed;
+
+		CachedCell( final Path path, final BasicFileAttributes attributes )
+		{
+			this.path = path;
+			this.bytes = attributes.size();
+			this.lastUsed = attributes.lastModifiedTime().toMillis();
+		}
+	}
+
+	/**
+	 * List all cached cells.
+	 */
+	protected ArrayList< CachedCell > scan() throws IOException
+	{
+		final ArrayList< CachedCell > cells = new ArrayList<>();
+		if ( !directory.exists() )
+			return cells;
+		Files.walkFileTree( directory.toPath(), new SimpleFileVisitor< Path >()
+		{
+			@Override
+			public FileVisitResult visitFile( final Path file, final BasicFileAttributes attributes )
+			{
+				if ( attributes.isRegularFile() && !file.getFileName().toString().endsWith( ".tmp" ) )
+					cells.add( new CachedCell( file, attributes ) );
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed( final Path file, final IOException e )
+			{
+				/* deleted concurrently */
+				return FileVisitResult.CONTINUE;
+			}
+		} );
+		return cells;
+	}
+
+	/**
+	 * Delete least recently used cells until at most {@code targetBytes} are
+	 * left.  Directories that become empty are deleted as well.
+	 */
+	protected synchronized void evict( final long targetBytes ) throws IOException
+	{
+		final ArrayList< CachedCell > cells = scan();
+		cells.sort( ( a, b ) -> Long.compare( a.lastUsed, b.lastUsed ) );
+		bytes = cells.stream().mapToLong( c -> c.bytes ).sum();
+		final Path root = directory.toPath();
+		for ( int i = 0; i < cells.size() && bytes > targetBytes; ++i )
+		{
+			final CachedCell cell = cells.get( i );
+			if ( Files.deleteIfExists( cell.path ) )
+				evictions.increment();
+			bytes -= cell.bytes;
+			for ( Path dir = cell.path.getParent(); dir != null && !dir.equals( root ); dir = dir.getParent() )
+			{
+				try
+				{
+					Files.delete( dir );
+				}
+				catch ( final DirectoryNotEmptyException e )
+				{
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Get the cached cell or load it with {@code loader} and cache it.
+	 * Invalid cells are not cached.
+	 */
+	public VolatileLabelMultisetArray get(
+			final String key,
+			final int timepoint,
+			final int setup,
+			final int level,
+			final int[] dimensions,
+			final long[] min,
+			final CacheArrayLoader< VolatileLabelMultisetArray > loader ) throws InterruptedException
+	{
+		if ( level > maxLevel )
+			return loader.loadArray( timepoint, setup, level, dimensions, min );
+
+		final Path path = path( key + "-t" + timepoint + "-s" + setup, level, min );
+		final VolatileLabelMultisetArray cached = read( path );
+		if ( cached != null )
+		{
+			hits.increment();
+			return cached;
+		}
+
+		misses.increment();
+		final VolatileLabelMultisetArray array = loader.loadArray( timepoint, setup, level, dimensions, min );
+		if ( array != null && array.isValid() )
+			write( path, array );
+		return array;
+	}
+
+	/**
+	 * Delete all cached cells.
+	 */
+	public synchronized void clear() throws IOException
+	{
+		if ( !directory.exists() )
+			return;
+		final Path root = directory.toPath();
+		try ( final Stream< Path > paths = Files.walk( root ) )
+		{
+			/* children before their directories */
+			final Iterator< Path > i = paths.sorted( Comparator.reverseOrder() ).iterator();
+			while ( i.hasNext() )
+			{
+				final Path path = i.next();
+				if ( !path.equals( root ) )
+					Files.delete( path );
+			}
+		}
+		bytes = -1;
+	}
+
+	public long getHits()
+	{
+		return hits.sum();
+	}
+
+	public long getMisses()
+	{
+		return misses.sum();
+	}
+
+	public long getWrites()
+	{
+		return writes.sum();
+	}
+
+	public long getBytesWritten()
+	{
+		return bytesWritten.sum();
+	}
+
+	public long getEvictions()
+	{
+		return evictions.sum();
+	}
+
+	public long getMaxBytes()
+	{
+		return maxBytes;
+	}
+
+	public void printStatistics( final PrintStream out )
+	{
+		out.println( String.format(
+				"label disk cache %s: %d hits, %d misses, %d cells (%.1f MB) written, %d evicted",
+				directory,
+				getHits(),
+				getMisses(),
+				getWrites(),
+				getBytesWritten() / 1048576.0,
+				getEvictions() ) );
+	}
+
+	/**
+	 * Wrap {@code loader} such that cells are loaded through this cache,
+	 * keyed by {@code key}.
+	 */
+	public CacheArrayLoader< VolatileLabelMultisetArray > wrap( final CacheArrayLoader< VolatileLabelMultisetArray > loader, final String key )
+	{
+		if ( loader == null )
+			return null;
+
+		return new CacheArrayLoader< VolatileLabelMultisetArray >()
+		{
+			@Override
+			public VolatileLabelMultisetArray loadArray(
+					final int timepoint,
+					final int setup,
+					final int level,
+					final int[] dimensions,
+					final long[] min ) throws InterruptedException
+			{
+				return get( key, timepoint, setup, level, dimensions, min, loader );
+			}
+
+			@Override
+			public int getBytesPerElement()
+			{
+				return loader.getBytesPerElement();
+			}
+
+			@Override
+			public EmptyArrayCreator< VolatileLabelMultisetArray > getEmptyArrayCreator()
+			{
+				return loader.getEmptyArrayCreator();
+			}
+		};
+	}
+}
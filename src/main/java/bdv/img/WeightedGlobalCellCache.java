@@ -0,0 +1,504 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package bdv.img;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+import bdv.img.cache.CacheArrayLoader;
+import bdv.img.cache.EmptyArrayCreator;
+import bdv.img.cache.VolatileCachedCellImg;
+import bdv.img.cache.VolatileGlobalCellCache;
+import bdv.labels.labelset.VolatileLabelMultisetArray;
+import net.imglib2.cache.Cache;
+import net.imglib2.cache.CacheLoader;
+import net.imglib2.cache.LoaderCache;
+import net.imglib2.cache.queue.BlockingFetchQueues;
+import net.imglib2.cache.queue.FetcherThreads;
+import net.imglib2.cache.ref.WeakRefVolatileCache;
+import net.imglib2.cache.util.KeyBimap;
+import net.imglib2.cache.volatiles.CacheHints;
+import net.imglib2.cache.volatiles.CreateInvalid;
+import net.imglib2.cache.volatiles.UncheckedVolatileCache;
+import net.imglib2.cache.volatiles.VolatileCache;
+import net.imglib2.img.basictypeaccess.volatiles.VolatileAccess;
+import net.imglib2.img.cell.Cell;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.type.NativeType;
+import net.imglib2.util.Intervals;
+
+/**
+ * A {@link VolatileGlobalCellCache} that bounds the cells it keeps by their
+ * size in bytes.
+ *
+ * The memory footprint of label multiset cells varies by orders of magnitude
+ * between mipmap levels, so neither counting cells nor soft references bound
+ * memory. Cells of loaders that provide an {@link EmptyArrayCreator}, i.e. the
+ * label multiset loaders, are kept in a single least recently used store up
+ * to a budget of bytes and dropped when they are evicted. This store replaces
+ * the soft-referencing backing cache for these cells, there is no second
+ * layer. Cells of other loaders go through the backing cache of
+ * {@link VolatileGlobalCellCache}.
+ *
+ * Cells are keyed by the identity of their loader, so loaders of different
+ * datasets with the same setup id do not share cells. Hits, misses,
+ * evictions, and cached bytes are counted per mipmap level and can be printed
+ * with {@link #printStatistics(PrintStream)}.
+ */
+public class WeightedGlobalCellCache extends VolatileGlobalCellCache
+{
+	/**
+	 * System property with the default budget in bytes.
+	 */
+	public static final String MAX_BYTES_PROPERTY = "bigcat.cellcache.bytes";
+
+	/**
+	 * Approximate size of the objects around the array of a cell.
+	 */
+	final static private long OVERHEAD_BYTES = 128;
+
+	static public class Statistics
+	{
+		private long hits = 0;
+
+		private long misses = 0;
+
+		private long evictions = 0;
+
+		private long cells = 0;
+
+		private long bytes = 0;
+
+		public long getHits()
+		{
+			return hits;
+		}
+
+		public long getMisses()
+		{
+			return misses;
+		}
+
+		public long getEvictions()
+		{
+			return evictions;
+		}
+
+		/**
+		 * @return number of currently cached cells
+		 */
+		public long getCells()
+		{
+			return cells;
+		}
+
+		/**
+		 * @return size of currently cached cells in bytes
+		 */
+		public long getBytes()
+		{
+			return bytes;
+		}
+
+		public double getHitRate()
+		{
+			final long requests = hits + misses;
+			return requests == 0 ? 0 : ( double ) hits / requests;
+		}
+
+		private Statistics copy()
+		{
+			final Statistics copy = new Statistics();
+			copy.hits = hits;
+			copy.misses = misses;
+			copy.evictions = evictions;
+			copy.cells = cells;
+			copy.bytes = bytes;
+			return copy;
+		}
+	}
+
+	static private class Key
+	{
+		/**
+		 * The loader of the cell, compared by identity.
+		 */
+		private final CacheArrayLoader< ? > loader;
+
+		private final int timepoint;
+
+		private final int setup;
+
+		private final int level;
+
+		private final long index;
+
+		private final int hashCode;
+
+		public Key( final CacheArrayLoader< ? > loader, final int timepoint, final int setup, final int level, final long index )
+		{
+			this.loader = loader;
+			this.timepoint = timepoint;
+			this.setup = setup;
+			this.level = level;
+			this.index = index;
+			int h = Long.hashCode( index );
+			h = 31 * h + level;
+			h = 31 * h + setup;
+			h = 31 * h + timepoint;
+			h = 31 * h + System.identityHashCode( loader );
+			hashCode = h;
+		}
+
+		@Override
+		public boolean equals( final Object other )
+		{
+			if ( this == other )
+				return true;
+			if ( !( other instanceof Key ) )
+				return false;
+			final Key that = ( Key ) other;
+			return
+					that.loader == loader &&
+					that.timepoint == timepoint &&
+					that.setup == setup &&
+					that.level == level &&
+					that.index == index;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return hashCode;
+		}
+	}
+
+	static private class Entry
+	{
+		private volatile Cell< ? > cell = null;
+
+		private long bytes = 0;
+	}
+
+	/**
+	 * Weighted {@link LoaderCache} of {@link Key}s.  Each key is loaded by
+	 * one thread, concurrent requests for the same key wait for it.
+	 */
+	private class Store implements LoaderCache< Key, Cell< ? > >
+	{
+		@Override
+		public Cell< ? > getIfPresent( final Key key )
+		{
+			final Entry entry = entries.get( key );
+			return entry == null ? null : entry.cell;
+		}
+
+		@Override
+		public Cell< ? > get( final Key key, final CacheLoader< ? super Key, ? extends Cell< ? > > loader ) throws ExecutionException
+		{
+			final Entry entry = entries.computeIfAbsent( key, k -> new Entry() );
+			Cell< ? > cell = entry.cell;
+			if ( cell == null )
+			{
+				synchronized ( entry )
+				{
+					cell = entry.cell;
+					if ( cell == null )
+					{
+						try
+						{
+							cell = loader.get( key );
+						}
+						catch ( final Exception e )
+						{
+							throw new ExecutionException( e );
+						}
+						entry.bytes = weigh( cell, key.loader );
+						entry.cell = cell;
+						added( key, entry );
+					}
+				}
+			}
+			return cell;
+		}
+
+		@Override
+		public void invalidateAll()
+		{
+			WeightedGlobalCellCache.this.invalidateAll();
+		}
+	}
+
+	private final BlockingFetchQueues< Callable< ? > > queue;
+
+	private final long maxBytes;
+
+	private final ConcurrentHashMap< Key, Entry > entries = new ConcurrentHashMap<>();
+
+	/**
+	 * Loaded entries in access order, least recently used first.  Guarded
+	 * by {@code this}, as are {@link #bytes} and {@link #statistics}.
+	 */
+	private final LinkedHashMap< Key, Entry > lru = new LinkedHashMap<>( 64, 0.75f, true );
+
+	private long bytes = 0;
+
+	private final ArrayList< Statistics > statistics = new ArrayList<>();
+
+	private final Store store = new Store();
+
+	/**
+	 * Set when the current thread loads a cell, to tell hits from misses of
+	 * blocking requests.
+	 */
+	private final ThreadLocal< boolean[] > loadedByThread = ThreadLocal.withInitial( () -> new boolean[ 1 ] );
+
+	/**
+	 * Create a new cache with a new fetch queue served by the specified
+	 * number of fetcher threads.
+	 *
+	 * @param maxBytes
+	 *            budget of cached label multiset cells in bytes
+	 */
+	public WeightedGlobalCellCache( final int maxNumLevels, final int numFetcherThreads, final long maxBytes )
+	{
+		this( new BlockingFetchQueues<>( maxNumLevels ), numFetcherThreads, maxBytes );
+	}
+
+	private WeightedGlobalCellCache(
+			final BlockingFetchQueues< Callable< ? > > queue,
+			final int numFetcherThreads,
+			final long maxBytes )
+	{
+		super( queue );
+		this.queue = queue;
+		this.maxBytes = maxBytes;
+		new FetcherThreads( queue, numFetcherThreads );
+	}
+
+	/**
+	 * Create a cache with the budget read from {@link #MAX_BYTES_PROPERTY},
+	 * half of the maximum heap size by default.
+	 */
+	public static WeightedGlobalCellCache fromSystemProperties( final int maxNumLevels, final int numFetcherThreads )
+	{
+		return new WeightedGlobalCellCache(
+				maxNumLevels,
+				numFetcherThreads,
+				Long.getLong( MAX_BYTES_PROPERTY, Runtime.getRuntime().maxMemory() / 2 ) );
+	}
+
+	/**
+	 * Size of {@code array} in bytes, the {@code int[]} of list offsets and
+	 * the allocated list data.
+	 */
+	public static long weigh( final VolatileLabelMultisetArray array )
+	{
+		return OVERHEAD_BYTES + 4L * array.getCurrentStorageArray().length + array.getListData().size();
+	}
+
+	static private long weigh( final Cell< ? > cell, final CacheArrayLoader< ? > loader )
+	{
+		final Object data = cell.getData();
+		if ( data instanceof VolatileLabelMultisetArray )
+			return weigh( ( VolatileLabelMultisetArray ) data );
+		return OVERHEAD_BYTES + ( long ) loader.getBytesPerElement() * cell.size();
+	}
+
+	static private boolean isValid( final Cell< ? > cell )
+	{
+		final Object data = cell.getData();
+		return !( data instanceof VolatileAccess ) || ( ( VolatileAccess ) data ).isValid();
+	}
+
+	@Override
+	public < T extends NativeType< T >, A > VolatileCachedCellImg< T, A > createImg(
+			final CellGrid grid,
+			final int timepoint,
+			final int setup,
+			final int level,
+			final CacheHints cacheHints,
+			final CacheArrayLoader< A > cacheArrayLoader,
+			final T type )
+	{
+		final EmptyArrayCreator< A > emptyArrayCreator = cacheArrayLoader.getEmptyArrayCreator();
+		if ( emptyArrayCreator == null )
+			return super.createImg( grid, timepoint, setup, level, cacheHints, cacheArrayLoader, type );
+
+		final int n = grid.numDimensions();
+		final CacheLoader< Long, Cell< ? > > loader = index -> {
+			final long[] cellMin = new long[ n ];
+			final int[] cellDims = new int[ n ];
+			grid.getCellDimensions( index, cellMin, cellDims );
+			loadedByThread.get()[ 0 ] = true;
+			return new Cell<>( cellDims, cellMin, cacheArrayLoader.loadArray( timepoint, setup, level, cellDims, cellMin ) );
+		};
+
+		final CreateInvalid< Long, Cell< ? > > createInvalid = index -> {
+			final long[] cellMin = new long[ n ];
+			final int[] cellDims = new int[ n ];
+			grid.getCellDimensions( index, cellMin, cellDims );
+			final long numEntities = type.getEntitiesPerPixel().mulCeil( Intervals.numElements( cellDims ) );
+			return new Cell<>( cellDims, cellMin, emptyArrayCreator.getEmptyArray( numEntities ) );
+		};
+
+		final KeyBimap< Long, Key > bimap = KeyBimap.build(
+				index -> new Key( cacheArrayLoader, timepoint, setup, level, index ),
+				key -> ( key.loader == cacheArrayLoader && key.timepoint == timepoint && key.setup == setup && key.level == level )
+						? key.index
+						: null );
+
+		final Cache< Long, Cell< ? > > cache = store.mapKeys( bimap ).withLoader( loader );
+		final VolatileCache< Long, Cell< ? > > volatileCache = new WeakRefVolatileCache<>( cache, queue, createInvalid );
+		final UncheckedVolatileCache< Long, Cell< ? > > unchecked = volatileCache.unchecked();
+
+		/*
+		 * Valid cells are mostly found in the weakly referencing volatile
+		 * cache without asking the store, so hits are counted and the store
+		 * is touched here.
+		 */
+		final VolatileCachedCellImg.Get< Cell< A > > get = ( index, hints ) -> {
+			final boolean[] loaded = loadedByThread.get();
+			loaded[ 0 ] = false;
+			@SuppressWarnings( "unchecked" )
+			final Cell< A > cell = ( Cell< A > ) unchecked.get( index, hints );
+			if ( !loaded[ 0 ] && isValid( cell ) )
+				hit( bimap.getTarget( index ) );
+			return cell;
+		};
+
+		return new VolatileCachedCellImg<>( grid, type, cacheHints, get );
+	}
+
+	private synchronized void hit( final Key key )
+	{
+		lru.get( key );
+		++statistics( key.level ).hits;
+	}
+
+	/**
+	 * Add a loaded entry and evict least recently used entries until the
+	 * cache is within budget.  Entries that were invalidated while loading
+	 * and entries larger than the budget are not kept.
+	 */
+	private synchronized void added( final Key key, final Entry entry )
+	{
+		final Statistics s = statistics( key.level );
+		++s.misses;
+		if ( entries.get( key ) != entry )
+			return;
+		if ( entry.bytes > maxBytes )
+		{
+			entries.remove( key, entry );
+			return;
+		}
+
+		lru.put( key, entry );
+		bytes += entry.bytes;
+		++s.cells;
+		s.bytes += entry.bytes;
+
+		final Iterator< Map.Entry< Key, Entry > > it = lru.entrySet().iterator();
+		while ( bytes > maxBytes && it.hasNext() )
+		{
+			final Map.Entry< Key, Entry > e = it.next();
+			final Statistics evicted = statistics( e.getKey().level );
+			++evicted.evictions;
+			--evicted.cells;
+			evicted.bytes -= e.getValue().bytes;
+			bytes -= e.getValue().bytes;
+			entries.remove( e.getKey(), e.getValue() );
+			it.remove();
+		}
+	}
+
+	private Statistics statistics( final int level )
+	{
+		while ( statistics.size() <= level )
+			statistics.add( new Statistics() );
+		return statistics.get( level );
+	}
+
+	/**
+	 * Remove all weighted entries. Statistics are kept.
+	 */
+	public synchronized void invalidateAll()
+	{
+		entries.clear();
+		lru.clear();
+		bytes = 0;
+		for ( final Statistics s : statistics )
+		{
+			s.cells = 0;
+			s.bytes = 0;
+		}
+	}
+
+	@Override
+	public void clearCache()
+	{
+		super.clearCache();
+		invalidateAll();
+	}
+
+	public long getMaxBytes()
+	{
+		return maxBytes;
+	}
+
+	public synchronized long getBytes()
+	{
+		return bytes;
+	}
+
+	/**
+	 * Get a snapshot of the statistics, one per mipmap level.
+	 */
+	public synchronized ArrayList< Statistics > getStatistics()
+	{
+		final ArrayList< Statistics > copy = new ArrayList<>();
+		for ( final Statistics s : statistics )
+			copy.add( s.copy() );
+		return copy;
+	}
+
+	public void printStatistics( final PrintStream out )
+	{
+		final ArrayList< Statistics > levels = getStatistics();
+		out.println( String.format( "cell cache: %d of %d MB", getBytes() >> 20, maxBytes >> 20 ) );
+		out.println( String.format( "%5s %12s %12s %8s %12s %10s %10s", "level", "hits", "misses", "hit rate", "evictions", "cells", "MB" ) );
+		for ( int level = 0; level < levels.size(); ++level )
+		{
+			final Statistics s = levels.get( level );
+			out.println( String.format(
+					"%5d %12d %12d %7.1f%% %12d %10d %10.1f",
+					level,
+					s.hits,
+					s.misses,
+					100 * s.getHitRate(),
+					s.evictions,
+					s.cells,
+					s.bytes / 1048576.0 ) );
+		}
+	}
+}
@@ -1,7 +1,7 @@
 package bdv.img.dvid;
 
 import bdv.img.cache.CacheArrayLoader;
-import bdv.labels.labelset.ByteUtils;
+import bdv.labels.labelset.LongMappedAccess;
 import bdv.labels.labelset.LongMappedAccessData;
 import bdv.labels.labelset.VolatileLabelMultisetArray;
 import bdv.util.dvid.DatasetKeyValue;
@@ -76,9 +76,9 @@ public class DvidLabelMultisetArrayLoader implements CacheArrayLoader< VolatileL
 					( ( 0xff & bytes[ ++j ] ) << 16 ) |
 					( ( 0xff & bytes[ ++j ] ) << 24 );
 		}
-		final long[] listDataStorage = listData.getData();
+		final LongMappedAccess listDataAccess = listData.createAccess();
 		for ( int i = 0; i < listDataSize; ++i )
-			ByteUtils.putByte( bytes[ ++j ], listDataStorage, i );
+			listDataAccess.putByte( bytes[ ++j ], i );
 		return new VolatileLabelMultisetArray( data, listData, true );
 	}
 
@@ -2,8 +2,12 @@ package bdv.img.dvid;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.URL;
+import java.io.PrintStream;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
 
 import bdv.img.cache.CacheArrayLoader;
 import bdv.img.cache.EmptyArrayCreator;
@@ -11,7 +15,9 @@ import bdv.labels.labelset.LabelMultisetEntry;
 import bdv.labels.labelset.LabelMultisetEntryList;
 import bdv.labels.labelset.LongMappedAccessData;
 import bdv.labels.labelset.VolatileLabelMultisetArray;
-import gnu.trove.list.array.TLongArrayList;
+import bdv.util.http.HttpConnections;
+import gnu.trove.impl.Constants;
+import gnu.trove.map.hash.TLongIntHashMap;
 
 /**
  * Loads a full resolution label block from a DVID labels64 source where each
@@ -28,6 +34,12 @@ public class LabelblkMultisetVolatileArrayLoader implements CacheArrayLoader< Vo
 
 	private final String dataInstanceId;
 
+	private final LongAdder numBlocks = new LongAdder();
+
+	private final LongAdder decodeNanos = new LongAdder();
+
+	private volatile boolean verbose = false;
+
 	public LabelblkMultisetVolatileArrayLoader(
 			final String apiUrl,
 			final String nodeId,
@@ -47,59 +59,107 @@ public class LabelblkMultisetVolatileArrayLoader implements CacheArrayLoader< Vo
 		return 8;
 	}
 
-	static private void readBlock(
-			final String urlString,
-			final int[] data,
-			final LongMappedAccessData listData ) throws IOException
+	/**
+	 * Size of the buffer that blocks are streamed through.
+	 */
+	final static private int BUFFER_SIZE = 1 << 16;
+
+	/**
+	 * Reused per loader thread, voxels are little endian uint64.
+	 */
+	final static private ThreadLocal< ByteBuffer > buffers = ThreadLocal.withInitial(
+			() -> ByteBuffer.allocate( BUFFER_SIZE ).order( ByteOrder.LITTLE_ENDIAN ) );
+
+	/**
+	 * Converts label ids into single element lists, one list per distinct id.
+	 */
+	static private class ListBuilder
 	{
-		final byte[] bytes = new byte[ data.length * 8 ];
-		final URL url = new URL( urlString );
-		final InputStream in = url.openStream();
+		final LongMappedAccessData listData;
+
+		final LabelMultisetEntryList list;
+
+		final LabelMultisetEntry entry = new LabelMultisetEntry( 0, 1 );
+
+		final TLongIntHashMap idOffsetHash = new TLongIntHashMap(
+				Constants.DEFAULT_CAPACITY,
+				Constants.DEFAULT_LOAD_FACTOR,
+				-1,
+				-1 );
+
+		int nextListOffset = 0;
+
+		/* consecutive voxels mostly share their id */
+		long lastId = 0;
+
+		int lastOffset = -1;
 
-		int off = 0, l = 0;
-		do
+		ListBuilder( final LongMappedAccessData listData )
 		{
-			l = in.read( bytes, off, bytes.length - off );
-			off += l;
+			this.listData = listData;
+			list = new LabelMultisetEntryList( listData, 0 );
 		}
-		while ( l > 0 && off < bytes.length );
-		in.close();
 
-		final TLongArrayList idAndOffsetList = new TLongArrayList();
-		final LabelMultisetEntryList list = new LabelMultisetEntryList( listData, 0 );
-		final LabelMultisetEntry entry = new LabelMultisetEntry( 0, 1 );
-		long nextListOffset = 0;
-A:		for ( int i = 0, j = -1; i < data.length; ++i )
+		int offset( final long id )
 		{
-			final long id =
-					( 0xffl & bytes[ ++j ] ) |
-					( ( 0xffl & bytes[ ++j ] ) << 8 ) |
-					( ( 0xffl & bytes[ ++j ] ) << 16 ) |
-					( ( 0xffl & bytes[ ++j ] ) << 24 ) |
-					( ( 0xffl & bytes[ ++j ] ) << 32 ) |
-					( ( 0xffl & bytes[ ++j ] ) << 40 ) |
-					( ( 0xffl & bytes[ ++j ] ) << 48 ) |
-					( ( 0xffl & bytes[ ++j ] ) << 56 );
+			if ( id == lastId && lastOffset >= 0 )
+				return lastOffset;
 
 			// does the list [id x 1] already exist?
-			for ( int k = 0; k < idAndOffsetList.size(); k += 2 )
+			int offset = idOffsetHash.get( id );
+			if ( offset == idOffsetHash.getNoEntryValue() )
 			{
-				if ( idAndOffsetList.getQuick( k ) == id )
-				{
-					final long offset = idAndOffsetList.getQuick( k + 1 );
-					data[ i ] = ( int ) offset;
-					continue A;
-				}
+				list.createListAt( listData, nextListOffset );
+				entry.setId( id );
+				list.add( entry );
+				offset = nextListOffset;
+				idOffsetHash.put( id, offset );
+				nextListOffset += list.getSizeInBytes();
 			}
+			lastId = id;
+			lastOffset = offset;
+			return offset;
+		}
+	}
 
-			list.createListAt( listData, nextListOffset );
-			entry.setId( id );
-			list.add( entry );
-			idAndOffsetList.add( id );
-			idAndOffsetList.add( nextListOffset );
-			data[ i ] = ( int ) nextListOffset;
-			nextListOffset += list.getSizeInBytes();
+	/**
+	 * Stream the block at {@code urlString} and convert it into
+	 * {@code data} and {@code listData}.  Voxels missing from a short
+	 * response are 0.
+	 *
+	 * @return the used size of {@code listData} in bytes
+	 */
+	static private int readBlock(
+			final String urlString,
+			final int[] data,
+			final LongMappedAccessData listData ) throws IOException
+	{
+		final ListBuilder builder = new ListBuilder( listData );
+		final ByteBuffer buffer = buffers.get();
+		buffer.clear();
+		int i = 0;
+		final HttpURLConnection connection = HttpConnections.get( urlString );
+		try ( final InputStream in = HttpConnections.getInputStream( connection ) )
+		{
+			while ( i < data.length )
+			{
+				final int l = in.read( buffer.array(), buffer.position(), buffer.remaining() );
+				if ( l < 0 )
+					break;
+				buffer.position( buffer.position() + l );
+				buffer.flip();
+				while ( buffer.remaining() >= 8 && i < data.length )
+					data[ i++ ] = builder.offset( buffer.getLong() );
+				buffer.compact();
+			}
 		}
+		finally
+		{
+			HttpConnections.release( connection );
+		}
+		while ( i < data.length )
+			data[ i++ ] = builder.offset( 0 );
+		return builder.nextListOffset;
 	}
 
 	private String makeUrl(
@@ -156,10 +216,12 @@ A:		for ( int i = 0, j = -1; i < data.length; ++i )
 		final int[] data = new int[ dimensions[ 0 ] * dimensions[ 1 ] * dimensions[ 2 ] ];
 		final LongMappedAccessData listData = LongMappedAccessData.factory.createStorage( 32 );
 
+		final int listDataUsedSize;
+		final long t = System.nanoTime();
 		try
 		{
 			final String urlString = makeUrl( min, dimensions );
-			readBlock( urlString, data, listData );
+			listDataUsedSize = readBlock( urlString, data, listData );
 		}
 		catch ( final IOException e )
 		{
@@ -171,7 +233,48 @@ A:		for ( int i = 0, j = -1; i < data.length; ++i )
 			return null;
 		}
 
-		return new VolatileLabelMultisetArray( data, listData, true );
+		final long blockNanos = System.nanoTime() - t;
+		numBlocks.increment();
+		decodeNanos.add( blockNanos );
+		if ( verbose )
+			System.out.println( String.format(
+					"loaded min = %s, dimensions = %s in %.2f ms",
+					Arrays.toString( min ),
+					Arrays.toString( dimensions ),
+					blockNanos / 1e6 ) );
+
+		return new VolatileLabelMultisetArray( data, listData, listDataUsedSize, true );
+	}
+
+	/**
+	 * Print the time of each loaded block.
+	 */
+	public void setVerbose( final boolean verbose )
+	{
+		this.verbose = verbose;
+	}
+
+	public long getNumBlocks()
+	{
+		return numBlocks.sum();
+	}
+
+	/**
+	 * @return total time spent streaming and converting blocks
+	 */
+	public long getDecodeNanos()
+	{
+		return decodeNanos.sum();
+	}
+
+	public void printStatistics( final PrintStream out )
+	{
+		final long n = numBlocks.sum();
+		out.println( String.format(
+				"%s: %d blocks, mean %.2f ms per block",
+				dataInstanceId,
+				n,
+				n == 0 ? 0 : decodeNanos.sum() / 1e6 / n ) );
 	}
 
 	@Override
@@ -2,11 +2,12 @@ package bdv.img.dvid;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.URL;
+import java.net.HttpURLConnection;
 import java.util.Arrays;
 
 import bdv.img.cache.CacheArrayLoader;
 import bdv.util.ColorStream;
+import bdv.util.http.HttpConnections;
 import net.imglib2.img.basictypeaccess.volatiles.array.VolatileIntArray;
 
 /**
@@ -55,18 +56,21 @@ public class LabelblkVolatileArrayLoader implements CacheArrayLoader< VolatileIn
 			final int[] data ) throws IOException
 	{
 		final byte[] bytes = new byte[ data.length * 8 ];
-		final URL url = new URL( urlString );
-		final InputStream in = url.openStream();
-
-		int off = 0, l = 0;
-		do
+		final HttpURLConnection connection = HttpConnections.get( urlString );
+		try ( final InputStream in = HttpConnections.getInputStream( connection ) )
 		{
-			l = in.read( bytes, off, bytes.length - off );
-			off += l;
+			int off = 0, l = 0;
+			do
+			{
+				l = in.read( bytes, off, bytes.length - off );
+				off += l;
+			}
+			while ( l > 0 && off < bytes.length );
+		}
+		finally
+		{
+			HttpConnections.release( connection );
 		}
-		while ( l > 0 && off < bytes.length );
-
-		in.close();
 
 		for ( int i = 0, j = -1; i < data.length; ++i )
 		{
@@ -2,10 +2,11 @@ package bdv.img.dvid;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.URL;
+import java.net.HttpURLConnection;
 import java.util.Arrays;
 
 import bdv.img.cache.CacheArrayLoader;
+import bdv.util.http.HttpConnections;
 import net.imglib2.img.basictypeaccess.volatiles.array.VolatileByteArray;
 
 /**
@@ -41,17 +42,21 @@ public class Uint8blkVolatileArrayLoader implements CacheArrayLoader< VolatileBy
 			final String urlString,
 			final byte[] data ) throws IOException
 	{
-			final URL url = new URL( urlString );
-			final InputStream in = url.openStream();
-			int off = 0, l = 0;
-			do
+			final HttpURLConnection connection = HttpConnections.get( urlString );
+			try ( final InputStream in = HttpConnections.getInputStream( connection ) )
 			{
-				l = in.read( data, off, data.length - off );
-				off += l;
+				int off = 0, l = 0;
+				do
+				{
+					l = in.read( data, off, data.length - off );
+					off += l;
+				}
+				while ( l > 0 && off < data.length );
+			}
+			finally
+			{
+				HttpConnections.release( connection );
 			}
-			while ( l > 0 && off < data.length );
-
-			in.close();
 	}
 
 	private String makeUrl(
@@ -1,11 +1,10 @@
 package bdv.img.h5;
 
+import java.util.Arrays;
+
 import bdv.img.cache.CacheArrayLoader;
 import bdv.img.cache.EmptyArrayCreator;
-import bdv.labels.labelset.LongMappedAccess;
-import bdv.labels.labelset.LongMappedAccessData;
 import bdv.labels.labelset.VolatileLabelMultisetArray;
-import ch.systemsx.cisd.hdf5.IHDF5IntReader;
 import ch.systemsx.cisd.hdf5.IHDF5Reader;
 
 /**
@@ -18,16 +17,24 @@ abstract public class AbstractH5LabelMultisetArrayLoader implements CacheArrayLo
 {
 	protected VolatileLabelMultisetArray theEmptyArray;
 
-	protected final IHDF5IntReader scaleReader;
+	protected final H5ReaderPool scaleReaders;
 
 	final protected String dataset;
 
+	/**
+	 * Readers of levels in the consolidated layout, {@code null} for levels
+	 * in the per-block layout, created lazily, guarded by this.
+	 */
+	private H5ConsolidatedLabelMultisets.LevelReader[] consolidatedLevels = new H5ConsolidatedLabelMultisets.LevelReader[ 0 ];
+
+	private boolean[] checkedLevels = new boolean[ 0 ];
+
 	public AbstractH5LabelMultisetArrayLoader(
-			final IHDF5Reader scaleReader,
+			final H5ReaderPool scaleReaders,
 			final String dataset )
 	{
 		theEmptyArray = new VolatileLabelMultisetArray( 1, false );
-		this.scaleReader = ( scaleReader == null ) ? null : scaleReader.uint32();
+		this.scaleReaders = scaleReaders;
 		this.dataset = dataset;
 	}
 
@@ -46,16 +53,36 @@ abstract public class AbstractH5LabelMultisetArrayLoader implements CacheArrayLo
 		if ( level == 0 )
 			return loadArrayLevel0( dimensions, min );
 
-		final String listsPath = String.format( "l%02d/z%05d/y%05d/x%05d/lists", level, min[ 2 ], min[ 1 ], min[ 0 ] );
-		final String dataPath = String.format( "l%02d/z%05d/y%05d/x%05d/data", level, min[ 2 ], min[ 1 ], min[ 0 ] );
+		final H5ConsolidatedLabelMultisets.LevelReader consolidated = consolidatedLevel( level );
+		if ( consolidated != null )
+			return scaleReaders.read( r -> consolidated.read( r, dimensions, min ) );
 
-		final int[] offsets = scaleReader.readMDArray( dataPath ).getAsFlatArray();
-		final int[] lists = scaleReader.readArray( listsPath );
-		final LongMappedAccessData listData = LongMappedAccessData.factory.createStorage( lists.length * 4 );
-		final LongMappedAccess access = listData.createAccess();
-		for ( int i = 0; i < lists.length; ++i )
-			access.putInt( lists[ i ], i * 4 );
-		return new VolatileLabelMultisetArray( offsets, listData, 0, true );
+		final int[][] block = scaleReaders.read( r -> new int[][] {
+				r.uint32().readMDArray( H5ConsolidatedLabelMultisets.blockDataPath( level, min ) ).getAsFlatArray(),
+				r.uint32().readArray( H5ConsolidatedLabelMultisets.blockListsPath( level, min ) ) } );
+		return H5ConsolidatedLabelMultisets.createArray( block[ 0 ], block[ 1 ] );
+	}
+
+	/**
+	 * Get the reader of {@code level} if it was completely written in the
+	 * consolidated layout, {@code null} otherwise.  Levels that are still
+	 * being converted are read from the per-block layout.
+	 */
+	protected synchronized H5ConsolidatedLabelMultisets.LevelReader consolidatedLevel( final int level )
+	{
+		if ( level >= checkedLevels.length )
+		{
+			checkedLevels = Arrays.copyOf( checkedLevels, level + 1 );
+			consolidatedLevels = Arrays.copyOf( consolidatedLevels, level + 1 );
+		}
+		if ( !checkedLevels[ level ] )
+		{
+			final IHDF5Reader scaleReader = scaleReaders.getReader();
+			if ( H5ConsolidatedLabelMultisets.isComplete( scaleReader, level ) )
+				consolidatedLevels[ level ] = new H5ConsolidatedLabelMultisets.LevelReader( scaleReader, level );
+			checkedLevels[ level ] = true;
+		}
+		return consolidatedLevels[ level ];
 	}
 
 	@Override
@@ -64,7 +64,7 @@ abstract public class AbstractH5SetupImageLoader< T extends NativeType< T >, V e
 	}
 
 	public AbstractH5SetupImageLoader(
-			final IHDF5Reader reader,
+			final H5ReaderPool readers,
 			final String dataset,
 			final int setupId,
 			final int[] blockDimension,
@@ -77,7 +77,7 @@ abstract public class AbstractH5SetupImageLoader< T extends NativeType< T >, V e
 	{
 		super(
 				setupId,
-				new long[][] { readDimension( reader, dataset ) },
+				new long[][] { readDimension( readers.getReader(), dataset ) },
 				new int[][] { blockDimension },
 				new double[][] { resolution },
 				type,
@@ -97,7 +97,7 @@ abstract public class AbstractH5SetupImageLoader< T extends NativeType< T >, V e
 	}
 
 	public AbstractH5SetupImageLoader(
-			final IHDF5Reader reader,
+			final H5ReaderPool readers,
 			final String dataset,
 			final int setupId,
 			final int[] blockDimension,
@@ -107,11 +107,11 @@ abstract public class AbstractH5SetupImageLoader< T extends NativeType< T >, V e
 			final VolatileGlobalCellCache cache ) throws IOException
 	{
 		this(
-				reader,
+				readers,
 				dataset,
 				setupId,
 				blockDimension,
-				readResolution( reader, dataset ),
+				readResolution( readers.getReader(), dataset ),
 				new double[ 3 ],
 				type,
 				vType,
@@ -0,0 +1,282 @@
+package bdv.img.h5;
+
+import java.util.Arrays;
+
+import bdv.labels.labelset.Label;
+import ch.systemsx.cisd.base.mdarray.MDLongArray;
+import ch.systemsx.cisd.hdf5.HDF5IntStorageFeatures;
+import ch.systemsx.cisd.hdf5.IHDF5LongWriter;
+import ch.systemsx.cisd.hdf5.IHDF5Reader;
+import ch.systemsx.cisd.hdf5.IHDF5Writer;
+import gnu.trove.impl.Constants;
+import gnu.trove.iterator.TLongLongIterator;
+import gnu.trove.map.hash.TLongLongHashMap;
+
+/**
+ * Append-only journal of fragment to segment lookup changes next to a
+ * lookup table dataset as written by
+ * {@link H5Utils#saveLongLongLut(TLongLongHashMap, IHDF5Writer, String, int)}.
+ *
+ * Saving an assignment appends only the entries that changed since the
+ * last save, see
+ * {@link bdv.bigcat.label.FragmentSegmentAssignment#pollModifications()},
+ * to the uint64 dataset {@code <lut>_journal} of shape [2, n] instead of
+ * rewriting the whole lookup table.  Loading replays the journal in order
+ * on top of the lookup table.  When the journal grows beyond half the size
+ * of the lookup table, it is compacted: the replayed lookup table is
+ * written into a new dataset that replaces the old one with an incremented
+ * {@value #GENERATION} attribute.
+ *
+ * The number of valid journal entries is stored in the {@value #SIZE}
+ * attribute of the journal and written after the entries, so a partially
+ * appended block is ignored.  The journal is replayed only if its
+ * {@value #GENERATION} attribute equals that of the lookup table, so
+ * compaction invalidates the journal without touching it, and an
+ * interrupted save or compaction never replays stale entries.
+ *
+ * The lookup table dataset alone is stale while the journal has entries,
+ * so readers must use {@link #load(IHDF5Reader, String, int)}.  Tools that
+ * read the lookup table directly see the saved assignment after
+ * {@link #compactJournal(IHDF5Writer, String, int)}, which the viewer
+ * runs when it closes.
+ */
+public class H5AssignmentJournal
+{
+	final static public String SIZE = "size";
+
+	final static public String GENERATION = "generation";
+
+	/**
+	 * Minimum number of journal entries before the journal is compacted.
+	 */
+	final static public long MIN_COMPACTION_SIZE = 1 << 16;
+
+	final static public String journalDataset( final String lutDataset )
+	{
+		return lutDataset + "_journal";
+	}
+
+	final static protected String compactingDataset( final String lutDataset )
+	{
+		return lutDataset + "_compacting";
+	}
+
+	final static protected long loadLong( final IHDF5Reader reader, final String object, final String attribute )
+	{
+		final Long value = H5Utils.loadAttribute( reader, object, attribute );
+		return value == null ? 0 : value;
+	}
+
+	/**
+	 * The lookup table dataset, or the replacement of an interrupted
+	 * compaction if the lookup table was already deleted.
+	 */
+	final static protected String lutDataset( final IHDF5Reader reader, final String lutDataset )
+	{
+		if ( !reader.exists( lutDataset ) && reader.exists( compactingDataset( lutDataset ) ) )
+			return compactingDataset( lutDataset );
+		return lutDataset;
+	}
+
+	static public long generation( final IHDF5Reader reader, final String lutDataset )
+	{
+		return loadLong( reader, lutDataset( reader, lutDataset ), GENERATION );
+	}
+
+	/**
+	 * Number of valid entries in the journal, 0 if the journal belongs to
+	 * another generation of the lookup table.
+	 */
+	static public long size( final IHDF5Reader reader, final String lutDataset )
+	{
+		final String journal = journalDataset( lutDataset );
+		if ( loadLong( reader, journal, GENERATION ) != generation( reader, lutDataset ) )
+			return 0;
+		return loadLong( reader, journal, SIZE );
+	}
+
+	/**
+	 * Number of entries of the lookup table, 0 if it does not exist.
+	 */
+	static public long lutSize( final IHDF5Reader reader, final String lutDataset )
+	{
+		final String dataset = lutDataset( reader, lutDataset );
+		if ( !reader.exists( dataset ) )
+			return 0;
+		return reader.object().getDimensions( dataset )[ 1 ];
+	}
+
+	/**
+	 * Whether the journal should be compacted, i.e. replaying it costs more
+	 * than reading half of the lookup table.
+	 */
+	static public boolean needsCompaction( final IHDF5Reader reader, final String lutDataset )
+	{
+		return size( reader, lutDataset ) > Math.max( MIN_COMPACTION_SIZE, lutSize( reader, lutDataset ) / 2 );
+	}
+
+	/**
+	 * Load the lookup table and replay the journal.
+	 *
+	 * @return the lookup table or {@code null} if neither the lookup table
+	 *         nor the journal exist
+	 */
+	static public TLongLongHashMap load(
+			final IHDF5Reader reader,
+			final String lutDataset,
+			final int blockSize )
+	{
+		final String dataset = lutDataset( reader, lutDataset );
+		final String journal = journalDataset( lutDataset );
+		final boolean hasJournal = reader.exists( journal );
+		final long size = hasJournal ? size( reader, lutDataset ) : 0;
+
+		TLongLongHashMap lut = H5Utils.loadLongLongLut( reader, dataset, blockSize );
+		if ( lut == null )
+		{
+			if ( !hasJournal )
+				return null;
+			lut = new TLongLongHashMap(
+					Constants.DEFAULT_CAPACITY,
+					Constants.DEFAULT_LOAD_FACTOR,
+					Label.TRANSPARENT,
+					Label.TRANSPARENT );
+		}
+
+		for ( long offset = 0; offset < size; offset += blockSize )
+		{
+			final MDLongArray block = reader.uint64().readMDArrayBlockWithOffset(
+					journal,
+					new int[] { 2, ( int ) Math.min( blockSize, size - offset ) },
+					new long[] { 0, offset } );
+
+			for ( int i = 0; i < block.size( 1 ); ++i )
+				lut.put( block.get( 0, i ), block.get( 1, i ) );
+		}
+
+		return lut;
+	}
+
+	/**
+	 * Append changed entries of the lookup table to the journal.
+	 *
+	 * @param changes
+	 * @param writer
+	 * @param lutDataset
+	 * @param blockSize
+	 */
+	static public void append(
+			final TLongLongHashMap changes,
+			final IHDF5Writer writer,
+			final String lutDataset,
+			final int blockSize )
+	{
+		if ( changes.isEmpty() )
+			return;
+
+		final String journal = journalDataset( lutDataset );
+		final IHDF5LongWriter uint64Writer = writer.uint64();
+		if ( !writer.exists( journal ) )
+			uint64Writer.createMDArray(
+					journal,
+					new long[] { 2, blockSize },
+					new int[] { 2, blockSize },
+					HDF5IntStorageFeatures.INT_AUTO_SCALING_DEFLATE );
+
+		final long size = size( writer, lutDataset );
+		final TLongLongIterator iterator = changes.iterator();
+		for ( int offset = 0; offset < changes.size(); offset += blockSize )
+		{
+			final int n = Math.min( blockSize, changes.size() - offset );
+			final MDLongArray block = new MDLongArray( new int[] { 2, n } );
+			for ( int j = 0; j < n; ++j )
+			{
+				iterator.advance();
+				block.set( iterator.key(), 0, j );
+				block.set( iterator.value(), 1, j );
+			}
+			uint64Writer.writeMDArrayBlockWithOffset( journal, block, new long[] { 0, size + offset } );
+		}
+
+		/* commit, entries of another generation are overwritten */
+		H5Utils.saveUint64Attribute( size + changes.size(), writer, journal, SIZE );
+		H5Utils.saveUint64Attribute( generation( writer, lutDataset ), writer, journal, GENERATION );
+	}
+
+	/**
+	 * Replace the lookup table by {@code lut} and invalidate the journal.
+	 *
+	 * @param lut
+	 * @param writer
+	 * @param lutDataset
+	 * @param blockSize
+	 */
+	static public void compact(
+			final TLongLongHashMap lut,
+			final IHDF5Writer writer,
+			final String lutDataset,
+			final int blockSize )
+	{
+		final String compacting = compactingDataset( lutDataset );
+		if ( writer.exists( compacting ) )
+		{
+			/* replacement of an interrupted compaction */
+			if ( !writer.exists( lutDataset ) )
+				writer.object().move( compacting, lutDataset );
+			else
+				writer.object().delete( compacting );
+		}
+
+		final long generation = Math.max( generation( writer, lutDataset ), loadLong( writer, journalDataset( lutDataset ), GENERATION ) ) + 1;
+		H5Utils.saveLongLongLut( lut, writer, compacting, blockSize );
+		H5Utils.saveUint64Attribute( generation, writer, compacting, GENERATION );
+		if ( writer.exists( lutDataset ) )
+			writer.object().delete( lutDataset );
+		writer.object().move( compacting, lutDataset );
+	}
+
+	/**
+	 * Compact the journal by replaying it on the lookup table if it
+	 * {@link #needsCompaction(IHDF5Reader, String) needs compaction}.
+	 *
+	 * @return whether the journal was compacted
+	 */
+	static public boolean compactIfNecessary(
+			final IHDF5Writer writer,
+			final String lutDataset,
+			final int blockSize )
+	{
+		if ( !needsCompaction( writer, lutDataset ) )
+			return false;
+
+		replay( writer, lutDataset, blockSize );
+		return true;
+	}
+
+	/**
+	 * Compact the journal by replaying it on the lookup table if it has
+	 * any entries, such that the lookup table dataset alone is up to date.
+	 *
+	 * @return whether the journal was compacted
+	 */
+	static public boolean compactJournal(
+			final IHDF5Writer writer,
+			final String lutDataset,
+			final int blockSize )
+	{
+		if ( size( writer, lutDataset ) == 0 )
+			return false;
+
+		replay( writer, lutDataset, blockSize );
+		return true;
+	}
+
+	static protected void replay(
+			final IHDF5Writer writer,
+			final String lutDataset,
+			final int blockSize )
+	{
+		System.out.println( "Compacting " + size( writer, lutDataset ) + " journal entries into " + lutDataset + " " + Arrays.toString( new long[] { 2, lutSize( writer, lutDataset ) } ) );
+		compact( load( writer, lutDataset, blockSize ), writer, lutDataset, blockSize );
+	}
+}
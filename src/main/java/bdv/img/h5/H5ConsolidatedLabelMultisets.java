@@ -0,0 +1,541 @@
+package bdv.img.h5;
+
+import static bdv.img.hdf5.Util.reorder;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+import bdv.labels.labelset.DownscaleToHdf5;
+import bdv.labels.labelset.LongMappedAccess;
+import bdv.labels.labelset.LongMappedAccessData;
+import bdv.labels.labelset.VolatileLabelMultisetArray;
+import ch.systemsx.cisd.base.mdarray.MDIntArray;
+import ch.systemsx.cisd.base.mdarray.MDLongArray;
+import ch.systemsx.cisd.hdf5.HDF5Factory;
+import ch.systemsx.cisd.hdf5.HDF5IntStorageFeatures;
+import ch.systemsx.cisd.hdf5.IHDF5Reader;
+import ch.systemsx.cisd.hdf5.IHDF5Writer;
+import net.imglib2.iterator.LocalizingIntervalIterator;
+import net.imglib2.util.IntervalIndexer;
+import net.imglib2.util.Util;
+
+/**
+ * Consolidated storage of the downscaled levels of a label multiset pyramid
+ * in three datasets per level instead of two datasets per block:
+ *
+ * <dl>
+ * <dt>{@code l%02d/offsets}</dt>
+ * <dd>uint32 offsets of the voxels' lists, relative to the lists of their
+ * block, chunked by blocks,</dd>
+ * <dt>{@code l%02d/lists}</dt>
+ * <dd>uint32 lists of all blocks, concatenated,</dd>
+ * <dt>{@code l%02d/index}</dt>
+ * <dd>uint64 start and length in {@code lists} of the lists of each block,
+ * indexed by block grid position.</dd>
+ * </dl>
+ *
+ * Reading a block reads one chunk of {@code offsets}, one index entry, and a
+ * contiguous range of {@code lists} from datasets that are opened once, so
+ * the cost does not grow with the number of blocks in the file like group
+ * and dataset lookups of the per-block layout
+ * ({@code l%02d/z%05d/y%05d/x%05d/lists} and {@code /data}) do.
+ *
+ * Level attributes ({@code levels}, {@code l%02d/dimensions},
+ * {@code l%02d/factors}, {@code l%02d/blocksize}) are shared with the
+ * per-block layout. A file can contain both layouts, readers prefer the
+ * consolidated one.
+ *
+ * Writing a level can be resumed after an interruption, see
+ * {@link Writer#Writer(IHDF5Writer, int, boolean)}.  The HDF5 library may
+ * write cached chunks to the file in any order, so the index entry of a
+ * block can be on disk before its lists.  A block is therefore only trusted
+ * if it is in {@code l%02d/committed}, a bit set of the blocks by flat grid
+ * index that is written right after the file was flushed at a
+ * {@link Writer#checkpoint() checkpoint}.  The {@value #COMPLETE} attribute
+ * of {@code l%02d} marks levels whose blocks were all written.
+ */
+public class H5ConsolidatedLabelMultisets
+{
+	final static private int LISTS_CHUNK_SIZE = 1 << 16;
+
+	final static public String COMPLETE = "complete";
+
+	public static String levelPath( final int level )
+	{
+		return String.format( "l%02d", level );
+	}
+
+	public static String offsetsPath( final int level )
+	{
+		return String.format( "l%02d/offsets", level );
+	}
+
+	public static String listsPath( final int level )
+	{
+		return String.format( "l%02d/lists", level );
+	}
+
+	public static String indexPath( final int level )
+	{
+		return String.format( "l%02d/index", level );
+	}
+
+	public static String committedPath( final int level )
+	{
+		return String.format( "l%02d/committed", level );
+	}
+
+	public static String blockListsPath( final int level, final long[] min )
+	{
+		return String.format( "l%02d/z%05d/y%05d/x%05d/lists", level, min[ 2 ], min[ 1 ], min[ 0 ] );
+	}
+
+	public static String blockDataPath( final int level, final long[] min )
+	{
+		return String.format( "l%02d/z%05d/y%05d/x%05d/data", level, min[ 2 ], min[ 1 ], min[ 0 ] );
+	}
+
+	/**
+	 * Whether {@code level} is stored in the consolidated layout.
+	 */
+	public static boolean exists( final IHDF5Reader reader, final int level )
+	{
+		return reader.exists( indexPath( level ) );
+	}
+
+	/**
+	 * Whether all blocks of {@code level} were written in the consolidated
+	 * layout.
+	 */
+	public static boolean isComplete( final IHDF5Reader reader, final int level )
+	{
+		return exists( reader, level ) && reader.object().hasAttribute( levelPath( level ), COMPLETE );
+	}
+
+	/**
+	 * Whether all blocks of {@code level} were written in the consolidated
+	 * layout with the given level attributes.
+	 */
+	public static boolean isComplete(
+			final IHDF5Reader reader,
+			final int level,
+			final long[] dimensions,
+			final long[] factors,
+			final long[] blocksize )
+	{
+		return isComplete( reader, level ) && hasLevelInfo( reader, level, dimensions, factors, blocksize );
+	}
+
+	/**
+	 * Whether the level attributes of {@code level} exist and equal the
+	 * given ones, {@code null} arguments are not compared.
+	 */
+	public static boolean hasLevelInfo(
+			final IHDF5Reader reader,
+			final int level,
+			final long[] dimensions,
+			final long[] factors,
+			final long[] blocksize )
+	{
+		final String[] paths = new String[] {
+				String.format( "l%02d/dimensions", level ),
+				String.format( "l%02d/factors", level ),
+				String.format( "l%02d/blocksize", level ) };
+		final long[][] values = new long[][] { dimensions, factors, blocksize };
+		for ( int i = 0; i < paths.length; ++i )
+		{
+			if ( !reader.exists( paths[ i ] ) )
+				return false;
+			if ( values[ i ] != null && !Arrays.equals( values[ i ], reader.uint64().readArray( paths[ i ] ) ) )
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Create a {@link VolatileLabelMultisetArray} from uint32 offsets and
+	 * lists as stored by both layouts.
+	 */
+	public static VolatileLabelMultisetArray createArray( final int[] offsets, final int[] lists )
+	{
+		final LongMappedAccessData listData = LongMappedAccessData.factory.createStorage( lists.length * 4 );
+		final LongMappedAccess access = listData.createAccess();
+		for ( int i = 0; i < lists.length; ++i )
+			access.putInt( lists[ i ], i * 4 );
+		return new VolatileLabelMultisetArray( offsets, listData, lists.length * 4, true );
+	}
+
+	/**
+	 * Get the used list data of {@code data} as uint32 lists.
+	 */
+	public static int[] lists( final VolatileLabelMultisetArray data )
+	{
+		final LongMappedAccess access = data.getListData().createAccess();
+		final int intSize = ( int ) ( data.getListDataUsedSizeInBytes() / 4 );
+		final int[] lists = new int[ intSize ];
+		for ( int i = 0; i < intSize; ++i )
+			lists[ i ] = access.getInt( i * 4 );
+		return lists;
+	}
+
+	/**
+	 * Reads blocks of one level in the consolidated layout.
+	 */
+	public static class LevelReader
+	{
+		final protected IHDF5Reader reader;
+
+		final protected int level;
+
+		final protected int[] blockSize;
+
+		public LevelReader( final IHDF5Reader reader, final int level )
+		{
+			this.reader = reader;
+			this.level = level;
+			blockSize = Util.long2int( reader.uint64().readArray( String.format( "l%02d/blocksize", level ) ) );
+		}
+
+		public int getLevel()
+		{
+			return level;
+		}
+
+		/**
+		 * Read the block at {@code min} with (cropped) {@code dimensions}.
+		 */
+		public VolatileLabelMultisetArray read( final int[] dimensions, final long[] min )
+		{
+			return read( reader, dimensions, min );
+		}
+
+		/**
+		 * Read the block at {@code min} with (cropped) {@code dimensions}
+		 * with {@code reader}, another reader of the same file.
+		 */
+		public VolatileLabelMultisetArray read( final IHDF5Reader reader, final int[] dimensions, final long[] min )
+		{
+			final int n = min.length;
+			final long[] gridPosition = new long[ n ];
+			for ( int d = 0; d < n; ++d )
+				gridPosition[ d ] = min[ d ] / blockSize[ d ];
+
+			final long[] index = reader.uint64().readMDArrayBlockWithOffset(
+					indexPath( level ),
+					new int[] { 1, 1, 1, 2 },
+					indexOffset( gridPosition ) ).getAsFlatArray();
+			if ( index[ 1 ] == 0 )
+				throw new IllegalStateException( "block " + Util.printCoordinates( min ) + " of level " + level + " was not written" );
+
+			final int[] offsets = reader.uint32().readMDArrayBlockWithOffset(
+					offsetsPath( level ),
+					reorder( dimensions ),
+					reorder( min ) ).getAsFlatArray();
+			final int[] lists = reader.uint32().readArrayBlockWithOffset(
+					listsPath( level ),
+					( int ) index[ 1 ],
+					index[ 0 ] );
+			return createArray( offsets, lists );
+		}
+	}
+
+	/**
+	 * Offset of the index entry of a block in the (z, y, x, entry) index.
+	 */
+	private static long[] indexOffset( final long[] gridPosition )
+	{
+		return new long[] { gridPosition[ 2 ], gridPosition[ 1 ], gridPosition[ 0 ], 0 };
+	}
+
+	/**
+	 * Writes one level in the consolidated layout.  Blocks can be written in
+	 * any order, concurrent calls are serialized.  Written blocks are
+	 * committed by {@link #checkpoint()}.
+	 */
+	public static class Writer implements DownscaleToHdf5.BlockWriter, DownscaleToHdf5.LevelInfoWriter
+	{
+		final protected IHDF5Writer writer;
+
+		final protected int level;
+
+		final protected boolean resume;
+
+		protected long[] blockSize;
+
+		protected long listsSize = 0;
+
+		protected long[] gridDimensions;
+
+		protected long numBlocks = 0;
+
+		/**
+		 * Blocks that were written before, by flat grid index, x fastest.
+		 */
+		protected BitSet writtenBlocks = new BitSet();
+
+		/**
+		 * Blocks that were flushed to the file, by flat grid index.
+		 */
+		protected BitSet committedBlocks = new BitSet();
+
+		/**
+		 * Blocks that were written since the last {@link #checkpoint()}.
+		 */
+		protected BitSet uncommittedBlocks = new BitSet();
+
+		/**
+		 * @param writer
+		 * @param level
+		 * @param resume
+		 *            keep the committed blocks of an interrupted earlier
+		 *            write of this level if its level attributes are the
+		 *            same, see {@link #isWritten(long)}
+		 */
+		public Writer( final IHDF5Writer writer, final int level, final boolean resume )
+		{
+			this.writer = writer;
+			this.level = level;
+			this.resume = resume;
+		}
+
+		public Writer( final IHDF5Writer writer, final int level )
+		{
+			this( writer, level, false );
+		}
+
+		/**
+		 * Write the level attributes and create the datasets of the level,
+		 * replacing existing ones.  When resuming and the level attributes
+		 * did not change, the existing datasets are kept instead.
+		 */
+		@Override
+		public synchronized void writeLevelInfo( final long[] dimensions, final long[] factors, final long[] blocksize )
+		{
+			final int n = dimensions.length;
+			blockSize = blocksize.clone();
+			gridDimensions = new long[ n ];
+			numBlocks = 1;
+			for ( int d = 0; d < n; ++d )
+			{
+				gridDimensions[ d ] = ( dimensions[ d ] + blocksize[ d ] - 1 ) / blocksize[ d ];
+				numBlocks *= gridDimensions[ d ];
+			}
+			uncommittedBlocks = new BitSet();
+			if ( resume && exists( writer, level ) && writer.exists( committedPath( level ) ) && hasLevelInfo( writer, level, dimensions, factors, blocksize ) )
+			{
+				/*
+				 * the lists of committed blocks end before the size of the
+				 * lists at the checkpoint, lists of other blocks are skipped
+				 */
+				listsSize = writer.object().getDimensions( listsPath( level ) )[ 0 ];
+				writtenBlocks = BitSet.valueOf( writer.uint64().readArray( committedPath( level ) ) );
+				committedBlocks = ( BitSet ) writtenBlocks.clone();
+				return;
+			}
+
+			writtenBlocks = new BitSet();
+			committedBlocks = new BitSet();
+
+			if ( writer.exists( levelPath( level ) ) && writer.object().hasAttribute( levelPath( level ), COMPLETE ) )
+				writer.object().deleteAttribute( levelPath( level ), COMPLETE );
+			writer.uint64().writeArray( String.format( "l%02d/dimensions", level ), dimensions );
+			writer.uint64().writeArray( String.format( "l%02d/factors", level ), factors );
+			writer.uint64().writeArray( String.format( "l%02d/blocksize", level ), blocksize );
+
+			for ( final String path : new String[] { offsetsPath( level ), listsPath( level ), indexPath( level ), committedPath( level ) } )
+				if ( writer.exists( path ) )
+					writer.delete( path );
+
+			writer.uint32().createMDArray(
+					offsetsPath( level ),
+					reorder( dimensions ),
+					reorder( Util.long2int( blocksize ) ),
+					HDF5IntStorageFeatures.INT_AUTO_SCALING_UNSIGNED_DEFLATE );
+			writer.uint32().createArray(
+					listsPath( level ),
+					0,
+					LISTS_CHUNK_SIZE,
+					HDF5IntStorageFeatures.INT_AUTO_SCALING_UNSIGNED_DEFLATE );
+			writer.uint64().createMDArray(
+					indexPath( level ),
+					new long[] { gridDimensions[ 2 ], gridDimensions[ 1 ], gridDimensions[ 0 ], 2 },
+					new int[] { 1, 1, ( int ) Math.min( gridDimensions[ 0 ], 1024 ), 2 },
+					HDF5IntStorageFeatures.INT_AUTO_SCALING_UNSIGNED );
+			writer.uint64().createArray( committedPath( level ), committedSize() );
+			listsSize = 0;
+		}
+
+		private int committedSize()
+		{
+			return ( int ) ( ( numBlocks + 63 ) / 64 );
+		}
+
+		/**
+		 * Flush the file and then record the blocks written so far as
+		 * committed, such that they are kept when the level is resumed.
+		 * Blocks written after the last checkpoint are written again.
+		 */
+		public synchronized void checkpoint()
+		{
+			writer.file().flush();
+			if ( uncommittedBlocks.isEmpty() )
+				return;
+			committedBlocks.or( uncommittedBlocks );
+			uncommittedBlocks.clear();
+			/* written in place, a partially written bit set is a mix of two valid ones */
+			final int size = committedSize();
+			writer.uint64().writeArrayBlockWithOffset( committedPath( level ), Arrays.copyOf( committedBlocks.toLongArray(), size ), size, 0 );
+			writer.file().flush();
+		}
+
+		/**
+		 * Whether a block was written before this level was resumed.
+		 *
+		 * @param block
+		 *            flat index of the block in the cell grid, x fastest
+		 */
+		public synchronized boolean isWritten( final long block )
+		{
+			return writtenBlocks.get( ( int ) block );
+		}
+
+		/**
+		 * Get the blocks that were written before this level was resumed.
+		 */
+		public synchronized BitSet getWrittenBlocks()
+		{
+			return ( BitSet ) writtenBlocks.clone();
+		}
+
+		/**
+		 * Commit all blocks and mark the level as complete.
+		 */
+		public synchronized void setComplete()
+		{
+			checkpoint();
+			H5Utils.saveUint64Attribute( 1, writer, levelPath( level ), COMPLETE );
+			writer.file().flush();
+		}
+
+		@Override
+		public synchronized void writeBlock( final VolatileLabelMultisetArray data, final long[] min, final long[] blocksize )
+		{
+			writeBlock( data.getCurrentStorageArray(), lists( data ), min, blocksize );
+		}
+
+		/**
+		 * Write a block given as uint32 offsets and lists.
+		 */
+		public synchronized void writeBlock( final int[] offsets, final int[] lists, final long[] min, final long[] dimensions )
+		{
+			final int n = min.length;
+			final long[] gridPosition = new long[ n ];
+			for ( int d = 0; d < n; ++d )
+				gridPosition[ d ] = min[ d ] / blockSize[ d ];
+
+			writer.uint32().writeArrayBlockWithOffset( listsPath( level ), lists, lists.length, listsSize );
+			writer.uint32().writeMDArrayBlockWithOffset(
+					offsetsPath( level ),
+					new MDIntArray( offsets, reorder( Util.long2int( dimensions ) ) ),
+					reorder( min ) );
+			writer.uint64().writeMDArrayBlockWithOffset(
+					indexPath( level ),
+					new MDLongArray( new long[] { listsSize, lists.length }, new int[] { 1, 1, 1, 2 } ),
+					indexOffset( gridPosition ) );
+			listsSize += lists.length;
+			uncommittedBlocks.set( ( int ) IntervalIndexer.positionToIndex( gridPosition, gridDimensions ) );
+		}
+	}
+
+	/**
+	 * Copy all downscaled levels of {@code reader} from the per-block layout
+	 * into the consolidated layout in {@code writer}. {@code reader} and
+	 * {@code writer} can be the same file, the per-block datasets are left in
+	 * place then (repack the file to reclaim their space after deleting them).
+	 */
+	public static void convert( final IHDF5Reader reader, final IHDF5Writer writer )
+	{
+		final int numLevels = reader.uint32().read( "levels" );
+		writer.uint32().write( "levels", numLevels );
+		for ( int level = 1; level < numLevels; ++level )
+		{
+			final long[] dimensions = reader.uint64().readArray( String.format( "l%02d/dimensions", level ) );
+			final long[] factors = reader.uint64().readArray( String.format( "l%02d/factors", level ) );
+			final long[] blocksize = reader.uint64().readArray( String.format( "l%02d/blocksize", level ) );
+			final int n = dimensions.length;
+
+			final Writer levelWriter = new Writer( writer, level );
+			levelWriter.writeLevelInfo( dimensions, factors, blocksize );
+
+			final long[] maxCell = new long[ n ];
+			for ( int d = 0; d < n; ++d )
+				maxCell[ d ] = ( dimensions[ d ] - 1 ) / blocksize[ d ];
+
+			final LocalizingIntervalIterator cells = new LocalizingIntervalIterator( new long[ n ], maxCell );
+			final long[] cellPosition = new long[ n ];
+			final long[] min = new long[ n ];
+			final long[] cellDimensions = new long[ n ];
+			long numBlocks = 0;
+			while ( cells.hasNext() )
+			{
+				cells.fwd();
+				cells.localize( cellPosition );
+				for ( int d = 0; d < n; ++d )
+				{
+					min[ d ] = cellPosition[ d ] * blocksize[ d ];
+					cellDimensions[ d ] = Math.min( blocksize[ d ], dimensions[ d ] - min[ d ] );
+				}
+				final int[] offsets = reader.uint32().readMDArray( blockDataPath( level, min ) ).getAsFlatArray();
+				final int[] lists = reader.uint32().readArray( blockListsPath( level, min ) );
+				levelWriter.writeBlock( offsets, lists, min, cellDimensions );
+				++numBlocks;
+			}
+			levelWriter.setComplete();
+			System.out.println( "converted level " + level + ", " + numBlocks + " blocks" );
+		}
+	}
+
+	/**
+	 * Convert the downscaled levels of a label multiset pyramid in the
+	 * per-block layout into the consolidated layout.
+	 *
+	 * @param args
+	 *            input file and output file, the output file defaults to the
+	 *            input file
+	 */
+	public static void main( final String... args )
+	{
+		if ( args.length < 1 )
+		{
+			System.err.println( "usage: " + H5ConsolidatedLabelMultisets.class.getName() + " <input.h5> [<output.h5>]" );
+			System.exit( 1 );
+		}
+
+		if ( args.length < 2 || args[ 0 ].equals( args[ 1 ] ) )
+		{
+			final IHDF5Writer writer = HDF5Factory.open( args[ 0 ] );
+			try
+			{
+				convert( writer, writer );
+			}
+			finally
+			{
+				writer.close();
+			}
+		}
+		else
+		{
+			final IHDF5Reader reader = HDF5Factory.openForReading( args[ 0 ] );
+			final IHDF5Writer writer = HDF5Factory.open( args[ 1 ] );
+			try
+			{
+				convert( reader, writer );
+			}
+			finally
+			{
+				writer.close();
+				reader.close();
+			}
+		}
+	}
+}
@@ -8,8 +8,6 @@ import bdv.labels.labelset.LabelMultisetEntryList;
 import bdv.labels.labelset.LongMappedAccessData;
 import bdv.labels.labelset.VolatileLabelMultisetArray;
 import ch.systemsx.cisd.base.mdarray.MDFloatArray;
-import ch.systemsx.cisd.hdf5.IHDF5FloatReader;
-import ch.systemsx.cisd.hdf5.IHDF5Reader;
 import gnu.trove.impl.Constants;
 import gnu.trove.map.hash.TLongIntHashMap;
 
@@ -20,15 +18,15 @@ import gnu.trove.map.hash.TLongIntHashMap;
  */
 public class H5FloatLabelMultisetArrayLoader extends AbstractH5LabelMultisetArrayLoader
 {
-	final private IHDF5FloatReader reader;
+	final private H5ReaderPool readers;
 
 	public H5FloatLabelMultisetArrayLoader(
-			final IHDF5Reader reader,
-			final IHDF5Reader scaleReader,
+			final H5ReaderPool readers,
+			final H5ReaderPool scaleReaders,
 			final String dataset )
 	{
-		super( scaleReader, dataset );
-		this.reader = reader.float32();
+		super( scaleReaders, dataset );
+		this.readers = readers;
 	}
 
 	@Override
@@ -44,10 +42,10 @@ public class H5FloatLabelMultisetArrayLoader extends AbstractH5LabelMultisetArra
 	{
 		float[] data = null;
 
-		final MDFloatArray block = reader.readMDArrayBlockWithOffset(
+		final MDFloatArray block = readers.read( r -> r.float32().readMDArrayBlockWithOffset(
 				dataset,
 				new int[]{ dimensions[ 2 ], dimensions[ 1 ], dimensions[ 0 ] },
-				new long[]{ min[ 2 ], min[ 1 ], min[ 0 ] } );
+				new long[]{ min[ 2 ], min[ 1 ], min[ 0 ] } ) );
 
 		data = block.getAsFlatArray();
 
@@ -4,7 +4,6 @@ import java.io.IOException;
 
 import bdv.ViewerImgLoader;
 import bdv.img.cache.VolatileGlobalCellCache;
-import ch.systemsx.cisd.hdf5.IHDF5Reader;
 import net.imglib2.img.basictypeaccess.volatiles.array.VolatileFloatArray;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.type.volatiles.VolatileFloatType;
@@ -18,25 +17,25 @@ public class H5FloatSetupImageLoader
 		implements ViewerImgLoader
 {
 	public H5FloatSetupImageLoader(
-			final IHDF5Reader reader,
+			final H5ReaderPool readers,
 			final String dataset,
 			final int setupId,
 			final int[] cellDimension,
 			final VolatileGlobalCellCache cache ) throws IOException
 	{
 		super(
-				reader,
+				readers,
 				dataset,
 				setupId,
 				cellDimension,
 				new FloatType(),
 				new VolatileFloatType(),
-				new H5FloatArrayLoader( reader, dataset ),
+				new H5FloatArrayLoader( readers, dataset ),
 				cache );
 	}
 
 	public H5FloatSetupImageLoader(
-			final IHDF5Reader reader,
+			final H5ReaderPool readers,
 			final String dataset,
 			final int setupId,
 			final int[] cellDimension,
@@ -44,7 +43,7 @@ public class H5FloatSetupImageLoader
 			final VolatileGlobalCellCache cache ) throws IOException
 	{
 		super(
-				reader,
+				readers,
 				dataset,
 				setupId,
 				cellDimension,
@@ -52,7 +51,7 @@ public class H5FloatSetupImageLoader
 				new double[ 3 ],
 				new FloatType(),
 				new VolatileFloatType(),
-				new H5FloatArrayLoader( reader, dataset ),
+				new H5FloatArrayLoader( readers, dataset ),
 				cache );
 	}
 }
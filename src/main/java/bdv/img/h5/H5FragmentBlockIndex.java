@@ -0,0 +1,456 @@
+package bdv.img.h5;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.LongStream;
+
+import bdv.bigcat.label.FragmentSegmentAssignment;
+import bdv.img.cache.CacheArrayLoader;
+import bdv.labels.labelset.DownscaleToHdf5;
+import bdv.labels.labelset.Label;
+import bdv.labels.labelset.LabelMultisetEntry;
+import bdv.labels.labelset.LabelMultisetEntryList;
+import bdv.labels.labelset.VolatileLabelMultisetArray;
+import ch.systemsx.cisd.hdf5.HDF5IntStorageFeatures;
+import ch.systemsx.cisd.hdf5.IHDF5Reader;
+import ch.systemsx.cisd.hdf5.IHDF5Writer;
+import gnu.trove.impl.Constants;
+import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.procedure.TLongProcedure;
+import gnu.trove.set.hash.TIntHashSet;
+import gnu.trove.set.hash.TLongHashSet;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.util.IntervalIndexer;
+
+/**
+ * Index of the blocks of one mipmap level that contain each fragment.
+ *
+ * The index is stored in compressed sparse row layout in the group
+ * {@code l<level>/fragment_blocks} next to the level: the sorted fragment
+ * ids in {@code fragments}, the blocks of all fragments grouped by fragment
+ * in {@code blocks}, and the range of each fragment in {@code offsets}.
+ * Blocks are identified by their flat index in the cell grid of the level, x
+ * fastest, the grid is given by {@code dimensions} and {@code blocksize}.
+ *
+ * The index is built from the lists of the blocks while
+ * {@link DownscaleToHdf5} writes them, see {@link Builder}, or from the
+ * blocks of an existing level.  Operations on a single body can then visit
+ * only the blocks that contain one of its fragments, see
+ * {@link #getSegmentBlocks(long, FragmentSegmentAssignment)}.
+ */
+public class H5FragmentBlockIndex
+{
+	final static private long[] EMPTY = new long[ 0 ];
+
+	final protected long[] dimensions;
+
+	final protected long[] blockSize;
+
+	final protected long[] gridDimensions;
+
+	/**
+	 * Sorted fragment ids.
+	 */
+	final protected long[] fragments;
+
+	/**
+	 * Blocks of fragment k are
+	 * {@code blocks[offsets[k]]..blocks[offsets[k + 1] - 1]}, sorted.
+	 */
+	final protected long[] offsets;
+
+	final protected long[] blocks;
+
+	public H5FragmentBlockIndex(
+			final long[] dimensions,
+			final long[] blockSize,
+			final long[] fragments,
+			final long[] offsets,
+			final long[] blocks )
+	{
+		this.dimensions = dimensions;
+		this.blockSize = blockSize;
+		this.gridDimensions = gridDimensions( dimensions, blockSize );
+		this.fragments = fragments;
+		this.offsets = offsets;
+		this.blocks = blocks;
+	}
+
+	final static protected long[] gridDimensions( final long[] dimensions, final long[] blockSize )
+	{
+		final long[] gridDimensions = new long[ dimensions.length ];
+		for ( int d = 0; d < dimensions.length; ++d )
+			gridDimensions[ d ] = ( dimensions[ d ] + blockSize[ d ] - 1 ) / blockSize[ d ];
+		return gridDimensions;
+	}
+
+	final static public String groupPath( final int level )
+	{
+		return String.format( "l%02d/fragment_blocks", level );
+	}
+
+	static public boolean exists( final IHDF5Reader reader, final int level )
+	{
+		return reader.exists( groupPath( level ) + "/blocks" );
+	}
+
+	/**
+	 * Whether the index of a level exists and was built for the given
+	 * dimensions and block size.
+	 */
+	static public boolean exists( final IHDF5Reader reader, final int level, final long[] dimensions, final long[] blockSize )
+	{
+		final String group = groupPath( level );
+		return exists( reader, level ) &&
+				Arrays.equals( dimensions, reader.uint64().readArray( group + "/dimensions" ) ) &&
+				Arrays.equals( blockSize, reader.uint64().readArray( group + "/blocksize" ) );
+	}
+
+	/**
+	 * Load the index of a level.
+	 *
+	 * @return the index or {@code null} if it does not exist
+	 */
+	static public H5FragmentBlockIndex load( final IHDF5Reader reader, final int level )
+	{
+		if ( !exists( reader, level ) )
+			return null;
+
+		final String group = groupPath( level );
+		return new H5FragmentBlockIndex(
+				reader.uint64().readArray( group + "/dimensions" ),
+				reader.uint64().readArray( group + "/blocksize" ),
+				reader.uint64().readArray( group + "/fragments" ),
+				reader.uint64().readArray( group + "/offsets" ),
+				reader.uint64().readArray( group + "/blocks" ) );
+	}
+
+	/**
+	 * Write the index of a level, replacing an existing one.
+	 */
+	public void write( final IHDF5Writer writer, final int level )
+	{
+		final String group = groupPath( level );
+		if ( writer.exists( group ) )
+			writer.delete( group );
+
+		writer.uint64().writeArray( group + "/dimensions", dimensions );
+		writer.uint64().writeArray( group + "/blocksize", blockSize );
+		writer.uint64().writeArray( group + "/fragments", fragments, HDF5IntStorageFeatures.INT_AUTO_SCALING_DEFLATE );
+		writer.uint64().writeArray( group + "/offsets", offsets, HDF5IntStorageFeatures.INT_AUTO_SCALING_DEFLATE );
+		/* written last, marks the index as complete */
+		writer.uint64().writeArray( group + "/blocks", blocks, HDF5IntStorageFeatures.INT_AUTO_SCALING_DEFLATE );
+	}
+
+	public long[] getGridDimensions()
+	{
+		return gridDimensions.clone();
+	}
+
+	public int numFragments()
+	{
+		return fragments.length;
+	}
+
+	protected int fragmentIndex( final long fragmentId )
+	{
+		return Arrays.binarySearch( fragments, fragmentId );
+	}
+
+	public boolean contains( final long fragmentId )
+	{
+		return fragmentIndex( fragmentId ) >= 0;
+	}
+
+	/**
+	 * Execute {@code procedure} for each block that contains a fragment, in
+	 * ascending order, until it returns false.
+	 *
+	 * @return false if {@code procedure} returned false
+	 */
+	public boolean forEachBlock( final long fragmentId, final TLongProcedure procedure )
+	{
+		final int k = fragmentIndex( fragmentId );
+		if ( k < 0 )
+			return true;
+
+		for ( int i = ( int ) offsets[ k ]; i < offsets[ k + 1 ]; ++i )
+			if ( !procedure.execute( blocks[ i ] ) )
+				return false;
+		return true;
+	}
+
+	/**
+	 * Get the sorted blocks that contain a fragment.
+	 */
+	public long[] getBlocks( final long fragmentId )
+	{
+		final int k = fragmentIndex( fragmentId );
+		if ( k < 0 )
+			return EMPTY;
+		return Arrays.copyOfRange( blocks, ( int ) offsets[ k ], ( int ) offsets[ k + 1 ] );
+	}
+
+	/**
+	 * Get the sorted blocks that contain any fragment of a segment.
+	 */
+	public long[] getSegmentBlocks( final long segmentId, final FragmentSegmentAssignment assignment )
+	{
+		final TLongHashSet segmentBlocks = new TLongHashSet();
+		assignment.forEachFragment( segmentId, fragmentId -> forEachBlock( fragmentId, block -> {
+			segmentBlocks.add( block );
+			return true;
+		} ) );
+		final long[] sorted = segmentBlocks.toArray();
+		Arrays.sort( sorted );
+		return sorted;
+	}
+
+	/**
+	 * Get the position of a block in the cell grid.
+	 */
+	public void getGridPosition( final long block, final long[] gridPosition )
+	{
+		IntervalIndexer.indexToPosition( block, gridDimensions, gridPosition );
+	}
+
+	/**
+	 * Get the interval of a block, cropped to the level.
+	 */
+	public Interval getBlockInterval( final long block )
+	{
+		final int n = dimensions.length;
+		final long[] min = new long[ n ];
+		final long[] max = new long[ n ];
+		getGridPosition( block, min );
+		for ( int d = 0; d < n; ++d )
+		{
+			min[ d ] *= blockSize[ d ];
+			max[ d ] = Math.min( min[ d ] + blockSize[ d ], dimensions[ d ] ) - 1;
+		}
+		return new FinalInterval( min, max );
+	}
+
+	/**
+	 * Get the distinct fragment ids of a block from its lists.  Each list is
+	 * visited once, however many pixels refer to it.
+	 */
+	static public long[] fragments( final VolatileLabelMultisetArray data )
+	{
+		final TIntHashSet visited = new TIntHashSet();
+		final TLongHashSet ids = new TLongHashSet( Constants.DEFAULT_CAPACITY, Constants.DEFAULT_LOAD_FACTOR, Label.TRANSPARENT );
+		final LabelMultisetEntryList list = new LabelMultisetEntryList();
+		for ( final int offset : data.getCurrentStorageArray() )
+		{
+			if ( visited.add( offset ) )
+			{
+				list.referToDataAt( data.getListData(), offset );
+				for ( final LabelMultisetEntry entry : list )
+					ids.add( entry.getId() );
+			}
+		}
+		return ids.toArray();
+	}
+
+	/**
+	 * Collects the fragments of the blocks of one level and builds the
+	 * index.  As a {@link DownscaleToHdf5.BlockWriter} and
+	 * {@link DownscaleToHdf5.LevelInfoWriter}, it passes blocks on to
+	 * another writer, so the index of a level is built while the level is
+	 * written.  Blocks can be added in any order, concurrent calls are
+	 * serialized.
+	 *
+	 * All (fragment, block) pairs of the level are kept in memory until
+	 * {@link #build()}, 16 bytes per pair, and {@link #build()} needs about
+	 * twice that again.  A fragment is usually contained in few blocks, so
+	 * this is a small multiple of the number of fragments, but the heap
+	 * must be sized for it.
+	 */
+	public static class Builder implements DownscaleToHdf5.BlockWriter, DownscaleToHdf5.LevelInfoWriter
+	{
+		final protected DownscaleToHdf5.BlockWriter writer;
+
+		final protected DownscaleToHdf5.LevelInfoWriter levelInfoWriter;
+
+		protected long[] dimensions;
+
+		protected long[] blockSize;
+
+		protected long[] gridDimensions;
+
+		/**
+		 * (fragment, block) pairs.
+		 */
+		final protected TLongArrayList pairFragments = new TLongArrayList();
+
+		final protected TLongArrayList pairBlocks = new TLongArrayList();
+
+		/**
+		 * @param writer
+		 *            writes the blocks, may be {@code null}
+		 * @param levelInfoWriter
+		 *            writes the level info, may be {@code null}
+		 */
+		public Builder( final DownscaleToHdf5.BlockWriter writer, final DownscaleToHdf5.LevelInfoWriter levelInfoWriter )
+		{
+			this.writer = writer;
+			this.levelInfoWriter = levelInfoWriter;
+		}
+
+		public Builder( final long[] dimensions, final long[] blockSize )
+		{
+			this( null, null );
+			writeLevelInfo( dimensions, null, blockSize );
+		}
+
+		@Override
+		public void writeLevelInfo( final long[] dimensions, final long[] factors, final long[] blocksize )
+		{
+			synchronized ( this )
+			{
+				this.dimensions = dimensions.clone();
+				this.blockSize = blocksize.clone();
+				this.gridDimensions = gridDimensions( dimensions, blocksize );
+				pairFragments.clear();
+				pairBlocks.clear();
+			}
+			if ( levelInfoWriter != null )
+				levelInfoWriter.writeLevelInfo( dimensions, factors, blocksize );
+		}
+
+		@Override
+		public void writeBlock( final VolatileLabelMultisetArray data, final long[] min, final long[] blocksize )
+		{
+			final long[] gridPosition = new long[ min.length ];
+			for ( int d = 0; d < min.length; ++d )
+				gridPosition[ d ] = min[ d ] / blockSize[ d ];
+			add( fragments( data ), gridPosition );
+			if ( writer != null )
+				writer.writeBlock( data, min, blocksize );
+		}
+
+		/**
+		 * Add the fragments of a block.
+		 */
+		public synchronized void add( final long[] fragmentIds, final long[] gridPosition )
+		{
+			final long block = IntervalIndexer.positionToIndex( gridPosition, gridDimensions );
+			for ( final long fragmentId : fragmentIds )
+			{
+				pairFragments.add( fragmentId );
+				pairBlocks.add( block );
+			}
+		}
+
+		/**
+		 * Add the fragments of all blocks of a level that was not written by
+		 * {@link DownscaleToHdf5}, e.g. level 0.  Blocks are loaded by
+		 * {@code loader} in parallel on {@code pool} and their fragments are
+		 * taken from the lists of each block, see
+		 * {@link H5FragmentBlockIndex#fragments(VolatileLabelMultisetArray)}.
+		 * The block size of this builder must be the cell size of
+		 * {@code loader}.
+		 *
+		 * @param loader
+		 * @param level
+		 *            the level passed to {@code loader}
+		 * @param pool
+		 */
+		public void addAll(
+				final CacheArrayLoader< VolatileLabelMultisetArray > loader,
+				final int level,
+				final ForkJoinPool pool )
+		{
+			final int n = dimensions.length;
+			final long numBlocks = Arrays.stream( gridDimensions ).reduce( 1, ( a, b ) -> a * b );
+			pool.submit( () -> LongStream.range( 0, numBlocks ).parallel().forEach( block -> {
+				final long[] gridPosition = new long[ n ];
+				final long[] min = new long[ n ];
+				final int[] blockDimensions = new int[ n ];
+				IntervalIndexer.indexToPosition( block, gridDimensions, gridPosition );
+				for ( int d = 0; d < n; ++d )
+				{
+					min[ d ] = gridPosition[ d ] * blockSize[ d ];
+					blockDimensions[ d ] = ( int ) ( Math.min( min[ d ] + blockSize[ d ], dimensions[ d ] ) - min[ d ] );
+				}
+				try
+				{
+					add( fragments( loader.loadArray( 0, 0, level, blockDimensions, min ) ), gridPosition );
+				}
+				catch ( final InterruptedException e )
+				{
+					Thread.currentThread().interrupt();
+					throw new RuntimeException( e );
+				}
+			} ) ).join();
+		}
+
+		/**
+		 * Add the fragments of blocks that were written before, e.g. by an
+		 * interrupted earlier run, by reading them back.
+		 *
+		 * @param levelReader
+		 * @param blocks
+		 *            flat indices of the blocks in the cell grid, x fastest
+		 */
+		public void addAll( final H5ConsolidatedLabelMultisets.LevelReader levelReader, final BitSet blocks )
+		{
+			final int n = dimensions.length;
+			final long[] gridPosition = new long[ n ];
+			final long[] min = new long[ n ];
+			final int[] blockDimensions = new int[ n ];
+			for ( int block = blocks.nextSetBit( 0 ); block >= 0; block = blocks.nextSetBit( block + 1 ) )
+			{
+				IntervalIndexer.indexToPosition( block, gridDimensions, gridPosition );
+				for ( int d = 0; d < n; ++d )
+				{
+					min[ d ] = gridPosition[ d ] * blockSize[ d ];
+					blockDimensions[ d ] = ( int ) ( Math.min( min[ d ] + blockSize[ d ], dimensions[ d ] ) - min[ d ] );
+				}
+				add( fragments( levelReader.read( blockDimensions, min ) ), gridPosition );
+			}
+		}
+
+		/**
+		 * Build the index from the blocks added so far.
+		 */
+		public synchronized H5FragmentBlockIndex build()
+		{
+			final long[] fragmentIds = pairFragments.toArray();
+			final long[] blockIds = pairBlocks.toArray();
+
+			/* unique fragments and their number of blocks */
+			final long[] sorted = fragmentIds.clone();
+			Arrays.sort( sorted );
+			int numFragments = 0;
+			final long[] offsets = new long[ sorted.length + 1 ];
+			for ( int i = 0; i < sorted.length; ++i )
+			{
+				if ( i == 0 || sorted[ i ] != sorted[ i - 1 ] )
+					sorted[ numFragments++ ] = sorted[ i ];
+				++offsets[ numFragments ];
+			}
+			for ( int k = 0; k < numFragments; ++k )
+				offsets[ k + 1 ] += offsets[ k ];
+
+			final long[] grouped = new long[ blockIds.length ];
+			final int[] counts = new int[ numFragments ];
+			for ( int i = 0; i < fragmentIds.length; ++i )
+			{
+				final int k = Arrays.binarySearch( sorted, 0, numFragments, fragmentIds[ i ] );
+				grouped[ ( int ) offsets[ k ] + counts[ k ]++ ] = blockIds[ i ];
+			}
+			for ( int k = 0; k < numFragments; ++k )
+				Arrays.sort( grouped, ( int ) offsets[ k ], ( int ) offsets[ k + 1 ] );
+
+			return new H5FragmentBlockIndex(
+					dimensions.clone(),
+					blockSize.clone(),
+					Arrays.copyOf( sorted, numFragments ),
+					Arrays.copyOf( offsets, numFragments + 1 ),
+					grouped );
+		}
+	}
+}
@@ -8,8 +8,6 @@ import bdv.labels.labelset.LabelMultisetEntryList;
 import bdv.labels.labelset.LongMappedAccessData;
 import bdv.labels.labelset.VolatileLabelMultisetArray;
 import ch.systemsx.cisd.base.mdarray.MDIntArray;
-import ch.systemsx.cisd.hdf5.IHDF5IntReader;
-import ch.systemsx.cisd.hdf5.IHDF5Reader;
 import gnu.trove.impl.Constants;
 import gnu.trove.map.hash.TLongIntHashMap;
 
@@ -21,15 +19,15 @@ import gnu.trove.map.hash.TLongIntHashMap;
  */
 public class H5IntLabelMultisetArrayLoader extends AbstractH5LabelMultisetArrayLoader
 {
-	final private IHDF5IntReader reader;
+	final private H5ReaderPool readers;
 
 	public H5IntLabelMultisetArrayLoader(
-			final IHDF5Reader reader,
-			final IHDF5Reader scaleReader,
+			final H5ReaderPool readers,
+			final H5ReaderPool scaleReaders,
 			final String dataset )
 	{
-		super( scaleReader, dataset );
-		this.reader = reader.int32();
+		super( scaleReaders, dataset );
+		this.readers = readers;
 	}
 
 	@Override
@@ -45,10 +43,10 @@ public class H5IntLabelMultisetArrayLoader extends AbstractH5LabelMultisetArrayL
 	{
 		int[] data = null;
 
-		final MDIntArray block = reader.readMDArrayBlockWithOffset(
+		final MDIntArray block = readers.read( r -> r.int32().readMDArrayBlockWithOffset(
 				dataset,
 				new int[]{ dimensions[ 2 ], dimensions[ 1 ], dimensions[ 0 ] },
-				new long[]{ min[ 2 ], min[ 1 ], min[ 0 ] } );
+				new long[]{ min[ 2 ], min[ 1 ], min[ 0 ] } ) );
 
 		data = block.getAsFlatArray();
 
@@ -6,6 +6,7 @@ import bdv.AbstractCachedViewerSetupImgLoader;
 import bdv.ViewerImgLoader;
 import bdv.ViewerSetupImgLoader;
 import bdv.cache.CacheControl;
+import bdv.img.LabelMultisetDiskCache;
 import bdv.img.SetCache;
 import bdv.img.cache.CacheArrayLoader;
 import bdv.img.cache.VolatileGlobalCellCache;
@@ -27,26 +28,46 @@ public class H5LabelMultisetSetupImageLoader
 		extends AbstractCachedViewerSetupImgLoader< LabelMultisetType, VolatileLabelMultisetType, VolatileLabelMultisetArray >
 		implements ViewerImgLoader, SetCache
 {
-	static private CacheArrayLoader< VolatileLabelMultisetArray > typedLoader(
-			final IHDF5Reader reader,
-			final IHDF5Reader scaleReader,
+	static public CacheArrayLoader< VolatileLabelMultisetArray > typedLoader(
+			final H5ReaderPool readers,
+			final H5ReaderPool scaleReaders,
 			final String dataset )
 	{
-		final HDF5DataSetInformation typeInfo = reader.object().getDataSetInformation( dataset );
+		final HDF5DataSetInformation typeInfo = readers.getReader().object().getDataSetInformation( dataset );
 		final Class< ? > cls = typeInfo.getTypeInformation().tryGetJavaType();
 //		System.out.println( typeInfo.getTypeInformation().tryGetJavaType().toString() );
 		if ( float.class == cls )
-			return new H5FloatLabelMultisetArrayLoader( reader, scaleReader, dataset );
+			return new H5FloatLabelMultisetArrayLoader( readers, scaleReaders, dataset );
 		else if ( short.class == cls )
-			return new H5ShortLabelMultisetArrayLoader( reader, scaleReader, dataset );
+			return new H5ShortLabelMultisetArrayLoader( readers, scaleReaders, dataset );
 		else if ( int.class == cls )
-			return new H5IntLabelMultisetArrayLoader( reader, scaleReader, dataset );
+			return new H5IntLabelMultisetArrayLoader( readers, scaleReaders, dataset );
 		else if ( long.class == cls )
-			return new H5LongLabelMultisetArrayLoader( reader, scaleReader, dataset );
+			return new H5LongLabelMultisetArrayLoader( readers, scaleReaders, dataset );
 		else
 			return null;
 	}
 
+	/**
+	 * Wrap {@code loader} in the {@link LabelMultisetDiskCache#getDefault()
+	 * default disk cache} if there is one.
+	 */
+	static private CacheArrayLoader< VolatileLabelMultisetArray > diskCachedLoader(
+			final CacheArrayLoader< VolatileLabelMultisetArray > loader,
+			final IHDF5Reader reader,
+			final String dataset )
+	{
+		final LabelMultisetDiskCache diskCache = LabelMultisetDiskCache.getDefault();
+		if ( diskCache == null )
+			return loader;
+		return diskCache.wrap( loader, LabelMultisetDiskCache.key( reader, dataset ) );
+	}
+
+	static private IHDF5Reader scaleReader( final H5ReaderPool scaleReaders )
+	{
+		return scaleReaders == null ? null : scaleReaders.getReader();
+	}
+
 	static private long[][] readDimensions(
 			final IHDF5Reader reader,
 			final IHDF5Reader scaleReader,
@@ -131,13 +152,13 @@ public class H5LabelMultisetSetupImageLoader
 		}
 	}
 
-	final static protected double[] readResolution( final IHDF5Reader reader, final String dataset )
+	final static public double[] readResolution( final IHDF5Reader reader, final String dataset )
 	{
 		final double[] h5res = reader.float64().getArrayAttr( dataset, "resolution" );
 		return new double[] { h5res[ 2 ], h5res[ 1 ], h5res[ 0 ] };
 	}
 
-	final static protected double[] readOffset( final IHDF5Reader reader, final String dataset )
+	final static public double[] readOffset( final IHDF5Reader reader, final String dataset )
 	{
 		final double[] h5res = reader.float64().getArrayAttr( dataset, "offset" );
 		return new double[] { h5res[ 2 ], h5res[ 1 ], h5res[ 0 ] };
@@ -146,8 +167,8 @@ public class H5LabelMultisetSetupImageLoader
 	private final double[] offset;
 
 	public H5LabelMultisetSetupImageLoader(
-			final IHDF5Reader reader,
-			final IHDF5Reader scaleReader,
+			final H5ReaderPool readers,
+			final H5ReaderPool scaleReaders,
 			final String dataset,
 			final int setupId,
 			final int[] cellDimension,
@@ -157,12 +178,12 @@ public class H5LabelMultisetSetupImageLoader
 	{
 
 		super( setupId,
-				readDimensions( reader, scaleReader, dataset ),
-				readCellDimensions( reader, scaleReader, dataset, cellDimension ),
-				readResolutions( reader, scaleReader, dataset, resolution ),
+				readDimensions( readers.getReader(), scaleReader( scaleReaders ), dataset ),
+				readCellDimensions( readers.getReader(), scaleReader( scaleReaders ), dataset, cellDimension ),
+				readResolutions( readers.getReader(), scaleReader( scaleReaders ), dataset, resolution ),
 				new LabelMultisetType(),
 				new VolatileLabelMultisetType(),
-				typedLoader( reader, scaleReader, dataset ),
+				diskCachedLoader( typedLoader( readers, scaleReaders, dataset ), readers.getReader(), dataset ),
 				cache );
 		this.offset = offset;
 		/* offset mipmap transforms */
@@ -177,14 +198,14 @@ public class H5LabelMultisetSetupImageLoader
 	}
 
 	public H5LabelMultisetSetupImageLoader(
-			final IHDF5Reader reader,
-			final IHDF5Reader scaleReader,
+			final H5ReaderPool readers,
+			final H5ReaderPool scaleReaders,
 			final String dataset,
 			final int setupId,
 			final int[] cellDimension,
 			final VolatileGlobalCellCache cache ) throws IOException
 	{
-		this( reader, scaleReader, dataset, setupId, cellDimension, readResolution( reader, dataset ), readOffset( reader, dataset ), cache );
+		this( readers, scaleReaders, dataset, setupId, cellDimension, readResolution( readers.getReader(), dataset ), readOffset( readers.getReader(), dataset ), cache );
 	}
 
 	@Override
@@ -8,8 +8,6 @@ import bdv.labels.labelset.LabelMultisetEntryList;
 import bdv.labels.labelset.LongMappedAccessData;
 import bdv.labels.labelset.VolatileLabelMultisetArray;
 import ch.systemsx.cisd.base.mdarray.MDLongArray;
-import ch.systemsx.cisd.hdf5.IHDF5LongReader;
-import ch.systemsx.cisd.hdf5.IHDF5Reader;
 import gnu.trove.impl.Constants;
 import gnu.trove.map.hash.TLongIntHashMap;
 
@@ -20,15 +18,15 @@ import gnu.trove.map.hash.TLongIntHashMap;
  */
 public class H5LongLabelMultisetArrayLoader extends AbstractH5LabelMultisetArrayLoader
 {
-	final private IHDF5LongReader reader;
+	final private H5ReaderPool readers;
 
 	public H5LongLabelMultisetArrayLoader(
-			final IHDF5Reader reader,
-			final IHDF5Reader scaleReader,
+			final H5ReaderPool readers,
+			final H5ReaderPool scaleReaders,
 			final String dataset )
 	{
-		super( scaleReader, dataset );
-		this.reader = reader.uint64();
+		super( scaleReaders, dataset );
+		this.readers = readers;
 	}
 
 	@Override
@@ -44,10 +42,10 @@ public class H5LongLabelMultisetArrayLoader extends AbstractH5LabelMultisetArray
 	{
 		long[] data = null;
 
-		final MDLongArray block = reader.readMDArrayBlockWithOffset(
+		final MDLongArray block = readers.read( r -> r.uint64().readMDArrayBlockWithOffset(
 				dataset,
 				new int[]{ dimensions[ 2 ], dimensions[ 1 ], dimensions[ 0 ] },
-				new long[]{ min[ 2 ], min[ 1 ], min[ 0 ] } );
+				new long[]{ min[ 2 ], min[ 1 ], min[ 0 ] } ) );
 
 		data = block.getAsFlatArray();
 
@@ -0,0 +1,291 @@
+package bdv.img.h5;
+
+import static bdv.img.hdf5.Util.reorder;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import bdv.bigcat.label.FragmentSegmentAssignment;
+import bdv.labels.labelset.Label;
+import bdv.labels.labelset.LabelMultisetType;
+import ch.systemsx.cisd.base.mdarray.MDLongArray;
+import ch.systemsx.cisd.hdf5.HDF5Factory;
+import ch.systemsx.cisd.hdf5.IHDF5LongWriter;
+import ch.systemsx.cisd.hdf5.IHDF5Writer;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessible;
+import net.imglib2.type.numeric.integer.LongType;
+import net.imglib2.util.IntervalIndexer;
+import net.imglib2.util.Intervals;
+
+/**
+ * Multi-threaded variant of
+ * {@link H5Utils#saveAssignedSingleElementLabelMultisetLongPair(RandomAccessible, RandomAccessible, Interval, FragmentSegmentAssignment, File, String, int[])}.
+ *
+ * Cells are computed by a pool of workers, each with its own
+ * {@link RandomAccess}es into the sources.  The calling thread is the only
+ * thread that writes to the HDF5 file.  It writes the cells in order while
+ * at most {@link #queueSize} cells are computed ahead of it, and reports
+ * throughput in voxels per second.
+ */
+public class H5ParallelLabelExport
+{
+	final protected int numThreads;
+
+	final protected int queueSize;
+
+	/**
+	 * Interval in ms between progress messages.
+	 */
+	public long reportInterval = 5000;
+
+	public H5ParallelLabelExport( final int numThreads )
+	{
+		this( numThreads, 4 * numThreads );
+	}
+
+	public H5ParallelLabelExport( final int numThreads, final int queueSize )
+	{
+		this.numThreads = numThreads;
+		this.queueSize = queueSize;
+	}
+
+	/**
+	 * A computed cell.
+	 */
+	static protected class Block
+	{
+		final protected long[] offset;
+
+		final protected long[] dimensions;
+
+		final protected long[] data;
+
+		public Block( final long[] offset, final long[] dimensions, final long[] data )
+		{
+			this.offset = offset;
+			this.dimensions = dimensions;
+			this.data = data;
+		}
+	}
+
+	/**
+	 * Save the combination of a single element {@link LabelMultisetType}
+	 * source and a fragment to segment assignment table and a
+	 * {@link LongType} overlay with transparent pixels into an HDF5 uint64
+	 * dataset.
+	 *
+	 * @param labelMultisetSource
+	 *            the background
+	 * @param labelSource
+	 *            the overlay
+	 * @param interval
+	 *            the interval to be saved
+	 * @param assignment
+	 *            fragment to segment assignment
+	 * @param writer
+	 * @param dataset
+	 * @param cellDimensions
+	 * @throws InterruptedException
+	 * @throws ExecutionException
+	 */
+	public void saveAssignedSingleElementLabelMultisetLongPair(
+			final RandomAccessible< LabelMultisetType > labelMultisetSource,
+			final RandomAccessible< LongType > labelSource,
+			final Interval interval,
+			final FragmentSegmentAssignment assignment,
+			final IHDF5Writer writer,
+			final String dataset,
+			final int[] cellDimensions ) throws InterruptedException, ExecutionException
+	{
+		assert labelMultisetSource.numDimensions() == labelSource.numDimensions() &&
+				labelSource.numDimensions() == interval.numDimensions(): "input dimensions do not match";
+
+		if ( !writer.exists( dataset ) )
+			H5Utils.createUnsignedLong( writer, dataset, interval, cellDimensions );
+
+		final long[] dimensions = reorder( writer.object().getDimensions( dataset ) );
+		final int n = interval.numDimensions();
+
+		/* crop to the dataset */
+		final long[] size = new long[ n ];
+		final long[] numBlocks = new long[ n ];
+		for ( int d = 0; d < n; ++d )
+		{
+			size[ d ] = Math.min( dimensions[ d ], interval.dimension( d ) );
+			numBlocks[ d ] = ( size[ d ] + cellDimensions[ d ] - 1 ) / cellDimensions[ d ];
+		}
+		final long numBlocksTotal = Intervals.numElements( numBlocks );
+		final long numVoxels = Intervals.numElements( size );
+		final long[] min = Intervals.minAsLongArray( interval );
+
+		final ThreadLocal< RandomAccess< LabelMultisetType > > labelMultisetAccess = ThreadLocal.withInitial( labelMultisetSource::randomAccess );
+		final ThreadLocal< RandomAccess< LongType > > labelAccess = ThreadLocal.withInitial( labelSource::randomAccess );
+
+		final IHDF5LongWriter uint64Writer = writer.uint64();
+		final ExecutorService exec = Executors.newFixedThreadPool( numThreads );
+		final ArrayDeque< Future< Block > > queue = new ArrayDeque<>( queueSize );
+		try
+		{
+			final long t0 = System.currentTimeMillis();
+			long t = t0;
+			long writtenVoxels = 0;
+			long nextBlock = 0;
+			for ( long b = 0; b < numBlocksTotal; ++b )
+			{
+				while ( nextBlock < numBlocksTotal && queue.size() < queueSize )
+				{
+					final long blockIndex = nextBlock++;
+					queue.add( exec.submit( () -> computeBlock(
+							labelMultisetAccess.get(),
+							labelAccess.get(),
+							assignment,
+							min,
+							size,
+							numBlocks,
+							cellDimensions,
+							blockIndex ) ) );
+				}
+
+				final Block block = queue.poll().get();
+				uint64Writer.writeMDArrayBlockWithOffset(
+						dataset,
+						new MDLongArray( block.data, reorder( block.dimensions ) ),
+						reorder( block.offset ) );
+				writtenVoxels += block.data.length;
+
+				final long now = System.currentTimeMillis();
+				if ( now - t > reportInterval )
+				{
+					System.out.println( String.format(
+							"  %d/%d blocks, %.0f voxels/s",
+							b + 1,
+							numBlocksTotal,
+							writtenVoxels * 1000.0 / ( now - t0 ) ) );
+					t = now;
+				}
+			}
+
+			final long elapsed = Math.max( 1, System.currentTimeMillis() - t0 );
+			System.out.println( String.format(
+					"  exported %d voxels in %d blocks in %.1fs, %.0f voxels/s",
+					numVoxels,
+					numBlocksTotal,
+					elapsed / 1000.0,
+					numVoxels * 1000.0 / elapsed ) );
+		}
+		finally
+		{
+			for ( final Future< Block > future : queue )
+				future.cancel( true );
+			exec.shutdown();
+		}
+	}
+
+	/**
+	 * Save the combination of a single element {@link LabelMultisetType}
+	 * source and a fragment to segment assignment table and a
+	 * {@link LongType} overlay with transparent pixels into an HDF5 uint64
+	 * dataset.
+	 *
+	 * @param labelMultisetSource
+	 * @param labelSource
+	 * @param interval
+	 * @param assignment
+	 * @param file
+	 * @param dataset
+	 * @param cellDimensions
+	 * @throws InterruptedException
+	 * @throws ExecutionException
+	 */
+	public void saveAssignedSingleElementLabelMultisetLongPair(
+			final RandomAccessible< LabelMultisetType > labelMultisetSource,
+			final RandomAccessible< LongType > labelSource,
+			final Interval interval,
+			final FragmentSegmentAssignment assignment,
+			final File file,
+			final String dataset,
+			final int[] cellDimensions ) throws InterruptedException, ExecutionException
+	{
+		final IHDF5Writer writer = HDF5Factory.open( file );
+		try
+		{
+			saveAssignedSingleElementLabelMultisetLongPair( labelMultisetSource, labelSource, interval, assignment, writer, dataset, cellDimensions );
+		}
+		finally
+		{
+			writer.close();
+		}
+	}
+
+	/**
+	 * Compute a cell in flat iteration order.
+	 *
+	 * @param labelMultisetAccess
+	 * @param labelAccess
+	 * @param assignment
+	 * @param min
+	 *            min of the exported interval in source coordinates
+	 * @param size
+	 *            size of the exported interval
+	 * @param numBlocks
+	 *            number of cells per dimension
+	 * @param cellDimensions
+	 * @param blockIndex
+	 *            flat index of the cell
+	 * @return
+	 */
+	static protected Block computeBlock(
+			final RandomAccess< LabelMultisetType > labelMultisetAccess,
+			final RandomAccess< LongType > labelAccess,
+			final FragmentSegmentAssignment assignment,
+			final long[] min,
+			final long[] size,
+			final long[] numBlocks,
+			final int[] cellDimensions,
+			final long blockIndex )
+	{
+		final int n = min.length;
+		final long[] offset = new long[ n ];
+		final long[] dimensions = new long[ n ];
+		IntervalIndexer.indexToPosition( blockIndex, numBlocks, offset );
+		for ( int d = 0; d < n; ++d )
+		{
+			offset[ d ] *= cellDimensions[ d ];
+			dimensions[ d ] = Math.min( cellDimensions[ d ], size[ d ] - offset[ d ] );
+			labelMultisetAccess.setPosition( min[ d ] + offset[ d ], d );
+			labelAccess.setPosition( min[ d ] + offset[ d ], d );
+		}
+
+		final long[] data = new long[ ( int )Intervals.numElements( dimensions ) ];
+		final long[] position = new long[ n ];
+		for ( int i = 0; i < data.length; ++i )
+		{
+			final long label = labelAccess.get().get();
+			final long fragmentId = label == Label.TRANSPARENT ?
+					labelMultisetAccess.get().entrySet().iterator().next().getElement().id() :
+					label;
+			data[ i ] = assignment.getSegment( fragmentId );
+
+			for ( int d = 0; d < n; ++d )
+			{
+				if ( ++position[ d ] < dimensions[ d ] )
+				{
+					labelMultisetAccess.fwd( d );
+					labelAccess.fwd( d );
+					break;
+				}
+				position[ d ] = 0;
+				labelMultisetAccess.move( 1 - dimensions[ d ], d );
+				labelAccess.move( 1 - dimensions[ d ], d );
+			}
+		}
+
+		return new Block( offset, dimensions, data );
+	}
+}
@@ -0,0 +1,288 @@
+package bdv.img.h5;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import ch.systemsx.cisd.hdf5.HDF5Factory;
+import ch.systemsx.cisd.hdf5.IHDF5Reader;
+
+/**
+ * A pool of {@link IHDF5Reader}s of one file, such that concurrent block
+ * loads do not queue behind one shared reader.
+ *
+ * The pool starts with the reader it is created from and opens further
+ * read-only readers of the same file on demand, up to its size.  If the
+ * file cannot be opened again (e.g. because it is open for writing), the
+ * pool keeps the readers it has.  Readers opened by the pool are closed by
+ * {@link #close()}, the initial reader is owned by the caller.
+ *
+ * The HDF5 loaders read through a pool instead of a reader.  Whoever opens
+ * a file creates one pool for it, passes it to the loaders of all datasets
+ * in that file, such that they share its readers instead of each opening
+ * their own, and closes it together with the file when the loaders are no
+ * longer used (e.g. when the viewer is closed).  Files that are written
+ * while they are read should be read with a pool of size 1, which never
+ * opens readers and need not be closed.
+ *
+ * The pool size defaults to the system property {@value #SIZE_PROPERTY} or
+ * the number of processors, at most 4.  Per reader, the number of reads and
+ * their latency are recorded, as is the time spent waiting for a free reader.
+ *
+ * Note that jhdf5 still serializes calls into the native HDF5 library, the
+ * pool lets Java side work of concurrent reads (array allocation and
+ * conversion, label multiset creation) overlap and stops readers from being
+ * held while callers process their data.
+ */
+public class H5ReaderPool
+{
+	final static public String SIZE_PROPERTY = "bigcat.h5.readers";
+
+	public static int defaultSize()
+	{
+		return Math.max( 1, Integer.getInteger( SIZE_PROPERTY, Math.min( 4, Runtime.getRuntime().availableProcessors() ) ) );
+	}
+
+	/**
+	 * Read statistics of one reader.  Updated only by the thread that
+	 * currently holds the reader.
+	 */
+	public static class Statistics
+	{
+		private final int index;
+
+		private volatile long numReads = 0;
+
+		private volatile long nanos = 0;
+
+		private volatile long maxNanos = 0;
+
+		Statistics( final int index )
+		{
+			this.index = index;
+		}
+
+		void record( final long t )
+		{
+			++numReads;
+			nanos += t;
+			if ( t > maxNanos )
+				maxNanos = t;
+		}
+
+		public int getIndex()
+		{
+			return index;
+		}
+
+		public long getNumReads()
+		{
+			return numReads;
+		}
+
+		public long getNanos()
+		{
+			return nanos;
+		}
+
+		public long getMaxNanos()
+		{
+			return maxNanos;
+		}
+
+		public double getMeanMillis()
+		{
+			final long n = numReads;
+			return n == 0 ? 0 : nanos / 1e6 / n;
+		}
+
+		@Override
+		public String toString()
+		{
+			return String.format( "reader %d: %d reads, mean %.2f ms, max %.2f ms", index, numReads, getMeanMillis(), maxNanos / 1e6 );
+		}
+	}
+
+	private static class PooledReader
+	{
+		final IHDF5Reader reader;
+
+		final Statistics statistics;
+
+		/**
+		 * Set by {@link H5ReaderPool#close()}, guarded by this.
+		 */
+		boolean closed = false;
+
+		PooledReader( final IHDF5Reader reader, final int index )
+		{
+			this.reader = reader;
+			statistics = new Statistics( index );
+		}
+	}
+
+	private final IHDF5Reader reader;
+
+	private final File file;
+
+	private final int size;
+
+	private final LinkedBlockingQueue< PooledReader > idle = new LinkedBlockingQueue<>();
+
+	/**
+	 * All readers, guarded by this.
+	 */
+	private final ArrayList< PooledReader > readers = new ArrayList<>();
+
+	private boolean canOpen = true;
+
+	private final LongAdder waitNanos = new LongAdder();
+
+	private final LongAdder numWaits = new LongAdder();
+
+	/**
+	 * @param reader
+	 *            the first reader of the pool, not closed by the pool
+	 * @param size
+	 *            maximum number of readers
+	 */
+	public H5ReaderPool( final IHDF5Reader reader, final int size )
+	{
+		this.reader = reader;
+		file = reader.file().getFile();
+		this.size = size;
+		final PooledReader first = new PooledReader( reader, 0 );
+		readers.add( first );
+		idle.add( first );
+	}
+
+	public H5ReaderPool( final IHDF5Reader reader )
+	{
+		this( reader, defaultSize() );
+	}
+
+	/**
+	 * Apply {@code read} to a reader that no other thread uses meanwhile.
+	 * {@code read} should only read, processing the data after returning
+	 * frees the reader for other threads earlier.
+	 */
+	public < R > R read( final Function< IHDF5Reader, R > read ) throws InterruptedException
+	{
+		PooledReader pooled = idle.poll();
+		if ( pooled == null )
+			pooled = tryOpen();
+		if ( pooled == null )
+		{
+			final long t = System.nanoTime();
+			pooled = idle.take();
+			waitNanos.add( System.nanoTime() - t );
+			numWaits.increment();
+		}
+
+		final long t = System.nanoTime();
+		try
+		{
+			return read.apply( pooled.reader );
+		}
+		finally
+		{
+			pooled.statistics.record( System.nanoTime() - t );
+			synchronized ( pooled )
+			{
+				if ( pooled.closed )
+					pooled.reader.close();
+				else
+					idle.add( pooled );
+			}
+		}
+	}
+
+	private synchronized PooledReader tryOpen()
+	{
+		if ( !canOpen || readers.size() >= size )
+			return null;
+		try
+		{
+			final PooledReader pooled = new PooledReader( HDF5Factory.openForReading( file ), readers.size() );
+			readers.add( pooled );
+			return pooled;
+		}
+		catch ( final RuntimeException e )
+		{
+			canOpen = false;
+			System.out.println( "Could not open another reader of " + file + ", continuing with " + readers.size() + ": " + e.getMessage() );
+			return null;
+		}
+	}
+
+	/**
+	 * @return the reader the pool was created from, for reading metadata
+	 */
+	public IHDF5Reader getReader()
+	{
+		return reader;
+	}
+
+	public File getFile()
+	{
+		return file;
+	}
+
+	public int getSize()
+	{
+		return size;
+	}
+
+	public synchronized int getNumReaders()
+	{
+		return readers.size();
+	}
+
+	public synchronized List< Statistics > getStatistics()
+	{
+		final ArrayList< Statistics > statistics = new ArrayList<>();
+		for ( final PooledReader pooled : readers )
+			statistics.add( pooled.statistics );
+		return statistics;
+	}
+
+	/**
+	 * @return total time threads waited for a free reader
+	 */
+	public long getWaitNanos()
+	{
+		return waitNanos.sum();
+	}
+
+	/**
+	 * @return number of reads that had to wait for a free reader
+	 */
+	public long getNumWaits()
+	{
+		return numWaits.sum();
+	}
+
+	/**
+	 * Close the readers opened by the pool.  Readers that are in use are
+	 * closed when their read is done, later reads use the initial reader.
+	 */
+	public synchronized void close()
+	{
+		for ( int i = 1; i < readers.size(); ++i )
+		{
+			final PooledReader pooled = readers.get( i );
+			synchronized ( pooled )
+			{
+				pooled.closed = true;
+				if ( idle.remove( pooled ) )
+					pooled.reader.close();
+			}
+		}
+		while ( readers.size() > 1 )
+			readers.remove( readers.size() - 1 );
+		canOpen = false;
+	}
+}
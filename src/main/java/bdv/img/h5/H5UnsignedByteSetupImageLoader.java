@@ -3,7 +3,6 @@ package bdv.img.h5;
 import java.io.IOException;
 
 import bdv.img.cache.VolatileGlobalCellCache;
-import ch.systemsx.cisd.hdf5.IHDF5Reader;
 import net.imglib2.img.basictypeaccess.volatiles.array.VolatileByteArray;
 import net.imglib2.type.numeric.integer.UnsignedByteType;
 import net.imglib2.type.volatiles.VolatileUnsignedByteType;
@@ -16,7 +15,7 @@ public class H5UnsignedByteSetupImageLoader
 		extends AbstractH5SetupImageLoader< UnsignedByteType, VolatileUnsignedByteType, VolatileByteArray >
 {
 	public H5UnsignedByteSetupImageLoader(
-			final IHDF5Reader reader,
+			final H5ReaderPool readers,
 			final String dataset,
 			final int setupId,
 			final int[] blockDimension,
@@ -24,33 +23,33 @@ public class H5UnsignedByteSetupImageLoader
 			final VolatileGlobalCellCache cache ) throws IOException
 	{
 		super(
-				reader,
+				readers,
 				dataset,
 				setupId,
 				blockDimension,
 				resolution,
-				readOffset( reader, dataset ),
+				readOffset( readers.getReader(), dataset ),
 				new UnsignedByteType(),
 				new VolatileUnsignedByteType(),
-				new H5ByteArrayLoader( reader, dataset ),
+				new H5ByteArrayLoader( readers, dataset ),
 				cache );
 	}
 
 	public H5UnsignedByteSetupImageLoader(
-			final IHDF5Reader reader,
+			final H5ReaderPool readers,
 			final String dataset,
 			final int setupId,
 			final int[] blockDimension,
 			final VolatileGlobalCellCache cache ) throws IOException
 	{
 		super(
-				reader,
+				readers,
 				dataset,
 				setupId,
 				blockDimension,
 				new UnsignedByteType(),
 				new VolatileUnsignedByteType(),
-				new H5ByteArrayLoader( reader, dataset ),
+				new H5ByteArrayLoader( readers, dataset ),
 				cache );
 	}
 }
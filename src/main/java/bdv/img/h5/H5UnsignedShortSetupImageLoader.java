@@ -3,7 +3,6 @@ package bdv.img.h5;
 import java.io.IOException;
 
 import bdv.img.cache.VolatileGlobalCellCache;
-import ch.systemsx.cisd.hdf5.IHDF5Reader;
 import net.imglib2.img.basictypeaccess.volatiles.array.VolatileShortArray;
 import net.imglib2.type.numeric.integer.UnsignedShortType;
 import net.imglib2.type.volatiles.VolatileUnsignedShortType;
@@ -16,25 +15,25 @@ public class H5UnsignedShortSetupImageLoader
 		extends AbstractH5SetupImageLoader< UnsignedShortType, VolatileUnsignedShortType, VolatileShortArray >
 {
 	public H5UnsignedShortSetupImageLoader(
-			final IHDF5Reader reader,
+			final H5ReaderPool readers,
 			final String dataset,
 			final int setupId,
 			final int[] cellDimension,
 			final VolatileGlobalCellCache cache ) throws IOException
 	{
 		super(
-				reader,
+				readers,
 				dataset,
 				setupId,
 				cellDimension,
 				new UnsignedShortType(),
 				new VolatileUnsignedShortType(),
-				new H5ShortArrayLoader( reader, dataset ),
+				new H5ShortArrayLoader( readers, dataset ),
 				cache );
 	}
 
 	public H5UnsignedShortSetupImageLoader(
-			final IHDF5Reader reader,
+			final H5ReaderPool readers,
 			final String dataset,
 			final int setupId,
 			final int[] cellDimension,
@@ -42,7 +41,7 @@ public class H5UnsignedShortSetupImageLoader
 			final VolatileGlobalCellCache cache ) throws IOException
 	{
 		super(
-				reader,
+				readers,
 				dataset,
 				setupId,
 				cellDimension,
@@ -50,7 +49,7 @@ public class H5UnsignedShortSetupImageLoader
 				new double[ 3 ],
 				new UnsignedShortType(),
 				new VolatileUnsignedShortType(),
-				new H5ShortArrayLoader( reader, dataset ),
+				new H5ShortArrayLoader( readers, dataset ),
 				cache );
 	}
 }
@@ -1038,6 +1038,115 @@ public class H5Utils
 		saveUnsignedLong( source, new File( filePath ), dataset, cellDimensions );
 	}
 
+	/**
+	 * Save selected cells of a {@link RandomAccessibleInterval} of
+	 * {@link LongType} into an existing HDF5 uint64 dataset.  If the dataset
+	 * does not exist, it is created and the entire source is saved.
+	 *
+	 * @param source
+	 *            source
+	 * @param writer
+	 * @param dataset
+	 * @param grid
+	 *            cell grid of the source, the cell dimensions should match
+	 *            the chunk dimensions of the dataset
+	 * @param blocks
+	 *            flat indices of the cells in the grid
+	 */
+	static public <T extends IntegerType<T>> void saveUnsignedLongBlocks(
+			final RandomAccessibleInterval<T> source,
+			final IHDF5Writer writer,
+			final String dataset,
+			final CellGrid grid,
+			final long[] blocks )
+	{
+		final int n = source.numDimensions();
+		final int[] cellDimensions = new int[ n ];
+		grid.cellDimensions( cellDimensions );
+
+		if ( !writer.exists( dataset ) )
+		{
+			saveUnsignedLong( source, writer, dataset, cellDimensions );
+			return;
+		}
+
+		final long[] dimensions = reorder( writer.object().getDimensions( dataset ) );
+
+		final IHDF5LongWriter uint64Writer = writer.uint64();
+
+		final long[] offset = new long[ n ];
+		final int[] gridCellDimensions = new int[ n ];
+		final long[] sourceCellDimensions = new long[ n ];
+		for ( final long block : blocks )
+		{
+			grid.getCellDimensions( block, offset, gridCellDimensions );
+			boolean empty = false;
+			for ( int d = 0; d < n; ++d )
+			{
+				sourceCellDimensions[ d ] = Math.min( gridCellDimensions[ d ], dimensions[ d ] - offset[ d ] );
+				empty |= sourceCellDimensions[ d ] <= 0;
+			}
+			if ( empty )
+				continue;
+
+			final RandomAccessibleInterval<T> sourceBlock = Views.offsetInterval( source, offset, sourceCellDimensions );
+			final MDLongArray targetCell = new MDLongArray( reorder( sourceCellDimensions ) );
+			int i = 0;
+			for ( final T t : Views.flatIterable( sourceBlock ) )
+				targetCell.set( t.getIntegerLong(), i++ );
+
+			uint64Writer.writeMDArrayBlockWithOffset( dataset, targetCell, reorder( offset ) );
+		}
+	}
+
+	/**
+	 * Save selected cells of a {@link RandomAccessibleInterval} of
+	 * {@link LongType} into an existing HDF5 uint64 dataset.  If the dataset
+	 * does not exist, it is created and the entire source is saved.
+	 *
+	 * @param source
+	 * @param file
+	 * @param dataset
+	 * @param grid
+	 * @param blocks
+	 */
+	static public <T extends IntegerType<T>> void saveUnsignedLongBlocks(
+			final RandomAccessibleInterval<T> source,
+			final File file,
+			final String dataset,
+			final CellGrid grid,
+			final long[] blocks )
+	{
+		final IHDF5Writer writer = HDF5Factory.open( file );
+		saveUnsignedLongBlocks( source, writer, dataset, grid, blocks );
+		writer.close();
+	}
+
+	/**
+	 * Save a block of longs in flat iteration order (first dimension
+	 * fastest) into an existing HDF5 uint64 dataset.
+	 *
+	 * @param data
+	 * @param writer
+	 * @param dataset
+	 * @param offset
+	 *            offset of the block in the dataset
+	 * @param blockDimensions
+	 *            dimensions of the block, must fit into the dataset
+	 */
+	static public void saveUnsignedLongBlock(
+			final long[] data,
+			final IHDF5Writer writer,
+			final String dataset,
+			final long[] offset,
+			final long[] blockDimensions )
+	{
+		writer.uint64().writeMDArrayBlockWithOffset(
+				dataset,
+				new MDLongArray( data, reorder( blockDimensions ) ),
+				reorder( offset ) );
+	}
+
 	/**
 	 * Create anHDF5 int64 dataset.
 	 *
@@ -1256,11 +1365,25 @@ public class H5Utils
 	}
 
 	/**
-	 * Load a long to long lookup table from an HDF5 dataset
+	 * Number of lookup table entries read at once by
+	 * {@link #loadLongLongLut(IHDF5Reader, String, int)}, rounded up to a
+	 * multiple of the block size.
+	 */
+	final static public int LUT_SLAB_SIZE = 1 << 20;
+
+	/**
+	 * Load a long to long lookup table from an HDF5 dataset.  The table is
+	 * read in slabs of {@link #LUT_SLAB_SIZE} entries aligned with the
+	 * blocks of the dataset into a map that is presized to the number of
+	 * entries.  Assignments saved by the viewer may have a journal of
+	 * later changes, load them with
+	 * {@link H5AssignmentJournal#load(IHDF5Reader, String, int)}.
 	 *
 	 * @param reader
 	 * @param dataset
 	 * @param blockSize
+	 *            block size of the dataset as passed to
+	 *            {@link #saveLongLongLut(TLongLongHashMap, IHDF5Writer, String, int)}
 	 */
 	static public TLongLongHashMap loadLongLongLut(
 			final IHDF5Reader reader,
@@ -1280,23 +1403,26 @@ public class H5Utils
 		}
 
 		final long size = dimensions[ 1 ];
+		final int slabSize = ( ( LUT_SLAB_SIZE + blockSize - 1 ) / blockSize ) * blockSize;
 
 		final TLongLongHashMap lut = new TLongLongHashMap(
-				Constants.DEFAULT_CAPACITY,
+				( int ) Math.min( Integer.MAX_VALUE, size ),
 				Constants.DEFAULT_LOAD_FACTOR,
 				Label.TRANSPARENT,
 				Label.TRANSPARENT );
 
-		for ( int offset = 0; offset < size; offset += blockSize )
+		for ( long offset = 0; offset < size; offset += slabSize )
 		{
-			final MDLongArray block = uint64Reader.readMDArrayBlockWithOffset(
+			final int n = ( int ) Math.min( slabSize, size - offset );
+			final MDLongArray slab = uint64Reader.readMDArrayBlockWithOffset(
 					dataset,
-					new int[] { 2, ( int ) Math.min( blockSize, size - offset ) },
+					new int[] { 2, n },
 					new long[] { 0, offset } );
 
-			for ( int i = 0; i < block.size( 1 ); ++i )
-				lut.put( block.get( 0, i ), block.get( 1, i ) );
-
+			/* row major, fragments followed by segments */
+			final long[] data = slab.getAsFlatArray();
+			for ( int i = 0; i < n; ++i )
+				lut.put( data[ i ], data[ n + i ] );
 		}
 
 		return lut;
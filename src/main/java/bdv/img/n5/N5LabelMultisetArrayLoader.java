@@ -0,0 +1,94 @@
+package bdv.img.n5;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5Reader;
+
+import bdv.img.cache.CacheArrayLoader;
+import bdv.img.cache.EmptyArrayCreator;
+import bdv.labels.labelset.VolatileLabelMultisetArray;
+
+/**
+ * {@link CacheArrayLoader} for label multiset pyramids stored by
+ * {@link N5LabelMultisets}.  Thread-safe and not synchronized, so blocks are
+ * loaded in parallel.
+ */
+public class N5LabelMultisetArrayLoader implements CacheArrayLoader< VolatileLabelMultisetArray >
+{
+	final private N5Reader n5;
+
+	final private String[] levelPaths;
+
+	final private DatasetAttributes[] attributes;
+
+	public N5LabelMultisetArrayLoader( final N5Reader n5, final String group ) throws IOException
+	{
+		this.n5 = n5;
+		final int numLevels = n5.getAttribute( group, N5LabelMultisets.LEVELS_KEY, Integer.class );
+		levelPaths = new String[ numLevels ];
+		attributes = new DatasetAttributes[ numLevels ];
+		for ( int level = 0; level < numLevels; ++level )
+		{
+			levelPaths[ level ] = N5LabelMultisets.levelPath( group, level );
+			attributes[ level ] = n5.getDatasetAttributes( levelPaths[ level ] );
+		}
+	}
+
+	public int getNumLevels()
+	{
+		return attributes.length;
+	}
+
+	public DatasetAttributes getAttributes( final int level )
+	{
+		return attributes[ level ];
+	}
+
+	@Override
+	public int getBytesPerElement()
+	{
+		return 8;
+	}
+
+	@Override
+	public VolatileLabelMultisetArray loadArray(
+			final int timepoint,
+			final int setup,
+			final int level,
+			final int[] dimensions,
+			final long[] min ) throws InterruptedException
+	{
+		final int[] blockSize = attributes[ level ].getBlockSize();
+		final long[] gridPosition = new long[ min.length ];
+		for ( int d = 0; d < min.length; ++d )
+			gridPosition[ d ] = min[ d ] / blockSize[ d ];
+
+		try
+		{
+			final VolatileLabelMultisetArray data = N5LabelMultisets.readBlock( n5, levelPaths[ level ], attributes[ level ], gridPosition );
+			if ( data != null )
+				return data;
+
+			/* missing blocks are empty */
+			return new VolatileLabelMultisetArray( dimensions[ 0 ] * dimensions[ 1 ] * dimensions[ 2 ], true );
+		}
+		catch ( final IOException e )
+		{
+			System.out.println(
+					"failed loading level = " + level +
+					", min = " +
+					Arrays.toString( min ) +
+					", dimensions = " +
+					Arrays.toString( dimensions ) );
+			return null;
+		}
+	}
+
+	@Override
+	public EmptyArrayCreator< VolatileLabelMultisetArray > getEmptyArrayCreator()
+	{
+		return VolatileLabelMultisetArray.emptyArrayCreator;
+	}
+}
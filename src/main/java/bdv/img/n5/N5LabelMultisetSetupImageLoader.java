@@ -0,0 +1,145 @@
+package bdv.img.n5;
+
+import java.io.IOException;
+
+import org.janelia.saalfeldlab.n5.N5Reader;
+
+import bdv.AbstractCachedViewerSetupImgLoader;
+import bdv.ViewerImgLoader;
+import bdv.ViewerSetupImgLoader;
+import bdv.cache.CacheControl;
+import bdv.img.SetCache;
+import bdv.img.cache.VolatileGlobalCellCache;
+import bdv.labels.labelset.LabelMultisetType;
+import bdv.labels.labelset.VolatileLabelMultisetArray;
+import bdv.labels.labelset.VolatileLabelMultisetType;
+import net.imglib2.realtransform.AffineTransform3D;
+
+/**
+ * {@link ViewerSetupImgLoader} for label multiset pyramids stored in N5 by
+ * {@link N5LabelMultisets}.
+ */
+public class N5LabelMultisetSetupImageLoader
+		extends AbstractCachedViewerSetupImgLoader< LabelMultisetType, VolatileLabelMultisetType, VolatileLabelMultisetArray >
+		implements ViewerImgLoader, SetCache
+{
+	static private long[][] readDimensions( final N5LabelMultisetArrayLoader loader )
+	{
+		final int numLevels = loader.getNumLevels();
+		final long[][] dimensions = new long[ numLevels ][];
+		for ( int level = 0; level < numLevels; ++level )
+			dimensions[ level ] = loader.getAttributes( level ).getDimensions();
+		return dimensions;
+	}
+
+	static private int[][] readCellDimensions( final N5LabelMultisetArrayLoader loader )
+	{
+		final int numLevels = loader.getNumLevels();
+		final int[][] cellDimensions = new int[ numLevels ][];
+		for ( int level = 0; level < numLevels; ++level )
+			cellDimensions[ level ] = loader.getAttributes( level ).getBlockSize();
+		return cellDimensions;
+	}
+
+	static private double[][] readResolutions( final N5Reader n5, final String group, final int numLevels, final double[] resolution ) throws IOException
+	{
+		final double[][] resolutions = new double[ numLevels ][];
+		for ( int level = 0; level < numLevels; ++level )
+		{
+			final long[] factors = n5.getAttribute( N5LabelMultisets.levelPath( group, level ), N5LabelMultisets.FACTORS_KEY, long[].class );
+			resolutions[ level ] = new double[ 3 ];
+			for ( int d = 0; d < 3; ++d )
+				resolutions[ level ][ d ] = resolution[ d ] * ( factors == null ? 1 : factors[ d ] );
+		}
+		return resolutions;
+	}
+
+	static private double[] readDoubles( final N5Reader n5, final String group, final String key, final double defaultValue ) throws IOException
+	{
+		final double[] values = n5.getAttribute( group, key, double[].class );
+		return values == null ? new double[] { defaultValue, defaultValue, defaultValue } : values;
+	}
+
+	private final double[] offset;
+
+	private N5LabelMultisetSetupImageLoader(
+			final N5Reader n5,
+			final String group,
+			final N5LabelMultisetArrayLoader loader,
+			final int setupId,
+			final double[] resolution,
+			final double[] offset,
+			final VolatileGlobalCellCache cache ) throws IOException
+	{
+		super( setupId,
+				readDimensions( loader ),
+				readCellDimensions( loader ),
+				readResolutions( n5, group, loader.getNumLevels(), resolution ),
+				new LabelMultisetType(),
+				new VolatileLabelMultisetType(),
+				loader,
+				cache );
+		this.offset = offset;
+		/* offset mipmap transforms */
+		for ( int i = 0; i < resolutions.length; ++i )
+		{
+			final AffineTransform3D mipmapTransform = mipmapTransforms[ i ];
+			final double[] scaledResolution = resolutions[ i ];
+			mipmapTransform.set(offset[0] / scaledResolution[0] * resolution[0], 0, 3);
+			mipmapTransform.set(offset[1] / scaledResolution[1] * resolution[1], 1, 3);
+			mipmapTransform.set(offset[2] / scaledResolution[2] * resolution[2], 2, 3);
+		}
+	}
+
+	public N5LabelMultisetSetupImageLoader(
+			final N5Reader n5,
+			final String group,
+			final int setupId,
+			final double[] resolution,
+			final double[] offset,
+			final VolatileGlobalCellCache cache ) throws IOException
+	{
+		this( n5, group, new N5LabelMultisetArrayLoader( n5, group ), setupId, resolution, offset, cache );
+	}
+
+	/**
+	 * Read resolution and offset from the group attributes.
+	 */
+	public N5LabelMultisetSetupImageLoader(
+			final N5Reader n5,
+			final String group,
+			final int setupId,
+			final VolatileGlobalCellCache cache ) throws IOException
+	{
+		this(
+				n5,
+				group,
+				setupId,
+				readDoubles( n5, group, N5LabelMultisets.RESOLUTION_KEY, 1 ),
+				readDoubles( n5, group, N5LabelMultisets.OFFSET_KEY, 0 ),
+				cache );
+	}
+
+	@Override
+	public void setCache( final VolatileGlobalCellCache cache )
+	{
+		this.cache = cache;
+	}
+
+	@Override
+	public ViewerSetupImgLoader< ?, ? > getSetupImgLoader( final int setupId )
+	{
+		return this;
+	}
+
+	@Override
+	public CacheControl getCacheControl()
+	{
+		return cache;
+	}
+
+	public double[] getOffset()
+	{
+		return this.offset;
+	}
+}
@@ -0,0 +1,393 @@
+package bdv.img.n5;
+
+import static bdv.img.hdf5.Util.reorder;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.janelia.saalfeldlab.n5.ByteArrayDataBlock;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.N5Writer;
+
+import bdv.img.cache.CacheArrayLoader;
+import bdv.img.h5.H5LabelMultisetSetupImageLoader;
+import bdv.img.h5.H5ReaderPool;
+import bdv.labels.labelset.DownscaleToHdf5;
+import bdv.labels.labelset.LongMappedAccess;
+import bdv.labels.labelset.LongMappedAccessData;
+import bdv.labels.labelset.VolatileLabelMultisetArray;
+import ch.systemsx.cisd.hdf5.HDF5DataSetInformation;
+import ch.systemsx.cisd.hdf5.HDF5Factory;
+import ch.systemsx.cisd.hdf5.HDF5StorageLayout;
+import ch.systemsx.cisd.hdf5.IHDF5Reader;
+import net.imglib2.iterator.LocalizingIntervalIterator;
+import net.imglib2.util.Util;
+
+/**
+ * Storage of a label multiset pyramid in an N5 group, one dataset per level
+ * ({@code l%02d}) including level 0, one block per
+ * {@link VolatileLabelMultisetArray}.
+ *
+ * Blocks are variable length uint8 blocks holding
+ *
+ * <ul>
+ * <li>the number of voxels,</li>
+ * <li>the run length encoded list offsets of the voxels, as the number of
+ * runs followed by (offset, length) pairs, voxels of a run share their
+ * multiset,</li>
+ * <li>the number of used bytes of the list data, followed by these bytes,
+ * </li>
+ * </ul>
+ *
+ * all ints big endian, and gzip compressed by N5. Unlike jhdf5, which
+ * serializes all access to HDF5 files, N5 reads blocks from independent
+ * files, so loader threads read in parallel.
+ *
+ * The group has attributes {@code levels}, {@code resolution} and
+ * {@code offset} (both x, y, z), each level dataset has attribute
+ * {@code factors} (relative to level 0).
+ */
+public class N5LabelMultisets
+{
+	final static public String LEVELS_KEY = "levels";
+
+	final static public String RESOLUTION_KEY = "resolution";
+
+	final static public String OFFSET_KEY = "offset";
+
+	final static public String FACTORS_KEY = "factors";
+
+	public static String levelPath( final String group, final int level )
+	{
+		return group + "/" + String.format( "l%02d", level );
+	}
+
+	/**
+	 * Serialize {@code data} into a block as described above.
+	 */
+	public static byte[] serialize( final VolatileLabelMultisetArray data )
+	{
+		final int[] offsets = data.getCurrentStorageArray();
+		int numRuns = 0;
+		for ( int i = 0; i < offsets.length; ++i )
+			if ( i == 0 || offsets[ i ] != offsets[ i - 1 ] )
+				++numRuns;
+
+		/* arrays that do not know their used size are written completely */
+		final long usedBytes = data.getListDataUsedSizeInBytes();
+		final int listBytes = ( int ) ( usedBytes > 0 ? usedBytes : data.getListData().size() );
+		final ByteBuffer buffer = ByteBuffer.allocate( 12 + 8 * numRuns + listBytes );
+		buffer.putInt( offsets.length );
+		buffer.putInt( numRuns );
+		for ( int i = 0; i < offsets.length; )
+		{
+			final int offset = offsets[ i ];
+			int j = i + 1;
+			while ( j < offsets.length && offsets[ j ] == offset )
+				++j;
+			buffer.putInt( offset );
+			buffer.putInt( j - i );
+			i = j;
+		}
+
+		buffer.putInt( listBytes );
+		final LongMappedAccess access = data.getListData().createAccess();
+		for ( int i = 0; i < listBytes; ++i )
+			buffer.put( access.getByte( i ) );
+		return buffer.array();
+	}
+
+	/**
+	 * Deserialize a block created by {@link #serialize(VolatileLabelMultisetArray)}.
+	 */
+	public static VolatileLabelMultisetArray deserialize( final byte[] bytes )
+	{
+		return deserialize( ByteBuffer.wrap( bytes ) );
+	}
+
+	/**
+	 * Deserialize a block created by
+	 * {@link #serialize(VolatileLabelMultisetArray)} from the position of
+	 * {@code buffer}, e.g. a memory mapped file.
+	 */
+	public static VolatileLabelMultisetArray deserialize( final ByteBuffer buffer )
+	{
+		final int[] offsets = new int[ buffer.getInt() ];
+		final int numRuns = buffer.getInt();
+		for ( int r = 0, i = 0; r < numRuns; ++r )
+		{
+			final int offset = buffer.getInt();
+			final int length = buffer.getInt();
+			for ( final int end = i + length; i < end; ++i )
+				offsets[ i ] = offset;
+		}
+
+		final int listBytes = buffer.getInt();
+		final LongMappedAccessData listData = LongMappedAccessData.factory.createStorage( Math.max( listBytes, 16 ) );
+		final LongMappedAccess access = listData.createAccess();
+		for ( int i = 0; i < listBytes; ++i )
+			access.putByte( buffer.get(), i );
+		return new VolatileLabelMultisetArray( offsets, listData, listBytes, true );
+	}
+
+	/**
+	 * Read the block at {@code gridPosition} of a level dataset.
+	 *
+	 * @return the block or {@code null} if it does not exist
+	 */
+	public static VolatileLabelMultisetArray readBlock(
+			final N5Reader n5,
+			final String levelPath,
+			final DatasetAttributes attributes,
+			final long[] gridPosition ) throws IOException
+	{
+		final DataBlock< ? > block = n5.readBlock( levelPath, attributes, gridPosition );
+		return block == null ? null : deserialize( ( byte[] ) block.getData() );
+	}
+
+	/**
+	 * Writes one level.  Blocks can be written concurrently.
+	 */
+	public static class Writer implements DownscaleToHdf5.BlockWriter, DownscaleToHdf5.LevelInfoWriter
+	{
+		final protected N5Writer n5;
+
+		final protected String group;
+
+		final protected int level;
+
+		protected DatasetAttributes attributes;
+
+		public Writer( final N5Writer n5, final String group, final int level )
+		{
+			this.n5 = n5;
+			this.group = group;
+			this.level = level;
+		}
+
+		/**
+		 * Create the dataset of the level and increase the number of levels of
+		 * the group if necessary.
+		 */
+		@Override
+		public synchronized void writeLevelInfo( final long[] dimensions, final long[] factors, final long[] blocksize )
+		{
+			final String path = levelPath( group, level );
+			try
+			{
+				n5.createDataset( path, dimensions, Util.long2int( blocksize ), DataType.UINT8, new GzipCompression() );
+				n5.setAttribute( path, FACTORS_KEY, factors );
+				final Integer levels = n5.getAttribute( group, LEVELS_KEY, Integer.class );
+				if ( levels == null || levels < level + 1 )
+					n5.setAttribute( group, LEVELS_KEY, level + 1 );
+				attributes = n5.getDatasetAttributes( path );
+			}
+			catch ( final IOException e )
+			{
+				throw new UncheckedIOException( e );
+			}
+		}
+
+		protected synchronized DatasetAttributes getAttributes()
+		{
+			return attributes;
+		}
+
+		@Override
+		public void writeBlock( final VolatileLabelMultisetArray data, final long[] min, final long[] blocksize )
+		{
+			final DatasetAttributes attributes = getAttributes();
+			final int[] datasetBlockSize = attributes.getBlockSize();
+			final long[] gridPosition = new long[ min.length ];
+			for ( int d = 0; d < min.length; ++d )
+				gridPosition[ d ] = min[ d ] / datasetBlockSize[ d ];
+
+			try
+			{
+				n5.writeBlock(
+						levelPath( group, level ),
+						attributes,
+						new ByteArrayDataBlock( Util.long2int( blocksize ), gridPosition, serialize( data ) ) );
+			}
+			catch ( final IOException e )
+			{
+				throw new UncheckedIOException( e );
+			}
+		}
+	}
+
+	/**
+	 * Copy all levels of a label multiset pyramid into {@code group} of
+	 * {@code n5}, loading blocks with {@code loader} and writing them with
+	 * {@code numThreads} threads.
+	 *
+	 * @param dimensions
+	 *            dimensions per level
+	 * @param blockSizes
+	 *            block size per level
+	 * @param factors
+	 *            downsampling factors per level
+	 */
+	public static void convert(
+			final CacheArrayLoader< VolatileLabelMultisetArray > loader,
+			final long[][] dimensions,
+			final int[][] blockSizes,
+			final long[][] factors,
+			final N5Writer n5,
+			final String group,
+			final int numThreads ) throws IOException, InterruptedException, ExecutionException
+	{
+		final ExecutorService executor = Executors.newFixedThreadPool( numThreads );
+		try
+		{
+			for ( int level = 0; level < dimensions.length; ++level )
+			{
+				final long[] levelDimensions = dimensions[ level ];
+				final int[] blockSize = blockSizes[ level ];
+				final int n = levelDimensions.length;
+
+				final Writer writer = new Writer( n5, group, level );
+				writer.writeLevelInfo( levelDimensions, factors[ level ], Util.int2long( blockSize ) );
+
+				final long[] maxCell = new long[ n ];
+				for ( int d = 0; d < n; ++d )
+					maxCell[ d ] = ( levelDimensions[ d ] - 1 ) / blockSize[ d ];
+
+				final ArrayList< Future< ? > > futures = new ArrayList<>();
+				final LocalizingIntervalIterator cells = new LocalizingIntervalIterator( new long[ n ], maxCell );
+				while ( cells.hasNext() )
+				{
+					cells.fwd();
+					final long[] min = new long[ n ];
+					final long[] cellDimensions = new long[ n ];
+					for ( int d = 0; d < n; ++d )
+					{
+						min[ d ] = cells.getLongPosition( d ) * blockSize[ d ];
+						cellDimensions[ d ] = Math.min( blockSize[ d ], levelDimensions[ d ] - min[ d ] );
+					}
+					final int l = level;
+					futures.add( executor.submit( () -> {
+						final VolatileLabelMultisetArray data = loader.loadArray( 0, 0, l, Util.long2int( cellDimensions ), min );
+						if ( data != null )
+							writer.writeBlock( data, min, cellDimensions );
+						return null;
+					} ) );
+				}
+				for ( final Future< ? > future : futures )
+					future.get();
+				System.out.println( "converted level " + level + ", " + futures.size() + " blocks" );
+			}
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+	}
+
+	private static int[] parseBlockSize( final String blockSize )
+	{
+		final String[] values = blockSize.split( "," );
+		if ( values.length != 3 )
+			throw new IllegalArgumentException( "expected a block size x,y,z, got \"" + blockSize + "\"" );
+		final int[] size = new int[ values.length ];
+		for ( int d = 0; d < size.length; ++d )
+			size[ d ] = Integer.parseInt( values[ d ].trim() );
+		return size;
+	}
+
+	/**
+	 * Get the chunk size of an HDF5 dataset in (x, y, z) order.
+	 *
+	 * @return the chunk size, {@code null} if the dataset is not chunked
+	 */
+	public static int[] readChunkSize( final IHDF5Reader reader, final String dataset )
+	{
+		final HDF5DataSetInformation info = reader.object().getDataSetInformation( dataset );
+		if ( info.getStorageLayout() != HDF5StorageLayout.CHUNKED )
+			return null;
+		return reorder( info.tryGetChunkSizes() );
+	}
+
+	/**
+	 * Convert a label multiset pyramid from HDF5 (a label dataset and an
+	 * optional file with downscaled levels) into an N5 group.  The block
+	 * size of level 0 is the chunk size of the dataset unless given.
+	 *
+	 * @param args
+	 *            input file, dataset, scale file or "-", output N5 base
+	 *            path, output group (default "/"), level 0 block size
+	 *            "x,y,z" (default the chunk size of the dataset)
+	 */
+	public static void main( final String... args ) throws IOException, InterruptedException, ExecutionException
+	{
+		if ( args.length < 4 )
+		{
+			System.err.println( "usage: " + N5LabelMultisets.class.getName() + " <input.h5> <dataset> <scale.h5|-> <output.n5> [<group> [<blocksize x,y,z>]]" );
+			System.exit( 1 );
+		}
+
+		final String dataset = args[ 1 ];
+		final String group = args.length > 4 ? args[ 4 ] : "";
+		final IHDF5Reader reader = HDF5Factory.openForReading( args[ 0 ] );
+		final IHDF5Reader scaleReader = args[ 2 ].equals( "-" ) ? null : HDF5Factory.openForReading( args[ 2 ] );
+		final H5ReaderPool readers = new H5ReaderPool( reader );
+		final H5ReaderPool scaleReaders = scaleReader == null ? null : new H5ReaderPool( scaleReader );
+		try
+		{
+			final int numLevels = scaleReader == null ? 1 : scaleReader.uint32().read( "levels" );
+			final long[][] dimensions = new long[ numLevels ][];
+			final int[][] blockSizes = new int[ numLevels ][];
+			final long[][] factors = new long[ numLevels ][];
+
+			final long[] h5dim = reader.object().getDimensions( dataset );
+			dimensions[ 0 ] = new long[] { h5dim[ 2 ], h5dim[ 1 ], h5dim[ 0 ] };
+			blockSizes[ 0 ] = args.length > 5 ? parseBlockSize( args[ 5 ] ) : readChunkSize( reader, dataset );
+			if ( blockSizes[ 0 ] == null )
+				throw new IllegalArgumentException( dataset + " is not chunked, pass the level 0 block size as x,y,z" );
+			factors[ 0 ] = new long[] { 1, 1, 1 };
+			for ( int level = 1; level < numLevels; ++level )
+			{
+				dimensions[ level ] = scaleReader.uint64().readArray( String.format( "l%02d/dimensions", level ) );
+				blockSizes[ level ] = Util.long2int( scaleReader.uint64().readArray( String.format( "l%02d/blocksize", level ) ) );
+				factors[ level ] = scaleReader.uint64().readArray( String.format( "l%02d/factors", level ) );
+			}
+
+			final N5Writer n5 = new N5FSWriter( args[ 3 ] );
+			n5.createGroup( group );
+			if ( reader.object().hasAttribute( dataset, "resolution" ) )
+				n5.setAttribute( group, RESOLUTION_KEY, H5LabelMultisetSetupImageLoader.readResolution( reader, dataset ) );
+			if ( reader.object().hasAttribute( dataset, "offset" ) )
+				n5.setAttribute( group, OFFSET_KEY, H5LabelMultisetSetupImageLoader.readOffset( reader, dataset ) );
+
+			convert(
+					H5LabelMultisetSetupImageLoader.typedLoader( readers, scaleReaders, dataset ),
+					dimensions,
+					blockSizes,
+					factors,
+					n5,
+					group,
+					Runtime.getRuntime().availableProcessors() );
+		}
+		finally
+		{
+			if ( scaleReader != null )
+			{
+				scaleReaders.close();
+				scaleReader.close();
+			}
+			readers.close();
+			reader.close();
+		}
+	}
+}
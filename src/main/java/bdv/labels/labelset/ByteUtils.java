@@ -1,6 +1,11 @@
 package bdv.labels.labelset;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
 import java.security.AccessController;
 import java.security.PrivilegedExceptionAction;
 
@@ -8,7 +13,8 @@ import sun.misc.Unsafe;
 
 /**
  * Helper methods to encode and decode different data types ({@code long, double}
- * etc.) from bytes at an offset in a {@code long[]} array.
+ * etc.) from bytes at an offset in a {@code long[]} array or in off-heap
+ * memory.
  *
  * @author Tobias Pietzsch <tobias.pietzsch@gmail.com>
  */
@@ -93,7 +99,163 @@ public class ByteUtils
 		UNSAFE.copyMemory( srcArray, LONG_ARRAY_OFFSET + srcOffset, dstArray, LONG_ARRAY_OFFSET + dstOffset, size );
 	}
 
-	private static final Unsafe UNSAFE;
+	/*
+	 * Variants addressing either an array ({@code base} is the array,
+	 * {@code address} includes the array base offset) or off-heap memory
+	 * ({@code base} is {@code null}, {@code address} is absolute).
+	 */
+
+	public static void putByte( final byte value, final Object base, final long address )
+	{
+		UNSAFE.putByte( base, address, value );
+	}
+
+	public static byte getByte( final Object base, final long address )
+	{
+		return UNSAFE.getByte( base, address );
+	}
+
+	public static void putBoolean( final boolean value, final Object base, final long address )
+	{
+		putByte( value ? ( byte ) 1 : ( byte ) 0, base, address );
+	}
+
+	public static boolean getBoolean( final Object base, final long address )
+	{
+		return getByte( base, address ) == ( byte ) 0 ? false : true;
+	}
+
+	public static void putInt( final int value, final Object base, final long address )
+	{
+		UNSAFE.putInt( base, address, value );
+	}
+
+	public static int getInt( final Object base, final long address )
+	{
+		return UNSAFE.getInt( base, address );
+	}
+
+	public static void putLong( final long value, final Object base, final long address )
+	{
+		UNSAFE.putLong( base, address, value );
+	}
+
+	public static long getLong( final Object base, final long address )
+	{
+		return UNSAFE.getLong( base, address );
+	}
+
+	public static void putFloat( final float value, final Object base, final long address )
+	{
+		UNSAFE.putFloat( base, address, value );
+	}
+
+	public static float getFloat( final Object base, final long address )
+	{
+		return UNSAFE.getFloat( base, address );
+	}
+
+	public static void putDouble( final double value, final Object base, final long address )
+	{
+		UNSAFE.putDouble( base, address, value );
+	}
+
+	public static double getDouble( final Object base, final long address )
+	{
+		return UNSAFE.getDouble( base, address );
+	}
+
+	public static void copyBytes( final Object srcBase, final long srcAddress, final Object dstBase, final long dstAddress, final int size )
+	{
+		UNSAFE.copyMemory( srcBase, srcAddress, dstBase, dstAddress, size );
+	}
+
+	/**
+	 * Keep {@code ref} strongly reachable until this point, so that off-heap
+	 * memory owned by {@code ref} is not freed while its address is in use.
+	 * Uses {@code Reference.reachabilityFence} where available (Java 9+),
+	 * which costs nothing after inlining, and a volatile write otherwise.
+	 */
+	public static void reachabilityFence( final Object ref )
+	{
+		if ( REACHABILITY_FENCE != null )
+		{
+			try
+			{
+				REACHABILITY_FENCE.invokeExact( ref );
+			}
+			catch ( final Throwable e )
+			{
+				throw new RuntimeException( e );
+			}
+		}
+		else
+			fenceRef = ref;
+	}
+
+	private static volatile Object fenceRef;
+
+	private static final MethodHandle REACHABILITY_FENCE;
+
+	static
+	{
+		MethodHandle fence = null;
+		try
+		{
+			fence = MethodHandles.lookup().findStatic(
+					java.lang.ref.Reference.class,
+					"reachabilityFence",
+					MethodType.methodType( void.class, Object.class ) );
+		}
+		catch ( final NoSuchMethodException | IllegalAccessException e )
+		{}
+		REACHABILITY_FENCE = fence;
+	}
+
+	/**
+	 * Release the memory (mapping) of a direct {@link ByteBuffer} now instead
+	 * of when it is garbage collected.  The buffer, and any address obtained
+	 * from it, must not be used afterwards.
+	 *
+	 * @return whether the memory was released, {@code false} if this is not
+	 *         supported by the JVM.
+	 */
+	public static boolean free( final ByteBuffer buffer )
+	{
+		if ( !buffer.isDirect() )
+			return false;
+		try
+		{
+			/* Java 9+ */
+			final Method invokeCleaner = Unsafe.class.getMethod( "invokeCleaner", ByteBuffer.class );
+			invokeCleaner.invoke( UNSAFE, buffer );
+			return true;
+		}
+		catch ( final NoSuchMethodException e )
+		{
+			/* Java 8 */
+			try
+			{
+				final Method cleanerMethod = buffer.getClass().getMethod( "cleaner" );
+				cleanerMethod.setAccessible( true );
+				final Object cleaner = cleanerMethod.invoke( buffer );
+				if ( cleaner == null )
+					return false;
+				cleaner.getClass().getMethod( "clean" ).invoke( cleaner );
+				return true;
+			}
+			catch ( final ReflectiveOperationException | RuntimeException e1 )
+			{
+				return false;
+			}
+		}
+		catch ( final ReflectiveOperationException | RuntimeException e )
+		{
+			return false;
+		}
+	}
+
+	static final Unsafe UNSAFE;
 
 	static
 	{
@@ -118,5 +280,5 @@ public class ByteUtils
 		}
 	}
 
-	private static final long LONG_ARRAY_OFFSET = UNSAFE.arrayBaseOffset( long[].class );
+	static final long LONG_ARRAY_OFFSET = UNSAFE.arrayBaseOffset( long[].class );
 }
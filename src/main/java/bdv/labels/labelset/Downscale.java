@@ -55,12 +55,15 @@ public class Downscale
 
 		final LabelMultisetEntryList list = new LabelMultisetEntryList( listData, 0 );
 		final LabelMultisetEntryListIndex lists = new LabelMultisetEntryListIndex( listData );
+		final LabelMultisetAccumulator accumulator = new LabelMultisetAccumulator();
 		int nextListOffset = 0;
 		while ( outData.hasNext() )
 		{
-			list.createListAt( listData, nextListOffset );
+			accumulator.clear();
 			for ( final LabelMultisetType ms : inNeighborhoods.next() )
-				list.mergeWith(	ms );
+				accumulator.add( ms );
+			list.createListAt( listData, nextListOffset );
+			accumulator.writeTo( list );
 
 			int offset = lists.putIfAbsent( list );
 			if ( offset == -1 )
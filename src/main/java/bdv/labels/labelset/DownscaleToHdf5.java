@@ -2,13 +2,22 @@ package bdv.labels.labelset;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.LongPredicate;
 
 import bdv.export.ExportMipmapInfo;
-import bdv.img.cache.VolatileGlobalCellCache;
+import bdv.img.WeightedGlobalCellCache;
+import bdv.img.h5.H5ConsolidatedLabelMultisets;
+import bdv.img.h5.H5FragmentBlockIndex;
 import bdv.img.h5.H5LabelMultisetSetupImageLoader;
-import ch.systemsx.cisd.base.mdarray.MDIntArray;
+import bdv.img.h5.H5ReaderPool;
 import ch.systemsx.cisd.hdf5.HDF5Factory;
-import ch.systemsx.cisd.hdf5.HDF5IntStorageFeatures;
 import ch.systemsx.cisd.hdf5.IHDF5Reader;
 import ch.systemsx.cisd.hdf5.IHDF5Writer;
 import net.imglib2.FinalInterval;
@@ -16,97 +25,393 @@ import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.iterator.LocalizingIntervalIterator;
 import net.imglib2.util.Util;
 import net.imglib2.view.Views;
+import picocli.CommandLine;
+import picocli.CommandLine.Option;
 
+/**
+ * Downscale a label multiset dataset into a mipmap pyramid in the
+ * consolidated layout of {@link H5ConsolidatedLabelMultisets}, together with
+ * the {@link H5FragmentBlockIndex} of each level.
+ *
+ * Writing is resumable: written blocks are committed at regular
+ * checkpoints, see {@link H5ConsolidatedLabelMultisets.Writer#checkpoint()},
+ * and levels are marked complete, so running the same command again after
+ * an interruption skips complete levels and the blocks that were committed
+ * before.  Levels and indices are only reused if their dimensions and block
+ * sizes match.  On Ctrl-C, the current level is committed and the output
+ * file is closed by a shutdown hook.
+ */
 public class DownscaleToHdf5
 {
+	static public class Parameters implements Callable< Optional< Void > >
+	{
+		@Option( names = { "--infile", "-i" }, required = true, description = "Input file path" )
+		public String inFile = "";
+
+		@Option( names = { "--label", "-l" }, description = "label dataset" )
+		public String label = "/bodies";
+
+		@Option( names = { "--outfile", "-o" }, required = true, description = "Output file path for the downscaled levels" )
+		public String outFile = "";
+
+		@Option( names = { "--resolution", "-r" }, description = "downscaling factors of a level relative to level 0, e.g. 2,2,1, once per level after level 0" )
+		public List< String > resolutionStrings = new ArrayList<>();
+
+		@Option( names = { "--blocksize", "-b" }, description = "block size of a level, e.g. 32,32,32, once for all levels or once per level" )
+		public List< String > blockSizeStrings = new ArrayList<>();
+
+		@Option( names = { "--cellsize" }, description = "cell size for reading level 0" )
+		public String cellSizeString = "64,64,8";
+
+		@Option( names = { "--threads", "-t" }, description = "number of threads" )
+		public int numThreads = Runtime.getRuntime().availableProcessors();
+
+		@Option( names = { "--cache", "-c" }, description = "label cache size in MB" )
+		public long cacheSize = Runtime.getRuntime().maxMemory() / 4 >> 20;
+
+		@Option( names = { "--checkpoint" }, description = "seconds between flushing the output file" )
+		public long checkpointInterval = 60;
+
+		@Option( names = { "--restart" }, description = "discard the progress of earlier runs" )
+		public boolean restart = false;
+
+		public int[][] resolutions;
+
+		public int[][] subdivisions;
+
+		public int[] cellSize;
+
+		static protected int[] parseInts( final String string )
+		{
+			final String[] values = string.split( "," );
+			final int[] ints = new int[ values.length ];
+			for ( int i = 0; i < values.length; ++i )
+				ints[ i ] = Integer.parseInt( values[ i ].trim() );
+			return ints;
+		}
+
+		@Override
+		public Optional< Void > call()
+		{
+			if ( resolutionStrings.isEmpty() )
+				resolutionStrings = Arrays.asList( "2,2,1", "4,4,1", "8,8,1", "16,16,2", "32,32,3", "64,64,6" );
+			if ( blockSizeStrings.isEmpty() )
+				blockSizeStrings = Arrays.asList( "32,32,32" );
+			if ( blockSizeStrings.size() != 1 && blockSizeStrings.size() != resolutionStrings.size() )
+				throw new IllegalArgumentException( "Expected one block size or one per level, got " + blockSizeStrings.size() + " for " + resolutionStrings.size() + " levels." );
+
+			final int numLevels = resolutionStrings.size() + 1;
+			resolutions = new int[ numLevels ][];
+			subdivisions = new int[ numLevels ][];
+			resolutions[ 0 ] = new int[] { 1, 1, 1 };
+			for ( int level = 1; level < numLevels; ++level )
+			{
+				resolutions[ level ] = parseInts( resolutionStrings.get( level - 1 ) );
+				subdivisions[ level ] = parseInts( blockSizeStrings.get( blockSizeStrings.size() == 1 ? 0 : level - 1 ) );
+			}
+			cellSize = parseInts( cellSizeString );
+			subdivisions[ 0 ] = cellSize;
+
+			return Optional.empty();
+		}
+	}
+
 	public static void main( final String[] args ) throws IOException
 	{
-		final String fn = "/Users/pietzsch/workspace/data/bigcat/davi_v7_4k_refix_export.h5";
-		final String fnscaled = "/Users/pietzsch/Desktop/downscale-test.h5";
-
-		final int[][] resolutions = new int[][] {
-			{ 1, 1, 1 },
-			{ 2, 2, 1 },
-			{ 4, 4, 1 },
-			{ 8, 8, 1 },
-			{ 16, 16, 2 },
-			{ 32, 32, 3 },
-			{ 64, 64, 6 }
-		};
-		final int[][] subdivisions = new int[][] {
-			{ 32, 32, 32 },
-			{ 32, 32, 32 },
-			{ 32, 32, 32 },
-			{ 32, 32, 32 },
-			{ 32, 32, 32 },
-			{ 32, 32, 32 },
-			{ 32, 32, 32 },
-		};
-		final ExportMipmapInfo mipmapInfo = new ExportMipmapInfo( resolutions, subdivisions );
-		final int numLevels = resolutions.length;
+		final Parameters params = new Parameters();
+		if ( CommandLine.call( params, args ) == null )
+			return;
+
+		run( params );
+	}
 
-		for ( int level = 1; level < numLevels; ++level )
+	public static void run( final Parameters params ) throws IOException
+	{
+		final ExportMipmapInfo mipmapInfo = new ExportMipmapInfo( params.resolutions, params.subdivisions );
+		final int numLevels = params.resolutions.length;
+		final ForkJoinPool pool = new ForkJoinPool( params.numThreads );
+		final WeightedGlobalCellCache cache = new WeightedGlobalCellCache( numLevels, params.numThreads, params.cacheSize << 20 );
+		final IHDF5Reader reader = HDF5Factory.openForReading( params.inFile );
+		final IHDF5Writer writer = HDF5Factory.open( params.outFile );
+		final H5ReaderPool readers = new H5ReaderPool( reader );
+		/* levels are read while they are written, read with the writer only */
+		final H5ReaderPool scaleReaders = new H5ReaderPool( writer, 1 );
+
+		/* commit the level being written and close the file, also on Ctrl-C */
+		final AtomicReference< H5ConsolidatedLabelMultisets.Writer > currentLevel = new AtomicReference<>();
+		final AtomicBoolean closed = new AtomicBoolean( false );
+		final Runnable close = () -> {
+			if ( !closed.compareAndSet( false, true ) )
+				return;
+			try
+			{
+				final H5ConsolidatedLabelMultisets.Writer levelWriter = currentLevel.get();
+				if ( levelWriter != null )
+					levelWriter.checkpoint();
+			}
+			catch ( final RuntimeException e )
+			{
+				e.printStackTrace( System.err );
+			}
+			finally
+			{
+				writer.close();
+			}
+		};
+		final Thread shutdownHook = new Thread( close, "downscale-shutdown" );
+		Runtime.getRuntime().addShutdownHook( shutdownHook );
+		try
 		{
-			final IHDF5Reader reader = HDF5Factory.openForReading( fn );
-			final IHDF5Writer writer = HDF5Factory.open( fnscaled );
-			final H5LabelMultisetSetupImageLoader fragments = new H5LabelMultisetSetupImageLoader(
-					reader,
-					level == 1 ? null : writer,
-					"/bodies",
-					1,
-					new int[] {64, 64, 8},
-					new VolatileGlobalCellCache( 1, 10 ) );
-
-
-			final ArrayList< RandomAccessibleInterval< LabelMultisetType > > imgs = new ArrayList<>();
-			for ( int i = 0; i < level; ++i )
-				imgs.add( fragments.getImage( 0, i ) );
-
-			writer.uint32().write( "levels", level + 1 );
-			final int l = level;
-			final BlockWriter hdfBlockWriter = new BlockWriter()
+			final double[] resolution = H5LabelMultisetSetupImageLoader.readResolution( reader, params.label );
+			final double[] offset = H5LabelMultisetSetupImageLoader.readOffset( reader, params.label );
+			final long[] h5dim = reader.object().getDimensions( params.label );
+			final long[][] dimensions = levelDimensions( new long[] { h5dim[ 2 ], h5dim[ 1 ], h5dim[ 0 ] }, params.resolutions );
+
+			if ( params.restart || !H5FragmentBlockIndex.exists( writer, 0, dimensions[ 0 ], Util.int2long( params.cellSize ) ) )
 			{
-				@Override
-				public void writeBlock( final VolatileLabelMultisetArray data, final long[] min, final long[] blocksize )
-				{
-//					System.out.println( Util.printCoordinates( min ) );
-					final LongMappedAccess access = data.getListData().createAccess();
-					final int intSize = ( int ) ( data.getListDataUsedSizeInBytes() / 4 );
-					final int[] lists = new int[ intSize ];
-					for ( int i = 0; i < intSize; ++i )
-						lists[ i ] = access.getInt( i * 4 );
-					final MDIntArray block = new MDIntArray( data.getCurrentStorageArray(), bdv.img.hdf5.Util.reorder( blocksize ) );
-
-					final String listsPath = String.format( "l%02d/z%05d/y%05d/x%05d/lists", l, min[ 2 ], min[ 1 ], min[ 0 ] );
-					final String dataPath = String.format( "l%02d/z%05d/y%05d/x%05d/data", l, min[ 2 ], min[ 1 ], min[ 0 ] );
-					writer.uint32().writeArray( listsPath, lists, HDF5IntStorageFeatures.INT_AUTO_SCALING_UNSIGNED_DELETE );
-					writer.uint32().writeMDArray( dataPath, block, HDF5IntStorageFeatures.INT_AUTO_SCALING_UNSIGNED_DELETE );
-				}
-			};
-			final LevelInfoWriter hdfLevelInfoWriter = new LevelInfoWriter()
+				System.out.println( "Indexing level 0" );
+				final H5FragmentBlockIndex.Builder indexBuilder = new H5FragmentBlockIndex.Builder(
+						dimensions[ 0 ],
+						Util.int2long( params.cellSize ) );
+				/* every cell is read once, bypass the caches */
+				indexBuilder.addAll( H5LabelMultisetSetupImageLoader.typedLoader( readers, null, params.label ), 0, pool );
+				indexBuilder.build().write( writer, 0 );
+				writer.file().flush();
+			}
+
+			/* levels after a level that was written in this run are rewritten */
+			boolean resume = !params.restart;
+			for ( int level = 1; level < numLevels; ++level )
 			{
-				@Override
-				public void writeLevelInfo( final long[] dimensions, final long[] factors, final long[] blocksize )
+				final long[] blockSize = Util.int2long( params.subdivisions[ level ] );
+				if ( resume &&
+						H5ConsolidatedLabelMultisets.isComplete(
+								writer,
+								level,
+								dimensions[ level ],
+								Util.int2long( params.resolutions[ level ] ),
+								blockSize ) &&
+						H5FragmentBlockIndex.exists( writer, level, dimensions[ level ], blockSize ) )
 				{
-					System.out.println( "writing level " + l );
-					System.out.println( "dimensions = " + Util.printCoordinates( dimensions ) );
-					System.out.println( "factors = " + Util.printCoordinates( factors ) );
-					System.out.println( "blocksize = " + Util.printCoordinates( blocksize ) );
-
-					final String dimensionsPath = String.format( "l%02d/dimensions", l );
-					final String factorsPath = String.format( "l%02d/factors", l );
-					final String blocksizePath = String.format( "l%02d/blocksize", l );
-					writer.uint64().writeArray( dimensionsPath, dimensions );
-					writer.uint64().writeArray( factorsPath, factors );
-					writer.uint64().writeArray( blocksizePath, blocksize );
+					System.out.println( "Level " + level + " is complete" );
+					continue;
 				}
-			};
-			writeLevelToHdf5File( imgs, mipmapInfo, level, hdfBlockWriter, hdfLevelInfoWriter );
-			writer.close();
+
+				/* previous levels only */
+				writer.uint32().write( "levels", level );
+				final H5LabelMultisetSetupImageLoader fragments = new H5LabelMultisetSetupImageLoader(
+						readers,
+						level == 1 ? null : scaleReaders,
+						params.label,
+						1,
+						params.cellSize,
+						resolution,
+						offset,
+						cache );
+
+				final ArrayList< RandomAccessibleInterval< LabelMultisetType > > imgs = new ArrayList<>();
+				for ( int i = 0; i < level; ++i )
+					imgs.add( fragments.getImage( 0, i ) );
+
+				final H5ConsolidatedLabelMultisets.Writer levelWriter = new H5ConsolidatedLabelMultisets.Writer( writer, level, resume );
+				currentLevel.set( levelWriter );
+				final H5FragmentBlockIndex.Builder indexBuilder = new H5FragmentBlockIndex.Builder( levelWriter, levelWriter );
+				final Progress progress = new Progress( indexBuilder, indexBuilder, levelWriter::isWritten, level, levelWriter::checkpoint, params.checkpointInterval * 1000 );
+				writeLevelToHdf5File( imgs, mipmapInfo, level, progress, progress, pool, levelWriter::isWritten );
+
+				indexBuilder.addAll( new H5ConsolidatedLabelMultisets.LevelReader( writer, level ), levelWriter.getWrittenBlocks() );
+				indexBuilder.build().write( writer, level );
+				levelWriter.setComplete();
+				currentLevel.set( null );
+				writer.uint32().write( "levels", level + 1 );
+				writer.file().flush();
+				progress.report( true );
+				resume = false;
+			}
+		}
+		finally
+		{
+			pool.shutdown();
+			try
+			{
+				Runtime.getRuntime().removeShutdownHook( shutdownHook );
+			}
+			catch ( final IllegalStateException e )
+			{
+				/* shutting down, the hook closes the file */
+			}
+			close.run();
+			readers.close();
 			reader.close();
 		}
 	}
 
+	/**
+	 * The level that {@code level} is downscaled from: the closest finer
+	 * level whose resolution divides the resolution of {@code level}.
+	 */
+	static protected int previousLevel( final int[][] resolutions, final int level )
+	{
+		final int n = resolutions[ level ].length;
+		A: for ( int l = level - 1; l >= 0; --l )
+		{
+			for ( int d = 0; d < n; ++d )
+				if ( resolutions[ level ][ d ] % resolutions[ l ][ d ] != 0 )
+					continue A;
+			return l;
+		}
+		return -1;
+	}
+
+	/**
+	 * Dimensions of all levels as written by
+	 * {@link #writeLevelToHdf5File(ArrayList, ExportMipmapInfo, int, BlockWriter, LevelInfoWriter, ForkJoinPool, LongPredicate)}.
+	 *
+	 * @param dimensions
+	 *            dimensions of level 0
+	 * @param resolutions
+	 *            downscaling factors of each level relative to level 0
+	 */
+	public static long[][] levelDimensions( final long[] dimensions, final int[][] resolutions )
+	{
+		final int n = dimensions.length;
+		final long[][] levelDimensions = new long[ resolutions.length ][];
+		levelDimensions[ 0 ] = dimensions.clone();
+		for ( int level = 1; level < resolutions.length; ++level )
+		{
+			final int previousLevel = previousLevel( resolutions, level );
+			levelDimensions[ level ] = new long[ n ];
+			for ( int d = 0; d < n; ++d )
+				levelDimensions[ level ][ d ] = Math.max( levelDimensions[ previousLevel ][ d ] / ( resolutions[ level ][ d ] / resolutions[ previousLevel ][ d ] ), 1 );
+		}
+		return levelDimensions;
+	}
+
+	/**
+	 * Passes blocks on to another writer, reports the number of blocks per
+	 * second and the estimated time to finish the level, and runs a
+	 * checkpoint at regular intervals.
+	 */
+	public static class Progress implements BlockWriter, LevelInfoWriter
+	{
+		/**
+		 * Milliseconds between progress reports.
+		 */
+		final static public long REPORT_INTERVAL = 10000;
+
+		final protected BlockWriter writer;
+
+		final protected LevelInfoWriter levelInfoWriter;
+
+		final protected LongPredicate skipBlock;
+
+		final protected int level;
+
+		final protected Runnable checkpoint;
+
+		final protected long checkpointInterval;
+
+		protected long numBlocks = 0;
+
+		protected long numSkipped = 0;
+
+		protected long numWritten = 0;
+
+		protected long startTime;
+
+		protected long lastReport;
+
+		protected long lastCheckpoint;
+
+		/**
+		 * @param writer
+		 * @param levelInfoWriter
+		 * @param skipBlock
+		 *            blocks that are not written, counted as done, may be
+		 *            {@code null}
+		 * @param level
+		 * @param checkpoint
+		 * @param checkpointInterval
+		 *            milliseconds between checkpoints
+		 */
+		public Progress(
+				final BlockWriter writer,
+				final LevelInfoWriter levelInfoWriter,
+				final LongPredicate skipBlock,
+				final int level,
+				final Runnable checkpoint,
+				final long checkpointInterval )
+		{
+			this.writer = writer;
+			this.levelInfoWriter = levelInfoWriter;
+			this.skipBlock = skipBlock;
+			this.level = level;
+			this.checkpoint = checkpoint;
+			this.checkpointInterval = checkpointInterval;
+		}
+
+		@Override
+		public synchronized void writeLevelInfo( final long[] dimensions, final long[] factors, final long[] blocksize )
+		{
+			levelInfoWriter.writeLevelInfo( dimensions, factors, blocksize );
+
+			numBlocks = 1;
+			for ( int d = 0; d < dimensions.length; ++d )
+				numBlocks *= ( dimensions[ d ] + blocksize[ d ] - 1 ) / blocksize[ d ];
+			numSkipped = 0;
+			if ( skipBlock != null )
+				for ( long block = 0; block < numBlocks; ++block )
+					if ( skipBlock.test( block ) )
+						++numSkipped;
+			numWritten = 0;
+			startTime = lastReport = lastCheckpoint = System.currentTimeMillis();
+			System.out.println( String.format( "Level %d: %d blocks, %d written before", level, numBlocks, numSkipped ) );
+		}
+
+		@Override
+		public synchronized void writeBlock( final VolatileLabelMultisetArray data, final long[] min, final long[] blocksize )
+		{
+			writer.writeBlock( data, min, blocksize );
+			++numWritten;
+
+			final long time = System.currentTimeMillis();
+			if ( time - lastCheckpoint >= checkpointInterval )
+			{
+				checkpoint.run();
+				lastCheckpoint = time;
+			}
+			if ( time - lastReport >= REPORT_INTERVAL )
+				report( false );
+		}
+
+		/**
+		 * Print the number of blocks written, blocks per second, and the
+		 * estimated remaining or, if {@code done}, the total time.
+		 */
+		public synchronized void report( final boolean done )
+		{
+			lastReport = System.currentTimeMillis();
+			final long elapsed = Math.max( 1, lastReport - startTime );
+			final double blocksPerSecond = numWritten * 1000.0 / elapsed;
+			final long remaining = numBlocks - numSkipped - numWritten;
+			final String time = done
+					? "took " + formatDuration( elapsed / 1000 )
+					: "ETA " + ( numWritten == 0 ? "?" : formatDuration( ( long ) ( remaining / blocksPerSecond ) ) );
+			System.out.println( String.format(
+					"Level %d: %d/%d blocks, %.1f blocks/s, %s",
+					level,
+					numSkipped + numWritten,
+					numBlocks,
+					blocksPerSecond,
+					time ) );
+		}
+
+		static protected String formatDuration( final long seconds )
+		{
+			return String.format( "%d:%02d:%02d", seconds / 3600, seconds / 60 % 60, seconds % 60 );
+		}
+	}
+
 	public interface BlockWriter
 	{
 		public void writeBlock( VolatileLabelMultisetArray data, final long[] min, final long[] blocksize );
@@ -123,30 +428,59 @@ public class DownscaleToHdf5
 			final int level,
 			final BlockWriter writer,
 			final LevelInfoWriter levelInfoWriter )
+	{
+		writeLevelToHdf5File( imgs, mipmapInfo, level, writer, levelInfoWriter, null );
+	}
+
+	/**
+	 * Downscale and write one mipmap level. If {@code pool} is not
+	 * {@code null}, blocks are downscaled in parallel by
+	 * {@link ParallelDownscale} and {@code writer} is called from the pool's
+	 * threads (synchronized on {@code writer}), otherwise blocks are
+	 * downscaled and written sequentially on the calling thread.
+	 */
+	public static void writeLevelToHdf5File(
+			final ArrayList< RandomAccessibleInterval< LabelMultisetType > > imgs,
+			final ExportMipmapInfo mipmapInfo,
+			final int level,
+			final BlockWriter writer,
+			final LevelInfoWriter levelInfoWriter,
+			final ForkJoinPool pool )
+	{
+		writeLevelToHdf5File( imgs, mipmapInfo, level, writer, levelInfoWriter, pool, null );
+	}
+
+	/**
+	 * Downscale and write the blocks of one mipmap level that are not
+	 * skipped.
+	 *
+	 * @param skipBlock
+	 *            blocks for which this returns true, by flat index in the
+	 *            cell grid, x fastest, are neither downscaled nor written. It
+	 *            is evaluated after
+	 *            {@link LevelInfoWriter#writeLevelInfo(long[], long[], long[])}.
+	 *            May be {@code null}.
+	 */
+	public static void writeLevelToHdf5File(
+			final ArrayList< RandomAccessibleInterval< LabelMultisetType > > imgs,
+			final ExportMipmapInfo mipmapInfo,
+			final int level,
+			final BlockWriter writer,
+			final LevelInfoWriter levelInfoWriter,
+			final ForkJoinPool pool,
+			final LongPredicate skipBlock )
 	{
 		final int n = imgs.get( 0 ).numDimensions();
 		final int[][] resolutions = mipmapInfo.getExportResolutions();
 
 		// Are downsampling factors a multiple of a level that we have
 		// already written?
-		int[] factorsToPreviousLevel = null;
-		int previousLevel = -1;
-		A: for ( int l = level - 1; l >= 0; --l )
-		{
-			final int[] f = new int[ n ];
-			for ( int d = 0; d < n; ++d )
-			{
-				f[ d ] = resolutions[ level ][ d ] / resolutions[ l ][ d ];
-				if ( f[ d ] * resolutions[ l ][ d ] != resolutions[ level ][ d ] )
-					continue A;
-			}
-			factorsToPreviousLevel = f;
-			previousLevel = l;
-			break;
-		}
+		final int previousLevel = previousLevel( resolutions, level );
+		final long[] factors = new long[ n ];
+		for ( int d = 0; d < n; ++d )
+			factors[ d ] = resolutions[ level ][ d ] / resolutions[ previousLevel ][ d ];
 
 		final RandomAccessibleInterval< LabelMultisetType > sourceImg = imgs.get( previousLevel );
-		final long[] factors = Util.int2long( factorsToPreviousLevel );
 
 		final long[] dimensions = new long[ n ];
 		sourceImg.dimensions( dimensions );
@@ -163,6 +497,12 @@ public class DownscaleToHdf5
 		final RandomAccessibleInterval< LabelMultisetType > extendedImg = Views.interval( Views.extendBorder( sourceImg ), new FinalInterval( minRequiredInput, maxRequiredInput ) );
 
 		final int[] cellDimensions = mipmapInfo.getSubdivisions()[ level ];
+		if ( pool != null )
+		{
+			ParallelDownscale.downscaleLevel( pool, extendedImg, factors, dimensions, cellDimensions, ParallelDownscale.DEFAULT_MIN_STRIPE_SIZE, writer, skipBlock );
+			return;
+		}
+
 		final long[] numCells = new long[ n ];
 		final int[] borderSize = new int[ n ];
 		final long[] minCell = new long[ n ];
@@ -178,9 +518,12 @@ public class DownscaleToHdf5
 		final long[] currentCellMin = new long[ n ];
 		final long[] currentCellDim = new long[ n ];
 		final long[] currentCellPos = new long[ n ];
-		while ( i.hasNext() )
+		for ( long block = 0; i.hasNext(); ++block )
 		{
 			i.fwd();
+			if ( skipBlock != null && skipBlock.test( block ) )
+				continue;
+
 			i.localize( currentCellPos );
 			for ( int d = 0; d < n; ++d )
 			{
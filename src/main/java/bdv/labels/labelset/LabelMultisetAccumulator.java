@@ -0,0 +1,201 @@
+package bdv.labels.labelset;
+
+import java.util.Arrays;
+
+import bdv.labels.labelset.Multiset.Entry;
+
+/**
+ * Accumulates the entries of many label multisets and writes their sum into
+ * a {@link LabelMultisetEntryList}.
+ *
+ * Entries are appended to primitive arrays and sorted and merged once in
+ * {@link #writeTo(LabelMultisetEntryList)}, so summing k multisets with a
+ * total of n entries costs O(n log n) instead of the O(n&middot;m) of
+ * repeated {@link LabelMultisetEntryList#mergeWith(LabelMultisetEntryList)}
+ * with its shifting inserts.  The arrays are reused after {@link #clear()},
+ * so an accumulator should be kept per thread and reused for many
+ * multisets.
+ */
+public class LabelMultisetAccumulator
+{
+	/**
+	 * Below this size, ranges are sorted by insertion sort.
+	 */
+	final static private int INSERTION_SORT_THRESHOLD = 16;
+
+	private long[] ids;
+
+	private int[] counts;
+
+	private int size = 0;
+
+	private boolean merged = true;
+
+	public LabelMultisetAccumulator()
+	{
+		this( 64 );
+	}
+
+	public LabelMultisetAccumulator( final int capacity )
+	{
+		ids = new long[ Math.max( 1, capacity ) ];
+		counts = new int[ ids.length ];
+	}
+
+	public void clear()
+	{
+		size = 0;
+		merged = true;
+	}
+
+	public void add( final long id, final int count )
+	{
+		if ( size == ids.length )
+		{
+			ids = Arrays.copyOf( ids, 2 * size );
+			counts = Arrays.copyOf( counts, 2 * size );
+		}
+		ids[ size ] = id;
+		counts[ size ] = count;
+		++size;
+		merged = false;
+	}
+
+	public void add( final Multiset< Label > multiset )
+	{
+		for ( final Entry< Label > entry : multiset.entrySet() )
+			add( entry.getElement().id(), entry.getCount() );
+	}
+
+	public void add( final LabelMultisetEntryList list )
+	{
+		final LabelMultisetEntry ref = list.createRef();
+		for ( int i = 0; i < list.size(); ++i )
+		{
+			list.get( i, ref );
+			add( ref.getId(), ref.getCount() );
+		}
+		list.releaseRef( ref );
+	}
+
+	/**
+	 * Sort accumulated entries by id and sum the counts of equal ids.
+	 *
+	 * @return the number of distinct ids
+	 */
+	public int merge()
+	{
+		if ( merged )
+			return size;
+
+		sort( 0, size - 1 );
+		int n = 0;
+		for ( int i = 1; i < size; ++i )
+		{
+			if ( ids[ i ] == ids[ n ] )
+				counts[ n ] += counts[ i ];
+			else
+			{
+				++n;
+				ids[ n ] = ids[ i ];
+				counts[ n ] = counts[ i ];
+			}
+		}
+		size = Math.min( size, n + 1 );
+		merged = true;
+		return size;
+	}
+
+	/**
+	 * @return the number of accumulated entries, distinct ids after
+	 *         {@link #merge()}
+	 */
+	public int size()
+	{
+		return size;
+	}
+
+	public long getId( final int i )
+	{
+		return ids[ i ];
+	}
+
+	public int getCount( final int i )
+	{
+		return counts[ i ];
+	}
+
+	/**
+	 * Merge and write the accumulated entries into an empty list, e.g. one
+	 * that was just created with
+	 * {@link LabelMultisetEntryList#createListAt(MappedAccessData, long)}.
+	 *
+	 * @param list
+	 */
+	public void writeTo( final LabelMultisetEntryList list )
+	{
+		merge();
+		list.ensureCapacity( size );
+		list.setSize( size );
+		final LabelMultisetEntry ref = list.createRef();
+		for ( int i = 0; i < size; ++i )
+		{
+			list.get( i, ref );
+			ref.setId( ids[ i ] );
+			ref.setCount( counts[ i ] );
+		}
+		list.releaseRef( ref );
+	}
+
+	private void sort( final int low, final int high )
+	{
+		if ( high - low < INSERTION_SORT_THRESHOLD )
+		{
+			for ( int i = low + 1; i <= high; ++i )
+			{
+				final long id = ids[ i ];
+				final int count = counts[ i ];
+				int j = i - 1;
+				for ( ; j >= low && ids[ j ] > id; --j )
+				{
+					ids[ j + 1 ] = ids[ j ];
+					counts[ j + 1 ] = counts[ j ];
+				}
+				ids[ j + 1 ] = id;
+				counts[ j + 1 ] = count;
+			}
+			return;
+		}
+
+		final long pivot = ids[ ( low + high ) >>> 1 ];
+		int i = low;
+		int j = high;
+		while ( i <= j )
+		{
+			while ( ids[ i ] < pivot )
+				++i;
+			while ( ids[ j ] > pivot )
+				--j;
+			if ( i <= j )
+			{
+				swap( i, j );
+				++i;
+				--j;
+			}
+		}
+		if ( low < j )
+			sort( low, j );
+		if ( i < high )
+			sort( i, high );
+	}
+
+	private void swap( final int i, final int j )
+	{
+		final long id = ids[ i ];
+		ids[ i ] = ids[ j ];
+		ids[ j ] = id;
+		final int count = counts[ i ];
+		counts[ i ] = counts[ j ];
+		counts[ j ] = count;
+	}
+}
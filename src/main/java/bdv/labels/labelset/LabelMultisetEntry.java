@@ -27,7 +27,7 @@ public class LabelMultisetEntry
 	public LabelMultisetEntry()
 	{
 		super(
-			LongMappedAccessData.factory.createStorage( SIZE_IN_BYTES ).createAccess(),
+			LongMappedAccessData.heapFactory.createStorage( SIZE_IN_BYTES ).createAccess(),
 			LongMappedAccessData.factory );
 	}
 
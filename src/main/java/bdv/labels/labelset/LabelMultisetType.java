@@ -6,6 +6,7 @@ import java.util.Iterator;
 import java.util.Set;
 
 import bdv.labels.labelset.RefList.RefIterator;
+import gnu.trove.set.TLongSet;
 import net.imglib2.img.NativeImg;
 import net.imglib2.img.NativeImgFactory;
 import net.imglib2.type.AbstractNativeType;
@@ -134,6 +135,24 @@ public class LabelMultisetType extends AbstractNativeType< LabelMultisetType > i
 		return new LabelMultisetType( img );
 	}
 
+	/**
+	 * @return id of the array that stores the list of this multiset, see
+	 *         {@link VolatileLabelMultisetArray#getId()}
+	 */
+	public long getArrayId()
+	{
+		return access.getId();
+	}
+
+	/**
+	 * @return offset of the list of this multiset in its array, see
+	 *         {@link VolatileLabelMultisetArray#getListOffset(int)}
+	 */
+	public int getListOffset()
+	{
+		return access.getListOffset( i );
+	}
+
 	// ==== Multiset< Label > =====
 
 	@Override
@@ -172,6 +191,21 @@ public class LabelMultisetType extends AbstractNativeType< LabelMultisetType > i
 		return true;
 	}
 
+	/**
+	 * Check whether any label of this multiset is in {@code ids}, looking up
+	 * each entry once instead of searching for each of {@code ids}.
+	 */
+	public boolean containsAny( final TLongSet ids )
+	{
+		access.getValue( i, entries );
+		final LabelMultisetEntry ref = entries.createRef();
+		boolean contains = false;
+		for ( int k = 0; k < entries.size() && !contains; ++k )
+			contains = ids.contains( entries.get( k, ref ).getId() );
+		entries.releaseRef( ref );
+		return contains;
+	}
+
 	@Override
 	public boolean containsAll( final Collection< ? > c )
 	{
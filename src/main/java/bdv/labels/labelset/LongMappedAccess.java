@@ -2,7 +2,7 @@ package bdv.labels.labelset;
 
 /**
  * A {@link MappedAccess} that stores its data in a portion of a {@code long[]}
- * array.
+ * array or of off-heap memory, see {@link LongMappedAccessData}.
  *
  * @author Tobias Pietzsch &lt;tobias.pietzsch@gmail.com&gt;
  */
@@ -10,12 +10,16 @@ public class LongMappedAccess implements MappedAccess< LongMappedAccess >
 {
 	/**
 	 * The current base offset (in bytes) into the underlying
-	 * {@link LongMappedAccessData#data storage array}.
+	 * {@link LongMappedAccessData storage}.
 	 */
 	private long baseOffset;
 
 	/**
-	 * Contains the {@link LongMappedAccessData#data storage array}.
+	 * Contains the {@link LongMappedAccessData storage}.  Every method that
+	 * uses its {@link LongMappedAccessData#address address} keeps it
+	 * reachable until the memory access is done, see
+	 * {@link ByteUtils#reachabilityFence(Object)}, because off-heap memory
+	 * is freed once the storage is unreachable.
 	 */
 	private LongMappedAccessData dataArray;
 
@@ -48,73 +52,103 @@ public class LongMappedAccess implements MappedAccess< LongMappedAccess >
 	@Override
 	public void putByte( final byte value, final int offset )
 	{
-		ByteUtils.putByte( value, dataArray.data, baseOffset + offset );
+		final LongMappedAccessData data = dataArray;
+		ByteUtils.putByte( value, data.base, data.address + baseOffset + offset );
+		ByteUtils.reachabilityFence( data );
 	}
 
 	@Override
 	public byte getByte( final int offset )
 	{
-		return ByteUtils.getByte( dataArray.data, baseOffset + offset );
+		final LongMappedAccessData data = dataArray;
+		final byte value = ByteUtils.getByte( data.base, data.address + baseOffset + offset );
+		ByteUtils.reachabilityFence( data );
+		return value;
 	}
 
 	@Override
 	public void putBoolean( final boolean value, final int offset )
 	{
-		ByteUtils.putBoolean( value, dataArray.data, baseOffset + offset );
+		final LongMappedAccessData data = dataArray;
+		ByteUtils.putBoolean( value, data.base, data.address + baseOffset + offset );
+		ByteUtils.reachabilityFence( data );
 	}
 
 	@Override
 	public boolean getBoolean( final int offset )
 	{
-		return ByteUtils.getBoolean( dataArray.data, baseOffset + offset );
+		final LongMappedAccessData data = dataArray;
+		final boolean value = ByteUtils.getBoolean( data.base, data.address + baseOffset + offset );
+		ByteUtils.reachabilityFence( data );
+		return value;
 	}
 
 	@Override
 	public void putInt( final int value, final int offset )
 	{
-		ByteUtils.putInt( value, dataArray.data, baseOffset + offset );
+		final LongMappedAccessData data = dataArray;
+		ByteUtils.putInt( value, data.base, data.address + baseOffset + offset );
+		ByteUtils.reachabilityFence( data );
 	}
 
 	@Override
 	public int getInt( final int offset )
 	{
-		return ByteUtils.getInt( dataArray.data, baseOffset + offset );
+		final LongMappedAccessData data = dataArray;
+		final int value = ByteUtils.getInt( data.base, data.address + baseOffset + offset );
+		ByteUtils.reachabilityFence( data );
+		return value;
 	}
 
 	@Override
 	public void putLong( final long value, final int offset )
 	{
-		ByteUtils.putLong( value, dataArray.data, baseOffset + offset );
+		final LongMappedAccessData data = dataArray;
+		ByteUtils.putLong( value, data.base, data.address + baseOffset + offset );
+		ByteUtils.reachabilityFence( data );
 	}
 
 	@Override
 	public long getLong( final int offset )
 	{
-		return ByteUtils.getLong( dataArray.data, baseOffset + offset );
+		final LongMappedAccessData data = dataArray;
+		final long value = ByteUtils.getLong( data.base, data.address + baseOffset + offset );
+		ByteUtils.reachabilityFence( data );
+		return value;
 	}
 
 	@Override
 	public void putFloat( final float value, final int offset )
 	{
-		ByteUtils.putFloat( value, dataArray.data, baseOffset + offset );
+		final LongMappedAccessData data = dataArray;
+		ByteUtils.putFloat( value, data.base, data.address + baseOffset + offset );
+		ByteUtils.reachabilityFence( data );
 	}
 
 	@Override
 	public float getFloat( final int offset )
 	{
-		return ByteUtils.getFloat( dataArray.data, baseOffset + offset );
+		final LongMappedAccessData data = dataArray;
+		final float value = ByteUtils.getFloat( data.base, data.address + baseOffset + offset );
+		ByteUtils.reachabilityFence( data );
+		return value;
 	}
 
 	@Override
 	public void putDouble( final double value, final int offset )
 	{
-		ByteUtils.putDouble( value, dataArray.data, baseOffset + offset );
+		final LongMappedAccessData data = dataArray;
+		ByteUtils.putDouble( value, data.base, data.address + baseOffset + offset );
+		ByteUtils.reachabilityFence( data );
 	}
 
 	@Override
 	public double getDouble( final int offset )
 	{
-		return ByteUtils.getDouble( dataArray.data, baseOffset + offset );
+		final LongMappedAccessData data = dataArray;
+		final double value = ByteUtils.getDouble( data.base, data.address + baseOffset + offset );
+		ByteUtils.reachabilityFence( data );
+		return value;
 	}
 
 	/**
@@ -142,7 +176,14 @@ public class LongMappedAccess implements MappedAccess< LongMappedAccess >
 	@Override
 	public void copyFrom( final LongMappedAccess fromAccess, final int numBytes )
 	{
-		ByteUtils.copyBytes( fromAccess.dataArray.data, fromAccess.baseOffset, dataArray.data, baseOffset, numBytes );
+		final LongMappedAccessData fromData = fromAccess.dataArray;
+		final LongMappedAccessData data = dataArray;
+		ByteUtils.copyBytes(
+				fromData.base, fromData.address + fromAccess.baseOffset,
+				data.base, data.address + baseOffset,
+				numBytes );
+		ByteUtils.reachabilityFence( fromData );
+		ByteUtils.reachabilityFence( data );
 	}
 
 	private long[] swapTmp = new long[ 0 ];
@@ -152,8 +193,13 @@ public class LongMappedAccess implements MappedAccess< LongMappedAccess >
 	{
 		if ( ( swapTmp.length << 3 ) < numBytes )
 			swapTmp = new long[ ( numBytes >> 3 ) + 1 ];
-		ByteUtils.copyBytes( dataArray.data, baseOffset, swapTmp, 0, numBytes );
-		ByteUtils.copyBytes( access.dataArray.data, access.baseOffset, dataArray.data, baseOffset, numBytes );
-		ByteUtils.copyBytes( swapTmp, 0, access.dataArray.data, access.baseOffset, numBytes );
+		final Object tmp = swapTmp;
+		final LongMappedAccessData data = dataArray;
+		final LongMappedAccessData otherData = access.dataArray;
+		ByteUtils.copyBytes( data.base, data.address + baseOffset, tmp, ByteUtils.LONG_ARRAY_OFFSET, numBytes );
+		ByteUtils.copyBytes( otherData.base, otherData.address + access.baseOffset, data.base, data.address + baseOffset, numBytes );
+		ByteUtils.copyBytes( tmp, ByteUtils.LONG_ARRAY_OFFSET, otherData.base, otherData.address + access.baseOffset, numBytes );
+		ByteUtils.reachabilityFence( data );
+		ByteUtils.reachabilityFence( otherData );
 	}
 }
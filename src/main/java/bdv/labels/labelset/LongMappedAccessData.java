@@ -2,8 +2,14 @@ package bdv.labels.labelset;
 
 
 /**
- * A {@link MappedElementArray} that stores {@link DoubleMappedElement
- * DoubleMappedElements} in a {@code double[]} array.
+ * A {@link MappedAccessData} that stores {@link LongMappedAccess} data in a
+ * {@code long[]} array.
+ *
+ * Subclasses may store the data elsewhere, e.g. off-heap in
+ * {@link OffHeapLongMappedAccessData}. {@link LongMappedAccess} addresses the
+ * storage through {@link #base} and {@link #address}, so all variants share
+ * the same access code. Which variant is created by {@link #factory} is set
+ * with {@link #setStorageFactory(MappedAccessData.Factory)}.
  *
  * @author Tobias Pietzsch <tobias.pietzsch@gmail.com>
  */
@@ -11,12 +17,28 @@ public class LongMappedAccessData implements MappedAccessData< LongMappedAccess
 {
 	/**
 	 * The current data storage. This is changed when the array is
-	 * {@link #resize(int) resized}.
+	 * {@link #resize(long) resized}. {@code null} if the data is not stored on
+	 * the heap.
 	 */
 	protected long[] data;
 
-	private long size;
+	/**
+	 * The object containing the data ({@link #data}), or {@code null} for
+	 * off-heap storage.
+	 */
+	Object base;
+
+	/**
+	 * The address of byte 0 of the data, relative to {@link #base}.
+	 */
+	long address;
 
+	protected long size;
+
+	/**
+	 * @return the storage array, or {@code null} if the data is not stored on
+	 *         the heap.
+	 */
 	public long[] getData()
 	{
 		return data;
@@ -52,7 +74,21 @@ public class LongMappedAccessData implements MappedAccessData< LongMappedAccess
 					"trying to create a " + getClass().getName() + " with more than " + ( ( long ) ByteUtils.LONG_SIZE * Integer.MAX_VALUE ) + " bytes.");
 
 		this.size = size;
-		this.data = new long[ ( int ) longSize ];
+		setData( new long[ ( int ) longSize ] );
+	}
+
+	/**
+	 * Create an empty container. Subclasses are responsible for setting
+	 * {@link #base}, {@link #address}, and {@link #size}.
+	 */
+	protected LongMappedAccessData()
+	{}
+
+	private void setData( final long[] data )
+	{
+		this.data = data;
+		this.base = data;
+		this.address = ByteUtils.LONG_ARRAY_OFFSET;
 	}
 
 	@Override
@@ -79,14 +115,15 @@ public class LongMappedAccessData implements MappedAccessData< LongMappedAccess
 		final long[] datacopy = new long[ ( int ) longSize ];
 			final int copyLength = Math.min( data.length, datacopy.length );
 			System.arraycopy( data, 0, datacopy, 0, copyLength );
-		this.data = datacopy;
+		setData( datacopy );
 		this.size = size;
 	}
 
 	/**
-	 * A factory for {@link LongMappedAccessData}s.
+	 * A factory for {@link LongMappedAccessData}s storing data in
+	 * {@code long[]} arrays.
 	 */
-	public static final MappedAccessData.Factory< LongMappedAccessData, LongMappedAccess > factory =
+	public static final MappedAccessData.Factory< LongMappedAccessData, LongMappedAccess > heapFactory =
 			new MappedAccessData.Factory< LongMappedAccessData, LongMappedAccess >()
 			{
 				@Override
@@ -95,6 +132,52 @@ public class LongMappedAccessData implements MappedAccessData< LongMappedAccess
 					return new LongMappedAccessData( size );
 				}
 
+				@Override
+				public LongMappedAccess createAccess()
+				{
+					return new LongMappedAccess( null, 0 );
+				}
+			};
+
+	private static volatile MappedAccessData.Factory< ? extends LongMappedAccessData, LongMappedAccess > storageFactory = null;
+
+	/**
+	 * Set the factory used by {@link #factory} to create storage, e.g.
+	 * {@link #heapFactory} or {@link OffHeapLongMappedAccessData#directFactory}.
+	 * Storage created earlier is not affected.
+	 */
+	public static void setStorageFactory( final MappedAccessData.Factory< ? extends LongMappedAccessData, LongMappedAccess > storageFactory )
+	{
+		LongMappedAccessData.storageFactory = storageFactory;
+	}
+
+	/**
+	 * Get the factory used by {@link #factory} to create storage. Unless set
+	 * with {@link #setStorageFactory(MappedAccessData.Factory)}, this is
+	 * determined by the system property {@code bigcat.labelset.storage}, see
+	 * {@link OffHeapLongMappedAccessData#factoryFromSystemProperties()}.
+	 */
+	public static MappedAccessData.Factory< ? extends LongMappedAccessData, LongMappedAccess > getStorageFactory()
+	{
+		MappedAccessData.Factory< ? extends LongMappedAccessData, LongMappedAccess > f = storageFactory;
+		if ( f == null )
+			storageFactory = f = OffHeapLongMappedAccessData.factoryFromSystemProperties();
+		return f;
+	}
+
+	/**
+	 * A factory for {@link LongMappedAccessData}s. Storage is created by the
+	 * current {@link #getStorageFactory() storage factory}.
+	 */
+	public static final MappedAccessData.Factory< LongMappedAccessData, LongMappedAccess > factory =
+			new MappedAccessData.Factory< LongMappedAccessData, LongMappedAccess >()
+			{
+				@Override
+				public LongMappedAccessData createStorage( final long size )
+				{
+					return getStorageFactory().createStorage( size );
+				}
+
 				@Override
 				public LongMappedAccess createAccess()
 				{
@@ -0,0 +1,481 @@
+package bdv.labels.labelset;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.Buffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A {@link LongMappedAccessData} that stores its data outside of the Java
+ * heap, either in memory obtained from the native allocator
+ * ({@link #directFactory}) or in memory-mapped temporary files
+ * ({@link #mappedFactory(File)}).
+ *
+ * Large label multiset blocks then do not add to the heap or to GC pauses.
+ * Native memory is reallocated in place where possible when
+ * {@link #resize(long) growing}.  Mapped storage keeps small data (e.g.
+ * placeholders and single-label blocks) in native memory as well and moves
+ * it to a slice of a few large mappings shared by all storage of a factory
+ * once it grows beyond {@value #MIN_MAPPED_SIZE} bytes, such that the
+ * number of mappings and temporary files does not grow with the number of
+ * blocks.  Temporary files are deleted right after they were mapped.
+ *
+ * Memory is released by a daemon thread after the storage became
+ * unreachable, slices of shared mappings are reused.
+ * {@link LongMappedAccess} keeps the storage reachable while it uses its
+ * address. Like all {@link MappedAccessData}, the storage must not be
+ * resized while it is accessed from other threads: the memory of the old
+ * address is released right away.
+ */
+public class OffHeapLongMappedAccessData extends LongMappedAccessData
+{
+	/**
+	 * System property selecting the storage created by
+	 * {@link LongMappedAccessData#factory}: {@code heap} (default),
+	 * {@code direct}, or {@code mapped}.
+	 */
+	public static final String STORAGE_PROPERTY = "bigcat.labelset.storage";
+
+	/**
+	 * System property with the directory for temporary files of
+	 * {@code mapped} storage. Defaults to {@code java.io.tmpdir}.
+	 */
+	public static final String STORAGE_DIRECTORY_PROPERTY = "bigcat.labelset.storage.dir";
+
+	/**
+	 * Mapped storage smaller than this is kept in native memory.  Also the
+	 * smallest slice of a shared mapping.
+	 */
+	final static private long MIN_MAPPED_SIZE = 1 << 16;
+
+	/**
+	 * Size of the shared mappings that slices are taken from.  Larger
+	 * storage gets a mapping of its own.
+	 */
+	final static private long SHARED_MAPPING_SIZE = 1 << 28;
+
+	private final Memory memory;
+
+	private OffHeapLongMappedAccessData( final Memory memory, final long size )
+	{
+		this.memory = memory;
+		memory.ensureCapacity( size );
+		this.base = null;
+		this.address = memory.address;
+		this.size = size;
+		reclaimers.add( new Reclaimer( this, memory ) );
+	}
+
+	/**
+	 * {@inheritDoc} The memory is grown without copying where possible.
+	 * Bytes beyond the new size are zeroed.
+	 */
+	@Override
+	public void resize( final long size )
+	{
+		if ( size < this.size )
+			ByteUtils.UNSAFE.setMemory( memory.address + size, this.size - size, ( byte ) 0 );
+		memory.ensureCapacity( size );
+		this.address = memory.address;
+		this.size = size;
+	}
+
+	/**
+	 * @return whether the data is currently stored in a memory-mapped file.
+	 */
+	public boolean isMapped()
+	{
+		return memory instanceof MappedMemory && ( ( MappedMemory ) memory ).slice != null;
+	}
+
+	/**
+	 * A factory for {@link OffHeapLongMappedAccessData}s in native memory.
+	 */
+	public static final MappedAccessData.Factory< OffHeapLongMappedAccessData, LongMappedAccess > directFactory =
+			new MappedAccessData.Factory< OffHeapLongMappedAccessData, LongMappedAccess >()
+			{
+				@Override
+				public OffHeapLongMappedAccessData createStorage( final long size )
+				{
+					return new OffHeapLongMappedAccessData( new DirectMemory(), size );
+				}
+
+				@Override
+				public LongMappedAccess createAccess()
+				{
+					return new LongMappedAccess( null, 0 );
+				}
+			};
+
+	/**
+	 * Create a factory for {@link OffHeapLongMappedAccessData}s in temporary
+	 * files in {@code directory} that are memory-mapped.
+	 */
+	public static MappedAccessData.Factory< OffHeapLongMappedAccessData, LongMappedAccess > mappedFactory( final File directory )
+	{
+		final MappingPool pool = new MappingPool( directory );
+		return new MappedAccessData.Factory< OffHeapLongMappedAccessData, LongMappedAccess >()
+		{
+			@Override
+			public OffHeapLongMappedAccessData createStorage( final long size )
+			{
+				return new OffHeapLongMappedAccessData( new MappedMemory( pool ), size );
+			}
+
+			@Override
+			public LongMappedAccess createAccess()
+			{
+				return new LongMappedAccess( null, 0 );
+			}
+		};
+	}
+
+	/**
+	 * Get the storage factory selected by {@link #STORAGE_PROPERTY} and
+	 * {@link #STORAGE_DIRECTORY_PROPERTY}.
+	 */
+	public static MappedAccessData.Factory< ? extends LongMappedAccessData, LongMappedAccess > factoryFromSystemProperties()
+	{
+		final String storage = System.getProperty( STORAGE_PROPERTY, "heap" );
+		switch ( storage )
+		{
+		case "heap":
+			return LongMappedAccessData.heapFactory;
+		case "direct":
+			return directFactory;
+		case "mapped":
+			return mappedFactory( new File( System.getProperty( STORAGE_DIRECTORY_PROPERTY, System.getProperty( "java.io.tmpdir" ) ) ) );
+		default:
+			throw new IllegalArgumentException( "unknown " + STORAGE_PROPERTY + " \"" + storage + "\", expected heap, direct, or mapped" );
+		}
+	}
+
+	/**
+	 * A region of off-heap memory starting at {@link #address}. Must not
+	 * refer to the {@link OffHeapLongMappedAccessData} using it, so that
+	 * that can become unreachable.
+	 */
+	static abstract class Memory
+	{
+		protected long address = 0;
+
+		protected long capacity = 0;
+
+		/**
+		 * Make at least {@code size} bytes available. Newly available bytes
+		 * are zero. May change {@link #address}.
+		 */
+		abstract void ensureCapacity( final long size );
+
+		abstract void free();
+	}
+
+	static class DirectMemory extends Memory
+	{
+		@Override
+		void ensureCapacity( final long size )
+		{
+			final long newCapacity = Math.max( ByteUtils.LONG_SIZE, ( size + ByteUtils.LONG_SIZE - 1 ) & ~( ByteUtils.LONG_SIZE - 1 ) );
+			if ( newCapacity <= capacity )
+				return;
+
+			address = address == 0
+					? ByteUtils.UNSAFE.allocateMemory( newCapacity )
+					: ByteUtils.UNSAFE.reallocateMemory( address, newCapacity );
+			ByteUtils.UNSAFE.setMemory( address + capacity, newCapacity - capacity, ( byte ) 0 );
+			capacity = newCapacity;
+		}
+
+		@Override
+		void free()
+		{
+			if ( address != 0 )
+				ByteUtils.UNSAFE.freeMemory( address );
+			address = 0;
+			capacity = 0;
+		}
+	}
+
+	/**
+	 * Native memory while smaller than {@link #MIN_MAPPED_SIZE}, a slice of
+	 * a {@link MappingPool} otherwise.  Growing a slice copies the data to a
+	 * slice of at least twice the size.
+	 */
+	static class MappedMemory extends Memory
+	{
+		private final MappingPool pool;
+
+		private final DirectMemory direct = new DirectMemory();
+
+		private MappingPool.Slice slice = null;
+
+		MappedMemory( final MappingPool pool )
+		{
+			this.pool = pool;
+		}
+
+		@Override
+		void ensureCapacity( final long size )
+		{
+			if ( slice == null && size < MIN_MAPPED_SIZE )
+			{
+				direct.ensureCapacity( size );
+				address = direct.address;
+				capacity = direct.capacity;
+				return;
+			}
+
+			if ( slice != null && size <= capacity )
+				return;
+
+			if ( size > Integer.MAX_VALUE )
+				throw new IllegalArgumentException(
+						"trying to map more than " + Integer.MAX_VALUE + " bytes for a " + OffHeapLongMappedAccessData.class.getName() );
+
+			final MappingPool.Slice newSlice = pool.allocate( Math.min( Integer.MAX_VALUE, Math.max( size, 2 * capacity ) ) );
+			if ( capacity > 0 )
+				ByteUtils.UNSAFE.copyMemory( address, newSlice.address, capacity );
+			if ( slice == null )
+				direct.free();
+			else
+				pool.release( slice );
+			slice = newSlice;
+			address = newSlice.address;
+			capacity = newSlice.capacity;
+		}
+
+		@Override
+		void free()
+		{
+			if ( slice == null )
+				direct.free();
+			else
+				pool.release( slice );
+			slice = null;
+			address = 0;
+			capacity = 0;
+		}
+	}
+
+	/**
+	 * Slices of memory-mapped temporary files in one directory.  Slices have
+	 * power of two sizes of at least {@link #MIN_MAPPED_SIZE} and are taken
+	 * from shared mappings of {@link #SHARED_MAPPING_SIZE} bytes.  Released
+	 * slices are kept for reuse, the shared mappings are never unmapped.
+	 * Larger slices get a mapping of their own that is unmapped when the
+	 * slice is released.
+	 */
+	static class MappingPool
+	{
+		static class Slice
+		{
+			final long address;
+
+			final long capacity;
+
+			/**
+			 * The mapping of a slice that is not shared, {@code null}
+			 * otherwise.
+			 */
+			final MappedByteBuffer buffer;
+
+			Slice( final long address, final long capacity, final MappedByteBuffer buffer )
+			{
+				this.address = address;
+				this.capacity = capacity;
+				this.buffer = buffer;
+			}
+		}
+
+		private final File directory;
+
+		/**
+		 * Keep the shared mappings alive.
+		 */
+		private final ArrayList< MappedByteBuffer > mappings = new ArrayList<>();
+
+		/**
+		 * Released slices by log2 of their capacity.
+		 */
+		private final ArrayList< ArrayDeque< Slice > > released = new ArrayList<>();
+
+		/**
+		 * Unused range of the last shared mapping.
+		 */
+		private long next = 0;
+
+		private long end = 0;
+
+		MappingPool( final File directory )
+		{
+			this.directory = directory;
+			for ( int i = 0; i < Long.SIZE; ++i )
+				released.add( new ArrayDeque<>() );
+		}
+
+		/**
+		 * Get a slice of at least {@code size} bytes.  All bytes are zero.
+		 */
+		synchronized Slice allocate( final long size )
+		{
+			final int log2 = Math.max(
+					Long.numberOfTrailingZeros( MIN_MAPPED_SIZE ),
+					Long.SIZE - Long.numberOfLeadingZeros( size - 1 ) );
+			final long capacity = 1L << log2;
+			if ( capacity > SHARED_MAPPING_SIZE )
+			{
+				final MappedByteBuffer buffer = map( size );
+				return new Slice( address( buffer ), size, buffer );
+			}
+
+			final Slice slice = released.get( log2 ).poll();
+			if ( slice != null )
+			{
+				ByteUtils.UNSAFE.setMemory( slice.address, slice.capacity, ( byte ) 0 );
+				return slice;
+			}
+
+			if ( end - next < capacity )
+			{
+				/* keep the rest of the last mapping for smaller slices */
+				while ( end - next >= MIN_MAPPED_SIZE )
+				{
+					final int restLog2 = Long.SIZE - 1 - Long.numberOfLeadingZeros( end - next );
+					released.get( restLog2 ).add( new Slice( next, 1L << restLog2, null ) );
+					next += 1L << restLog2;
+				}
+				final MappedByteBuffer buffer = map( SHARED_MAPPING_SIZE );
+				mappings.add( buffer );
+				next = address( buffer );
+				end = next + SHARED_MAPPING_SIZE;
+			}
+			final Slice newSlice = new Slice( next, capacity, null );
+			next += capacity;
+			return newSlice;
+		}
+
+		synchronized void release( final Slice slice )
+		{
+			if ( slice.buffer == null )
+				released.get( Long.numberOfTrailingZeros( slice.capacity ) ).add( slice );
+			else
+				ByteUtils.free( slice.buffer );
+		}
+
+		/**
+		 * Map a new temporary file of {@code size} bytes.  The file is
+		 * deleted right away where the platform allows that, its data stay
+		 * available through the mapping.
+		 */
+		private MappedByteBuffer map( final long size )
+		{
+			try
+			{
+				final File file = File.createTempFile( "labelset-", ".bin", directory );
+				try ( final RandomAccessFile raf = new RandomAccessFile( file, "rw" ) )
+				{
+					/* mapping beyond the end extends the (sparse) file */
+					return raf.getChannel().map( FileChannel.MapMode.READ_WRITE, 0, size );
+				}
+				finally
+				{
+					if ( !file.delete() )
+						file.deleteOnExit();
+				}
+			}
+			catch ( final IOException e )
+			{
+				throw new UncheckedIOException( e );
+			}
+		}
+
+		private static long address( final MappedByteBuffer buffer )
+		{
+			return ByteUtils.UNSAFE.getLong( buffer, BUFFER_ADDRESS_OFFSET );
+		}
+	}
+
+	private static final long BUFFER_ADDRESS_OFFSET;
+
+	static
+	{
+		try
+		{
+			BUFFER_ADDRESS_OFFSET = ByteUtils.UNSAFE.objectFieldOffset( Buffer.class.getDeclaredField( "address" ) );
+		}
+		catch ( final NoSuchFieldException e )
+		{
+			throw new RuntimeException( e );
+		}
+	}
+
+	/*
+	 * Releasing memory of unreachable storage.
+	 */
+
+	private static final ReferenceQueue< OffHeapLongMappedAccessData > queue = new ReferenceQueue<>();
+
+	/**
+	 * Keeps the {@link Reclaimer}s reachable until they are enqueued.
+	 */
+	private static final Set< Reclaimer > reclaimers = Collections.newSetFromMap( new ConcurrentHashMap<>() );
+
+	private static class Reclaimer extends PhantomReference< OffHeapLongMappedAccessData >
+	{
+		private final Memory memory;
+
+		Reclaimer( final OffHeapLongMappedAccessData data, final Memory memory )
+		{
+			super( data, queue );
+			this.memory = memory;
+		}
+	}
+
+	static
+	{
+		final Thread reclaimerThread = new Thread( () -> {
+			while ( true )
+			{
+				try
+				{
+					free( queue.remove() );
+				}
+				catch ( final InterruptedException e )
+				{
+					return;
+				}
+			}
+		}, "labelset-storage-reclaimer" );
+		reclaimerThread.setDaemon( true );
+		reclaimerThread.start();
+	}
+
+	private static void free( final Reference< ? > ref )
+	{
+		final Reclaimer reclaimer = ( Reclaimer ) ref;
+		reclaimers.remove( reclaimer );
+		reclaimer.memory.free();
+	}
+
+	/**
+	 * Free the memory of all storage that became unreachable and was not
+	 * freed by the reclaimer thread yet.
+	 */
+	public static void reclaim()
+	{
+		Reference< ? > ref;
+		while ( ( ref = queue.poll() ) != null )
+			free( ref );
+	}
+}
@@ -0,0 +1,373 @@
+package bdv.labels.labelset;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.LongPredicate;
+
+import bdv.labels.labelset.Downscale.LabelMultisetEntryListIndex;
+import bdv.labels.labelset.DownscaleToHdf5.BlockWriter;
+import gnu.trove.impl.Constants;
+import gnu.trove.map.hash.TIntIntHashMap;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.util.IntervalIndexer;
+import net.imglib2.util.Intervals;
+
+/**
+ * Fork-join driver for {@link Downscale}.
+ *
+ * Independent output blocks are downscaled concurrently. Output blocks with
+ * more than {@code minStripeSize} elements are further split into stripes
+ * along their last dimension. Each stripe is downscaled into its own list
+ * storage with its own list index, and the stripes are merged into a single
+ * {@link VolatileLabelMultisetArray} with de-duplicated lists at the end.
+ * Because the last dimension varies slowest, the stripes are contiguous
+ * ranges of the output block's offset array.
+ */
+public class ParallelDownscale
+{
+	/**
+	 * Default minimum number of output elements per stripe.
+	 */
+	final static public int DEFAULT_MIN_STRIPE_SIZE = 32 * 32 * 8;
+
+	/**
+	 * Downscale one output block in the given {@link ForkJoinPool}. Arguments
+	 * are the same as for
+	 * {@link Downscale#downscale(RandomAccessibleInterval, long[], long[], long[])}.
+	 *
+	 * @param pool
+	 * @param input
+	 * @param factors
+	 * @param dimensions
+	 * @param min
+	 * @param minStripeSize
+	 *            blocks with more than this many elements are split into
+	 *            stripes that are downscaled in parallel.
+	 * @return
+	 */
+	public static VolatileLabelMultisetArray downscale(
+			final ForkJoinPool pool,
+			final RandomAccessibleInterval< LabelMultisetType > input,
+			final long[] factors,
+			final long[] dimensions,
+			final long[] min,
+			final int minStripeSize )
+	{
+		return pool.invoke( new BlockTask( input, factors, dimensions, min, minStripeSize ) );
+	}
+
+	/**
+	 * Downscale all blocks of a mipmap level in the given {@link ForkJoinPool}
+	 * and pass them to {@code writer}. Calls to
+	 * {@link BlockWriter#writeBlock(VolatileLabelMultisetArray, long[], long[])}
+	 * are synchronized on {@code writer}, blocks are written in no particular
+	 * order.
+	 *
+	 * @param pool
+	 * @param input
+	 *            source image, extended to cover
+	 *            <em>dimensions * factors</em>.
+	 * @param factors
+	 *            downsampling factors of output relative to input.
+	 * @param dimensions
+	 *            dimensions of the output level.
+	 * @param cellDimensions
+	 *            block size of the output level.
+	 * @param minStripeSize
+	 * @param writer
+	 */
+	public static void downscaleLevel(
+			final ForkJoinPool pool,
+			final RandomAccessibleInterval< LabelMultisetType > input,
+			final long[] factors,
+			final long[] dimensions,
+			final int[] cellDimensions,
+			final int minStripeSize,
+			final BlockWriter writer )
+	{
+		downscaleLevel( pool, input, factors, dimensions, cellDimensions, minStripeSize, writer, null );
+	}
+
+	/**
+	 * Downscale and write the blocks of a mipmap level that are not skipped.
+	 *
+	 * @param skipBlock
+	 *            blocks for which this returns true, by flat index in the
+	 *            cell grid, x fastest, are neither downscaled nor written,
+	 *            may be {@code null}
+	 */
+	public static void downscaleLevel(
+			final ForkJoinPool pool,
+			final RandomAccessibleInterval< LabelMultisetType > input,
+			final long[] factors,
+			final long[] dimensions,
+			final int[] cellDimensions,
+			final int minStripeSize,
+			final BlockWriter writer,
+			final LongPredicate skipBlock )
+	{
+		final int n = dimensions.length;
+		final long[] numCells = new long[ n ];
+		final int[] borderSize = new int[ n ];
+		for ( int d = 0; d < n; ++d )
+		{
+			numCells[ d ] = ( dimensions[ d ] - 1 ) / cellDimensions[ d ] + 1;
+			borderSize[ d ] = ( int ) ( dimensions[ d ] - ( numCells[ d ] - 1 ) * cellDimensions[ d ] );
+		}
+
+		pool.invoke( new CellRangeTask(
+				input,
+				factors,
+				cellDimensions,
+				numCells,
+				borderSize,
+				minStripeSize,
+				writer,
+				skipBlock,
+				0,
+				Intervals.numElements( numCells ) ) );
+	}
+
+	/**
+	 * Merge stripes that were downscaled independently into one
+	 * {@link VolatileLabelMultisetArray}. Lists are copied into a new list
+	 * storage such that equal lists from different stripes share the same
+	 * offset.
+	 *
+	 * @param stripes
+	 *            stripes in storage order.
+	 * @param numElements
+	 *            total number of elements of all stripes.
+	 * @return
+	 */
+	public static VolatileLabelMultisetArray concatenate(
+			final List< VolatileLabelMultisetArray > stripes,
+			final int numElements )
+	{
+		final int[] data = new int[ numElements ];
+		final LongMappedAccessData listData = LongMappedAccessData.factory.createStorage( 32 );
+
+		final LabelMultisetEntryList list = new LabelMultisetEntryList( listData, 0 );
+		final LabelMultisetEntryList stripeList = new LabelMultisetEntryList();
+		final LabelMultisetEntryListIndex lists = new LabelMultisetEntryListIndex( listData );
+		final TIntIntHashMap stripeOffsets = new TIntIntHashMap( Constants.DEFAULT_CAPACITY, Constants.DEFAULT_LOAD_FACTOR, -1, -1 );
+		int nextListOffset = 0;
+		int i = 0;
+		for ( final VolatileLabelMultisetArray stripe : stripes )
+		{
+			stripeOffsets.clear();
+			for ( final int stripeOffset : stripe.getCurrentStorageArray() )
+			{
+				int offset = stripeOffsets.get( stripeOffset );
+				if ( offset == -1 )
+				{
+					stripeList.referToDataAt( stripe.getListData(), stripeOffset );
+					list.createListAt( listData, nextListOffset );
+					list.mergeWith( stripeList );
+
+					offset = lists.putIfAbsent( list );
+					if ( offset == -1 )
+					{
+						offset = nextListOffset;
+						nextListOffset += list.getSizeInBytes();
+					}
+					stripeOffsets.put( stripeOffset, offset );
+				}
+				data[ i++ ] = offset;
+			}
+		}
+
+		return new VolatileLabelMultisetArray( data, listData, nextListOffset, true );
+	}
+
+	/**
+	 * Downscales one output block, split into stripes along the last
+	 * dimension if it is large.
+	 */
+	static class BlockTask extends RecursiveTask< VolatileLabelMultisetArray >
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final RandomAccessibleInterval< LabelMultisetType > input;
+
+		private final long[] factors;
+
+		private final long[] dimensions;
+
+		private final long[] min;
+
+		private final int minStripeSize;
+
+		public BlockTask(
+				final RandomAccessibleInterval< LabelMultisetType > input,
+				final long[] factors,
+				final long[] dimensions,
+				final long[] min,
+				final int minStripeSize )
+		{
+			this.input = input;
+			this.factors = factors;
+			this.dimensions = dimensions;
+			this.min = min;
+			this.minStripeSize = minStripeSize;
+		}
+
+		@Override
+		protected VolatileLabelMultisetArray compute()
+		{
+			final int n = dimensions.length;
+			final long numElements = Intervals.numElements( dimensions );
+			final int numStripes = ( int ) Math.max( 1, Math.min( dimensions[ n - 1 ], numElements / Math.max( 1, minStripeSize ) ) );
+			if ( numStripes == 1 )
+				return Downscale.downscale( input, factors, dimensions, min );
+
+			final long stripeSize = dimensions[ n - 1 ] / numStripes;
+			final long remainder = dimensions[ n - 1 ] % numStripes;
+			final ArrayList< StripeTask > tasks = new ArrayList<>( numStripes );
+			long start = 0;
+			for ( int s = 0; s < numStripes; ++s )
+			{
+				final long[] stripeDimensions = dimensions.clone();
+				final long[] stripeMin = min.clone();
+				stripeDimensions[ n - 1 ] = stripeSize + ( s < remainder ? 1 : 0 );
+				stripeMin[ n - 1 ] += start;
+				start += stripeDimensions[ n - 1 ];
+				tasks.add( new StripeTask( input, factors, stripeDimensions, stripeMin ) );
+			}
+			ForkJoinTask.invokeAll( tasks );
+
+			final ArrayList< VolatileLabelMultisetArray > stripes = new ArrayList<>( numStripes );
+			for ( final StripeTask task : tasks )
+				stripes.add( task.join() );
+
+			return concatenate( stripes, ( int ) numElements );
+		}
+	}
+
+	/**
+	 * Downscales one stripe of an output block.
+	 */
+	static class StripeTask extends RecursiveTask< VolatileLabelMultisetArray >
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final RandomAccessibleInterval< LabelMultisetType > input;
+
+		private final long[] factors;
+
+		private final long[] dimensions;
+
+		private final long[] min;
+
+		public StripeTask(
+				final RandomAccessibleInterval< LabelMultisetType > input,
+				final long[] factors,
+				final long[] dimensions,
+				final long[] min )
+		{
+			this.input = input;
+			this.factors = factors;
+			this.dimensions = dimensions;
+			this.min = min;
+		}
+
+		@Override
+		protected VolatileLabelMultisetArray compute()
+		{
+			return Downscale.downscale( input, factors, dimensions, min );
+		}
+	}
+
+	/**
+	 * Downscales and writes the output blocks with flat index in
+	 * [{@code from}, {@code to}). Ranges are split in halves until they
+	 * contain a single block so that no per-block state is allocated up
+	 * front.
+	 */
+	static class CellRangeTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final RandomAccessibleInterval< LabelMultisetType > input;
+
+		private final long[] factors;
+
+		private final int[] cellDimensions;
+
+		private final long[] numCells;
+
+		private final int[] borderSize;
+
+		private final int minStripeSize;
+
+		private final BlockWriter writer;
+
+		private final LongPredicate skipBlock;
+
+		private final long from;
+
+		private final long to;
+
+		public CellRangeTask(
+				final RandomAccessibleInterval< LabelMultisetType > input,
+				final long[] factors,
+				final int[] cellDimensions,
+				final long[] numCells,
+				final int[] borderSize,
+				final int minStripeSize,
+				final BlockWriter writer,
+				final LongPredicate skipBlock,
+				final long from,
+				final long to )
+		{
+			this.input = input;
+			this.factors = factors;
+			this.cellDimensions = cellDimensions;
+			this.numCells = numCells;
+			this.borderSize = borderSize;
+			this.minStripeSize = minStripeSize;
+			this.writer = writer;
+			this.skipBlock = skipBlock;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute()
+		{
+			if ( to - from > 1 )
+			{
+				final long mid = ( from + to ) >>> 1;
+				invokeAll(
+						new CellRangeTask( input, factors, cellDimensions, numCells, borderSize, minStripeSize, writer, skipBlock, from, mid ),
+						new CellRangeTask( input, factors, cellDimensions, numCells, borderSize, minStripeSize, writer, skipBlock, mid, to ) );
+				return;
+			}
+
+			if ( skipBlock != null && skipBlock.test( from ) )
+				return;
+
+			final int n = numCells.length;
+			final long[] cellPos = new long[ n ];
+			final long[] cellMin = new long[ n ];
+			final long[] cellDim = new long[ n ];
+			IntervalIndexer.indexToPosition( from, numCells, cellPos );
+			for ( int d = 0; d < n; ++d )
+			{
+				cellMin[ d ] = cellPos[ d ] * cellDimensions[ d ];
+				final boolean isBorderCellInThisDim = ( cellPos[ d ] + 1 == numCells[ d ] );
+				cellDim[ d ] = isBorderCellInThisDim ? borderSize[ d ] : cellDimensions[ d ];
+			}
+
+			final VolatileLabelMultisetArray downscaled = new BlockTask( input, factors, cellDim, cellMin, minStripeSize ).compute();
+			synchronized ( writer )
+			{
+				writer.writeBlock( downscaled, cellMin, cellDim );
+			}
+		}
+	}
+}
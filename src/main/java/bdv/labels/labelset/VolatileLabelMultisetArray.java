@@ -1,5 +1,7 @@
 package bdv.labels.labelset;
 
+import java.util.concurrent.atomic.AtomicLong;
+
 import bdv.img.cache.DefaultEmptyArrayCreator;
 import net.imglib2.img.basictypeaccess.volatiles.VolatileAccess;
 import net.imglib2.img.basictypeaccess.volatiles.VolatileArrayDataAccess;
@@ -7,6 +9,10 @@ import net.imglib2.img.basictypeaccess.volatiles.VolatileArrayDataAccess;
 
 public class VolatileLabelMultisetArray implements VolatileAccess, VolatileArrayDataAccess< VolatileLabelMultisetArray >
 {
+	private static final AtomicLong nextId = new AtomicLong();
+
+	private final long id = nextId.getAndIncrement();
+
 	private boolean isValid = false;
 
 	private final int[] data;
@@ -49,6 +55,25 @@ public class VolatileLabelMultisetArray implements VolatileAccess, VolatileArray
 		ref.referToDataAt( listData, data[ index ] );
 	}
 
+	/**
+	 * Unique id of this array.  Together with {@link #getListOffset(int)}, it
+	 * identifies the list of a multiset, e.g. for memoizing values computed
+	 * from lists.
+	 */
+	public long getId()
+	{
+		return id;
+	}
+
+	/**
+	 * Offset of the list of the multiset at {@code index} in the list data.
+	 * Equal multisets in an array typically share their list.
+	 */
+	public int getListOffset( final int index )
+	{
+		return data[ index ];
+	}
+
 	@Override
 	public VolatileLabelMultisetArray createArray( final int numEntities )
 	{
@@ -10,6 +10,7 @@ import java.util.HashMap;
 import java.util.List;
 
 import net.imglib2.util.Pair;
+import bdv.util.http.HttpConnections;
 import bdv.util.http.HttpRequest;
 
 import com.google.gson.Gson;
@@ -84,7 +85,7 @@ public class Node
 		json.addProperty( "note", note );
 		json.add( "log", arr );
 		final String url = getUrl() + "/commit";
-		HttpRequest.postRequestJSON( url, json );
+		HttpConnections.release( HttpRequest.postRequestJSON( url, json ) );
 	}
 
 	/**
@@ -103,8 +104,15 @@ public class Node
 		json.addProperty( "note", note );
 		final String url = DvidUrlOptions.getRequestString( getUrl() + "/branch" );
 		final HttpURLConnection connection = HttpRequest.postRequestJSON( url, json );
-		final JsonObject response = new Gson().fromJson( new InputStreamReader( connection.getInputStream() ), JsonObject.class );
-		connection.disconnect();
+		final JsonObject response;
+		try
+		{
+			response = new Gson().fromJson( new InputStreamReader( HttpConnections.getInputStream( connection ) ), JsonObject.class );
+		}
+		finally
+		{
+			HttpConnections.release( connection );
+		}
 		return new Node( response.get( "child" ).getAsString(), this.repository );
 	}
 
@@ -155,7 +163,7 @@ public class Node
 			json.addProperty( Dataset.PROPERTY_SYNC, syncString.toString() );
 		}
 
-		HttpRequest.postRequestJSON( DvidUrlOptions.getRequestString( postUrl ), json ).disconnect();
+		HttpConnections.release( HttpRequest.postRequestJSON( DvidUrlOptions.getRequestString( postUrl ), json ) );
 
 		if ( type.compareToIgnoreCase( DatasetKeyValue.TYPE) == 0 )
 			return new DatasetKeyValue( this, name );
@@ -8,6 +8,7 @@ import java.util.HashMap;
 import java.util.Map.Entry;
 
 import bdv.util.JsonHelper;
+import bdv.util.http.HttpConnections;
 import bdv.util.http.HttpRequest;
 
 import com.google.gson.Gson;
@@ -156,8 +157,15 @@ public class Server
 	{
 		String postUrl = getApiUrl() + "/repos";
 		HttpURLConnection connection = HttpRequest.postRequestJSON( DvidUrlOptions.getRequestString( postUrl ), info );
-		JsonObject response = new Gson().fromJson( new InputStreamReader( connection.getInputStream() ), JsonObject.class );
-		connection.disconnect();
+		JsonObject response;
+		try
+		{
+			response = new Gson().fromJson( new InputStreamReader( HttpConnections.getInputStream( connection ) ), JsonObject.class );
+		}
+		finally
+		{
+			HttpConnections.release( connection );
+		}
 		String uuid = response.get( "root" ).getAsString();
 		return new Repository( this, uuid );
 	}
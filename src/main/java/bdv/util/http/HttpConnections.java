@@ -0,0 +1,206 @@
+package bdv.util.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Keep-alive connections with bounded concurrency per host for
+ * {@link HttpRequest}.
+ *
+ * {@link HttpURLConnection} keeps the socket of a connection alive for the
+ * next request to the same host if the response was read completely and the
+ * connection was not {@link HttpURLConnection#disconnect() disconnected}.
+ * Connections opened with {@link #open(String, String)} are
+ * {@link #release(HttpURLConnection) released} like that, so consecutive
+ * requests to a DVID server reuse their sockets instead of paying for a
+ * new TCP connection each.
+ *
+ * At most {@link #getMaxConnectionsPerHost()} requests per host are in
+ * flight at once, further requests wait.  The same number of idle sockets
+ * per host is kept alive (the {@code http.maxConnections} system property,
+ * unless it was set before).  Optionally, gzip compressed responses are
+ * accepted and decompressed transparently.
+ *
+ * Defaults are read from {@value #MAX_CONNECTIONS_PROPERTY} (8) and
+ * {@value #ACCEPT_GZIP_PROPERTY} (false).
+ */
+public class HttpConnections
+{
+	public static final String MAX_CONNECTIONS_PROPERTY = "bigcat.http.maxConnectionsPerHost";
+
+	public static final String ACCEPT_GZIP_PROPERTY = "bigcat.http.gzip";
+
+	private static volatile int maxConnectionsPerHost = Math.max( 1, Integer.getInteger( MAX_CONNECTIONS_PROPERTY, 8 ) );
+
+	private static volatile boolean acceptGzip = Boolean.getBoolean( ACCEPT_GZIP_PROPERTY );
+
+	private static final ConcurrentHashMap< String, Semaphore > hosts = new ConcurrentHashMap<>();
+
+	static
+	{
+		if ( System.getProperty( "http.maxConnections" ) == null )
+			System.setProperty( "http.maxConnections", Integer.toString( maxConnectionsPerHost ) );
+	}
+
+	public static int getMaxConnectionsPerHost()
+	{
+		return maxConnectionsPerHost;
+	}
+
+	/**
+	 * Set the maximum number of concurrent requests per host.  Applies to
+	 * hosts that are first requested afterwards.
+	 */
+	public static void setMaxConnectionsPerHost( final int maxConnectionsPerHost )
+	{
+		HttpConnections.maxConnectionsPerHost = Math.max( 1, maxConnectionsPerHost );
+	}
+
+	public static boolean isAcceptGzip()
+	{
+		return acceptGzip;
+	}
+
+	public static void setAcceptGzip( final boolean acceptGzip )
+	{
+		HttpConnections.acceptGzip = acceptGzip;
+	}
+
+	private static Semaphore permits( final URL url )
+	{
+		return hosts.computeIfAbsent( url.getProtocol() + "://" + url.getAuthority(), k -> new Semaphore( maxConnectionsPerHost, true ) );
+	}
+
+	/**
+	 * Open a connection, waiting while the maximum number of requests to the
+	 * host are in flight.  Every opened connection must be
+	 * {@link #release(HttpURLConnection) released} or
+	 * {@link #detach(HttpURLConnection) detached}.
+	 */
+	public static HttpURLConnection open( final String url, final String method ) throws IOException
+	{
+		final URL u = new URL( url );
+		final Semaphore permits = permits( u );
+		try
+		{
+			permits.acquire();
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException( "interrupted waiting for a connection to " + u.getAuthority() );
+		}
+
+		try
+		{
+			final HttpURLConnection connection = ( HttpURLConnection ) u.openConnection();
+			connection.setRequestMethod( method );
+			if ( acceptGzip )
+				connection.setRequestProperty( "Accept-Encoding", "gzip" );
+			return connection;
+		}
+		catch ( final IOException | RuntimeException e )
+		{
+			permits.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Open a GET request and check that the server responded with 200.  The
+	 * returned connection must be {@link #release(HttpURLConnection)
+	 * released}, on failure it is released already.
+	 *
+	 * @throws IOException
+	 *             if the server did not respond with 200
+	 */
+	public static HttpURLConnection get( final String url ) throws IOException
+	{
+		final HttpURLConnection connection = open( url, "GET" );
+		try
+		{
+			final int response = connection.getResponseCode();
+			if ( response != 200 )
+				throw new IOException( "HTTP " + response + " for " + url );
+		}
+		catch ( final IOException | RuntimeException e )
+		{
+			release( connection );
+			throw e;
+		}
+		return connection;
+	}
+
+	/**
+	 * Get the response body of {@code connection}, decompressed if it is
+	 * gzip encoded.
+	 */
+	public static InputStream getInputStream( final HttpURLConnection connection ) throws IOException
+	{
+		final InputStream in = connection.getInputStream();
+		if ( "gzip".equalsIgnoreCase( connection.getContentEncoding() ) )
+			return new GZIPInputStream( in );
+		return in;
+	}
+
+	/**
+	 * Whether the length of the decoded response body of {@code connection}
+	 * is known.
+	 */
+	public static boolean hasKnownLength( final HttpURLConnection connection )
+	{
+		return connection.getContentLengthLong() >= 0 && connection.getContentEncoding() == null;
+	}
+
+	private static void drain( final InputStream in ) throws IOException
+	{
+		if ( in == null )
+			return;
+		final byte[] buffer = new byte[ 4096 ];
+		while ( in.read( buffer ) >= 0 );
+		in.close();
+	}
+
+	/**
+	 * Read the rest of the response and close it such that the socket can be
+	 * reused, and let the next request to the host proceed.  Does nothing
+	 * for {@code null}.
+	 */
+	public static void release( final HttpURLConnection connection )
+	{
+		if ( connection == null )
+			return;
+		try
+		{
+			drain( connection.getInputStream() );
+		}
+		catch ( final IOException e )
+		{
+			try
+			{
+				drain( connection.getErrorStream() );
+			}
+			catch ( final IOException f )
+			{}
+		}
+		finally
+		{
+			detach( connection );
+		}
+	}
+
+	/**
+	 * Let the next request to the host proceed without touching the
+	 * connection, for connections that are handed to the caller.
+	 */
+	public static void detach( final HttpURLConnection connection )
+	{
+		permits( connection.getURL() ).release();
+	}
+}
@@ -1,5 +1,6 @@
 package bdv.util.http;
 
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
@@ -8,7 +9,7 @@ import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
-import java.net.URL;
+import java.util.Arrays;
 
 import javax.xml.ws.http.HTTPException;
 
@@ -85,12 +86,8 @@ public class HttpRequest
 		public void handle( InputStream in ) throws IOException
 		{
 			int off = 0, l = 0;
-			do
-			{
-				l = in.read( array, off, array.length - off );
+			while ( off < array.length && ( l = in.read( array, off, array.length - off ) ) > 0 )
 				off += l;
-			}
-			while ( l > 0 );
 		}
 	}
 	
@@ -115,6 +112,37 @@ public class HttpRequest
 		
 	}
 	
+	/**
+	 * Writes longs for {@link LongType}s, bytes for {@link ByteType}s, and
+	 * ints for all other {@link IntegerType}s.
+	 */
+	public static class IterableWriter< T extends IntegerType< T > > implements Writer< Iterable< T > >
+	{
+
+		@Override
+		public void write( DataOutputStream writer, Iterable< T > iterable ) throws IOException
+		{
+			if ( iterable.iterator().next() instanceof UnsignedLongType || iterable.iterator().next() instanceof LongType )
+			{
+				for ( T i : iterable )
+					writer.writeLong( i.getIntegerLong() );
+			}
+			else if ( iterable.iterator().next() instanceof UnsignedByteType || iterable.iterator().next() instanceof ByteType )
+			{
+				for ( T i : iterable )
+				{
+					writer.writeByte( i.getInteger() & 0xff );
+				}
+			}
+			else
+			{
+				for ( T i : iterable )
+					writer.writeInt( i.getInteger() );
+			}
+		}
+		
+	}
+	
 	
 	public static class ChunkedByteArrayResponseHandler implements ResponseHandler
 	{
@@ -146,14 +174,22 @@ public class HttpRequest
 		}
 
 
+		/**
+		 * Read directly into a growing array, without copying through a
+		 * {@link ByteArrayOutputStream}.
+		 */
 		@Override
 		public void handle( InputStream in ) throws IOException
 		{
-			ByteArrayOutputStream sink = new ByteArrayOutputStream();
-			
-			copy( in, sink, bufferSize );
-			
-			this.array = sink.toByteArray();
+			byte[] buf = new byte[ Math.max( bufferSize, 1 ) ];
+			int off = 0, l = 0;
+			while ( ( l = in.read( buf, off, buf.length - off ) ) >= 0 )
+			{
+				off += l;
+				if ( off == buf.length )
+					buf = Arrays.copyOf( buf, buf.length * 2 );
+			}
+			this.array = off == buf.length ? buf : Arrays.copyOf( buf, off );
 		}
 		
 	}
@@ -173,26 +209,31 @@ public class HttpRequest
 	 */
 	public static byte[] getRequest( String url ) throws MalformedURLException, IOException
 	{
-		HttpURLConnection connection = ( HttpURLConnection ) new URL( url ).openConnection();
-		int response = connection.getResponseCode();
-		if ( response != 200 )
-			throw new HTTPException( response );
-		
-		byte[] bytes;
-		String transferEncoding = connection.getHeaderField( "Transfer-Encoding" );
-		if ( transferEncoding != null && transferEncoding.compareToIgnoreCase( "chunked" ) == 0 )
+		HttpURLConnection connection = HttpConnections.open( url, GET );
+		try
 		{
-			ChunkedByteArrayResponseHandler handler = new ChunkedByteArrayResponseHandler( 1024 );
-			getRequest( connection, handler );
-			bytes = handler.getArray();
-		} else
+			int response = connection.getResponseCode();
+			if ( response != 200 )
+				throw new HTTPException( response );
+
+			byte[] bytes;
+			if ( HttpConnections.hasKnownLength( connection ) )
+			{
+				bytes = new byte[ ( int ) connection.getContentLengthLong() ];
+				getRequest( connection, new ByteArrayResponseHandler( bytes ) );
+			}
+			else
+			{
+				ChunkedByteArrayResponseHandler handler = new ChunkedByteArrayResponseHandler( 1 << 16 );
+				getRequest( connection, handler );
+				bytes = handler.getArray();
+			}
+			return bytes;
+		}
+		finally
 		{
-			int contentLength = Integer.parseInt( connection.getHeaderField( "Content-Length" ) );
-			bytes = new byte[ contentLength ];
-			getRequest( connection, new ByteArrayResponseHandler( bytes ) );
+			HttpConnections.release( connection );
 		}
-		connection.disconnect();
-		return bytes;
 	}
 	
 	/**
@@ -215,23 +256,34 @@ public class HttpRequest
 	 */
 	public static byte[] getRequest( String url, byte[] bytes ) throws MalformedURLException, IOException
 	{
-		HttpURLConnection connection = ( HttpURLConnection ) new URL( url ).openConnection();
-		int response = connection.getResponseCode();
-		if ( response != 200 )
-			throw new HTTPException( response );
-		getRequest( connection, new ByteArrayResponseHandler( bytes ) );
-		connection.disconnect();
+		getRequest( url, new ByteArrayResponseHandler( bytes ) );
 		return bytes;
 	}
 	
+	/**
+	 * HTTP Get request:
+	 * GET url
+	 * 
+	 * The response is streamed into handler, e.g. directly into a caller
+	 * provided buffer.
+	 * 
+	 * If the HTTP status code is not 200, this method throws
+	 * {@link HTTPException}.
+	 */
 	public static void getRequest( String url, ResponseHandler handler ) throws MalformedURLException, IOException
 	{
-		HttpURLConnection connection = ( HttpURLConnection ) new URL( url ).openConnection();
-		int response = connection.getResponseCode();
-		if ( response != 200 )
-			throw new HTTPException( response );
-		getRequest( connection, handler );
-		connection.disconnect();
+		HttpURLConnection connection = HttpConnections.open( url, GET );
+		try
+		{
+			int response = connection.getResponseCode();
+			if ( response != 200 )
+				throw new HTTPException( response );
+			getRequest( connection, handler );
+		}
+		finally
+		{
+			HttpConnections.release( connection );
+		}
 	}
 
 	/**
@@ -243,7 +295,7 @@ public class HttpRequest
 	 */
 	public static void getRequest( HttpURLConnection connection, ResponseHandler handler ) throws IOException
 	{
-		InputStream in = connection.getInputStream();
+		InputStream in = HttpConnections.getInputStream( connection );
 		handler.handle( in );
 		in.close();
 	}
@@ -276,8 +328,7 @@ public class HttpRequest
 	 */
 	public static void postRequest( String url, byte[] postData, String contentType ) throws MalformedURLException, IOException
 	{
-		HttpURLConnection connection = postRequestWithResponse( url, postData, contentType );
-		connection.disconnect();
+		HttpConnections.release( post( url, postData, contentType, new ByteArrayWriter() ) );
 	}
 	
 	/**
@@ -293,8 +344,7 @@ public class HttpRequest
 	 */
 	public static void postRequest( String url, long[] postData, String contentType ) throws MalformedURLException, IOException
 	{
-		HttpURLConnection connection = postRequestWithResponse( url, postData, contentType );
-		connection.disconnect();
+		HttpConnections.release( post( url, postData, contentType, new LongArrayWriter() ) );
 	}
 	
 	/**
@@ -303,7 +353,9 @@ public class HttpRequest
 	 * POST url
 	 * 
 	 * The connection is returned to allow the caller to handle a potential response.
-	 * The caller is responsible for closing the connection.
+	 * The caller is responsible for releasing the connection with
+	 * {@link HttpConnections#release(HttpURLConnection)}, which reads the rest
+	 * of the response such that the socket can be reused.
 	 * 
 	 * @param url Url for request. 
 	 * @param postData Data to be posted
@@ -322,7 +374,9 @@ public class HttpRequest
 	 * POST url
 	 * 
 	 * The connection is returned to allow the caller to handle a potential response.
-	 * The caller is responsible for closing the connection.
+	 * The caller is responsible for releasing the connection with
+	 * {@link HttpConnections#release(HttpURLConnection)}, which reads the rest
+	 * of the response such that the socket can be reused.
 	 * 
 	 * @param url Url for request. 
 	 * @param postData Data to be posted
@@ -342,7 +396,9 @@ public class HttpRequest
 	 * POST url
 	 * 
 	 * The connection is returned to allow the caller to handle a potential response.
-	 * The caller is responsible for closing the connection.
+	 * The caller is responsible for releasing the connection with
+	 * {@link HttpConnections#release(HttpURLConnection)}, which reads the rest
+	 * of the response such that the socket can be reused.
 	 * 
 	 * @param url Url for request. 
 	 * @param postData Data to be posted
@@ -374,8 +430,7 @@ public class HttpRequest
 			String contentType,
 			Writer< T > dataWriter ) throws MalformedURLException, IOException
 	{
-		HttpURLConnection connection = postRequestWithResponse( url, postData, contentType, dataWriter );
-		connection.disconnect();
+		HttpConnections.release( post( url, postData, contentType, dataWriter ) );
 	}
 	
 	/**
@@ -384,7 +439,9 @@ public class HttpRequest
 	 * POST url
 	 * 
 	 * The connection is returned to allow the caller to handle a potential response.
-	 * The caller is responsible for closing the connection.
+	 * The caller is responsible for releasing the connection with
+	 * {@link HttpConnections#release(HttpURLConnection)}, which reads the rest
+	 * of the response such that the socket can be reused.
 	 * 
 	 * @param url Url for request. 
 	 * @param postData Data to be posted
@@ -400,29 +457,53 @@ public class HttpRequest
 			String contentType,
 			Writer< T > dataWriter ) throws MalformedURLException, IOException
 	{
-		HttpURLConnection connection = ( HttpURLConnection ) new URL( url ).openConnection();
-		connection.setDoOutput( true );
-		connection.setRequestMethod( POST );
-		connection.setRequestProperty( "Content-Type", contentType );
-		
-		// Write data.
-		OutputStream stream = connection.getOutputStream();
-		DataOutputStream writer = new DataOutputStream( stream );
-		dataWriter.write( writer, postData );
-		writer.flush();
-		writer.close();
-		
-		int response = connection.getResponseCode();
-		if ( response != 200 )
-			throw new HTTPException( response );
+		HttpURLConnection connection = post( url, postData, contentType, dataWriter );
 		
 		String contentLength = connection.getHeaderField( "content-length" );
 		if ( contentLength == null )
+		{
+			HttpConnections.release( connection );
 			return null;
+		}
 		
 		return connection;
 	}
 	
+	/**
+	 * POST postData and check the response code.  The returned connection
+	 * must be released through {@link HttpConnections}.
+	 */
+	private static < T > HttpURLConnection post(
+			String url,
+			T postData,
+			String contentType,
+			Writer< T > dataWriter ) throws MalformedURLException, IOException
+	{
+		HttpURLConnection connection = HttpConnections.open( url, POST );
+		try
+		{
+			connection.setDoOutput( true );
+			connection.setRequestProperty( "Content-Type", contentType );
+
+			// Write data.
+			OutputStream stream = connection.getOutputStream();
+			DataOutputStream writer = new DataOutputStream( new BufferedOutputStream( stream, 1 << 16 ) );
+			dataWriter.write( writer, postData );
+			writer.flush();
+			writer.close();
+
+			int response = connection.getResponseCode();
+			if ( response != 200 )
+				throw new HTTPException( response );
+		}
+		catch ( IOException | RuntimeException e )
+		{
+			HttpConnections.release( connection );
+			throw e;
+		}
+		return connection;
+	}
+	
 	
 	/**
 	 * 
@@ -440,8 +521,7 @@ public class HttpRequest
 			Iterable< T > iterable,
 			String contentType ) throws MalformedURLException, IOException
 	{
-		HttpURLConnection connection = postRequestWithResponse( url, iterable, contentType );
-		connection.disconnect();
+		HttpConnections.release( post( url, iterable, contentType, new IterableWriter< T >() ) );
 	}
 	
 	
@@ -451,7 +531,9 @@ public class HttpRequest
 	 * POST url
 	 * 
 	 * The connection is returned to allow the caller to handle a potential response.
-	 * The caller is responsible for closing the connection.
+	 * The caller is responsible for releasing the connection with
+	 * {@link HttpConnections#release(HttpURLConnection)}, which reads the rest
+	 * of the response such that the socket can be reused.
 	 * 
 	 * @param url Url for request. 
 	 * @param iterable Data to be posted
@@ -465,43 +547,7 @@ public class HttpRequest
 			Iterable< T > iterable,
 			String contentType ) throws MalformedURLException, IOException
 	{
-		HttpURLConnection connection = ( HttpURLConnection ) new URL( url ).openConnection();
-		connection.setDoOutput( true );
-		connection.setRequestMethod( POST );
-		connection.setRequestProperty( "Content-Type", contentType );
-
-		// Write data.
-		OutputStream stream = connection.getOutputStream();
-		DataOutputStream writer = new DataOutputStream( stream );
-		if ( iterable.iterator().next() instanceof UnsignedLongType || iterable.iterator().next() instanceof LongType )
-		{
-			for ( T i : iterable )
-				writer.writeLong( i.getIntegerLong() );
-		}
-		else if ( iterable.iterator().next() instanceof UnsignedByteType || iterable.iterator().next() instanceof ByteType )
-		{
-			for ( T i : iterable )
-			{
-				writer.writeByte( i.getInteger() & 0xff );
-			}
-		}
-		else
-		{
-			for ( T i : iterable )
-				writer.writeInt( i.getInteger() );
-		}
-		writer.flush();
-		writer.close();
-
-		int response = connection.getResponseCode();
-		if ( response != 200 )
-			throw new HTTPException( response );
-		
-		String contentLength = connection.getHeaderField( "content-length" );
-		if ( contentLength == null )
-			return null;
-		
-		return connection;
+		return postRequestWithResponse( url, iterable, contentType, new IterableWriter< T >() );
 	}
 	
 	/**
@@ -509,6 +555,9 @@ public class HttpRequest
 	 * HTTP POST request for {@link JsonElement}:
 	 * POST url
 	 * 
+	 * The caller is responsible for releasing the connection with
+	 * {@link HttpConnections#release(HttpURLConnection)}.
+	 * 
 	 * @param url Url for request.
 	 * @param json Data to be posted.
 	 * @return HTTP Connection for response handling
@@ -532,14 +581,18 @@ public class HttpRequest
 	 */
 	public static int delete ( String url ) throws IOException
 	{
-		HttpURLConnection connection = ( HttpURLConnection ) new URL( url ).openConnection();
-		connection.setDoOutput( true );
-		connection.setRequestMethod( DELETE );
-		connection.setRequestProperty( "Content-Type", "application/x-www-form-urlencoded" );
-		connection.connect();
-		int response = connection.getResponseCode();
-		connection.disconnect();
-		return response;
+		HttpURLConnection connection = HttpConnections.open( url, DELETE );
+		try
+		{
+			connection.setDoOutput( true );
+			connection.setRequestProperty( "Content-Type", "application/x-www-form-urlencoded" );
+			connection.connect();
+			return connection.getResponseCode();
+		}
+		finally
+		{
+			HttpConnections.release( connection );
+		}
 	}
 	
 }
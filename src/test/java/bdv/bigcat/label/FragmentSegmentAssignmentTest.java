@@ -0,0 +1,157 @@
+package bdv.bigcat.label;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import bdv.util.LocalIdService;
+import gnu.trove.iterator.TLongLongIterator;
+import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.map.hash.TLongLongHashMap;
+import gnu.trove.set.hash.TLongHashSet;
+
+public class FragmentSegmentAssignmentTest
+{
+	/**
+	 * Compare the inverse lookup with the grouped forward lookup.
+	 */
+	static void assertConsistent( final FragmentSegmentAssignment assignment )
+	{
+		final TLongLongHashMap lut = assignment.getLut();
+		final TLongHashSet segments = new TLongHashSet();
+		final TLongLongIterator iterator = lut.iterator();
+		while ( iterator.hasNext() )
+		{
+			iterator.advance();
+			segments.add( iterator.value() );
+		}
+
+		final int[] numSegments = new int[ 1 ];
+		assignment.ilut.forEachSegment( segmentId -> {
+			++numSegments[ 0 ];
+			return true;
+		} );
+		Assert.assertEquals( segments.size(), numSegments[ 0 ] );
+
+		int numFragments = 0;
+		for ( final long segmentId : segments.toArray() )
+		{
+			final long[] fragments = assignment.getFragments( segmentId );
+			Assert.assertEquals( fragments.length, assignment.ilut.size( segmentId ) );
+			numFragments += fragments.length;
+			for ( final long fragmentId : fragments )
+				Assert.assertEquals( segmentId, lut.get( fragmentId ) );
+
+			final long[] sorted = fragments.clone();
+			Arrays.sort( sorted );
+			for ( int i = 1; i < sorted.length; ++i )
+				Assert.assertTrue( sorted[ i - 1 ] < sorted[ i ] );
+		}
+		Assert.assertEquals( lut.size(), numFragments );
+	}
+
+	@Test
+	public void testSyncILut()
+	{
+		final int n = 10000;
+		final long[] fragments = new long[ n ];
+		final long[] segments = new long[ n ];
+		for ( int i = 0; i < n; ++i )
+		{
+			fragments[ i ] = i + 1;
+			segments[ i ] = ( i * 7919L ) % 313 + 100000;
+		}
+
+		final FragmentSegmentAssignment assignment = new FragmentSegmentAssignment( fragments, segments, new LocalIdService() );
+		for ( final boolean parallel : new boolean[] { false, true } )
+		{
+			assignment.syncILut( parallel );
+			assertConsistent( assignment );
+		}
+	}
+
+	@Test
+	public void testMergeAndDetach()
+	{
+		final int n = 2000;
+		final long[] fragments = new long[ n ];
+		final long[] segments = new long[ n ];
+		for ( int i = 0; i < n; ++i )
+		{
+			fragments[ i ] = i + 1;
+			segments[ i ] = i / 4 + 10000;
+		}
+
+		final LocalIdService idService = new LocalIdService();
+		idService.setNext( 100000 );
+		final FragmentSegmentAssignment assignment = new FragmentSegmentAssignment( fragments, segments, idService );
+
+		/* enough modifications to compact the inverse lookup */
+		final Random random = new Random( 42 );
+		for ( int i = 0; i < 3 * SegmentFragmentIndex.MIN_COMPACTION_SIZE; ++i )
+		{
+			final long fragmentId1 = random.nextInt( n ) + 1;
+			final long fragmentId2 = random.nextInt( n ) + 1;
+			switch ( random.nextInt( 3 ) )
+			{
+			case 0:
+				assignment.mergeFragmentSegments( fragmentId1, fragmentId2 );
+				break;
+			case 1:
+				assignment.assignFragments( assignment.getSegment( fragmentId1 ), assignment.getSegment( fragmentId2 ) );
+				break;
+			default:
+				assignment.detachFragment( fragmentId1 );
+			}
+			if ( i % 100 == 0 )
+				assertConsistent( assignment );
+		}
+		assertConsistent( assignment );
+
+		/* visiting fragments stops when the procedure returns false */
+		final long segmentId = assignment.getSegment( 1 );
+		final TLongArrayList visited = new TLongArrayList();
+		Assert.assertFalse( assignment.forEachFragment( segmentId, fragmentId -> {
+			visited.add( fragmentId );
+			return false;
+		} ) );
+		Assert.assertEquals( 1, visited.size() );
+	}
+
+	@Test
+	public void testPollModifications()
+	{
+		final LocalIdService idService = new LocalIdService();
+		idService.setNext( 100 );
+		final FragmentSegmentAssignment assignment = new FragmentSegmentAssignment( idService );
+		final TLongLongHashMap lut = new TLongLongHashMap();
+		lut.put( 1, 10 );
+		lut.put( 2, 10 );
+		lut.put( 3, 20 );
+		lut.put( 4, 30 );
+
+		assignment.initLut( lut );
+		Assert.assertNull( assignment.pollModifications() );
+
+		/* a loaded lookup is not modified */
+		assignment.initLut( lut );
+		assignment.markPersisted();
+		Assert.assertTrue( assignment.pollModifications().isEmpty() );
+
+		/* only fragments whose segment changed */
+		assignment.assignFragments( 20, 10 );
+		final TLongLongHashMap expected = new TLongLongHashMap();
+		expected.put( 3, 10 );
+		Assert.assertEquals( expected, assignment.pollModifications() );
+
+		assignment.mergeSegments( 10, 30 );
+		Assert.assertEquals( 4, assignment.pollModifications().size() );
+
+		assignment.detachFragment( 2 );
+		expected.clear();
+		expected.put( 2, 2 );
+		Assert.assertEquals( expected, assignment.pollModifications() );
+	}
+}
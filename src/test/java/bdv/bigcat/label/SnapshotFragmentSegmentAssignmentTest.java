@@ -0,0 +1,170 @@
+package bdv.bigcat.label;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import bdv.labels.labelset.Label;
+import bdv.util.LocalIdService;
+import gnu.trove.map.hash.TLongLongHashMap;
+
+public class SnapshotFragmentSegmentAssignmentTest
+{
+	/**
+	 * Compare {@link SnapshotFragmentSegmentAssignment#getSegment(long)} with
+	 * the forward lookup for fragments {@code 1..n}.
+	 */
+	static void assertSameAsLut( final SnapshotFragmentSegmentAssignment assignment, final int n )
+	{
+		final TLongLongHashMap lut = assignment.getLut();
+		for ( long fragmentId = 1; fragmentId <= n; ++fragmentId )
+		{
+			final long segmentId = lut.get( fragmentId );
+			Assert.assertEquals( segmentId == lut.getNoEntryValue() ? fragmentId : segmentId, assignment.getSegment( fragmentId ) );
+		}
+	}
+
+	static SnapshotFragmentSegmentAssignment create( final int n, final int fragmentsPerSegment )
+	{
+		final long[] fragments = new long[ n ];
+		final long[] segments = new long[ n ];
+		for ( int i = 0; i < n; ++i )
+		{
+			fragments[ i ] = i + 1;
+			segments[ i ] = i / fragmentsPerSegment + 10000;
+		}
+		final LocalIdService idService = new LocalIdService();
+		idService.setNext( 100000 );
+		return new SnapshotFragmentSegmentAssignment( fragments, segments, idService );
+	}
+
+	@Test
+	public void testOverlay()
+	{
+		final Random random = new Random( 0 );
+		final TLongLongHashMap expected = new TLongLongHashMap();
+		SnapshotFragmentSegmentAssignment.Overlay overlay = SnapshotFragmentSegmentAssignment.Overlay.EMPTY;
+		for ( int i = 0; i < 100000; ++i )
+		{
+			final long key = random.nextInt( 20000 ) - 10000;
+			final long value = random.nextInt( 1000 ) + 1;
+			final SnapshotFragmentSegmentAssignment.Overlay previous = overlay;
+			final long previousValue = previous.get( key );
+			overlay = overlay.put( key, value );
+			expected.put( key, value );
+
+			/* earlier versions are not modified */
+			Assert.assertEquals( previousValue, previous.get( key ) );
+			Assert.assertEquals( value, overlay.get( key ) );
+		}
+		Assert.assertEquals( expected.size(), overlay.size() );
+		for ( final long key : expected.keys() )
+			Assert.assertEquals( expected.get( key ), overlay.get( key ) );
+		Assert.assertEquals( Label.TRANSPARENT, overlay.get( 20000 ) );
+	}
+
+	@Test
+	public void testMergeAndDetach()
+	{
+		final int n = 100;
+		final SnapshotFragmentSegmentAssignment assignment = create( n, 4 );
+
+		/* fragments 1..4 are segment 10000, 5..8 segment 10001 */
+		assignment.mergeFragmentSegments( 1, 5 );
+		final long merged = assignment.getSegment( 1 );
+		Assert.assertEquals( merged, assignment.getSegment( 8 ) );
+		Assert.assertNotEquals( merged, assignment.getSegment( 9 ) );
+		assertSameAsLut( assignment, n );
+
+		assignment.detachFragment( 5 );
+		Assert.assertEquals( 5, assignment.getSegment( 5 ) );
+		Assert.assertEquals( merged, assignment.getSegment( 6 ) );
+		assertSameAsLut( assignment, n );
+
+		/* unknown fragments are their own segment and are not inserted */
+		Assert.assertEquals( 1000, assignment.getSegment( 1000 ) );
+		Assert.assertEquals( assignment.getLut().getNoEntryValue(), assignment.getLut().get( 1000 ) );
+
+		final long version = assignment.getVersion();
+		assignment.assignFragments( assignment.getSegment( 9 ), merged );
+		Assert.assertEquals( merged, assignment.getSegment( 12 ) );
+		Assert.assertTrue( assignment.getVersion() > version );
+		assertSameAsLut( assignment, n );
+	}
+
+	@Test
+	public void testCompaction()
+	{
+		final int n = 20 * SnapshotFragmentSegmentAssignment.MIN_COMPACTION_SIZE;
+		final SnapshotFragmentSegmentAssignment assignment = create( n, 2 );
+		final Random random = new Random( 42 );
+		boolean compacted = false;
+		for ( int i = 0; i < 4 * SnapshotFragmentSegmentAssignment.MIN_COMPACTION_SIZE; ++i )
+		{
+			final long fragmentId1 = random.nextInt( n ) + 1;
+			final long fragmentId2 = random.nextInt( n ) + 1;
+			if ( random.nextInt( 4 ) == 0 )
+				assignment.detachFragment( fragmentId1 );
+			else
+				assignment.mergeFragmentSegments( fragmentId1, fragmentId2 );
+
+			compacted |= assignment.getSnapshot().getOverlaySize() == 0;
+			if ( i % 500 == 0 )
+				assertSameAsLut( assignment, n );
+		}
+		Assert.assertTrue( compacted );
+		assertSameAsLut( assignment, n );
+	}
+
+	/**
+	 * Fragments {@code 2..n} are merged into the segment of fragment 1 one
+	 * after another while readers check that every snapshot sees the
+	 * fragments {@code 1..k} in one segment and all others in their own.
+	 */
+	@Test
+	public void testConcurrentReaders() throws InterruptedException
+	{
+		final int n = 2 * SnapshotFragmentSegmentAssignment.MIN_COMPACTION_SIZE;
+		final SnapshotFragmentSegmentAssignment assignment = create( n, 1 );
+		final AtomicBoolean done = new AtomicBoolean( false );
+		final AtomicReference< Throwable > failure = new AtomicReference<>();
+
+		final Thread[] readers = new Thread[ 4 ];
+		for ( int t = 0; t < readers.length; ++t )
+		{
+			readers[ t ] = new Thread( () -> {
+				try
+				{
+					while ( !done.get() )
+					{
+						final SnapshotFragmentSegmentAssignment.Snapshot snapshot = assignment.getSnapshot();
+						final long segmentId = snapshot.getSegment( 1 );
+						int k = 1;
+						while ( k < n && snapshot.getSegment( k + 1 ) == segmentId )
+							++k;
+						for ( int fragmentId = k + 1; fragmentId <= n; ++fragmentId )
+							Assert.assertEquals( fragmentId + 10000 - 1, snapshot.getSegment( fragmentId ) );
+					}
+				}
+				catch ( final Throwable e )
+				{
+					failure.compareAndSet( null, e );
+				}
+			} );
+			readers[ t ].start();
+		}
+
+		for ( int fragmentId = 2; fragmentId <= n; ++fragmentId )
+			assignment.mergeFragmentSegments( 1, fragmentId );
+		done.set( true );
+		for ( final Thread reader : readers )
+			reader.join();
+
+		if ( failure.get() != null )
+			throw new AssertionError( failure.get() );
+		assertSameAsLut( assignment, n );
+	}
+}
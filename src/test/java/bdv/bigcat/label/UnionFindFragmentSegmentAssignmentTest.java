@@ -0,0 +1,124 @@
+package bdv.bigcat.label;
+
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.gson.JsonObject;
+
+import bdv.util.LocalIdService;
+import gnu.trove.map.hash.TLongLongHashMap;
+
+public class UnionFindFragmentSegmentAssignmentTest
+{
+	final static long[] fragments = new long[]{ 1, 2, 3, 4, 5, 6 };
+
+	final static long[] segments = new long[]{ 1, 1, 3, 3, 10, 10 };
+
+	static long[] sorted( final long[] array )
+	{
+		final long[] copy = array.clone();
+		Arrays.sort( copy );
+		return copy;
+	}
+
+	static void assertEquivalent( final FragmentSegmentAssignment expected, final FragmentSegmentAssignment actual )
+	{
+		for ( long fragmentId = 1; fragmentId <= 8; ++fragmentId )
+		{
+			final long segmentId = expected.getSegment( fragmentId );
+			Assert.assertEquals( segmentId, actual.getSegment( fragmentId ) );
+			Assert.assertArrayEquals( sorted( expected.getFragments( segmentId ) ), sorted( actual.getFragments( segmentId ) ) );
+		}
+	}
+
+	@Test
+	public void testAgainstFragmentSegmentAssignment()
+	{
+		final LocalIdService idService = new LocalIdService();
+		idService.setNext( 100 );
+		final LocalIdService unionFindIdService = new LocalIdService();
+		unionFindIdService.setNext( 100 );
+
+		final FragmentSegmentAssignment expected = new FragmentSegmentAssignment( fragments, segments, idService );
+		final UnionFindFragmentSegmentAssignment actual = new UnionFindFragmentSegmentAssignment( fragments, segments, unionFindIdService );
+		assertEquivalent( expected, actual );
+
+		expected.mergeFragmentSegments( 1, 3 );
+		actual.mergeFragmentSegments( 1, 3 );
+		assertEquivalent( expected, actual );
+
+		expected.assignFragments( 10, 100 );
+		actual.assignFragments( 10, 100 );
+		assertEquivalent( expected, actual );
+
+		expected.mergeFragmentSegments( 7, 2 );
+		actual.mergeFragmentSegments( 7, 2 );
+		assertEquivalent( expected, actual );
+
+		expected.detachFragment( 3 );
+		actual.detachFragment( 3 );
+		assertEquivalent( expected, actual );
+	}
+
+	@Test
+	public void testLut()
+	{
+		final TLongLongHashMap lut = new TLongLongHashMap();
+		for ( int i = 0; i < fragments.length; ++i )
+			lut.put( fragments[ i ], segments[ i ] );
+
+		final UnionFindFragmentSegmentAssignment assignment = new UnionFindFragmentSegmentAssignment( lut, new LocalIdService() );
+		Assert.assertEquals( lut, assignment.getLut() );
+		Assert.assertArrayEquals( new long[]{ 5, 6 }, sorted( assignment.getFragments( 10 ) ) );
+		Assert.assertNull( assignment.getFragments( 5 ) );
+	}
+
+	@Test
+	public void testCachedLut()
+	{
+		final UnionFindFragmentSegmentAssignment assignment = new UnionFindFragmentSegmentAssignment( fragments, segments, new LocalIdService() );
+		final TLongLongHashMap lut = assignment.getLut();
+		Assert.assertTrue( assignment.lutIsCurrent );
+		Assert.assertSame( lut, assignment.getLut() );
+
+		/* modifications invalidate the lookup */
+		assignment.assignFragments( 1, 3 );
+		Assert.assertFalse( assignment.lutIsCurrent );
+		Assert.assertEquals( 3, assignment.getLut().get( 1 ) );
+		Assert.assertTrue( assignment.lutIsCurrent );
+
+		assignment.detachFragment( 1 );
+		Assert.assertFalse( assignment.lutIsCurrent );
+		Assert.assertEquals( 1, assignment.getSegment( 1 ) );
+		Assert.assertEquals( assignment.getLut().getNoEntryValue(), assignment.getLut().get( 1 ) );
+	}
+
+	@Test
+	public void testFragmentsAreCopied()
+	{
+		final UnionFindFragmentSegmentAssignment assignment = new UnionFindFragmentSegmentAssignment( fragments, segments, new LocalIdService() );
+		final long[] fragments10 = assignment.getFragments( 10 );
+		Arrays.fill( fragments10, 1 );
+		Assert.assertArrayEquals( new long[]{ 5, 6 }, sorted( assignment.getFragments( 10 ) ) );
+		Assert.assertNotSame( assignment.getFragments( 10 ), assignment.getFragments( 10 ) );
+	}
+
+	@Test
+	public void testSerialize()
+	{
+		final UnionFindFragmentSegmentAssignment assignment = new UnionFindFragmentSegmentAssignment( fragments, segments, new LocalIdService() );
+		assignment.mergeSegments( 1, 3 );
+
+		/* serializers see the merge */
+		final JsonObject jsonLut = new FragmentSegmentAssignment.FragmentSegmentSerializer().serialize( assignment, null, null ).getAsJsonObject().getAsJsonObject( "lut" );
+		Assert.assertEquals( fragments.length, jsonLut.entrySet().size() );
+		for ( final long fragmentId : fragments )
+			Assert.assertEquals( assignment.getSegment( fragmentId ), jsonLut.get( Long.toString( fragmentId ) ).getAsLong() );
+
+		final JsonObject jsonILut = new FragmentSegmentAssignment.BodySegmentsSerializer().serialize( assignment, null, null ).getAsJsonObject().getAsJsonObject( "ilut" );
+		Assert.assertEquals( 2, jsonILut.entrySet().size() );
+		Assert.assertEquals( 4, jsonILut.getAsJsonArray( Long.toString( assignment.getSegment( 1 ) ) ).size() );
+	}
+}
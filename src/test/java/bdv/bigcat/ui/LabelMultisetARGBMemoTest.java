@@ -0,0 +1,104 @@
+package bdv.bigcat.ui;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import bdv.labels.labelset.LabelMultisetEntry;
+import bdv.labels.labelset.LabelMultisetEntryList;
+import bdv.labels.labelset.LabelMultisetType;
+import bdv.labels.labelset.LongMappedAccessData;
+import bdv.labels.labelset.VolatileLabelMultisetArray;
+
+public class LabelMultisetARGBMemoTest
+{
+	static class CountingStream implements ARGBStream
+	{
+		int lookups = 0;
+
+		long version = 0;
+
+		@Override
+		public int argb( final long id )
+		{
+			++lookups;
+			return 0xff000000 | ( int ) ( id * 0x10101 + version );
+		}
+
+		@Override
+		public long getVersion()
+		{
+			return version;
+		}
+	}
+
+	/**
+	 * Four voxels sharing two lists, {1, 2} and {3}.
+	 */
+	static LabelMultisetType createType()
+	{
+		final LongMappedAccessData listData = LongMappedAccessData.factory.createStorage( 16 );
+		final LabelMultisetEntryList list = new LabelMultisetEntryList();
+		list.createListAt( listData, 0 );
+		list.add( new LabelMultisetEntry( 1, 2 ) );
+		list.add( new LabelMultisetEntry( 2, 1 ) );
+		final int offset = ( int ) list.getSizeInBytes();
+		list.createListAt( listData, offset );
+		list.add( new LabelMultisetEntry( 3, 4 ) );
+
+		return new LabelMultisetType( new VolatileLabelMultisetArray( new int[] { 0, offset, 0, offset }, listData, true ) );
+	}
+
+	@Test
+	public void testMemo()
+	{
+		final CountingStream stream = new CountingStream();
+		final LabelMultisetARGBMemo memo = new LabelMultisetARGBMemo( stream, 4 );
+		final LabelMultisetType type = createType();
+
+		final int[] argbs = new int[ 4 ];
+		for ( int i = 0; i < 4; ++i )
+		{
+			type.updateIndex( i );
+			argbs[ i ] = memo.argb( type );
+			Assert.assertEquals( LabelMultisetARGBMemo.blend( type, stream ), argbs[ i ] );
+		}
+		Assert.assertEquals( argbs[ 0 ], argbs[ 2 ] );
+		Assert.assertEquals( argbs[ 1 ], argbs[ 3 ] );
+
+		/* each list was blended once */
+		stream.lookups = 0;
+		for ( int i = 0; i < 4; ++i )
+		{
+			type.updateIndex( i );
+			memo.argb( type );
+		}
+		Assert.assertEquals( 0, stream.lookups );
+
+		/* a new version invalidates all lists */
+		++stream.version;
+		type.updateIndex( 0 );
+		Assert.assertNotEquals( argbs[ 0 ], memo.argb( type ) );
+		Assert.assertEquals( 2, stream.lookups );
+	}
+
+	@Test
+	public void testBlendSumsEqualColors()
+	{
+		final LabelMultisetType type = createType();
+
+		/* labels 1 and 2 share a color, label 3 has another */
+		final ARGBStream stream = new ARGBStream()
+		{
+			@Override
+			public int argb( final long id )
+			{
+				return id < 3 ? 0xff204080 : 0x80ff0000;
+			}
+		};
+
+		type.updateIndex( 0 );
+		Assert.assertEquals( 0xff204080, LabelMultisetARGBMemo.blend( type, stream ) );
+		type.updateIndex( 1 );
+		Assert.assertEquals( 0x80ff0000, LabelMultisetARGBMemo.blend( type, stream ) );
+	}
+}
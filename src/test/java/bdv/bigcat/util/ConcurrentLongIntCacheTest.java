@@ -0,0 +1,94 @@
+package bdv.bigcat.util;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ConcurrentLongIntCacheTest
+{
+	static int valueOf( final long key )
+	{
+		return ( int ) ( key * 31 ) | 1;
+	}
+
+	@Test
+	public void testPutGet()
+	{
+		final ConcurrentLongIntCache cache = new ConcurrentLongIntCache( 1024, 0 );
+		Assert.assertEquals( 1024, cache.getCapacity() );
+		Assert.assertEquals( 0, cache.get( 5 ) );
+		cache.put( 5, 7 );
+		cache.put( -1, 8 );
+		Assert.assertEquals( 7, cache.get( 5 ) );
+		Assert.assertEquals( 8, cache.get( -1 ) );
+		cache.put( 5, 9 );
+		Assert.assertEquals( 9, cache.get( 5 ) );
+		Assert.assertEquals( 3, cache.getHits() );
+		Assert.assertEquals( 1, cache.getMisses() );
+
+		cache.clear();
+		Assert.assertEquals( 0, cache.get( 5 ) );
+		Assert.assertEquals( 0, cache.getEvictions() );
+	}
+
+	@Test
+	public void testBounded()
+	{
+		final ConcurrentLongIntCache cache = new ConcurrentLongIntCache( 256, 0 );
+		final int n = 10 * cache.getCapacity();
+		for ( long key = 0; key < n; ++key )
+			cache.put( key, valueOf( key ) );
+		Assert.assertTrue( cache.getEvictions() >= n - cache.getCapacity() );
+
+		int cached = 0;
+		for ( long key = 0; key < n; ++key )
+		{
+			final int value = cache.get( key );
+			if ( value != 0 )
+			{
+				Assert.assertEquals( valueOf( key ), value );
+				++cached;
+			}
+		}
+		Assert.assertTrue( cached <= cache.getCapacity() );
+		Assert.assertTrue( cached > 0 );
+	}
+
+	@Test
+	public void testConcurrent() throws Exception
+	{
+		final ConcurrentLongIntCache cache = new ConcurrentLongIntCache( 4096, 0 );
+		final ExecutorService executor = Executors.newFixedThreadPool( 8 );
+		try
+		{
+			final ArrayList< Future< ? > > futures = new ArrayList<>();
+			for ( int t = 0; t < 8; ++t )
+			{
+				final long offset = t * 1000;
+				futures.add( executor.submit( () -> {
+					for ( int i = 0; i < 200000; ++i )
+					{
+						final long key = ( offset + i ) % 10000;
+						final int value = cache.get( key );
+						if ( value == 0 )
+							cache.put( key, valueOf( key ) );
+						else
+							Assert.assertEquals( valueOf( key ), value );
+					}
+				} ) );
+			}
+			for ( final Future< ? > future : futures )
+				future.get();
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+		Assert.assertEquals( 8 * 200000, cache.getHits() + cache.getMisses() );
+		Assert.assertTrue( cache.getHitRate() > 0 );
+	}
+}
@@ -0,0 +1,100 @@
+package bdv.bigcat.util;
+
+import java.io.File;
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import bdv.img.h5.H5Utils;
+import ch.systemsx.cisd.hdf5.HDF5Factory;
+import ch.systemsx.cisd.hdf5.IHDF5Reader;
+import net.imglib2.FinalInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.LongArray;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.type.numeric.integer.LongType;
+import net.imglib2.util.IntervalIndexer;
+
+public class DirtyBlocksTest
+{
+	static private final long[] dimensions = new long[] { 10, 7, 5 };
+
+	/* border cells are cropped along all dimensions */
+	static private final int[] cellDimensions = new int[] { 4, 3, 2 };
+
+	static private void paint( final long[] data, final DirtyBlocks dirtyBlocks, final long[] min, final long[] max, final long label )
+	{
+		final long[] position = new long[ 3 ];
+		for ( position[ 2 ] = min[ 2 ]; position[ 2 ] <= max[ 2 ]; ++position[ 2 ] )
+			for ( position[ 1 ] = min[ 1 ]; position[ 1 ] <= max[ 1 ]; ++position[ 1 ] )
+				for ( position[ 0 ] = min[ 0 ]; position[ 0 ] <= max[ 0 ]; ++position[ 0 ] )
+					data[ ( int ) IntervalIndexer.positionToIndex( position, dimensions ) ] = label;
+		if ( dirtyBlocks != null )
+			dirtyBlocks.touch( new FinalInterval( min, max ) );
+	}
+
+	static private long[] read( final File file, final String dataset )
+	{
+		final IHDF5Reader reader = HDF5Factory.openForReading( file );
+		try
+		{
+			Assert.assertArrayEquals( new long[] { 5, 7, 10 }, reader.object().getDimensions( dataset ) );
+			Assert.assertArrayEquals( new double[] { 3, 2, 1 }, reader.float64().getArrayAttr( dataset, "offset" ), 0 );
+			return reader.uint64().readMDArray( dataset ).getAsFlatArray();
+		}
+		finally
+		{
+			reader.close();
+		}
+	}
+
+	@Test
+	public void testSaveDirtyBlocks() throws Exception
+	{
+		final long[] data = new long[ ( int ) ( dimensions[ 0 ] * dimensions[ 1 ] * dimensions[ 2 ] ) ];
+		for ( int i = 0; i < data.length; ++i )
+			data[ i ] = i + 1;
+		final ArrayImg< LongType, LongArray > canvas = ArrayImgs.longs( data, dimensions );
+
+		final File file = File.createTempFile( "dirty-blocks", ".h5" );
+		file.delete();
+		try
+		{
+			H5Utils.saveUnsignedLong( canvas, file, "painted", cellDimensions );
+			H5Utils.saveDoubleArrayAttribute( new double[] { 3, 2, 1 }, file, "painted", "offset" );
+
+			final DirtyBlocks dirtyBlocks = new DirtyBlocks( new CellGrid( dimensions, cellDimensions ) );
+
+			/* paint into the first cell and into the cropped last cell */
+			paint( data, dirtyBlocks, new long[] { 1, 1, 1 }, new long[] { 2, 1, 1 }, 100 );
+			paint( data, dirtyBlocks, new long[] { 8, 6, 4 }, new long[] { 9, 6, 4 }, 200 );
+			final long[] saved = data.clone();
+
+			/* a modification that was not tracked is not written */
+			paint( data, null, new long[] { 5, 0, 0 }, new long[] { 5, 0, 0 }, 300 );
+
+			final long[] blocks = dirtyBlocks.getDirtyBlocks();
+			Arrays.sort( blocks );
+			Assert.assertArrayEquals( new long[] { 0, 26 }, blocks );
+
+			H5Utils.saveUnsignedLongBlocks( canvas, file, "painted", dirtyBlocks.getGrid(), blocks );
+			dirtyBlocks.clean( blocks );
+			Assert.assertEquals( 0, dirtyBlocks.getDirtyBlocks().length );
+
+			final long[] expected = saved.clone();
+			expected[ ( int ) IntervalIndexer.positionToIndex( new long[] { 5, 0, 0 }, dimensions ) ] = 5 + 1;
+			Assert.assertArrayEquals( expected, read( file, "painted" ) );
+
+			/* touching an interval that covers the cell writes it */
+			dirtyBlocks.touch( new FinalInterval( new long[] { 5, 0, 0 }, new long[] { 5, 0, 0 } ) );
+			H5Utils.saveUnsignedLongBlocks( canvas, file, "painted", dirtyBlocks.getGrid(), dirtyBlocks.getDirtyBlocks() );
+			Assert.assertArrayEquals( data, read( file, "painted" ) );
+		}
+		finally
+		{
+			file.delete();
+		}
+	}
+}
@@ -0,0 +1,135 @@
+package bdv.bigcat.util;
+
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import net.imglib2.Cursor;
+import net.imglib2.Point;
+import net.imglib2.RandomAccess;
+import net.imglib2.algorithm.fill.Filter;
+import net.imglib2.algorithm.fill.FloodFill;
+import net.imglib2.algorithm.neighborhood.DiamondShape;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.IntArray;
+import net.imglib2.img.basictypeaccess.array.LongArray;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.type.numeric.integer.LongType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Pair;
+import net.imglib2.view.Views;
+
+public class ParallelFloodFillTest
+{
+	static class SameSourceFilter implements Filter< Pair< IntType, LongType >, Pair< IntType, LongType > >
+	{
+		@Override
+		public boolean accept( final Pair< IntType, LongType > current, final Pair< IntType, LongType > reference )
+		{
+			return current.getA().valueEquals( reference.getA() ) && !current.getB().valueEquals( reference.getB() );
+		}
+	}
+
+	@Test
+	public void testSameAsFloodFill() throws Exception
+	{
+		final long[] dimensions = new long[] { 40, 30, 20 };
+		final ArrayImg< IntType, IntArray > source = ArrayImgs.ints( dimensions );
+		final Random rnd = new Random( 0 );
+		for ( final IntType t : source )
+			t.set( rnd.nextInt( 10 ) < 6 ? 1 : 0 );
+
+		final Point seed = new Point( 20, 15, 10 );
+		final RandomAccess< IntType > access = source.randomAccess();
+		access.setPosition( seed );
+		access.get().set( 1 );
+
+		final ArrayImg< LongType, LongArray > expected = ArrayImgs.longs( dimensions );
+		FloodFill.fill(
+				Views.extendValue( source, new IntType( -1 ) ),
+				Views.extendValue( expected, new LongType() ),
+				seed,
+				new IntType( 1 ),
+				new LongType( 7 ),
+				new DiamondShape( 1 ),
+				new SameSourceFilter() );
+
+		final ExecutorService executor = Executors.newFixedThreadPool( 4 );
+		try
+		{
+			final ArrayImg< LongType, LongArray > actual = ArrayImgs.longs( dimensions );
+			final ParallelFloodFill< IntType, LongType > fill = new ParallelFloodFill<>(
+					source,
+					actual,
+					new int[] { 8, 8, 4 },
+					new IntType( 1 ),
+					new LongType( 7 ),
+					new SameSourceFilter(),
+					executor );
+			fill.start( seed );
+			fill.await();
+
+			Assert.assertFalse( fill.isCancelled() );
+			long numFilled = 0;
+			final Cursor< LongType > e = expected.cursor();
+			final Cursor< LongType > a = actual.cursor();
+			while ( e.hasNext() )
+			{
+				final long value = e.next().get();
+				Assert.assertEquals( value, a.next().get() );
+				if ( value == 7 )
+					++numFilled;
+			}
+			Assert.assertEquals( numFilled, fill.getNumFilled() );
+			Assert.assertTrue( fill.getNumBlocks() > 1 );
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testTouchesDirtyInterval() throws Exception
+	{
+		final long[] dimensions = new long[] { 40, 30, 20 };
+		final ArrayImg< IntType, IntArray > source = ArrayImgs.ints( dimensions );
+		/* a slab of ones at x in [ 10, 19 ] */
+		for ( final IntType t : Views.interval( source, new long[] { 10, 0, 0 }, new long[] { 19, 29, 19 } ) )
+			t.set( 1 );
+
+		final ExecutorService executor = Executors.newFixedThreadPool( 4 );
+		try
+		{
+			final Object lock = new Object();
+			final DirtyInterval dirtyInterval = new DirtyInterval();
+			final ParallelFloodFill< IntType, LongType > fill = new ParallelFloodFill<>(
+					source,
+					ArrayImgs.longs( dimensions ),
+					new int[] { 8, 8, 4 },
+					new IntType( 1 ),
+					new LongType( 7 ),
+					new SameSourceFilter(),
+					executor,
+					lock,
+					dirtyInterval );
+			fill.start( new Point( 15, 15, 10 ) );
+			fill.await();
+
+			Assert.assertEquals( 10 * 30 * 20, fill.getNumFilled() );
+			synchronized ( lock )
+			{
+				Assert.assertArrayEquals( new long[] { 10, 0, 0 }, Intervals.minAsLongArray( dirtyInterval.getDirtyInterval() ) );
+				Assert.assertArrayEquals( new long[] { 19, 29, 19 }, Intervals.maxAsLongArray( dirtyInterval.getDirtyInterval() ) );
+			}
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+	}
+}
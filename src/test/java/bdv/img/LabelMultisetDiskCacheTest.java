@@ -0,0 +1,116 @@
+package bdv.img;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.stream.Stream;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import bdv.img.cache.CacheArrayLoader;
+import bdv.labels.labelset.VolatileLabelMultisetArray;
+
+public class LabelMultisetDiskCacheTest
+{
+	static class CountingLoader implements CacheArrayLoader< VolatileLabelMultisetArray >
+	{
+		int loads = 0;
+
+		@Override
+		public VolatileLabelMultisetArray loadArray(
+				final int timepoint,
+				final int setup,
+				final int level,
+				final int[] dimensions,
+				final long[] min )
+		{
+			++loads;
+			return new VolatileLabelMultisetArray( dimensions[ 0 ] * dimensions[ 1 ] * dimensions[ 2 ], true );
+		}
+
+		@Override
+		public int getBytesPerElement()
+		{
+			return 8;
+		}
+	}
+
+	@Test
+	public void testPersistsLevel0() throws Exception
+	{
+		final File dir = Files.createTempDirectory( "label-disk-cache" ).toFile();
+		try
+		{
+			final CountingLoader loader = new CountingLoader();
+			final int[] dimensions = new int[] { 4, 4, 2 };
+			final long[] min = new long[] { 4, 0, 0 };
+
+			final CacheArrayLoader< VolatileLabelMultisetArray > cached = new LabelMultisetDiskCache( dir ).wrap( loader, "test" );
+			final VolatileLabelMultisetArray loaded = cached.loadArray( 0, 0, 0, dimensions, min );
+			Assert.assertEquals( 1, loader.loads );
+
+			/* a new cache on the same directory, e.g. in a later session */
+			final LabelMultisetDiskCache cache = new LabelMultisetDiskCache( dir );
+			final VolatileLabelMultisetArray read = cache.wrap( loader, "test" ).loadArray( 0, 0, 0, dimensions, min );
+			Assert.assertEquals( 1, loader.loads );
+			Assert.assertEquals( 1, cache.getHits() );
+			Assert.assertArrayEquals( loaded.getCurrentStorageArray(), read.getCurrentStorageArray() );
+
+			/* other keys and higher levels are not served from the cache */
+			cache.wrap( loader, "other" ).loadArray( 0, 0, 0, dimensions, min );
+			cache.wrap( loader, "test" ).loadArray( 0, 0, 1, dimensions, min );
+			cache.wrap( loader, "test" ).loadArray( 0, 0, 1, dimensions, min );
+			Assert.assertEquals( 4, loader.loads );
+
+			cache.clear();
+			cache.wrap( loader, "test" ).loadArray( 0, 0, 0, dimensions, min );
+			Assert.assertEquals( 5, loader.loads );
+		}
+		finally
+		{
+			new LabelMultisetDiskCache( dir ).clear();
+			dir.delete();
+		}
+	}
+
+	@Test
+	public void testEvictsLeastRecentlyUsed() throws Exception
+	{
+		final File dir = Files.createTempDirectory( "label-disk-cache" ).toFile();
+		try
+		{
+			final CountingLoader loader = new CountingLoader();
+			final int[] dimensions = new int[] { 4, 4, 2 };
+			final long[] a = new long[] { 0, 0, 0 };
+			final long[] b = new long[] { 4, 0, 0 };
+
+			final LabelMultisetDiskCache unbounded = new LabelMultisetDiskCache( dir );
+			unbounded.wrap( loader, "test" ).loadArray( 0, 0, 0, dimensions, a );
+			final long cellBytes = unbounded.getBytesWritten();
+
+			/* make a the least recently used cell */
+			try ( final Stream< Path > paths = Files.walk( dir.toPath() ) )
+			{
+				for ( final Path path : ( Iterable< Path > ) paths::iterator )
+					Files.setLastModifiedTime( path, FileTime.fromMillis( 0 ) );
+			}
+
+			/* room for one cell only */
+			final LabelMultisetDiskCache cache = new LabelMultisetDiskCache( dir, cellBytes * 3 / 2 );
+			cache.wrap( loader, "test" ).loadArray( 0, 0, 0, dimensions, b );
+			Assert.assertEquals( 1, cache.getEvictions() );
+			Assert.assertEquals( 2, loader.loads );
+
+			cache.wrap( loader, "test" ).loadArray( 0, 0, 0, dimensions, b );
+			Assert.assertEquals( 1, cache.getHits() );
+			Assert.assertEquals( 2, loader.loads );
+		}
+		finally
+		{
+			new LabelMultisetDiskCache( dir ).clear();
+			dir.delete();
+		}
+	}
+}
@@ -0,0 +1,122 @@
+package bdv.img;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import bdv.img.cache.CacheArrayLoader;
+import bdv.img.cache.EmptyArrayCreator;
+import bdv.img.cache.VolatileCachedCellImg;
+import bdv.labels.labelset.LabelMultisetType;
+import bdv.labels.labelset.VolatileLabelMultisetArray;
+import net.imglib2.RandomAccess;
+import net.imglib2.cache.volatiles.CacheHints;
+import net.imglib2.cache.volatiles.LoadingStrategy;
+import net.imglib2.img.cell.Cell;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.util.Intervals;
+
+public class WeightedGlobalCellCacheTest
+{
+	static class CountingLoader implements CacheArrayLoader< VolatileLabelMultisetArray >
+	{
+		int loads = 0;
+
+		@Override
+		public VolatileLabelMultisetArray loadArray(
+				final int timepoint,
+				final int setup,
+				final int level,
+				final int[] dimensions,
+				final long[] min )
+		{
+			++loads;
+			return new VolatileLabelMultisetArray( ( int ) Intervals.numElements( dimensions ), true );
+		}
+
+		@Override
+		public int getBytesPerElement()
+		{
+			return 4;
+		}
+
+		@Override
+		public EmptyArrayCreator< VolatileLabelMultisetArray > getEmptyArrayCreator()
+		{
+			return VolatileLabelMultisetArray.emptyArrayCreator;
+		}
+	}
+
+	static private final CacheHints blocking = new CacheHints( LoadingStrategy.BLOCKING, 0, false );
+
+	static private VolatileCachedCellImg< LabelMultisetType, VolatileLabelMultisetArray > createImg(
+			final WeightedGlobalCellCache cache,
+			final CountingLoader loader,
+			final int setup,
+			final int level,
+			final int cellSize )
+	{
+		/* two cells along x */
+		final CellGrid grid = new CellGrid( new long[] { 2 * cellSize, cellSize, cellSize }, new int[] { cellSize, cellSize, cellSize } );
+		return cache.createImg( grid, 0, setup, level, blocking, loader, new LabelMultisetType() );
+	}
+
+	static private VolatileLabelMultisetArray getCell( final VolatileCachedCellImg< ?, VolatileLabelMultisetArray > img, final long x )
+	{
+		final RandomAccess< Cell< VolatileLabelMultisetArray > > cells = img.getCells().randomAccess();
+		cells.setPosition( new long[] { x, 0, 0 } );
+		return cells.get().getData();
+	}
+
+	@Test
+	public void testWeightBudget()
+	{
+		final long level0Bytes = WeightedGlobalCellCache.weigh( new VolatileLabelMultisetArray( 4 * 4 * 4, true ) );
+		final long level2Bytes = WeightedGlobalCellCache.weigh( new VolatileLabelMultisetArray( 16 * 16 * 16, true ) );
+
+		final WeightedGlobalCellCache cache = new WeightedGlobalCellCache( 3, 1, level2Bytes + level0Bytes + level0Bytes / 2 );
+		final CountingLoader loader = new CountingLoader();
+		final VolatileCachedCellImg< LabelMultisetType, VolatileLabelMultisetArray > level0 = createImg( cache, loader, 0, 0, 4 );
+		final VolatileCachedCellImg< LabelMultisetType, VolatileLabelMultisetArray > level2 = createImg( cache, loader, 0, 2, 16 );
+
+		getCell( level0, 0 );
+		getCell( level0, 1 );
+		getCell( level0, 0 );
+		Assert.assertEquals( 2, loader.loads );
+
+		/* the coarse cell evicts the least recently used level 0 cell */
+		getCell( level2, 0 );
+		Assert.assertEquals( 3, loader.loads );
+		Assert.assertTrue( cache.getBytes() <= cache.getMaxBytes() );
+
+		final WeightedGlobalCellCache.Statistics level0Statistics = cache.getStatistics().get( 0 );
+		final WeightedGlobalCellCache.Statistics level2Statistics = cache.getStatistics().get( 2 );
+		Assert.assertEquals( 1, level0Statistics.getHits() );
+		Assert.assertEquals( 2, level0Statistics.getMisses() );
+		Assert.assertEquals( 1, level0Statistics.getEvictions() );
+		Assert.assertEquals( 1, level0Statistics.getCells() );
+		Assert.assertEquals( 1, level2Statistics.getMisses() );
+		Assert.assertEquals( 1, level2Statistics.getCells() );
+		Assert.assertEquals( cache.getBytes(), level0Statistics.getBytes() + level2Statistics.getBytes() );
+
+		cache.invalidateAll();
+		Assert.assertEquals( 0, cache.getBytes() );
+	}
+
+	@Test
+	public void testLoadersDoNotCollide()
+	{
+		final WeightedGlobalCellCache cache = new WeightedGlobalCellCache( 1, 1, 1 << 20 );
+		final CountingLoader loader1 = new CountingLoader();
+		final CountingLoader loader2 = new CountingLoader();
+
+		/* same timepoint, setup, level and cell for both loaders */
+		final VolatileCachedCellImg< LabelMultisetType, VolatileLabelMultisetArray > img1 = createImg( cache, loader1, 1, 0, 4 );
+		final VolatileCachedCellImg< LabelMultisetType, VolatileLabelMultisetArray > img2 = createImg( cache, loader2, 1, 0, 4 );
+		final VolatileLabelMultisetArray array1 = getCell( img1, 0 );
+		final VolatileLabelMultisetArray array2 = getCell( img2, 0 );
+		Assert.assertNotSame( array1, array2 );
+		Assert.assertSame( array1, getCell( img1, 0 ) );
+		Assert.assertEquals( 1, loader1.loads );
+		Assert.assertEquals( 1, loader2.loads );
+	}
+}
@@ -0,0 +1,136 @@
+package bdv.img.dvid;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import bdv.labels.labelset.LabelMultisetEntryList;
+import bdv.labels.labelset.VolatileLabelMultisetArray;
+import bdv.util.http.LocalHttpServer;
+
+/**
+ * Tests {@link LabelblkMultisetVolatileArrayLoader} against a local
+ * stand-in for the DVID raw endpoint.
+ */
+public class LabelblkMultisetVolatileArrayLoaderTest
+{
+	private LocalHttpServer server;
+
+	/**
+	 * Runs of five voxels share an id, ids repeat after 35 voxels, and the
+	 * upper bytes of the ids are set to catch byte order errors.
+	 */
+	private static long id( final int i )
+	{
+		return 1 + ( i / 5 ) % 7 * 0x0102030405L;
+	}
+
+	/**
+	 * Respond with the little endian ids of the requested block in small
+	 * chunks.  Node "short" sends only the first {@code 10} voxels and three
+	 * bytes of the next one.
+	 */
+	private static void handle( final HttpExchange exchange ) throws IOException
+	{
+		/* /api/node/<node>/<instance>/raw/0_1_2/<dimensions>/<min> */
+		final String[] path = exchange.getRequestURI().getPath().split( "/" );
+		final String[] dimensions = path[ path.length - 2 ].split( "_" );
+		int numElements = 1;
+		for ( final String dimension : dimensions )
+			numElements *= Integer.parseInt( dimension );
+
+		final ByteBuffer buffer = ByteBuffer.allocate( numElements * 8 ).order( ByteOrder.LITTLE_ENDIAN );
+		for ( int i = 0; i < numElements; ++i )
+			buffer.putLong( id( i ) );
+		final int size = path[ 3 ].equals( "short" ) ? 10 * 8 + 3 : buffer.capacity();
+
+		exchange.sendResponseHeaders( 200, 0 );
+		try ( final OutputStream out = exchange.getResponseBody() )
+		{
+			for ( int offset = 0; offset < size; offset += 1001 )
+			{
+				out.write( buffer.array(), offset, Math.min( 1001, size - offset ) );
+				out.flush();
+			}
+		}
+	}
+
+	@Before
+	public void startServer() throws IOException
+	{
+		server = new LocalHttpServer( 4 )
+				.createContext( "/api", LabelblkMultisetVolatileArrayLoaderTest::handle )
+				.start();
+	}
+
+	@After
+	public void stopServer()
+	{
+		server.stop();
+	}
+
+	private VolatileLabelMultisetArray load( final String node, final int[] dimensions ) throws InterruptedException
+	{
+		final LabelblkMultisetVolatileArrayLoader loader = new LabelblkMultisetVolatileArrayLoader(
+				server.getUrl() + "/api",
+				node,
+				"labels",
+				dimensions );
+		return loader.loadArray( 0, 0, 0, dimensions, new long[] { 0, 0, 0 } );
+	}
+
+	private static void assertLabels( final VolatileLabelMultisetArray array, final int numValid )
+	{
+		final int[] offsets = array.getCurrentStorageArray();
+		final LabelMultisetEntryList list = new LabelMultisetEntryList();
+		for ( int i = 0; i < offsets.length; ++i )
+		{
+			array.getValue( i, list );
+			Assert.assertEquals( 1, list.size() );
+			Assert.assertEquals( i < numValid ? id( i ) : 0, list.get( 0 ).getId() );
+			Assert.assertEquals( 1, list.get( 0 ).getCount() );
+
+			/* one list per distinct id */
+			if ( i > 0 && ( i < numValid ? id( i ) == id( i - 1 ) : i > numValid ) )
+				Assert.assertEquals( offsets[ i - 1 ], offsets[ i ] );
+			if ( i >= 35 && i < numValid )
+				Assert.assertEquals( offsets[ i - 35 ], offsets[ i ] );
+		}
+	}
+
+	@Test
+	public void testBlock() throws InterruptedException
+	{
+		final VolatileLabelMultisetArray array = load( "full", new int[] { 8, 6, 3 } );
+		Assert.assertTrue( array.isValid() );
+		assertLabels( array, 8 * 6 * 3 );
+
+		/* 7 single element lists of 16 bytes */
+		Assert.assertEquals( 7 * 16, array.getListDataUsedSizeInBytes() );
+	}
+
+	@Test
+	public void testBlockLargerThanBuffer() throws InterruptedException
+	{
+		/* 256 KiB, streamed through the 64 KiB buffer */
+		final VolatileLabelMultisetArray array = load( "full", new int[] { 64, 32, 16 } );
+		assertLabels( array, 64 * 32 * 16 );
+	}
+
+	@Test
+	public void testShortResponse() throws InterruptedException
+	{
+		/* missing voxels and the incomplete last voxel are 0 */
+		final VolatileLabelMultisetArray array = load( "short", new int[] { 8, 6, 3 } );
+		assertLabels( array, 10 );
+		Assert.assertEquals( 3 * 16, array.getListDataUsedSizeInBytes() );
+	}
+}
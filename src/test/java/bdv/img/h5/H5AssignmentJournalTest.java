@@ -0,0 +1,76 @@
+package bdv.img.h5;
+
+import java.io.File;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import bdv.bigcat.label.SnapshotFragmentSegmentAssignment;
+import bdv.util.LocalIdService;
+import ch.systemsx.cisd.hdf5.HDF5Factory;
+import ch.systemsx.cisd.hdf5.IHDF5Writer;
+import gnu.trove.map.hash.TLongLongHashMap;
+
+public class H5AssignmentJournalTest
+{
+	@Test
+	public void testAppendAndCompact() throws Exception
+	{
+		final File file = File.createTempFile( "assignment-journal", ".h5" );
+		file.delete();
+		try
+		{
+			final LocalIdService idService = new LocalIdService();
+			idService.setNext( 100 );
+			final SnapshotFragmentSegmentAssignment assignment = new SnapshotFragmentSegmentAssignment(
+					new long[] { 1, 2, 3, 4 },
+					new long[] { 10, 10, 20, 30 },
+					idService );
+
+			final IHDF5Writer writer = HDF5Factory.open( file );
+			try
+			{
+				H5AssignmentJournal.compact( assignment.getLut(), writer, "lut", 2 );
+				Assert.assertTrue( assignment.pollModifications().isEmpty() );
+
+				/* only the merged segment is journaled */
+				assignment.mergeSegments( 20, 30 );
+				final TLongLongHashMap modifications = assignment.pollModifications();
+				Assert.assertEquals( 2, modifications.size() );
+				H5AssignmentJournal.append( modifications, writer, "lut", 2 );
+
+				assignment.detachFragment( 2 );
+				H5AssignmentJournal.append( assignment.pollModifications(), writer, "lut", 2 );
+
+				Assert.assertEquals( 3, H5AssignmentJournal.size( writer, "lut" ) );
+				Assert.assertEquals( assignment.getLut(), H5AssignmentJournal.load( writer, "lut", 2 ) );
+
+				/* compaction invalidates the journal */
+				final TLongLongHashMap lut = H5AssignmentJournal.load( writer, "lut", 2 );
+				H5AssignmentJournal.compact( lut, writer, "lut", 2 );
+				Assert.assertEquals( 0, H5AssignmentJournal.size( writer, "lut" ) );
+				Assert.assertEquals( lut, H5AssignmentJournal.load( writer, "lut", 2 ) );
+
+				/* and is reused by the next generation, fragment 1 keeps its segment */
+				assignment.assignFragments( 2, 10 );
+				H5AssignmentJournal.append( assignment.pollModifications(), writer, "lut", 2 );
+				Assert.assertEquals( 1, H5AssignmentJournal.size( writer, "lut" ) );
+				Assert.assertEquals( assignment.getLut(), H5AssignmentJournal.load( writer, "lut", 2 ) );
+
+				/* the plain lookup table is up to date after compacting the journal */
+				Assert.assertNotEquals( assignment.getLut(), H5Utils.loadLongLongLut( writer, "lut", 2 ) );
+				Assert.assertTrue( H5AssignmentJournal.compactJournal( writer, "lut", 2 ) );
+				Assert.assertEquals( assignment.getLut(), H5Utils.loadLongLongLut( writer, "lut", 2 ) );
+				Assert.assertFalse( H5AssignmentJournal.compactJournal( writer, "lut", 2 ) );
+			}
+			finally
+			{
+				writer.close();
+			}
+		}
+		finally
+		{
+			file.delete();
+		}
+	}
+}
@@ -0,0 +1,283 @@
+package bdv.img.h5;
+
+import java.io.File;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import bdv.img.hdf5.Util;
+import bdv.labels.labelset.LabelMultisetEntry;
+import bdv.labels.labelset.LabelMultisetEntryList;
+import bdv.labels.labelset.LongMappedAccessData;
+import bdv.labels.labelset.VolatileLabelMultisetArray;
+import ch.systemsx.cisd.base.mdarray.MDIntArray;
+import ch.systemsx.cisd.hdf5.HDF5Factory;
+import ch.systemsx.cisd.hdf5.IHDF5Reader;
+import ch.systemsx.cisd.hdf5.IHDF5Writer;
+
+public class H5ConsolidatedLabelMultisetsTest
+{
+	/* odd sized level, the last blocks along x and y are cropped */
+	static private final long[] levelDimensions = new long[] { 5, 3, 2 };
+
+	static private final long[] levelFactors = new long[] { 2, 2, 2 };
+
+	static private final long[] levelBlocksize = new long[] { 2, 2, 2 };
+
+	/**
+	 * Create a block with one or two labels per voxel, voxels with the same
+	 * labels as their predecessor share its list.
+	 */
+	static private VolatileLabelMultisetArray createBlock( final long[] min, final int[] dimensions )
+	{
+		final int numElements = dimensions[ 0 ] * dimensions[ 1 ] * dimensions[ 2 ];
+		final int[] offsets = new int[ numElements ];
+		final LongMappedAccessData listData = LongMappedAccessData.factory.createStorage( numElements * 32 );
+		final LabelMultisetEntryList list = new LabelMultisetEntryList( listData, 0 );
+		final LabelMultisetEntry entry = new LabelMultisetEntry( 0, 1 );
+		int nextListOffset = 0;
+		for ( int i = 0; i < numElements; ++i )
+		{
+			final long id = 1 + ( min[ 0 ] + min[ 1 ] * 7 + min[ 2 ] * 13 + i / 3 ) % 5;
+			if ( i % 3 != 0 )
+			{
+				offsets[ i ] = offsets[ i - 1 ];
+				continue;
+			}
+			list.createListAt( listData, nextListOffset );
+			entry.setId( id );
+			entry.setCount( 3 );
+			list.add( entry );
+			if ( i % 2 == 0 )
+			{
+				entry.setId( id + 100 );
+				entry.setCount( 1 );
+				list.add( entry );
+			}
+			offsets[ i ] = nextListOffset;
+			nextListOffset += list.getSizeInBytes();
+		}
+		return new VolatileLabelMultisetArray( offsets, listData, nextListOffset, true );
+	}
+
+	static private void assertSameLabels( final VolatileLabelMultisetArray expected, final VolatileLabelMultisetArray actual )
+	{
+		Assert.assertArrayEquals( expected.getCurrentStorageArray(), actual.getCurrentStorageArray() );
+		Assert.assertArrayEquals( H5ConsolidatedLabelMultisets.lists( expected ), H5ConsolidatedLabelMultisets.lists( actual ) );
+		final LabelMultisetEntryList e = new LabelMultisetEntryList();
+		final LabelMultisetEntryList a = new LabelMultisetEntryList();
+		for ( int i = 0; i < expected.getCurrentStorageArray().length; ++i )
+		{
+			expected.getValue( i, e );
+			actual.getValue( i, a );
+			Assert.assertEquals( e.size(), a.size() );
+			for ( int j = 0; j < e.size(); ++j )
+			{
+				Assert.assertEquals( e.get( j ).getId(), a.get( j ).getId() );
+				Assert.assertEquals( e.get( j ).getCount(), a.get( j ).getCount() );
+			}
+		}
+	}
+
+	/**
+	 * Minimum and dimensions of the blocks of the level, x fastest.
+	 */
+	static private long[][] blockMins()
+	{
+		final long[][] mins = new long[ 6 ][];
+		int b = 0;
+		for ( long z = 0; z < levelDimensions[ 2 ]; z += levelBlocksize[ 2 ] )
+			for ( long y = 0; y < levelDimensions[ 1 ]; y += levelBlocksize[ 1 ] )
+				for ( long x = 0; x < levelDimensions[ 0 ]; x += levelBlocksize[ 0 ] )
+					mins[ b++ ] = new long[] { x, y, z };
+		return mins;
+	}
+
+	static private int[] blockDimensions( final long[] min )
+	{
+		final int[] dimensions = new int[ 3 ];
+		for ( int d = 0; d < 3; ++d )
+			dimensions[ d ] = ( int ) Math.min( levelBlocksize[ d ], levelDimensions[ d ] - min[ d ] );
+		return dimensions;
+	}
+
+	/**
+	 * Write level 1 in the per-block layout.
+	 */
+	static private void writePerBlockLevel( final IHDF5Writer writer )
+	{
+		writer.uint32().write( "levels", 2 );
+		writer.uint64().writeArray( "l01/dimensions", levelDimensions );
+		writer.uint64().writeArray( "l01/factors", levelFactors );
+		writer.uint64().writeArray( "l01/blocksize", levelBlocksize );
+		for ( final long[] min : blockMins() )
+		{
+			final int[] dimensions = blockDimensions( min );
+			final VolatileLabelMultisetArray block = createBlock( min, dimensions );
+			writer.uint32().writeMDArray(
+					H5ConsolidatedLabelMultisets.blockDataPath( 1, min ),
+					new MDIntArray( block.getCurrentStorageArray(), Util.reorder( dimensions ) ) );
+			writer.uint32().writeArray( H5ConsolidatedLabelMultisets.blockListsPath( 1, min ), H5ConsolidatedLabelMultisets.lists( block ) );
+		}
+	}
+
+	static private class ScaleLevelLoader extends AbstractH5LabelMultisetArrayLoader
+	{
+		public ScaleLevelLoader( final H5ReaderPool scaleReaders )
+		{
+			super( scaleReaders, "volumes/labels/neuron_ids" );
+		}
+
+		@Override
+		protected VolatileLabelMultisetArray loadArrayLevel0( final int[] dimensions, final long[] min )
+		{
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public int getBytesPerElement()
+		{
+			return 8;
+		}
+	}
+
+	@Test
+	public void testConvert() throws Exception
+	{
+		final File source = File.createTempFile( "per-block-label-multisets", ".h5" );
+		final File target = File.createTempFile( "consolidated-label-multisets", ".h5" );
+		source.delete();
+		target.delete();
+		try
+		{
+			final IHDF5Writer sourceWriter = HDF5Factory.open( source );
+			writePerBlockLevel( sourceWriter );
+			sourceWriter.close();
+
+			final IHDF5Reader reader = HDF5Factory.openForReading( source );
+			final IHDF5Writer writer = HDF5Factory.open( target );
+			try
+			{
+				H5ConsolidatedLabelMultisets.convert( reader, writer );
+				Assert.assertTrue( H5ConsolidatedLabelMultisets.isComplete( writer, 1, levelDimensions, levelFactors, levelBlocksize ) );
+
+				final H5ConsolidatedLabelMultisets.LevelReader levelReader = new H5ConsolidatedLabelMultisets.LevelReader( writer, 1 );
+				for ( final long[] min : blockMins() )
+				{
+					final int[] dimensions = blockDimensions( min );
+					assertSameLabels( createBlock( min, dimensions ), levelReader.read( dimensions, min ) );
+				}
+			}
+			finally
+			{
+				writer.close();
+				reader.close();
+			}
+		}
+		finally
+		{
+			source.delete();
+			target.delete();
+		}
+	}
+
+	/**
+	 * A level that is being converted in place is read from the per-block
+	 * layout until the conversion is complete.
+	 */
+	@Test
+	public void testLoaderReadsCompleteLevelsOnly() throws Exception
+	{
+		final File file = File.createTempFile( "label-multisets", ".h5" );
+		file.delete();
+		try
+		{
+			final IHDF5Writer writer = HDF5Factory.open( file );
+			try
+			{
+				writePerBlockLevel( writer );
+				final H5ConsolidatedLabelMultisets.Writer levelWriter = new H5ConsolidatedLabelMultisets.Writer( writer, 1 );
+				levelWriter.writeLevelInfo( levelDimensions, levelFactors, levelBlocksize );
+
+				final ScaleLevelLoader incomplete = new ScaleLevelLoader( new H5ReaderPool( writer, 1 ) );
+				Assert.assertNull( incomplete.consolidatedLevel( 1 ) );
+				for ( final long[] min : blockMins() )
+				{
+					final int[] dimensions = blockDimensions( min );
+					assertSameLabels( createBlock( min, dimensions ), incomplete.loadArray( 0, 0, 1, dimensions, min ) );
+				}
+
+				H5ConsolidatedLabelMultisets.convert( writer, writer );
+				final ScaleLevelLoader complete = new ScaleLevelLoader( new H5ReaderPool( writer, 1 ) );
+				Assert.assertNotNull( complete.consolidatedLevel( 1 ) );
+				for ( final long[] min : blockMins() )
+				{
+					final int[] dimensions = blockDimensions( min );
+					assertSameLabels( createBlock( min, dimensions ), complete.loadArray( 0, 0, 1, dimensions, min ) );
+				}
+			}
+			finally
+			{
+				writer.close();
+			}
+		}
+		finally
+		{
+			file.delete();
+		}
+	}
+
+	@Test
+	public void testResume() throws Exception
+	{
+		final long[] dimensions = new long[] { 4, 2, 1 };
+		final long[] factors = new long[] { 2, 2, 1 };
+		final long[] blocksize = new long[] { 2, 2, 1 };
+		final int[] offsets = new int[ 4 ];
+		final int[] lists = new int[] { 1, 7, 0, 4 };
+
+		final File file = File.createTempFile( "consolidated-label-multisets", ".h5" );
+		file.delete();
+		try
+		{
+			final IHDF5Writer writer = HDF5Factory.open( file );
+			try
+			{
+				final H5ConsolidatedLabelMultisets.Writer levelWriter = new H5ConsolidatedLabelMultisets.Writer( writer, 1 );
+				levelWriter.writeLevelInfo( dimensions, factors, blocksize );
+				levelWriter.writeBlock( offsets, lists, new long[] { 2, 0, 0 }, blocksize );
+				levelWriter.checkpoint();
+				levelWriter.writeBlock( offsets, lists, new long[] { 0, 0, 0 }, blocksize );
+				Assert.assertFalse( H5ConsolidatedLabelMultisets.isComplete( writer, 1 ) );
+
+				/* the committed block is kept, the block written after the checkpoint is not */
+				final H5ConsolidatedLabelMultisets.Writer resumed = new H5ConsolidatedLabelMultisets.Writer( writer, 1, true );
+				resumed.writeLevelInfo( dimensions, factors, blocksize );
+				Assert.assertFalse( resumed.isWritten( 0 ) );
+				Assert.assertTrue( resumed.isWritten( 1 ) );
+				resumed.writeBlock( offsets, lists, new long[] { 0, 0, 0 }, blocksize );
+				resumed.setComplete();
+				Assert.assertTrue( H5ConsolidatedLabelMultisets.isComplete( writer, 1, dimensions, factors, blocksize ) );
+				Assert.assertFalse( H5ConsolidatedLabelMultisets.isComplete( writer, 1, new long[] { 4, 2, 2 }, factors, blocksize ) );
+				/* the lists of the uncommitted block are skipped */
+				Assert.assertEquals( 12, writer.object().getDimensions( H5ConsolidatedLabelMultisets.listsPath( 1 ) )[ 0 ] );
+
+				/* other level attributes start over */
+				final long[] otherFactors = new long[] { 2, 2, 2 };
+				final H5ConsolidatedLabelMultisets.Writer restarted = new H5ConsolidatedLabelMultisets.Writer( writer, 1, true );
+				restarted.writeLevelInfo( dimensions, otherFactors, blocksize );
+				Assert.assertFalse( restarted.isWritten( 1 ) );
+				Assert.assertFalse( H5ConsolidatedLabelMultisets.isComplete( writer, 1 ) );
+				Assert.assertTrue( H5ConsolidatedLabelMultisets.hasLevelInfo( writer, 1, dimensions, otherFactors, null ) );
+			}
+			finally
+			{
+				writer.close();
+			}
+		}
+		finally
+		{
+			file.delete();
+		}
+	}
+}
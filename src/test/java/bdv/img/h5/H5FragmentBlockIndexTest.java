@@ -0,0 +1,63 @@
+package bdv.img.h5;
+
+import java.io.File;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import bdv.bigcat.label.FragmentSegmentAssignment;
+import bdv.util.LocalIdService;
+import ch.systemsx.cisd.hdf5.HDF5Factory;
+import ch.systemsx.cisd.hdf5.IHDF5Writer;
+import net.imglib2.Interval;
+
+public class H5FragmentBlockIndexTest
+{
+	@Test
+	public void testBuildWriteLoad() throws Exception
+	{
+		/* 3 x 2 x 1 grid, the last column and row are cropped */
+		final H5FragmentBlockIndex.Builder builder = new H5FragmentBlockIndex.Builder( new long[] { 10, 6, 4 }, new long[] { 4, 4, 4 } );
+		builder.add( new long[] { 3, 1 }, new long[] { 2, 1, 0 } );
+		builder.add( new long[] { 1, 2 }, new long[] { 0, 0, 0 } );
+		builder.add( new long[] { 2 }, new long[] { 1, 1, 0 } );
+		builder.add( new long[] { 1 }, new long[] { 1, 0, 0 } );
+
+		final File file = File.createTempFile( "fragment-block-index", ".h5" );
+		file.delete();
+		try
+		{
+			final IHDF5Writer writer = HDF5Factory.open( file );
+			try
+			{
+				Assert.assertFalse( H5FragmentBlockIndex.exists( writer, 1 ) );
+				builder.build().write( writer, 1 );
+				final H5FragmentBlockIndex index = H5FragmentBlockIndex.load( writer, 1 );
+
+				Assert.assertEquals( 3, index.numFragments() );
+				Assert.assertArrayEquals( new long[] { 0, 1, 5 }, index.getBlocks( 1 ) );
+				Assert.assertArrayEquals( new long[] { 0, 4 }, index.getBlocks( 2 ) );
+				Assert.assertArrayEquals( new long[] { 5 }, index.getBlocks( 3 ) );
+				Assert.assertEquals( 0, index.getBlocks( 4 ).length );
+
+				final Interval interval = index.getBlockInterval( 5 );
+				Assert.assertArrayEquals( new long[] { 8, 4, 0 }, new long[] { interval.min( 0 ), interval.min( 1 ), interval.min( 2 ) } );
+				Assert.assertArrayEquals( new long[] { 9, 5, 3 }, new long[] { interval.max( 0 ), interval.max( 1 ), interval.max( 2 ) } );
+
+				final FragmentSegmentAssignment assignment = new FragmentSegmentAssignment(
+						new long[] { 1, 2, 3 },
+						new long[] { 10, 20, 20 },
+						new LocalIdService() );
+				Assert.assertArrayEquals( new long[] { 0, 4, 5 }, index.getSegmentBlocks( 20, assignment ) );
+			}
+			finally
+			{
+				writer.close();
+			}
+		}
+		finally
+		{
+			file.delete();
+		}
+	}
+}
@@ -0,0 +1,135 @@
+package bdv.img.h5;
+
+import java.io.File;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import bdv.bigcat.label.FragmentSegmentAssignment;
+import bdv.labels.labelset.Label;
+import bdv.labels.labelset.LabelMultisetEntry;
+import bdv.labels.labelset.LabelMultisetEntryList;
+import bdv.labels.labelset.LabelMultisetType;
+import bdv.labels.labelset.LongMappedAccessData;
+import bdv.labels.labelset.VolatileLabelMultisetArray;
+import bdv.util.LocalIdService;
+import ch.systemsx.cisd.hdf5.HDF5Factory;
+import ch.systemsx.cisd.hdf5.IHDF5Reader;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessible;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.integer.LongType;
+import net.imglib2.util.Fraction;
+import net.imglib2.util.IntervalIndexer;
+import net.imglib2.util.Intervals;
+
+public class H5ParallelLabelExportTest
+{
+	static private final long[] dimensions = new long[] { 19, 14, 9 };
+
+	/**
+	 * Fragments 1..24 in slabs of three voxels along x, one label per voxel.
+	 */
+	static private RandomAccessible< LabelMultisetType > createFragments()
+	{
+		final int numElements = ( int ) Intervals.numElements( dimensions );
+		final int[] offsets = new int[ numElements ];
+		final LongMappedAccessData listData = LongMappedAccessData.factory.createStorage( numElements * 16 );
+		final LabelMultisetEntryList list = new LabelMultisetEntryList();
+		final long[] position = new long[ dimensions.length ];
+		int nextListOffset = 0;
+		for ( int i = 0; i < numElements; ++i )
+		{
+			IntervalIndexer.indexToPosition( i, dimensions, position );
+			list.createListAt( listData, nextListOffset );
+			list.add( new LabelMultisetEntry( 1 + ( position[ 0 ] / 3 + 7 * position[ 2 ] ) % 24, 1 ) );
+			offsets[ i ] = nextListOffset;
+			nextListOffset += list.getSizeInBytes();
+		}
+
+		final ArrayImg< LabelMultisetType, VolatileLabelMultisetArray > img = new ArrayImg<>(
+				new VolatileLabelMultisetArray( offsets, listData, nextListOffset, true ),
+				dimensions,
+				new Fraction() );
+		img.setLinkedType( new LabelMultisetType( img ) );
+		return img;
+	}
+
+	/**
+	 * Painted labels, transparent except for a diagonal band.
+	 */
+	static private RandomAccessible< LongType > createPaint()
+	{
+		final long[] position = new long[ dimensions.length ];
+		final long[] data = new long[ ( int ) Intervals.numElements( dimensions ) ];
+		for ( int i = 0; i < data.length; ++i )
+		{
+			IntervalIndexer.indexToPosition( i, dimensions, position );
+			data[ i ] = Math.abs( position[ 0 ] - position[ 1 ] ) < 2 ? 5 + position[ 2 ] % 3 : Label.TRANSPARENT;
+		}
+		return ArrayImgs.longs( data, dimensions );
+	}
+
+	static private FragmentSegmentAssignment createAssignment()
+	{
+		final long[] fragments = new long[ 24 ];
+		final long[] segments = new long[ 24 ];
+		for ( int i = 0; i < fragments.length; ++i )
+		{
+			fragments[ i ] = i + 1;
+			segments[ i ] = 100 + i / 4;
+		}
+		final LocalIdService idService = new LocalIdService();
+		idService.setNext( 1000 );
+		final FragmentSegmentAssignment assignment = new FragmentSegmentAssignment( fragments, segments, idService );
+		assignment.mergeFragmentSegments( 1, 6 );
+		assignment.mergeFragmentSegments( 5, 20 );
+		return assignment;
+	}
+
+	static private long[] read( final File file, final String dataset )
+	{
+		final IHDF5Reader reader = HDF5Factory.openForReading( file );
+		try
+		{
+			return reader.uint64().readMDArray( dataset ).getAsFlatArray();
+		}
+		finally
+		{
+			reader.close();
+		}
+	}
+
+	@Test
+	public void testSameAsSerialExport() throws Exception
+	{
+		final RandomAccessible< LabelMultisetType > fragments = createFragments();
+		final RandomAccessible< LongType > paint = createPaint();
+		final FragmentSegmentAssignment assignment = createAssignment();
+
+		/* offset interval, cells do not divide it */
+		final FinalInterval interval = new FinalInterval( new long[] { 1, 2, 0 }, new long[] { 18, 13, 8 } );
+		final int[] cellDimensions = new int[] { 4, 5, 3 };
+
+		final File serial = File.createTempFile( "serial-label-export", ".h5" );
+		final File parallel = File.createTempFile( "parallel-label-export", ".h5" );
+		serial.delete();
+		parallel.delete();
+		try
+		{
+			H5Utils.saveAssignedSingleElementLabelMultisetLongPair( fragments, paint, interval, assignment, serial, "merged_ids", cellDimensions );
+			final H5ParallelLabelExport export = new H5ParallelLabelExport( 4, 3 );
+			export.saveAssignedSingleElementLabelMultisetLongPair( fragments, paint, interval, assignment, parallel, "merged_ids", cellDimensions );
+
+			final long[] expected = read( serial, "merged_ids" );
+			Assert.assertEquals( Intervals.numElements( interval ), expected.length );
+			Assert.assertArrayEquals( expected, read( parallel, "merged_ids" ) );
+		}
+		finally
+		{
+			serial.delete();
+			parallel.delete();
+		}
+	}
+}
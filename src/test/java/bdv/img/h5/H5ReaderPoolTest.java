@@ -0,0 +1,64 @@
+package bdv.img.h5;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import ch.systemsx.cisd.hdf5.HDF5Factory;
+import ch.systemsx.cisd.hdf5.IHDF5Reader;
+import ch.systemsx.cisd.hdf5.IHDF5Writer;
+
+public class H5ReaderPoolTest
+{
+	@Test
+	public void testConcurrentReads() throws Exception
+	{
+		final File file = File.createTempFile( "reader-pool", ".h5" );
+		file.delete();
+		try
+		{
+			final IHDF5Writer writer = HDF5Factory.open( file );
+			final int[] data = new int[ 1024 ];
+			for ( int i = 0; i < data.length; ++i )
+				data[ i ] = i;
+			writer.int32().writeArray( "data", data );
+			writer.close();
+
+			final IHDF5Reader reader = HDF5Factory.openForReading( file );
+			final H5ReaderPool pool = new H5ReaderPool( reader, 3 );
+			final ExecutorService executor = Executors.newFixedThreadPool( 4 );
+			try
+			{
+				final ArrayList< Future< int[] > > futures = new ArrayList<>();
+				for ( int i = 0; i < 64; ++i )
+				{
+					final int offset = i * 16;
+					futures.add( executor.submit( () -> pool.read( r -> r.int32().readArrayBlockWithOffset( "data", 16, offset ) ) ) );
+				}
+				for ( int i = 0; i < futures.size(); ++i )
+					Assert.assertEquals( i * 16 + 5, futures.get( i ).get()[ 5 ] );
+
+				Assert.assertTrue( pool.getNumReaders() <= 3 );
+				long numReads = 0;
+				for ( final H5ReaderPool.Statistics statistics : pool.getStatistics() )
+					numReads += statistics.getNumReads();
+				Assert.assertEquals( 64, numReads );
+			}
+			finally
+			{
+				executor.shutdown();
+				pool.close();
+				reader.close();
+			}
+		}
+		finally
+		{
+			file.delete();
+		}
+	}
+}
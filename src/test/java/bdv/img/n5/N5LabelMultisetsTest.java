@@ -0,0 +1,94 @@
+package bdv.img.n5;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.junit.Assert;
+import org.junit.Test;
+
+import bdv.labels.labelset.LabelMultisetEntry;
+import bdv.labels.labelset.LabelMultisetEntryList;
+import bdv.labels.labelset.LongMappedAccessData;
+import bdv.labels.labelset.VolatileLabelMultisetArray;
+
+public class N5LabelMultisetsTest
+{
+	private static VolatileLabelMultisetArray createArray( final long[] ids )
+	{
+		final int[] offsets = new int[ ids.length ];
+		final LongMappedAccessData listData = LongMappedAccessData.factory.createStorage( 32 );
+		final LabelMultisetEntryList list = new LabelMultisetEntryList( listData, 0 );
+		final LabelMultisetEntry entry = new LabelMultisetEntry( 0, 1 );
+		int nextListOffset = 0;
+		for ( int i = 0; i < ids.length; ++i )
+		{
+			if ( i > 0 && ids[ i ] == ids[ i - 1 ] )
+			{
+				offsets[ i ] = offsets[ i - 1 ];
+				continue;
+			}
+			list.createListAt( listData, nextListOffset );
+			entry.setId( ids[ i ] );
+			list.add( entry );
+			offsets[ i ] = nextListOffset;
+			nextListOffset += list.getSizeInBytes();
+		}
+		return new VolatileLabelMultisetArray( offsets, listData, nextListOffset, true );
+	}
+
+	private static void assertSameLabels( final VolatileLabelMultisetArray expected, final VolatileLabelMultisetArray actual )
+	{
+		Assert.assertArrayEquals( expected.getCurrentStorageArray(), actual.getCurrentStorageArray() );
+		Assert.assertEquals( expected.getListDataUsedSizeInBytes(), actual.getListDataUsedSizeInBytes() );
+		final LabelMultisetEntryList e = new LabelMultisetEntryList();
+		final LabelMultisetEntryList a = new LabelMultisetEntryList();
+		for ( int i = 0; i < expected.getCurrentStorageArray().length; ++i )
+		{
+			expected.getValue( i, e );
+			actual.getValue( i, a );
+			Assert.assertEquals( e.size(), a.size() );
+			for ( int j = 0; j < e.size(); ++j )
+			{
+				Assert.assertEquals( e.get( j ).getId(), a.get( j ).getId() );
+				Assert.assertEquals( e.get( j ).getCount(), a.get( j ).getCount() );
+			}
+		}
+	}
+
+	@Test
+	public void testSerializeRoundTrip()
+	{
+		final VolatileLabelMultisetArray array = createArray( new long[] { 3, 3, 3, 7, 7, 3, 9, 9 } );
+		final byte[] bytes = N5LabelMultisets.serialize( array );
+		/* 5 runs of 8 bytes */
+		Assert.assertEquals( 12 + 5 * 8 + array.getListDataUsedSizeInBytes(), bytes.length );
+		assertSameLabels( array, N5LabelMultisets.deserialize( bytes ) );
+	}
+
+	@Test
+	public void testWriteAndLoad() throws IOException, InterruptedException
+	{
+		final File dir = Files.createTempDirectory( "n5-label-multisets" ).toFile();
+		try
+		{
+			final N5FSWriter n5 = new N5FSWriter( dir.getAbsolutePath() );
+			final N5LabelMultisets.Writer writer = new N5LabelMultisets.Writer( n5, "labels", 0 );
+			writer.writeLevelInfo( new long[] { 4, 2, 2 }, new long[] { 1, 1, 1 }, new long[] { 2, 2, 2 } );
+			final VolatileLabelMultisetArray block = createArray( new long[] { 1, 1, 2, 2, 2, 5, 5, 1 } );
+			writer.writeBlock( block, new long[] { 2, 0, 0 }, new long[] { 2, 2, 2 } );
+
+			final N5LabelMultisetArrayLoader loader = new N5LabelMultisetArrayLoader( n5, "labels" );
+			Assert.assertEquals( 1, loader.getNumLevels() );
+			assertSameLabels( block, loader.loadArray( 0, 0, 0, new int[] { 2, 2, 2 }, new long[] { 2, 0, 0 } ) );
+
+			/* missing blocks are empty */
+			Assert.assertEquals( 8, loader.loadArray( 0, 0, 0, new int[] { 2, 2, 2 }, new long[] { 0, 0, 0 } ).getCurrentStorageArray().length );
+		}
+		finally
+		{
+			Files.walk( dir.toPath() ).sorted( ( a, b ) -> b.compareTo( a ) ).forEach( p -> p.toFile().delete() );
+		}
+	}
+}
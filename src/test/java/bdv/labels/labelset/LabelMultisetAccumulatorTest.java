@@ -0,0 +1,37 @@
+package bdv.labels.labelset;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LabelMultisetAccumulatorTest
+{
+	@Test
+	public void testAgainstMergeWith()
+	{
+		final Random rnd = new Random( 0 );
+		final LabelMultisetAccumulator accumulator = new LabelMultisetAccumulator( 1 );
+		for ( int trial = 0; trial < 20; ++trial )
+		{
+			final LabelMultisetEntryList expected = new LabelMultisetEntryList( 16 );
+			accumulator.clear();
+			for ( int k = 0; k < 8; ++k )
+			{
+				final LabelMultisetEntryList list = new LabelMultisetEntryList( 16 );
+				final int n = rnd.nextInt( 50 );
+				for ( int i = 0; i < n; ++i )
+					list.add( new LabelMultisetEntry( rnd.nextInt( 100 ), 1 + rnd.nextInt( 5 ) ) );
+				list.sortById();
+				list.mergeConsecutiveEntries();
+
+				expected.mergeWith( list );
+				accumulator.add( list );
+			}
+
+			final LabelMultisetEntryList actual = new LabelMultisetEntryList( 16 );
+			accumulator.writeTo( actual );
+			Assert.assertEquals( expected, actual );
+		}
+	}
+}
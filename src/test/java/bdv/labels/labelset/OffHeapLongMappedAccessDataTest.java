@@ -0,0 +1,103 @@
+package bdv.labels.labelset;
+
+import java.io.File;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class OffHeapLongMappedAccessDataTest
+{
+	private static void testListsAgainstHeap( final MappedAccessData.Factory< ? extends LongMappedAccessData, LongMappedAccess > factory )
+	{
+		final Random rnd = new Random( 0 );
+		final LongMappedAccessData heapData = LongMappedAccessData.heapFactory.createStorage( 16 );
+		final LongMappedAccessData data = factory.createStorage( 16 );
+		final LabelMultisetEntryList heapList = new LabelMultisetEntryList();
+		final LabelMultisetEntryList list = new LabelMultisetEntryList();
+		final LabelMultisetEntry entry = new LabelMultisetEntry( 0, 1 );
+
+		// several lists, one after another, growing the storage
+		long heapOffset = 0;
+		long offset = 0;
+		for ( int k = 0; k < 100; ++k )
+		{
+			heapList.createListAt( heapData, heapOffset );
+			list.createListAt( data, offset );
+			final int n = rnd.nextInt( 200 );
+			for ( int i = 0; i < n; ++i )
+			{
+				entry.setId( rnd.nextInt( 1000 ) );
+				entry.setCount( 1 + rnd.nextInt( 10 ) );
+				heapList.add( entry );
+				list.add( entry );
+			}
+			heapList.sortById();
+			heapList.mergeConsecutiveEntries();
+			list.sortById();
+			list.mergeConsecutiveEntries();
+			Assert.assertEquals( heapList, list );
+			heapOffset += heapList.getSizeInBytes();
+			offset += list.getSizeInBytes();
+		}
+		Assert.assertEquals( heapOffset, offset );
+
+		// all lists are still intact after growing
+		heapOffset = 0;
+		offset = 0;
+		for ( int k = 0; k < 100; ++k )
+		{
+			heapList.referToDataAt( heapData, heapOffset );
+			list.referToDataAt( data, offset );
+			Assert.assertEquals( heapList, list );
+			heapOffset += heapList.getSizeInBytes();
+			offset += list.getSizeInBytes();
+		}
+	}
+
+	@Test
+	public void testDirect()
+	{
+		testListsAgainstHeap( OffHeapLongMappedAccessData.directFactory );
+	}
+
+	@Test
+	public void testMapped()
+	{
+		testListsAgainstHeap( OffHeapLongMappedAccessData.mappedFactory( new File( System.getProperty( "java.io.tmpdir" ) ) ) );
+	}
+
+	@Test
+	public void testMappedOnlyWhenLarge()
+	{
+		final MappedAccessData.Factory< OffHeapLongMappedAccessData, LongMappedAccess > factory =
+				OffHeapLongMappedAccessData.mappedFactory( new File( System.getProperty( "java.io.tmpdir" ) ) );
+
+		final OffHeapLongMappedAccessData small = factory.createStorage( 16 );
+		Assert.assertFalse( small.isMapped() );
+
+		final LongMappedAccess access = small.createAccess();
+		small.updateAccess( access, 0 );
+		access.putLong( 42, 8 );
+		small.resize( 1 << 20 );
+		Assert.assertTrue( small.isMapped() );
+		small.updateAccess( access, 0 );
+		Assert.assertEquals( 42, access.getLong( 8 ) );
+		Assert.assertEquals( 0, access.getLong( 16 ) );
+
+		/* many large storages share a few mappings */
+		final OffHeapLongMappedAccessData[] large = new OffHeapLongMappedAccessData[ 1000 ];
+		for ( int i = 0; i < large.length; ++i )
+		{
+			large[ i ] = factory.createStorage( 1 << 17 );
+			Assert.assertTrue( large[ i ].isMapped() );
+			large[ i ].updateAccess( access, 0 );
+			access.putLong( i, ( 1 << 17 ) - 8 );
+		}
+		for ( int i = 0; i < large.length; ++i )
+		{
+			large[ i ].updateAccess( access, 0 );
+			Assert.assertEquals( i, access.getLong( ( 1 << 17 ) - 8 ) );
+		}
+	}
+}
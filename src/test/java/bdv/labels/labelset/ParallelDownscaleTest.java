@@ -0,0 +1,160 @@
+package bdv.labels.labelset;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.util.Fraction;
+import net.imglib2.util.IntervalIndexer;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+public class ParallelDownscaleTest
+{
+	/**
+	 * Create an odd sized label volume with one or two labels per voxel.
+	 */
+	static RandomAccessibleInterval< LabelMultisetType > createVolume( final long[] dimensions )
+	{
+		final int numElements = ( int ) Intervals.numElements( dimensions );
+		final int[] offsets = new int[ numElements ];
+		final LongMappedAccessData listData = LongMappedAccessData.factory.createStorage( numElements * 32 );
+		final LabelMultisetEntryList list = new LabelMultisetEntryList();
+		final long[] position = new long[ dimensions.length ];
+		int nextListOffset = 0;
+		for ( int i = 0; i < numElements; ++i )
+		{
+			IntervalIndexer.indexToPosition( i, dimensions, position );
+			final long id = 1 + ( position[ 0 ] / 3 + 5 * ( position[ 1 ] / 2 ) + 11 * position[ 2 ] ) % 17;
+			list.createListAt( listData, nextListOffset );
+			list.add( new LabelMultisetEntry( id, 1 + ( int ) ( position[ 0 ] % 2 ) ) );
+			if ( ( position[ 0 ] + position[ 1 ] + position[ 2 ] ) % 4 == 0 )
+				list.add( new LabelMultisetEntry( id + 100, 1 ) );
+			offsets[ i ] = nextListOffset;
+			nextListOffset += list.getSizeInBytes();
+		}
+
+		final ArrayImg< LabelMultisetType, VolatileLabelMultisetArray > img = new ArrayImg<>(
+				new VolatileLabelMultisetArray( offsets, listData, nextListOffset, true ),
+				dimensions,
+				new Fraction() );
+		img.setLinkedType( new LabelMultisetType( img ) );
+		return img;
+	}
+
+	static void assertSameLabels( final VolatileLabelMultisetArray expected, final VolatileLabelMultisetArray actual )
+	{
+		Assert.assertEquals( expected.getCurrentStorageArray().length, actual.getCurrentStorageArray().length );
+		Assert.assertEquals( expected.getListDataUsedSizeInBytes(), actual.getListDataUsedSizeInBytes() );
+		final LabelMultisetEntryList e = new LabelMultisetEntryList();
+		final LabelMultisetEntryList a = new LabelMultisetEntryList();
+		for ( int i = 0; i < expected.getCurrentStorageArray().length; ++i )
+		{
+			expected.getValue( i, e );
+			actual.getValue( i, a );
+			Assert.assertEquals( e, a );
+		}
+	}
+
+	/**
+	 * Downscale all blocks of a level serially and in parallel and compare
+	 * them.  Blocks along the upper borders are cropped and the input is not
+	 * a multiple of the factors, so the last output voxels read the extended
+	 * border.
+	 */
+	static void assertParallelEqualsSerial( final long[] inputDimensions, final long[] factors, final int[] cellDimensions, final int minStripeSize )
+	{
+		final int n = inputDimensions.length;
+		final long[] dimensions = new long[ n ];
+		final long[] maxRequiredInput = new long[ n ];
+		for ( int d = 0; d < n; ++d )
+		{
+			dimensions[ d ] = Math.max( inputDimensions[ d ] / factors[ d ], 1 );
+			maxRequiredInput[ d ] = dimensions[ d ] * factors[ d ] - 1;
+		}
+		final RandomAccessibleInterval< LabelMultisetType > input = Views.interval(
+				Views.extendBorder( createVolume( inputDimensions ) ),
+				new FinalInterval( new long[ n ], maxRequiredInput ) );
+
+		final HashMap< String, VolatileLabelMultisetArray > blocks = new HashMap<>();
+		final ForkJoinPool pool = new ForkJoinPool( 4 );
+		try
+		{
+			ParallelDownscale.downscaleLevel(
+					pool,
+					input,
+					factors,
+					dimensions,
+					cellDimensions,
+					minStripeSize,
+					( data, min, blocksize ) -> Assert.assertNull( blocks.put( Arrays.toString( min ), data ) ) );
+		}
+		finally
+		{
+			pool.shutdown();
+		}
+
+		final long[] numCells = new long[ n ];
+		for ( int d = 0; d < n; ++d )
+			numCells[ d ] = ( dimensions[ d ] - 1 ) / cellDimensions[ d ] + 1;
+		Assert.assertEquals( Intervals.numElements( numCells ), blocks.size() );
+
+		final long[] cellPosition = new long[ n ];
+		final long[] min = new long[ n ];
+		final long[] cellDim = new long[ n ];
+		for ( long i = 0; i < Intervals.numElements( numCells ); ++i )
+		{
+			IntervalIndexer.indexToPosition( i, numCells, cellPosition );
+			for ( int d = 0; d < n; ++d )
+			{
+				min[ d ] = cellPosition[ d ] * cellDimensions[ d ];
+				cellDim[ d ] = Math.min( cellDimensions[ d ], dimensions[ d ] - min[ d ] );
+			}
+			final VolatileLabelMultisetArray parallel = blocks.get( Arrays.toString( min ) );
+			Assert.assertNotNull( parallel );
+			assertSameLabels( Downscale.downscale( input, factors, cellDim, min ), parallel );
+		}
+	}
+
+	@Test
+	public void testLevel()
+	{
+		assertParallelEqualsSerial( new long[] { 21, 13, 7 }, new long[] { 2, 3, 2 }, new int[] { 4, 3, 2 }, ParallelDownscale.DEFAULT_MIN_STRIPE_SIZE );
+	}
+
+	@Test
+	public void testLevelInStripes()
+	{
+		/* stripes of single slices, blocks do not divide the level */
+		assertParallelEqualsSerial( new long[] { 21, 13, 7 }, new long[] { 2, 3, 2 }, new int[] { 4, 3, 2 }, 1 );
+		assertParallelEqualsSerial( new long[] { 23, 17, 11 }, new long[] { 3, 3, 3 }, new int[] { 5, 4, 3 }, 1 );
+	}
+
+	@Test
+	public void testBlock()
+	{
+		final long[] factors = new long[] { 2, 2, 2 };
+		final long[] dimensions = new long[] { 5, 4, 3 };
+		final long[] min = new long[] { 1, 1, 1 };
+		final RandomAccessibleInterval< LabelMultisetType > input = Views.interval(
+				Views.extendBorder( createVolume( new long[] { 13, 11, 9 } ) ),
+				new FinalInterval( new long[] { 12, 10, 8 } ) );
+		final ForkJoinPool pool = new ForkJoinPool( 4 );
+		try
+		{
+			assertSameLabels(
+					Downscale.downscale( input, factors, dimensions, min ),
+					ParallelDownscale.downscale( pool, input, factors, dimensions, min, 1 ) );
+		}
+		finally
+		{
+			pool.shutdown();
+		}
+	}
+}
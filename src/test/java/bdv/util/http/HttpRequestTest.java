@@ -0,0 +1,157 @@
+package bdv.util.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * Tests {@link HttpRequest} against a local stand-in server.
+ */
+public class HttpRequestTest
+{
+	private LocalHttpServer server;
+
+	private String url;
+
+	private final byte[] data = new byte[ 100000 ];
+
+	private final Set< Integer > clientPorts = Collections.synchronizedSet( new HashSet<>() );
+
+	private final AtomicInteger inFlight = new AtomicInteger();
+
+	private final AtomicInteger maxInFlight = new AtomicInteger();
+
+	private static void drain( final InputStream in ) throws IOException
+	{
+		final byte[] buffer = new byte[ 4096 ];
+		while ( in.read( buffer ) >= 0 );
+	}
+
+	private void handle( final HttpExchange exchange, final boolean slow ) throws IOException
+	{
+		clientPorts.add( exchange.getRemoteAddress().getPort() );
+		maxInFlight.accumulateAndGet( inFlight.incrementAndGet(), Math::max );
+		try
+		{
+			drain( exchange.getRequestBody() );
+			if ( slow )
+				Thread.sleep( 20 );
+
+			final String acceptEncoding = exchange.getRequestHeaders().getFirst( "Accept-Encoding" );
+			if ( acceptEncoding != null && acceptEncoding.contains( "gzip" ) )
+			{
+				final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				try ( final GZIPOutputStream gzip = new GZIPOutputStream( bytes ) )
+				{
+					gzip.write( data );
+				}
+				exchange.getResponseHeaders().set( "Content-Encoding", "gzip" );
+				exchange.sendResponseHeaders( 200, bytes.size() );
+				try ( OutputStream out = exchange.getResponseBody() )
+				{
+					bytes.writeTo( out );
+				}
+			}
+			else
+			{
+				exchange.sendResponseHeaders( 200, data.length );
+				try ( OutputStream out = exchange.getResponseBody() )
+				{
+					out.write( data );
+				}
+			}
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+		}
+		finally
+		{
+			inFlight.decrementAndGet();
+		}
+	}
+
+	@Before
+	public void startServer() throws IOException
+	{
+		for ( int i = 0; i < data.length; ++i )
+			data[ i ] = ( byte ) ( i * 31 );
+
+		server = new LocalHttpServer( 16 )
+				.createContext( "/data", exchange -> handle( exchange, false ) )
+				.createContext( "/slow", exchange -> handle( exchange, true ) )
+				.start();
+		url = server.getUrl();
+	}
+
+	@After
+	public void stopServer()
+	{
+		server.stop();
+		HttpConnections.setAcceptGzip( false );
+	}
+
+	@Test
+	public void testKeepAlive() throws IOException
+	{
+		for ( int i = 0; i < 20; ++i )
+			Assert.assertArrayEquals( data, HttpRequest.getRequest( url + "/data" ) );
+		for ( int i = 0; i < 20; ++i )
+			HttpRequest.postRequest( url + "/data", new byte[ 1000 ] );
+
+		/* sequential requests reuse one socket */
+		Assert.assertEquals( 1, clientPorts.size() );
+	}
+
+	@Test
+	public void testIntoCallerBuffer() throws IOException
+	{
+		final byte[] buffer = new byte[ data.length ];
+		Assert.assertSame( buffer, HttpRequest.getRequest( url + "/data", buffer ) );
+		Assert.assertArrayEquals( data, buffer );
+	}
+
+	@Test
+	public void testGzip() throws IOException
+	{
+		HttpConnections.setAcceptGzip( true );
+		Assert.assertArrayEquals( data, HttpRequest.getRequest( url + "/data" ) );
+	}
+
+	@Test
+	public void testBoundedConcurrency() throws Exception
+	{
+		final int maxConnections = HttpConnections.getMaxConnectionsPerHost();
+		final ExecutorService clients = Executors.newFixedThreadPool( 4 * maxConnections );
+		try
+		{
+			final ArrayList< Future< byte[] > > futures = new ArrayList<>();
+			for ( int i = 0; i < 8 * maxConnections; ++i )
+				futures.add( clients.submit( () -> HttpRequest.getRequest( url + "/slow" ) ) );
+			for ( final Future< byte[] > future : futures )
+				Assert.assertArrayEquals( data, future.get() );
+		}
+		finally
+		{
+			clients.shutdown();
+		}
+		Assert.assertTrue( maxInFlight.get() <= maxConnections );
+	}
+}
@@ -0,0 +1,56 @@
+package bdv.util.http;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local stand-in server for tests of HTTP clients, listening on a free
+ * port of the loopback interface.
+ */
+public class LocalHttpServer
+{
+	private final HttpServer server;
+
+	private final ExecutorService executor;
+
+	private final String url;
+
+	public LocalHttpServer( final int numThreads ) throws IOException
+	{
+		server = HttpServer.create( new InetSocketAddress( "127.0.0.1", 0 ), 0 );
+		executor = Executors.newFixedThreadPool( numThreads );
+		server.setExecutor( executor );
+		url = "http://127.0.0.1:" + server.getAddress().getPort();
+	}
+
+	public LocalHttpServer createContext( final String path, final HttpHandler handler )
+	{
+		server.createContext( path, handler );
+		return this;
+	}
+
+	public LocalHttpServer start()
+	{
+		server.start();
+		return this;
+	}
+
+	public void stop()
+	{
+		server.stop( 0 );
+		executor.shutdown();
+	}
+
+	/**
+	 * @return the base url of the server without trailing slash
+	 */
+	public String getUrl()
+	{
+		return url;
+	}
+}